@@ -0,0 +1,15 @@
+package org.witness.proofmode;
+
+import android.net.Uri;
+
+/**
+ * Progress of a batch started with {@link ProofMode#generateProofs}; called on the thread
+ * that started the batch as each item finishes, in the order they finish
+ */
+public interface ProofListener {
+
+    public void proofGenerated(Uri uri, String hash, int completed, int total);
+
+    public void proofFailed(Uri uri, Throwable error, int completed, int total);
+
+}
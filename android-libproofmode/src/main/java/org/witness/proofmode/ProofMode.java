@@ -9,12 +9,26 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.witness.proofmode.library.R;
 import org.witness.proofmode.service.AudioContentJob;
 import org.witness.proofmode.service.MediaWatcher;
+import org.witness.proofmode.service.ProofEngine;
 import org.witness.proofmode.service.PhotosContentJob;
 import org.witness.proofmode.service.VideosContentJob;
 import org.witness.proofmode.util.SafetyNetCheck;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.security.Security;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import timber.log.Timber;
 
 
 public class ProofMode {
@@ -23,17 +37,28 @@ public class ProofMode {
     public final static String PREF_OPTION_LOCATION = "trackLocation";
     public final static String PREF_OPTION_PHONE = "trackDeviceId";
     public final static String PREF_OPTION_NETWORK = "trackMobileNetwork";
+    //also hash media in 4MB chunks, from the same reads as the SHA-256; it costs no extra I/O,
+    //but the chunk SHA-256s take other cores and up to 16MB of buffers while a file is hashed
+    public final static String PREF_OPTION_CHUNKED_HASH = "chunkedHash";
+    //sign with an Ed25519 subkey, added to the key ring if it has none; a running MediaWatcher
+    //switches keys as soon as it changes, otherwise it applies from the next start
+    public final static String PREF_OPTION_ED25519_SIGNING = "ed25519Signing";
 
     public final static boolean PREF_OPTION_NOTARY_DEFAULT = true;
     public final static boolean PREF_OPTION_LOCATION_DEFAULT = false;
     public final static boolean PREF_OPTION_PHONE_DEFAULT = true;
     public final static boolean PREF_OPTION_NETWORK_DEFAULT = true;
+    public final static boolean PREF_OPTION_CHUNKED_HASH_DEFAULT = false;
+    public final static boolean PREF_OPTION_ED25519_SIGNING_DEFAULT = false;
 
 
     public final static String PROOF_FILE_TAG = ".proof.csv";
     public final static String OPENPGP_FILE_TAG = ".asc";
     public final static String OPENTIMESTAMPS_FILE_TAG = ".ots";
+    //ledger tag of rows for .ots files upgraded to a Bitcoin attestation
+    public final static String OPENTIMESTAMPS_BITCOIN_TAG = ".ots.btc";
     public final static String GOOGLE_SAFETYNET_FILE_TAG = ".gst";
+    public final static String CHUNKS_FILE_TAG = ".chunks.csv";
     public final static String PROVIDER_TAG = ".provider";
 
     public final static String PREFS_DOPROOF = "doProof";
@@ -96,6 +121,86 @@ public class ProofMode {
     }
 
 
+    /**
+     * Generate proof for a batch of media, with as many items in flight as there are cores
+     *
+     * @see #generateProofs(Context, List, int, ProofListener)
+     */
+    public static Map<Uri, ProofResult> generateProofs (Context context, List<Uri> uris, ProofListener listener)
+    {
+        return generateProofs(context, uris, Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Generate proof for a batch of media, ahead of any background work. Up to parallelism
+     * items are handed to the proof engine at a time, which runs as many of them as its I/O and
+     * CPU pools allow. Blocks until every item is done, so don't call it on the main thread.
+     *
+     * @param listener notified on the calling thread as each item finishes, in the order they
+     *                 finish; may be null
+     * @return a result for every uri, in the order given
+     */
+    public static Map<Uri, ProofResult> generateProofs (Context context, List<Uri> uris, int parallelism, ProofListener listener)
+    {
+        ProofEngine engine = MediaWatcher.getInstance(context).getEngine();
+
+        Set<Uri> batch = new LinkedHashSet<>(uris);
+        Map<Uri, ProofResult> done = new HashMap<>();
+
+        //released by the engine as each item finishes, so at most parallelism are queued at once
+        final Semaphore inFlight = new Semaphore(Math.max(1, parallelism));
+        final BlockingQueue<ProofResult> finished = new LinkedBlockingQueue<>();
+
+        ProofEngine.Listener onDone = new ProofEngine.Listener() {
+            @Override
+            public void onProofDone(Uri uri, String hash, Throwable error) {
+                if (error != null)
+                    finished.add(new ProofResult(uri, null, error));
+                else if (hash == null)
+                    finished.add(new ProofResult(uri, null, new FileNotFoundException("unable to read media: " + uri)));
+                else
+                    finished.add(new ProofResult(uri, hash, null));
+
+                inFlight.release();
+            }
+        };
+
+        int total = batch.size();
+        Iterator<Uri> next = batch.iterator();
+
+        try {
+            while (done.size() < total) {
+                //user priority never blocks on back-pressure
+                while (next.hasNext() && inFlight.tryAcquire())
+                    engine.submit(next.next(), null, ProofEngine.PRIORITY_USER, onDone);
+
+                ProofResult result = finished.take();
+                done.put(result.getUri(), result);
+
+                if (listener != null) {
+                    if (result.isSuccessful())
+                        listener.proofGenerated(result.getUri(), result.getHash(), done.size(), total);
+                    else
+                        listener.proofFailed(result.getUri(), result.getError(), done.size(), total);
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Timber.d("interrupted generating batch proof");
+            Thread.currentThread().interrupt();
+        }
+
+        //anything we didn't get to; the engine still finishes what was queued
+        Map<Uri, ProofResult> results = new LinkedHashMap<>();
+        for (Uri uri : batch) {
+            ProofResult result = done.get(uri);
+            results.put(uri, result != null ? result : new ProofResult(uri, null, new InterruptedException()));
+        }
+
+        return results;
+    }
+
     public static File getProofDir (Context context, String mediaHash)
     {
         return MediaWatcher.getHashStorageDir(context, mediaHash);
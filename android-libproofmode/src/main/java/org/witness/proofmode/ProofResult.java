@@ -0,0 +1,43 @@
+package org.witness.proofmode;
+
+import android.net.Uri;
+
+/**
+ * Outcome of generating proof for one item in a batch: its hash, or why there is none
+ */
+public class ProofResult {
+
+    private final Uri mUri;
+    private final String mHash;
+    private final Throwable mError;
+
+    ProofResult (Uri uri, String hash, Throwable error)
+    {
+        mUri = uri;
+        mHash = hash;
+        mError = error;
+    }
+
+    public Uri getUri ()
+    {
+        return mUri;
+    }
+
+    /**
+     * @return the media hash, or null if proof could not be generated
+     */
+    public String getHash ()
+    {
+        return mHash;
+    }
+
+    public Throwable getError ()
+    {
+        return mError;
+    }
+
+    public boolean isSuccessful ()
+    {
+        return mHash != null;
+    }
+}
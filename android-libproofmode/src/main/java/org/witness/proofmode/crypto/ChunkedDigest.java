@@ -0,0 +1,555 @@
+package org.witness.proofmode.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 Merkle tree over fixed-size chunks of a seekable file, hashed in parallel.
+ *
+ * The classic SHA-256 of a large video can only use one core; the chunks here are read with
+ * positional reads and hashed on all of them. Each chunk's plain SHA-256 is kept, so a
+ * verifier with the list can tell which byte ranges of a clip were altered, and the list is
+ * bound to the proof by its root:
+ *
+ *     leaf = SHA-256(0x00 || SHA-256(chunk))
+ *     node = SHA-256(0x01 || left || right)
+ *
+ * with the tree split as in RFC 6962: the left subtree of n leaves holds the largest power of
+ * two below n. A file of one chunk or less still has a root, of its single leaf. A chunk's
+ * inclusion path (the RFC 6962 audit path) proves it is part of the root without the other
+ * chunks' hashes.
+ *
+ * A file can be hashed with positional reads of its own ({@link #submit(FileChannel)}), or
+ * from the reads of another pass over it ({@link #feed()}), so it is only read once.
+ */
+public class ChunkedDigest {
+
+    public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024 * 4; //4MB chunks
+
+    private final static int READ_SIZE = 1024 * 256;
+
+    //chunks copied from a feed and not hashed yet; a feed faster than the pool waits for them
+    private final static int MAX_CHUNKS_IN_FLIGHT = 4;
+
+    private final static byte LEAF_PREFIX = 0x00;
+    private final static byte NODE_PREFIX = 0x01;
+
+    private static ExecutorService sPool;
+
+    //one read buffer per hashing thread
+    private final static ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(READ_SIZE);
+        }
+    };
+
+    private final int mChunkSize;
+    private final ExecutorService mExec;
+
+    public ChunkedDigest ()
+    {
+        this(DEFAULT_CHUNK_SIZE, getPool());
+    }
+
+    /**
+     * @param exec where the chunks are hashed; it is not shut down here
+     */
+    public ChunkedDigest (int chunkSize, ExecutorService exec)
+    {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size must be positive");
+
+        mChunkSize = chunkSize;
+        mExec = exec;
+    }
+
+    /**
+     * A shared pool with a thread per core, for hashing chunks in the background
+     */
+    public static synchronized ExecutorService getPool ()
+    {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChunkedDigest-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+
+        return sPool;
+    }
+
+    public int getChunkSize ()
+    {
+        return mChunkSize;
+    }
+
+    /**
+     * Hash the channel from its start to its current size, waiting for the result
+     */
+    public Result digest (FileChannel channel) throws IOException
+    {
+        return submit(channel).get();
+    }
+
+    /**
+     * Start hashing every chunk of the channel, so the caller can do other work (like the
+     * classic sequential hash) meanwhile. The channel must stay open until the result is
+     * collected or the digest is cancelled.
+     */
+    public Pending submit (final FileChannel channel) throws IOException
+    {
+        final long length = channel.size();
+        int count = (int) Math.max(1, (length + mChunkSize - 1) / mChunkSize);
+
+        List<Future<byte[]>> chunks = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            final long offset = (long) i * mChunkSize;
+            final long chunkLength = Math.min(mChunkSize, length - offset);
+
+            chunks.add(mExec.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return hashChunk(channel, offset, chunkLength);
+                }
+            }));
+        }
+
+        return new Pending(chunks, length, mChunkSize);
+    }
+
+    /**
+     * Hash chunks of media read in order by someone else, like the classic sequential hash.
+     * Each full chunk is copied and hashed on the pool, holding at most a few chunks in memory.
+     */
+    public Feed feed ()
+    {
+        return new Feed(mChunkSize, mExec);
+    }
+
+    private static byte[] hashChunk (FileChannel channel, long offset, long length) throws IOException
+    {
+        MessageDigest digest = HashUtils.getPooledSHA256();
+        ByteBuffer buffer = sBuffer.get();
+
+        long position = offset;
+        long end = offset + length;
+
+        while (position < end) {
+            if (Thread.interrupted())
+                throw new IOException("chunk hashing cancelled");
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+            //positional reads don't move the channel, so every thread can share it
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("file shrank while hashing at " + position);
+
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * @return the Merkle root over the plain SHA-256 hashes of the chunks, in order
+     */
+    public static byte[] getRoot (List<byte[]> chunkHashes)
+    {
+        MessageDigest digest = HashUtils.getPooledSHA256();
+        return getNode(digest, getLeaves(digest, chunkHashes), 0, chunkHashes.size());
+    }
+
+    /**
+     * @return the sibling hashes on the way from the chunk's leaf up to the root, lowest first
+     */
+    public static List<byte[]> getInclusionPath (List<byte[]> chunkHashes, int chunk)
+    {
+        if (chunk < 0 || chunk >= chunkHashes.size())
+            throw new IndexOutOfBoundsException("no chunk " + chunk + " of " + chunkHashes.size());
+
+        MessageDigest digest = HashUtils.getPooledSHA256();
+        List<byte[]> path = new ArrayList<>();
+        addPath(digest, getLeaves(digest, chunkHashes), chunk, 0, chunkHashes.size(), path);
+        return path;
+    }
+
+    /**
+     * @return the root that the chunk's SHA-256 and its inclusion path lead to, which is the
+     * recorded root if the chunk is unaltered; null if the path doesn't fit a tree of
+     * chunkCount chunks
+     */
+    public static byte[] getRootFromPath (byte[] chunkHash, int chunk, int chunkCount, List<byte[]> path)
+    {
+        if (chunk < 0 || chunk >= chunkCount)
+            return null;
+
+        MessageDigest digest = HashUtils.getPooledSHA256();
+        return climb(digest, getLeaf(digest, chunkHash), chunk, chunkCount, path, path.size());
+    }
+
+    private static byte[] getLeaf (MessageDigest digest, byte[] chunkHash)
+    {
+        digest.update(LEAF_PREFIX);
+        digest.update(chunkHash);
+        return digest.digest();
+    }
+
+    private static byte[][] getLeaves (MessageDigest digest, List<byte[]> chunkHashes)
+    {
+        byte[][] leaves = new byte[chunkHashes.size()][];
+        for (int i = 0; i < leaves.length; i++)
+            leaves[i] = getLeaf(digest, chunkHashes.get(i));
+        return leaves;
+    }
+
+    private static byte[] getNode (MessageDigest digest, byte[][] leaves, int from, int to)
+    {
+        int n = to - from;
+        if (n == 1)
+            return leaves[from];
+
+        int split = Integer.highestOneBit(n - 1);
+        byte[] left = getNode(digest, leaves, from, from + split);
+        byte[] right = getNode(digest, leaves, from + split, to);
+
+        return join(digest, left, right);
+    }
+
+    private static byte[] join (MessageDigest digest, byte[] left, byte[] right)
+    {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /*
+     * the subtree's path to the leaf comes first, then the other subtree's root
+     */
+    private static void addPath (MessageDigest digest, byte[][] leaves, int leaf, int from, int to, List<byte[]> path)
+    {
+        int n = to - from;
+        if (n == 1)
+            return;
+
+        int split = Integer.highestOneBit(n - 1);
+        if (leaf - from < split) {
+            addPath(digest, leaves, leaf, from, from + split, path);
+            path.add(getNode(digest, leaves, from + split, to));
+        }
+        else {
+            addPath(digest, leaves, leaf, from + split, to, path);
+            path.add(getNode(digest, leaves, from, from + split));
+        }
+    }
+
+    /*
+     * the root of a subtree of count leaves holding node at index, from the first end entries of
+     * the path
+     */
+    private static byte[] climb (MessageDigest digest, byte[] node, int index, int count, List<byte[]> path, int end)
+    {
+        if (count == 1)
+            return end == 0 ? node : null;
+
+        if (end == 0)
+            return null;
+
+        int split = Integer.highestOneBit(count - 1);
+        byte[] sibling = path.get(end - 1);
+
+        if (index < split) {
+            byte[] left = climb(digest, node, index, split, path, end - 1);
+            return left == null ? null : join(digest, left, sibling);
+        }
+        else {
+            byte[] right = climb(digest, node, index - split, count - split, path, end - 1);
+            return right == null ? null : join(digest, sibling, right);
+        }
+    }
+
+    /**
+     * Media fed in order, a chunk at a time to the pool; only used on the thread feeding it
+     */
+    public static class Feed {
+
+        private final int mChunkSize;
+        private final ExecutorService mExec;
+        private final List<Future<byte[]>> mChunks = new ArrayList<>();
+
+        //chunk buffers the pool is done with, and how many there are in all
+        private final BlockingQueue<byte[]> mFree = new LinkedBlockingQueue<>();
+        private int mAllocated = 0;
+
+        private byte[] mChunk;
+        private int mFill = 0;
+        private long mLength = 0;
+        private boolean mFailed = false;
+
+        private Feed (int chunkSize, ExecutorService exec)
+        {
+            mChunkSize = chunkSize;
+            mExec = exec;
+        }
+
+        /**
+         * Add the next bytes of the media; the buffer can be reused once this returns
+         */
+        public void update (byte[] buffer, int offset, int length)
+        {
+            while (length > 0 && !mFailed) {
+                if (mChunk == null) {
+                    mChunk = nextBuffer();
+                    if (mChunk == null) {
+                        fail();
+                        return;
+                    }
+                }
+
+                int n = Math.min(length, mChunkSize - mFill);
+                System.arraycopy(buffer, offset, mChunk, mFill, n);
+                mFill += n;
+                mLength += n;
+                offset += n;
+                length -= n;
+
+                if (mFill == mChunkSize)
+                    submitChunk();
+            }
+        }
+
+        /**
+         * Hash the last chunk; media of no bytes has one empty chunk
+         *
+         * @return the chunks being hashed, or null if the feed was interrupted
+         */
+        public Pending finish ()
+        {
+            if (mFailed)
+                return null;
+
+            if (mFill > 0 || mChunks.isEmpty())
+                submitChunk();
+
+            return new Pending(mChunks, mLength, mChunkSize);
+        }
+
+        public void cancel ()
+        {
+            fail();
+        }
+
+        private void fail ()
+        {
+            mFailed = true;
+
+            for (Future<byte[]> chunk : mChunks)
+                chunk.cancel(true);
+        }
+
+        private void submitChunk ()
+        {
+            final byte[] chunk = mChunk != null ? mChunk : new byte[0];
+            final int length = mFill;
+
+            mChunk = null;
+            mFill = 0;
+
+            mChunks.add(mExec.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    try {
+                        MessageDigest digest = HashUtils.getPooledSHA256();
+                        digest.update(chunk, 0, length);
+                        return digest.digest();
+                    }
+                    finally {
+                        if (chunk.length == mChunkSize)
+                            mFree.offer(chunk);
+                    }
+                }
+            }));
+        }
+
+        /*
+         * a free chunk buffer, waiting for the pool when there are enough of them already;
+         * null if interrupted meanwhile
+         */
+        private byte[] nextBuffer ()
+        {
+            byte[] buffer = mFree.poll();
+            if (buffer != null)
+                return buffer;
+
+            if (mAllocated < MAX_CHUNKS_IN_FLIGHT) {
+                mAllocated++;
+                return new byte[mChunkSize];
+            }
+
+            try {
+                return mFree.take();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Chunks being hashed
+     */
+    public static class Pending {
+
+        private final List<Future<byte[]>> mChunks;
+        private final long mLength;
+        private final int mChunkSize;
+
+        private Pending (List<Future<byte[]>> chunks, long length, int chunkSize)
+        {
+            mChunks = chunks;
+            mLength = length;
+            mChunkSize = chunkSize;
+        }
+
+        /**
+         * Wait for every chunk, then build the tree
+         */
+        public Result get () throws IOException
+        {
+            List<byte[]> hashes = new ArrayList<>(mChunks.size());
+
+            try {
+                for (Future<byte[]> chunk : mChunks)
+                    hashes.add(chunk.get());
+
+                return new Result(hashes, getRoot(hashes), mLength, mChunkSize);
+            }
+            catch (InterruptedException ie)
+            {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while hashing chunks");
+            }
+            catch (ExecutionException ee)
+            {
+                cancel();
+                if (ee.getCause() instanceof IOException)
+                    throw (IOException) ee.getCause();
+                throw new IOException("unable to hash chunks", ee.getCause());
+            }
+        }
+
+        public void cancel ()
+        {
+            for (Future<byte[]> chunk : mChunks)
+                chunk.cancel(true);
+        }
+    }
+
+    public static class Result {
+
+        public final static String CSV_HEADER = "Chunk,Offset,Length,SHA256";
+
+        private final List<byte[]> mChunkHashes;
+        private final byte[] mRoot;
+        private final long mLength;
+        private final int mChunkSize;
+
+        private Result (List<byte[]> chunkHashes, byte[] root, long length, int chunkSize)
+        {
+            mChunkHashes = chunkHashes;
+            mRoot = root;
+            mLength = length;
+            mChunkSize = chunkSize;
+        }
+
+        public byte[] getRoot ()
+        {
+            return mRoot;
+        }
+
+        public String getRootHex ()
+        {
+            return HashUtils.asHex(mRoot);
+        }
+
+        public Sha256Hash getRootHash ()
+        {
+            return Sha256Hash.of(mRoot);
+        }
+
+        public long getLength ()
+        {
+            return mLength;
+        }
+
+        public int getChunkSize ()
+        {
+            return mChunkSize;
+        }
+
+        public int getChunkCount ()
+        {
+            return mChunkHashes.size();
+        }
+
+        /**
+         * @return the plain SHA-256 of the chunk's bytes
+         */
+        public byte[] getChunkHash (int chunk)
+        {
+            return mChunkHashes.get(chunk);
+        }
+
+        /**
+         * @see ChunkedDigest#getInclusionPath(List, int)
+         */
+        public List<byte[]> getInclusionPath (int chunk)
+        {
+            return ChunkedDigest.getInclusionPath(mChunkHashes, chunk);
+        }
+
+        /**
+         * Write one CSV row per chunk, with its byte range and SHA-256, after {@link #CSV_HEADER}
+         */
+        public void writeCsv (Appendable out) throws IOException
+        {
+            out.append(CSV_HEADER).append('\n');
+
+            for (int i = 0; i < mChunkHashes.size(); i++) {
+                long offset = (long) i * mChunkSize;
+                out.append(String.valueOf(i)).append(',')
+                        .append(String.valueOf(offset)).append(',')
+                        .append(String.valueOf(Math.min(mChunkSize, mLength - offset))).append(',')
+                        .append(HashUtils.asHex(mChunkHashes.get(i))).append('\n');
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import org.bouncycastle.bcpg.ArmoredInputStream;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.Features;
 import org.bouncycastle.bcpg.sig.KeyFlags;
@@ -32,6 +34,7 @@ import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.PBESecretKeyEncryptor;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
@@ -52,10 +55,14 @@ import org.witness.proofmode.ProofMode;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.Iterator;
+
+import timber.log.Timber;
 
 /**
  * A simple utility class that creates seperate signatures for files and verifies them.
@@ -97,51 +104,24 @@ public class DetachedSignatureProcessor
             InputStream     keyIn)
             throws GeneralSecurityException, IOException, PGPException
     {
-        in = PGPUtil.getDecoderStream(in);
-
-        PGPObjectFactory pgpFact = new PGPObjectFactory(in, null);
-        PGPSignatureList p3;
-
-        Object    o = pgpFact.nextObject();
-        if (o instanceof PGPCompressedData)
-        {
-            PGPCompressedData             c1 = (PGPCompressedData)o;
-
-            pgpFact = new PGPObjectFactory(c1.getDataStream(), null);
-
-            p3 = (PGPSignatureList)pgpFact.nextObject();
-        }
-        else
-        {
-            p3 = (PGPSignatureList)o;
-        }
-
-        PGPPublicKeyRingCollection pgpPubRingCollection = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyIn),new BcKeyFingerprintCalculator());
-
-
-        InputStream                 dIn = new BufferedInputStream(new FileInputStream(fileName));
-
-        PGPSignature                sig = p3.get(0);
-        PGPPublicKey                key = pgpPubRingCollection.getPublicKey(sig.getKeyID());
+        SignatureVerifier verifier = new SignatureVerifier();
+        verifier.addKeyRings(keyIn);
 
-        sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), key);
+        //callers close in themselves, so don't let the verifier do it
+        SignatureVerifier.Result result = verifier.verify(new FileInputStream(fileName), new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        });
 
-        int ch;
-        while ((ch = dIn.read()) >= 0)
+        if (result.isValid())
         {
-            sig.update((byte)ch);
-        }
-
-        dIn.close();
-
-        if (sig.verify())
-        {
-            System.out.println("signature verified.");
+            Timber.d("signature verified: %s", fileName);
             return true;
         }
         else
         {
-            System.out.println("signature verification failed.");
+            Timber.w("signature verification failed for %s: %s", fileName, result);
             return false;
         }
     }
@@ -155,33 +135,13 @@ public class DetachedSignatureProcessor
             throws GeneralSecurityException, IOException, PGPException
     {
 
-        if (armor)
-        {
-            out = new ArmoredOutputStream(out);
-        }
-
-        PGPPrivateKey            pgpPrivKey = skey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider(ProofMode.getProvider()).build(pass));
-        PGPSignatureGenerator sGen = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(skey.getPublicKey().getAlgorithm(), PGPUtil.SHA256).setProvider(ProofMode.getProvider()));
+        PGPSignatureGenerator sGen = initSignatureGenerator(skey, pass);
 
-        sGen.init(PGPSignature.BINARY_DOCUMENT, pgpPrivKey);
-
-        BCPGOutputStream         bOut = new BCPGOutputStream(out);
-
-        int n = -1;
-        byte[] buffer = new byte[2048];
-        while ((n = in.read(buffer)) >= 0)
-        {
-            sGen.update(buffer,0,n);
-        }
+        new MediaReader().read(in, sGen::update);
 
         in.close();
 
-        sGen.generate().encode(bOut);
-
-        if (armor)
-        {
-            out.close();
-        }
+        writeSignature(sGen.generate(), out, armor);
 
         //this is for attached / inline sig
 
@@ -222,4 +182,163 @@ public class DetachedSignatureProcessor
     }
 
 
+    /*
+     * sign in with an already unlocked private key, skipping the S2K key derivation
+     */
+    public static void createSignature(
+            PGPContentSignerBuilder signerBuilder,
+            PGPPrivateKey   privKey,
+            InputStream     in,
+            OutputStream    out,
+            boolean         armor)
+            throws IOException, PGPException
+    {
+        PGPSignatureGenerator sGen = initSignatureGenerator(signerBuilder, privKey);
+
+        new MediaReader().read(in, sGen::update);
+
+        in.close();
+
+        writeSignature(sGen.generate(), out, armor);
+    }
+
+    /*
+     * create a binary document signature generator for skey, ready to be fed with data
+     */
+    public static PGPSignatureGenerator initSignatureGenerator(
+            PGPSecretKey    skey,
+            char[]          pass)
+            throws PGPException
+    {
+        PGPPrivateKey            pgpPrivKey = extractPrivateKey(skey, pass);
+
+        return initSignatureGenerator(createSignerBuilder(skey.getPublicKey()), pgpPrivKey);
+    }
+
+    public static PGPSignatureGenerator initSignatureGenerator(
+            PGPContentSignerBuilder signerBuilder,
+            PGPPrivateKey   privKey)
+            throws PGPException
+    {
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
+
+        sGen.init(PGPSignature.BINARY_DOCUMENT, privKey);
+
+        return sGen;
+    }
+
+    /*
+     * unlock the secret key; this runs the (deliberately slow) S2K derivation on pass
+     */
+    public static PGPPrivateKey extractPrivateKey(
+            PGPSecretKey    skey,
+            char[]          pass)
+            throws PGPException
+    {
+        return skey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider(ProofMode.getProvider()).build(pass));
+    }
+
+    public static PGPContentSignerBuilder createSignerBuilder(
+            PGPPublicKey    key)
+    {
+        return new JcaPGPContentSignerBuilder(key.getAlgorithm(), PGPUtil.SHA256).setProvider(ProofMode.getProvider());
+    }
+
+    /*
+     * pick the cheapest key of the ring that may sign data: an Ed25519 signature costs a
+     * fraction of an RSA-4096 one, and verifiers find either key in the same public ring.
+     * EdDSA keys are passed over unless allowEdDsa, as not every verifier can check them.
+     */
+    public static PGPSecretKey findSigningKey(
+            PGPSecretKeyRing    ring,
+            boolean             allowEdDsa)
+    {
+        PGPSecretKey best = null;
+
+        for (PGPSecretKey key : ring) {
+            if (!key.isSigningKey() || key.isPrivateKeyEmpty() || !canSignData(key.getPublicKey()))
+                continue;
+
+            if (!allowEdDsa && key.getPublicKey().getAlgorithm() == PublicKeyAlgorithmTags.EDDSA)
+                continue;
+
+            if (best == null || getSigningCost(key.getPublicKey()) < getSigningCost(best.getPublicKey()))
+                best = key;
+        }
+
+        return best;
+    }
+
+    /*
+     * true if the key is usable and its self signatures allow signing data; a primary key
+     * without key flags predates them and may sign
+     */
+    private static boolean canSignData(
+            PGPPublicKey    key)
+    {
+        if (key.hasRevocation())
+            return false;
+
+        if (key.getValidSeconds() > 0
+                && key.getCreationTime().getTime() + key.getValidSeconds() * 1000 < System.currentTimeMillis())
+            return false;
+
+        int bindingType = key.isMasterKey() ? -1 : PGPSignature.SUBKEY_BINDING;
+        boolean flagged = false;
+
+        Iterator<PGPSignature> itSigs = key.getSignatures();
+        while (itSigs.hasNext()) {
+            PGPSignature sig = itSigs.next();
+            if (bindingType != -1 && sig.getSignatureType() != bindingType)
+                continue;
+
+            if (sig.getHashedSubPackets() == null || !sig.getHashedSubPackets().hasSubpacket(SignatureSubpacketTags.KEY_FLAGS))
+                continue;
+
+            flagged = true;
+            if ((sig.getHashedSubPackets().getKeyFlags() & KeyFlags.SIGN_DATA) != 0)
+                return true;
+        }
+
+        return key.isMasterKey() && !flagged;
+    }
+
+    private static int getSigningCost(
+            PGPPublicKey    key)
+    {
+        switch (key.getAlgorithm()) {
+            case PublicKeyAlgorithmTags.EDDSA:
+                return 0;
+            case PublicKeyAlgorithmTags.ECDSA:
+                return 1;
+            default:
+                //RSA and DSA, whose cost grows steeply with the key size
+                return 2;
+        }
+    }
+
+    /*
+     * write out a generated detached signature, optionally ascii-armored
+     */
+    public static void writeSignature(
+            PGPSignature    sig,
+            OutputStream    out,
+            boolean         armor)
+            throws IOException
+    {
+        if (armor)
+        {
+            out = new ArmoredOutputStream(out);
+        }
+
+        BCPGOutputStream         bOut = new BCPGOutputStream(out);
+
+        sig.encode(bOut);
+
+        if (armor)
+        {
+            out.close();
+        }
+    }
+
 }
\ No newline at end of file
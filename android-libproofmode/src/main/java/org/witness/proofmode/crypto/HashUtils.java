@@ -2,7 +2,6 @@ package org.witness.proofmode.crypto;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -10,6 +9,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import timber.log.Timber;
 
@@ -19,24 +20,21 @@ import timber.log.Timber;
 public class HashUtils {
 
     public static String getSHA256FromFileContent(InputStream is)
+    {
+        return getSHA256FromFileContent(is, new MediaReader());
+    }
+
+    public static String getSHA256FromFileContent(InputStream is, int bufferSize)
+    {
+        return getSHA256FromFileContent(is, new MediaReader(MediaReader.Strategy.CHANNEL, bufferSize));
+    }
+
+    public static String getSHA256FromFileContent(InputStream is, MediaReader reader)
     {
 
         try
         {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[1024*16]; //16k chunks
-            BufferedInputStream fis = new BufferedInputStream(is);
-            int n = 0;
-            while (n != -1)
-            {
-                n = fis.read(buffer);
-                if (n > 0)
-                {
-                    digest.update(buffer, 0, n);
-                }
-            }
-            byte[] digestResult = digest.digest();
-            return asHex(digestResult);
+            return sha256(is, reader).toHex();
         }
         catch (FileNotFoundException e)
         {
@@ -48,19 +46,117 @@ public class HashUtils {
             Timber.w(e,"Error generating hash; IOError");
             return null;
         }
+    }
+
+    /**
+     * SHA-256 of the rest of the stream, read with the default {@link MediaReader}; the stream
+     * is not closed
+     */
+    public static Sha256Hash sha256(InputStream is) throws IOException
+    {
+        return sha256(is, new MediaReader());
+    }
+
+    public static Sha256Hash sha256(InputStream is, MediaReader reader) throws IOException
+    {
+        MessageDigest digest = getPooledSHA256();
+        reader.read(is, digest::update);
+        return new Sha256Hash(digest.digest());
+    }
+
+    public static Sha256Hash sha256(byte[] data, int offset, int length)
+    {
+        MessageDigest digest = getPooledSHA256();
+        digest.update(data, offset, length);
+        return new Sha256Hash(digest.digest());
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset. It must be finished within the calling
+     * method, without calling anything else that may use it.
+     */
+    static MessageDigest getPooledSHA256()
+    {
+        MessageDigest digest = sSHA256.get();
+        digest.reset();
+        return digest;
+    }
+
+    private final static ThreadLocal<MessageDigest> sSHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSHA256();
+        }
+    };
+
+    /**
+     * @return a reset SHA-256 digest for a session to keep across calls, used on one thread at
+     * a time. Hand it back with {@link #releaseSHA256(MessageDigest)} once it is finished.
+     */
+    public static MessageDigest takeSHA256()
+    {
+        MessageDigest digest = sFreeSHA256.poll();
+        return digest != null ? digest : newSHA256();
+    }
+
+    /**
+     * Return a digest from {@link #takeSHA256()}; the caller must not use it afterwards
+     */
+    public static void releaseSHA256(MessageDigest digest)
+    {
+        digest.reset();
+        sFreeSHA256.offer(digest);
+    }
+
+    //digests handed back by finished sessions, beyond which they are left to the collector
+    private final static BlockingQueue<MessageDigest> sFreeSHA256 = new ArrayBlockingQueue<>(8);
+
+    private static MessageDigest newSHA256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
         catch (NoSuchAlgorithmException e)
         {
-            Timber.w(e,"Error generating hash; No such algorithm");
-            return null;
+            //every Java and Android runtime has SHA-256
+            throw new IllegalStateException(e);
         }
     }
 
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String asHex(byte[] arrayBytes) {
-        StringBuffer stringBuffer = new StringBuffer();
+        char[] hex = new char[arrayBytes.length * 2];
+        for (int i = 0; i < arrayBytes.length; i++) {
+            int b = arrayBytes[i] & 0xff;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Append the lowercase hex of the bytes, without building a string for them first
+     */
+    public static void appendHex(StringBuilder sb, byte[] arrayBytes) {
         for (int i = 0; i < arrayBytes.length; i++) {
-            stringBuffer.append(Integer.toString((arrayBytes[i] & 0xff) + 0x100, 16)
-                    .substring(1));
+            int b = arrayBytes[i] & 0xff;
+            sb.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0f]);
+        }
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0)
+            throw new IllegalArgumentException("odd number of hex digits");
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("not a hex digit at " + (hi < 0 ? i * 2 : i * 2 + 1));
+            bytes[i] = (byte) (hi << 4 | lo);
         }
-        return stringBuffer.toString();
+        return bytes;
     }
 }
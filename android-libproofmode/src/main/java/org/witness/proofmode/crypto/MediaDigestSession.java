@@ -0,0 +1,253 @@
+package org.witness.proofmode.crypto;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a media stream exactly once and tees every block into the SHA-256 digest,
+ * any extra digests and, if set, an OpenPGP detached signature generator.
+ *
+ * The resulting {@link Result} is handed to proof generation, signing and notarization
+ * so none of them has to reopen the media.
+ *
+ * Media that is still being written can be fed as it grows with {@link #update(byte[], int, int)}
+ * and {@link #finish()} instead of being read from a stream.
+ *
+ * With {@link #setChunkedDigest(ChunkedDigest)} the same reads are also hashed in chunks, on
+ * other cores, rather than reading the media a second time for them.
+ */
+public class MediaDigestSession implements MediaReader.Sink {
+
+    public final static String SHA256 = "SHA-256";
+
+    private final InputStream mIn;
+    private final Map<String, MessageDigest> mDigests = new LinkedHashMap<>();
+    private MessageDigest mSha256;
+    private PGPSignatureGenerator mSigGen;
+    private ChunkedDigest.Feed mChunks;
+    private MediaReader mReader = new MediaReader();
+    private long mLength = 0;
+
+    public MediaDigestSession (InputStream in) throws NoSuchAlgorithmException
+    {
+        mIn = in;
+        addDigest(SHA256);
+    }
+
+    /**
+     * A session fed with {@link #update(byte[], int, int)}
+     */
+    public MediaDigestSession () throws NoSuchAlgorithmException
+    {
+        this(null);
+    }
+
+    /**
+     * Also compute the given digest algorithm (e.g. "SHA-1", "SHA-512") during the same pass
+     */
+    public MediaDigestSession addDigest (String algorithm) throws NoSuchAlgorithmException
+    {
+        if (mDigests.containsKey(algorithm))
+            return this;
+
+        if (SHA256.equals(algorithm)) {
+            //kept for the whole session, so it can't be the per-thread one
+            mSha256 = HashUtils.takeSHA256();
+            mDigests.put(algorithm, mSha256);
+        }
+        else {
+            mDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+
+        return this;
+    }
+
+    /**
+     * Feed the media into an initialized signature generator; the signature itself is only
+     * generated when {@link Result#writeSignature(OutputStream, boolean)} is first called
+     */
+    public MediaDigestSession setSignatureGenerator (PGPSignatureGenerator sGen)
+    {
+        mSigGen = sGen;
+        return this;
+    }
+
+    /**
+     * Also hash the media in chunks, collected with {@link Result#getChunks()}
+     */
+    public MediaDigestSession setChunkedDigest (ChunkedDigest chunkedDigest)
+    {
+        mChunks = chunkedDigest.feed();
+        return this;
+    }
+
+    /**
+     * Read with the given reader rather than one with the default strategy and buffer size
+     */
+    public MediaDigestSession setReader (MediaReader reader)
+    {
+        mReader = reader;
+        return this;
+    }
+
+    /**
+     * Read the whole stream once, then close it
+     */
+    public Result digest () throws IOException
+    {
+        if (mIn == null)
+            throw new IOException("no stream to digest, use update() and finish()");
+
+        try {
+            mReader.read(mIn, this);
+        }
+        finally {
+            mIn.close();
+        }
+
+        return finish();
+    }
+
+    /**
+     * Feed the next bytes of the media
+     */
+    @Override
+    public void update (byte[] buffer, int offset, int length)
+    {
+        for (MessageDigest digest : mDigests.values())
+            digest.update(buffer, offset, length);
+
+        if (mSigGen != null)
+            mSigGen.update(buffer, offset, length);
+
+        if (mChunks != null)
+            mChunks.update(buffer, offset, length);
+
+        mLength += length;
+    }
+
+    /**
+     * @return how many bytes have been fed so far
+     */
+    public long getLength ()
+    {
+        return mLength;
+    }
+
+    /**
+     * Complete the digests of everything fed so far; the session can't be used after this
+     */
+    public Result finish ()
+    {
+        Map<String, byte[]> results = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageDigest> entry : mDigests.entrySet())
+            results.put(entry.getKey(), entry.getValue().digest());
+
+        releaseSha256();
+
+        return new Result(results, mLength, mSigGen, mChunks != null ? mChunks.finish() : null);
+    }
+
+    /**
+     * Drop a session that won't be finished, stopping its chunk hashing and handing back its digest
+     */
+    public void cancel ()
+    {
+        if (mChunks != null)
+            mChunks.cancel();
+
+        releaseSha256();
+    }
+
+    private void releaseSha256 ()
+    {
+        if (mSha256 != null) {
+            HashUtils.releaseSHA256(mSha256);
+            mSha256 = null;
+        }
+    }
+
+    public static class Result {
+
+        private final Map<String, byte[]> mResults;
+        private final Sha256Hash mSha256;
+        private final long mLength;
+        private final PGPSignatureGenerator mSigGen;
+        private PGPSignature mSignature;
+        private final ChunkedDigest.Pending mPendingChunks;
+        private ChunkedDigest.Result mChunks;
+
+        private Result (Map<String, byte[]> results, long length, PGPSignatureGenerator sGen, ChunkedDigest.Pending chunks)
+        {
+            mResults = results;
+            mSha256 = new Sha256Hash(results.get(SHA256));
+            mLength = length;
+            mSigGen = sGen;
+            mPendingChunks = chunks;
+        }
+
+        /**
+         * @return the hex encoded SHA-256 of the media, as used for the proof folder and notarization
+         */
+        public String getHash ()
+        {
+            return mSha256.toHex();
+        }
+
+        public Sha256Hash getSha256 ()
+        {
+            return mSha256;
+        }
+
+        public byte[] getDigest (String algorithm)
+        {
+            return mResults.get(algorithm);
+        }
+
+        public long getLength ()
+        {
+            return mLength;
+        }
+
+        /**
+         * Wait for the chunks of the media to be hashed
+         *
+         * @return the chunk hashes and their root, or null if the session didn't hash chunks
+         */
+        public synchronized ChunkedDigest.Result getChunks () throws IOException
+        {
+            if (mChunks == null && mPendingChunks != null)
+                mChunks = mPendingChunks.get();
+
+            return mChunks;
+        }
+
+        public boolean hasSignature ()
+        {
+            return mSigGen != null;
+        }
+
+        /**
+         * Write the detached signature of the media; it is generated once and reused for later calls
+         */
+        public synchronized void writeSignature (OutputStream out, boolean armor) throws IOException, PGPException
+        {
+            if (mSigGen == null)
+                throw new PGPException("no signature generator set for this session");
+
+            if (mSignature == null)
+                mSignature = mSigGen.generate();
+
+            DetachedSignatureProcessor.writeSignature(mSignature, out, armor);
+        }
+    }
+}
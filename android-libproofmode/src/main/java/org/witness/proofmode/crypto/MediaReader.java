@@ -0,0 +1,246 @@
+package org.witness.proofmode.crypto;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads media start to end in large blocks, for hashing and signing.
+ *
+ * A plain {@link FileInputStream} (one opened on a file, or on the descriptor of a
+ * ParcelFileDescriptor) is read through its {@link FileChannel}: straight into a large heap
+ * buffer the sink is given, or as memory mapped windows when the descriptor is a regular file. Anything else, like a
+ * pipe from a content provider, is read as a stream. Subclasses of FileInputStream are read
+ * as streams too, as the AssetFileDescriptor ones may only cover part of their file.
+ *
+ * The strategy and buffer size default to {@link #setDefaults(Strategy, int, int)}, so an
+ * app can tune them for its devices once at startup. Buffers are kept per thread and reused,
+ * so hashing many files allocates nothing per file.
+ */
+public class MediaReader {
+
+    public enum Strategy {
+        //channel reads for files and pipes given as FileInputStream, streams otherwise
+        CHANNEL,
+        //mapped windows for regular files, as CHANNEL otherwise
+        MAPPED,
+        //always read as a stream into a heap buffer, as before
+        STREAM
+    }
+
+    public final static int DEFAULT_BUFFER_SIZE = 1024 * 256; //256k reads
+    public final static int DEFAULT_MAP_WINDOW_SIZE = 1024 * 1024 * 16; //16MB windows
+
+    private static Strategy sStrategy = Strategy.CHANNEL;
+    private static int sBufferSize = DEFAULT_BUFFER_SIZE;
+    private static int sMapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
+
+    /**
+     * Receives each block of the media, in order. The buffer is reused once update returns.
+     */
+    public interface Sink {
+        void update (byte[] buffer, int offset, int length);
+    }
+
+    private final Strategy mStrategy;
+    private final int mBufferSize;
+    private final int mMapWindowSize;
+
+    public MediaReader ()
+    {
+        this(sStrategy, sBufferSize, sMapWindowSize);
+    }
+
+    public MediaReader (Strategy strategy, int bufferSize)
+    {
+        this(strategy, bufferSize, sMapWindowSize);
+    }
+
+    public MediaReader (Strategy strategy, int bufferSize, int mapWindowSize)
+    {
+        if (bufferSize <= 0 || mapWindowSize <= 0)
+            throw new IllegalArgumentException("buffer and window sizes must be positive");
+
+        mStrategy = strategy;
+        mBufferSize = bufferSize;
+        mMapWindowSize = mapWindowSize;
+    }
+
+    /**
+     * Set how readers created with {@link #MediaReader()} read. Mapped windows are only
+     * unmapped when collected, so keep them small on 32 bit devices.
+     */
+    public static synchronized void setDefaults (Strategy strategy, int bufferSize, int mapWindowSize)
+    {
+        if (bufferSize <= 0 || mapWindowSize <= 0)
+            throw new IllegalArgumentException("buffer and window sizes must be positive");
+
+        sStrategy = strategy;
+        sBufferSize = bufferSize;
+        sMapWindowSize = mapWindowSize;
+    }
+
+    public Strategy getStrategy ()
+    {
+        return mStrategy;
+    }
+
+    public int getBufferSize ()
+    {
+        return mBufferSize;
+    }
+
+    /**
+     * Feed the rest of the stream to the sink. The stream is not closed.
+     *
+     * @return the number of bytes read
+     */
+    public long read (InputStream in, Sink sink) throws IOException
+    {
+        Buffers buffers = Buffers.acquire();
+
+        try {
+            if (mStrategy != Strategy.STREAM && in.getClass() == FileInputStream.class)
+                return read(((FileInputStream) in).getChannel(), sink, buffers);
+
+            byte[] buffer = buffers.getHeap(mBufferSize);
+            long length = 0;
+
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                sink.update(buffer, 0, n);
+                length += n;
+            }
+
+            return length;
+        }
+        finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * Feed the channel from its position to its end to the sink. The channel is not closed.
+     *
+     * @return the number of bytes read
+     */
+    public long read (FileChannel channel, Sink sink) throws IOException
+    {
+        Buffers buffers = Buffers.acquire();
+
+        try {
+            return read(channel, sink, buffers);
+        }
+        finally {
+            buffers.release();
+        }
+    }
+
+    private long read (FileChannel channel, Sink sink, Buffers buffers) throws IOException
+    {
+        int bufferSize = Math.min(mBufferSize, mMapWindowSize);
+        byte[] buffer = buffers.getHeap(bufferSize);
+        long length = 0;
+
+        if (mStrategy == Strategy.MAPPED) {
+            long start = getPosition(channel);
+            long size = start < 0 ? -1 : channel.size();
+
+            //only regular files can be mapped; pipes have no position and no size
+            if (size > start) {
+                long position = start;
+
+                while (position < size) {
+                    long window = Math.min(mMapWindowSize, size - position);
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+
+                    while (mapped.hasRemaining()) {
+                        int n = Math.min(buffer.length, mapped.remaining());
+                        mapped.get(buffer, 0, n);
+                        sink.update(buffer, 0, n);
+                    }
+
+                    position += window;
+                }
+
+                length = size - start;
+
+                //pick up anything appended since we looked at the size
+                channel.position(size);
+            }
+        }
+
+        //the sink takes arrays, so read into one rather than copying out of a direct buffer
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+
+        int n;
+        while ((n = channel.read(wrapped)) != -1) {
+            if (n == 0)
+                continue;
+
+            wrapped.clear();
+
+            sink.update(buffer, 0, n);
+            length += n;
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the position of the channel, or -1 if it has none (like a pipe)
+     */
+    private static long getPosition (FileChannel channel)
+    {
+        try {
+            return channel.position();
+        }
+        catch (IOException ioe)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * The buffers of the last read on a thread, reused by its next read of the same buffer size
+     */
+    private static class Buffers {
+
+        private final static ThreadLocal<Buffers> sBuffers = new ThreadLocal<Buffers>() {
+            @Override
+            protected Buffers initialValue() {
+                return new Buffers();
+            }
+        };
+
+        private byte[] mHeap;
+        private boolean mInUse;
+
+        static Buffers acquire ()
+        {
+            Buffers buffers = sBuffers.get();
+
+            //a sink reading more media itself gets buffers of its own
+            if (buffers.mInUse)
+                buffers = new Buffers();
+
+            buffers.mInUse = true;
+            return buffers;
+        }
+
+        void release ()
+        {
+            mInUse = false;
+        }
+
+        byte[] getHeap (int size)
+        {
+            if (mHeap == null || mHeap.length != size)
+                mHeap = new byte[size];
+            return mHeap;
+        }
+    }
+}
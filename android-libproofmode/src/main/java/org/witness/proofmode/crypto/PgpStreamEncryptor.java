@@ -0,0 +1,141 @@
+package org.witness.proofmode.crypto;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Date;
+
+/**
+ * Encrypts a stream of any length to an OpenPGP public key in constant memory.
+ *
+ * The encrypted, compressed and literal data packets are all written with partial body
+ * lengths, so nothing needs to know the total size up front and at most one
+ * {@link #BUFFER_SIZE} chunk per layer is held on the heap.
+ */
+public class PgpStreamEncryptor {
+
+    public final static int BUFFER_SIZE = 1024 * 64; //64k partial packets
+
+    private final PGPPublicKey mEncKey;
+    private boolean mArmor = false;
+    private boolean mCompress = true;
+    private String mFileName = PGPLiteralData.CONSOLE;
+    private Date mModified = new Date();
+
+    public PgpStreamEncryptor (PGPPublicKey encKey)
+    {
+        mEncKey = encKey;
+    }
+
+    public PgpStreamEncryptor setArmor (boolean armor)
+    {
+        mArmor = armor;
+        return this;
+    }
+
+    /**
+     * Skip compression for data that is already compressed, like zip bundles or video
+     */
+    public PgpStreamEncryptor setCompress (boolean compress)
+    {
+        mCompress = compress;
+        return this;
+    }
+
+    public PgpStreamEncryptor setFileName (String fileName, Date modified)
+    {
+        mFileName = fileName;
+        mModified = modified;
+        return this;
+    }
+
+    /**
+     * Encrypt everything from in to out, then close in. out is flushed but left open.
+     *
+     * @return the number of plaintext bytes encrypted
+     */
+    public long encrypt (InputStream in, OutputStream out) throws IOException, PGPException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+
+        try {
+            OutputStream plainOut = open(out);
+
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                plainOut.write(buffer, 0, n);
+                length += n;
+            }
+
+            plainOut.close();
+        }
+        finally {
+            in.close();
+        }
+
+        return length;
+    }
+
+    /**
+     * Start an encrypted message on out, for producers that write rather than offer a stream
+     * to read. Closing the returned stream finishes the message; dest is flushed but left open.
+     */
+    public OutputStream open (final OutputStream dest) throws IOException, PGPException
+    {
+        final OutputStream target = mArmor ? new ArmoredOutputStream(dest) : dest;
+
+        final PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
+                new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_256).setWithIntegrityPacket(true).setSecureRandom(new SecureRandom()));
+        encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(mEncKey));
+
+        final PGPCompressedDataGenerator comGen = new PGPCompressedDataGenerator(
+                mCompress ? CompressionAlgorithmTags.ZIP : CompressionAlgorithmTags.UNCOMPRESSED);
+        final PGPLiteralDataGenerator litGen = new PGPLiteralDataGenerator();
+
+        OutputStream encOut = encGen.open(target, new byte[BUFFER_SIZE]);
+        OutputStream comOut = comGen.open(encOut, new byte[BUFFER_SIZE]);
+        OutputStream litOut = litGen.open(comOut, PGPLiteralData.BINARY, mFileName, mModified, new byte[BUFFER_SIZE]);
+
+        return new FilterOutputStream(litOut) {
+
+            private boolean mClosed = false;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mClosed)
+                    return;
+                mClosed = true;
+
+                //inner to outer, each close writes the final partial packet of its layer
+                litGen.close();
+                comGen.close();
+                encGen.close();
+
+                if (mArmor)
+                    target.close(); //writes the armor footer, doesn't close dest
+
+                dest.flush();
+            }
+        };
+    }
+}
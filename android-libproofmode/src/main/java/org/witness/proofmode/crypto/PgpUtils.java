@@ -1,6 +1,7 @@
 package org.witness.proofmode.crypto;
 
 import android.content.Context;
+import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Base64OutputStream;
 import android.util.Log;
@@ -9,10 +10,13 @@ import android.util.Log;
 import org.bouncycastle.bcpg.ArmoredInputStream;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.Features;
 import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.crypto.generators.Ed25519KeyPairGenerator;
 import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.Ed25519KeyGenerationParameters;
 import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
 import org.bouncycastle.jcajce.provider.symmetric.util.PBE;
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
@@ -20,6 +24,7 @@ import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRing;
 import org.bouncycastle.openpgp.PGPKeyRingGenerator;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
@@ -29,9 +34,11 @@ import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
@@ -49,7 +56,6 @@ import org.witness.proofmode.ProofMode;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -63,6 +69,7 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
@@ -70,6 +77,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class PgpUtils {
 
@@ -89,9 +101,21 @@ public class PgpUtils {
 
     public final static String URL_LOOKUP_ENDPOINT = "https://keys.openpgp.org/search?q=0x";
 
+    public final static long DEFAULT_SIGNER_TIMEOUT_MS = 5 * 60 * 1000; // 5 minutes
+
+    //unlocked signing key, so the S2K derivation only runs once per unlock instead of per signature
+    private PGPPrivateKey mUnlockedKey = null;
+    //salted digest of the password the key was unlocked with, to notice a different one without keeping it
+    private byte[] mUnlockedPasswordDigest = null;
+    private final byte[] mPasswordSalt = new byte[16];
+    private PGPContentSignerBuilder mSignerBuilder = null;
+    private long mSignerTimeoutMs = DEFAULT_SIGNER_TIMEOUT_MS;
+    private ScheduledExecutorService mSignerEvictor = null;
+    private ScheduledFuture<?> mSignerEviction = null;
+
     private PgpUtils ()
     {
-
+        new SecureRandom().nextBytes(mPasswordSalt);
     }
 
     public static synchronized PgpUtils getInstance (Context context)
@@ -136,33 +160,34 @@ public class PgpUtils {
         return secretKey.extractPrivateKey(decryptor);
     }
 
+    /**
+     * Encrypt inClear to our own key as ASCII armor, streaming in constant memory;
+     * dataLen is no longer needed and only kept for existing callers
+     */
     public void encrypt(InputStream inClear, long dataLen, OutputStream encOut) throws IOException, PGPException {
+        encrypt(inClear, encOut, true, true);
+    }
 
-        PGPPublicKey encKey = getPublicKey(pkr);
-        OutputStream out = new ArmoredOutputStream(encOut);
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedDataGenerator.ZIP);
-        OutputStream cos = comData.open(bOut);
-        PGPLiteralDataGenerator lData = new PGPLiteralDataGenerator();
-        OutputStream pOut = lData.open(cos, PGPLiteralData.BINARY, PGPLiteralData.CONSOLE, dataLen, new Date());
+    /**
+     * Encrypt inClear to our own key in constant memory, whatever its size
+     *
+     * @param compress false for data that is already compressed, like zip bundles
+     */
+    public void encrypt(InputStream inClear, OutputStream encOut, boolean armor, boolean compress) throws IOException, PGPException {
 
-        for (int i = 0; i < dataLen; i++)
-            pOut.write(inClear.read());
+        createEncryptor().setArmor(armor).setCompress(compress).encrypt(inClear, encOut);
+    }
 
-        lData.close();
-        comData.close();
-        PGPEncryptedDataGenerator encGen =
-                new PGPEncryptedDataGenerator(
-                        new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256).setWithIntegrityPacket(true).setSecureRandom(
-                                new SecureRandom()).setProvider(ProofMode.getProvider()));
-        if (encKey != null) {
-            encGen.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider(ProofMode.getProvider()));
-            byte[] bytes = bOut.toByteArray();
-            OutputStream cOut = encGen.open(out, bytes.length);
-            cOut.write(bytes);
-            cOut.close();
-        }
-        out.close();
+    /**
+     * @return a streaming encryptor to our own key, for writing encrypted output directly
+     */
+    public PgpStreamEncryptor createEncryptor() throws PGPException {
+
+        PGPPublicKey encKey = getPublicKey(pkr);
+        if (encKey == null)
+            throw new PGPException("no encryption key found");
+
+        return new PgpStreamEncryptor(encKey);
     }
 
     public String encrypt(String msgText) throws IOException, PGPException {
@@ -194,6 +219,15 @@ public class PgpUtils {
     }
 
     public final static PGPKeyRingGenerator generateKeyRingGenerator (String keyId, char[] pass) throws PGPException{
+        return generateKeyRingGenerator(keyId, pass, false);
+    }
+
+    /**
+     * @param ed25519Signing also add an Ed25519 signing subkey, which signs far faster than the
+     *                       RSA-4096 primary key; verifiers without EdDSA support (GnuPG before
+     *                       2.1) can't check its signatures
+     */
+    public final static PGPKeyRingGenerator generateKeyRingGenerator (String keyId, char[] pass, boolean ed25519Signing) throws PGPException{
         RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
         kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 4096, 12));
         PGPKeyPair rsakp_sign = new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
@@ -212,9 +246,39 @@ public class PgpUtils {
                 keyId, sha1Calc, signhashgen.generate(), null, new BcPGPContentSignerBuilder(rsakp_sign.getPublicKey().getAlgorithm(),
                 HashAlgorithmTags.SHA1), pske);
         keyRingGen.addSubKey(rsakp_enc, enchashgen.generate(), null);
+        if (ed25519Signing)
+            addEd25519SigningKey(keyRingGen);
         return keyRingGen;
     }
 
+    /**
+     * Add an Ed25519 signing subkey to an existing ring, keeping its primary key (and so the
+     * fingerprint others know us by) and every other key as they are
+     *
+     * @return the generator for the new secret and public rings
+     */
+    public final static PGPKeyRingGenerator addEd25519SigningKey (PGPSecretKeyRing ring, char[] pass) throws PGPException{
+        PGPDigestCalculator sha1Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1);
+        PGPDigestCalculator sha256Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA256);
+        PBESecretKeyDecryptor pskd = new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider()).build(pass);
+        PBESecretKeyEncryptor pske = (new BcPBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha256Calc, 0xc0)).build(pass);
+        PGPKeyRingGenerator keyRingGen = new PGPKeyRingGenerator(ring, pskd, sha1Calc,
+                new BcPGPContentSignerBuilder(ring.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256), pske);
+        addEd25519SigningKey(keyRingGen);
+        return keyRingGen;
+    }
+
+    private static void addEd25519SigningKey (PGPKeyRingGenerator keyRingGen) throws PGPException{
+        Ed25519KeyPairGenerator kpg = new Ed25519KeyPairGenerator();
+        kpg.init(new Ed25519KeyGenerationParameters(new SecureRandom()));
+        PGPKeyPair edkp_sign = new BcPGPKeyPair(PublicKeyAlgorithmTags.EDDSA, kpg.generateKeyPair(), new Date());
+        PGPSignatureSubpacketGenerator edhashgen = new PGPSignatureSubpacketGenerator();
+        edhashgen.setKeyFlags(false, KeyFlags.SIGN_DATA);
+        //signing subkeys must cross-certify the primary key, or verifiers won't accept their signatures
+        keyRingGen.addSubKey(edkp_sign, edhashgen.generate(), null,
+                new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.EDDSA, HashAlgorithmTags.SHA256));
+    }
+
 
 
     public String getPublicKey () throws IOException {
@@ -281,8 +345,115 @@ public class PgpUtils {
 
     public void createDetachedSignature (InputStream is, OutputStream mediaSig, String password, boolean armor) throws Exception
     {
-        DetachedSignatureProcessor.createSignature(pgpSec, new DataInputStream(is), mediaSig, password.toCharArray(), armor);
+        PGPPrivateKey privKey;
+        PGPContentSignerBuilder signerBuilder;
+
+        //together, as the signing key can be switched meanwhile
+        synchronized (this) {
+            privKey = unlockSigner(password);
+            signerBuilder = mSignerBuilder;
+        }
+
+        DetachedSignatureProcessor.createSignature(signerBuilder, privKey, is, mediaSig, armor);
+
+    }
+
+    public synchronized PGPSignatureGenerator createSignatureGenerator (String password) throws PGPException
+    {
+        PGPPrivateKey privKey = unlockSigner(password);
+        return DetachedSignatureProcessor.initSignatureGenerator(mSignerBuilder, privKey);
+    }
+
+    /**
+     * Unlock the signing key, or reuse the already unlocked key if it was unlocked with the
+     * same password. Every use pushes back the automatic lock by the signer timeout.
+     */
+    public synchronized PGPPrivateKey unlockSigner (String password) throws PGPException
+    {
+        byte[] passwordDigest = digestPassword(password);
+
+        if (mUnlockedKey == null || !MessageDigest.isEqual(passwordDigest, mUnlockedPasswordDigest))
+        {
+            mUnlockedKey = DetachedSignatureProcessor.extractPrivateKey(pgpSec, password.toCharArray());
+            mUnlockedPasswordDigest = passwordDigest;
+        }
+
+        if (mSignerBuilder == null)
+            mSignerBuilder = DetachedSignatureProcessor.createSignerBuilder(pgpSec.getPublicKey());
+
+        PGPPrivateKey privKey = mUnlockedKey;
+
+        scheduleSignerLock();
+
+        return privKey;
+    }
+
+    /**
+     * Drop the unlocked signing key; the next signature will run the key derivation again
+     */
+    public synchronized void lockSigner ()
+    {
+        mUnlockedKey = null;
+        mUnlockedPasswordDigest = null;
+
+        if (mSignerEviction != null) {
+            mSignerEviction.cancel(false);
+            mSignerEviction = null;
+        }
+    }
+
+    private byte[] digestPassword (String password)
+    {
+        MessageDigest digest = HashUtils.getPooledSHA256();
+        digest.update(mPasswordSalt);
+        digest.update(password.getBytes(Charset.forName("UTF-8")));
+        return digest.digest();
+    }
+
+    public synchronized boolean isSignerUnlocked ()
+    {
+        return mUnlockedKey != null;
+    }
+
+    /**
+     * How long the signing key stays unlocked after its last use; 0 or less locks it after every signature
+     */
+    public synchronized void setSignerTimeout (long timeoutMs)
+    {
+        mSignerTimeoutMs = timeoutMs;
 
+        if (mUnlockedKey != null)
+            scheduleSignerLock();
+    }
+
+    private void scheduleSignerLock ()
+    {
+        if (mSignerEviction != null)
+            mSignerEviction.cancel(false);
+
+        if (mSignerTimeoutMs <= 0) {
+            //don't keep the key around at all
+            lockSigner();
+            return;
+        }
+
+        if (mSignerEvictor == null) {
+            mSignerEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PgpSignerLock");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        mSignerEviction = mSignerEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                lockSigner();
+            }
+        }, mSignerTimeoutMs, TimeUnit.MILLISECONDS);
     }
 
 
@@ -293,6 +464,9 @@ public class PgpUtils {
                 File fileSecKeyRing = new File(context.getFilesDir(),FILE_SECRET_KEY_RING);
                 File filePubKeyRing = new File(context.getFilesDir(),FILE_PUBLIC_KEY_RING);
 
+                boolean ed25519Signing = PreferenceManager.getDefaultSharedPreferences(context)
+                        .getBoolean(ProofMode.PREF_OPTION_ED25519_SIGNING, ProofMode.PREF_OPTION_ED25519_SIGNING_DEFAULT);
+
                 if (fileSecKeyRing.exists())
                 {
                     ArmoredInputStream sin = new ArmoredInputStream(new FileInputStream(fileSecKeyRing));
@@ -304,24 +478,13 @@ public class PgpUtils {
                     sin.close();
                 }
                 else {
-                    final PGPKeyRingGenerator krgen = generateKeyRingGenerator(keyId, password.toCharArray());
+                    final PGPKeyRingGenerator krgen = generateKeyRingGenerator(keyId, password.toCharArray(), ed25519Signing);
                     skr = krgen.generateSecretKeyRing();
-
-
-                    ArmoredOutputStream sout = new ArmoredOutputStream((new FileOutputStream(fileSecKeyRing)));
-                    skr.encode(sout);
-                    sout.close();
-
                     pkr = krgen.generatePublicKeyRing();
-
-                    sout = new ArmoredOutputStream((new FileOutputStream(filePubKeyRing)));
-                    pkr.encode(sout);
-                    sout.close();
-
+                    saveKeyRings(skr, pkr, fileSecKeyRing, filePubKeyRing);
                 }
 
-                pgpSec = skr.getSecretKey();
-
+                selectSigningKey(context, password, ed25519Signing);
 
             } catch (PGPException pgpe) {
                 pgpe.printStackTrace();
@@ -332,6 +495,117 @@ public class PgpUtils {
         }
     }
 
+    /**
+     * Sign with the Ed25519 subkey or not, e.g. after the pref was changed; a ring without the
+     * subkey gets one first, which writes and publishes the rings, so not on the main thread
+     */
+    public synchronized void setEd25519Signing (Context context, String password, boolean ed25519Signing)
+    {
+        if (skr == null)
+            return;
+
+        selectSigningKey(context, password, ed25519Signing);
+    }
+
+    /*
+     * the fastest key allowed to sign, leaving out the Ed25519 subkey unless it is turned on;
+     * the primary key for rings from before signing subkeys
+     */
+    private void selectSigningKey (Context context, String password, boolean ed25519Signing)
+    {
+        File fileSecKeyRing = new File(context.getFilesDir(),FILE_SECRET_KEY_RING);
+        File filePubKeyRing = new File(context.getFilesDir(),FILE_PUBLIC_KEY_RING);
+
+        if (ed25519Signing && !hasEd25519SigningKey(skr)) {
+            try {
+                final PGPKeyRingGenerator krgen = addEd25519SigningKey(skr, password.toCharArray());
+                PGPSecretKeyRing skrNew = krgen.generateSecretKeyRing();
+                PGPPublicKeyRing pkrNew = krgen.generatePublicKeyRing();
+                saveKeyRings(skrNew, pkrNew, fileSecKeyRing, filePubKeyRing);
+                skr = skrNew;
+                pkr = pkrNew;
+
+                //whoever fetched the ring before needs the subkey to verify new signatures
+                publishPublicKey();
+            }
+            catch (PGPException pgpe)
+            {
+                //keep signing with the keys we have
+                Log.w("PGP", "unable to add Ed25519 signing key: " + pgpe);
+            }
+            catch (IOException ioe)
+            {
+                //the rings on disk are still the old ones, so keep signing with those
+                Log.w("PGP", "unable to save Ed25519 signing key: " + ioe);
+            }
+        }
+
+        PGPSecretKey key = DetachedSignatureProcessor.findSigningKey(skr, ed25519Signing);
+        if (key == null)
+            key = skr.getSecretKey();
+
+        if (pgpSec != null && pgpSec.getKeyID() == key.getKeyID())
+            return;
+
+        pgpSec = key;
+
+        //the unlocked key and its signer belong to the key signing until now
+        lockSigner();
+        mSignerBuilder = null;
+    }
+
+    /*
+     * the public ring goes first, so a secret ring on disk always has its public half beside it;
+     * were only the public one replaced, the next start adds the subkey again
+     */
+    private static void saveKeyRings (PGPSecretKeyRing secRing, PGPPublicKeyRing pubRing, File fileSecKeyRing, File filePubKeyRing) throws IOException
+    {
+        saveKeyRing(pubRing, filePubKeyRing);
+        saveKeyRing(secRing, fileSecKeyRing);
+    }
+
+    /*
+     * write the ring beside its file, sync it and rename it over: a crash or full storage part
+     * way through must not take the only signing key with it
+     */
+    private static void saveKeyRing (PGPKeyRing ring, File file) throws IOException
+    {
+        File fileTmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(fileTmp);
+        try {
+            //closing the armor writes its footer, but leaves the file open
+            ArmoredOutputStream sout = new ArmoredOutputStream(fos);
+            ring.encode(sout);
+            sout.close();
+
+            fos.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+
+        if (!fileTmp.renameTo(file)) {
+            fileTmp.delete();
+            throw new IOException("unable to replace " + file);
+        }
+    }
+
+    private static boolean hasEd25519SigningKey (PGPSecretKeyRing ring)
+    {
+        PGPSecretKey key = DetachedSignatureProcessor.findSigningKey(ring, true);
+        return key != null && key.getPublicKey().getAlgorithm() == PublicKeyAlgorithmTags.EDDSA;
+    }
+
+    /**
+     * @return the OpenPGP algorithm of the key proofs are signed with, e.g. PublicKeyAlgorithmTags.EDDSA
+     */
+    public int getSigningKeyAlgorithm ()
+    {
+        return pgpSec.getPublicKey().getAlgorithm();
+    }
+
     public void publishPublicKey () throws IOException
     {
         ByteArrayOutputStream baosPkr = new ByteArrayOutputStream();
@@ -0,0 +1,87 @@
+package org.witness.proofmode.crypto;
+
+import java.util.Arrays;
+
+/**
+ * An immutable SHA-256 value. The hex form is only built when first asked for, so code that
+ * compares or stores hashes as bytes never allocates it.
+ */
+public final class Sha256Hash {
+
+    public final static int LENGTH = 32;
+
+    private final byte[] mBytes;
+    private String mHex;
+
+    //takes ownership of bytes, which must not change afterwards
+    Sha256Hash (byte[] bytes)
+    {
+        if (bytes.length != LENGTH)
+            throw new IllegalArgumentException("SHA-256 hashes are " + LENGTH + " bytes, not " + bytes.length);
+
+        mBytes = bytes;
+    }
+
+    /**
+     * @return the hash of a copy of bytes
+     */
+    public static Sha256Hash of (byte[] bytes)
+    {
+        return new Sha256Hash(bytes.clone());
+    }
+
+    /**
+     * @return the hash for 64 hex digits, in either case
+     */
+    public static Sha256Hash fromHex (String hex)
+    {
+        if (hex.length() != LENGTH * 2)
+            throw new IllegalArgumentException("SHA-256 hashes are " + (LENGTH * 2) + " hex digits");
+
+        return new Sha256Hash(HashUtils.fromHex(hex));
+    }
+
+    public byte[] toByteArray ()
+    {
+        return mBytes.clone();
+    }
+
+    public void copyTo (byte[] dest, int offset)
+    {
+        System.arraycopy(mBytes, 0, dest, offset, LENGTH);
+    }
+
+    /**
+     * @return the lowercase hex form, as used for proof folders and file names
+     */
+    public String toHex ()
+    {
+        //racy, but every thread builds the same string
+        String hex = mHex;
+        if (hex == null) {
+            hex = HashUtils.asHex(mBytes);
+            mHex = hex;
+        }
+
+        return hex;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        return other instanceof Sha256Hash && Arrays.equals(mBytes, ((Sha256Hash) other).mBytes);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        //the bytes are already uniformly distributed
+        return (mBytes[0] & 0xff) << 24 | (mBytes[1] & 0xff) << 16 | (mBytes[2] & 0xff) << 8 | (mBytes[3] & 0xff);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return toHex();
+    }
+}
@@ -0,0 +1,311 @@
+package org.witness.proofmode.crypto;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies detached OpenPGP signatures against a set of public keys parsed once up front,
+ * for checking many received proofs in a row.
+ *
+ * Keys are cached by key ID (primary and subkeys), data is read in large chunks and
+ * {@link #verifyAll(List, int)} checks a batch of media/signature pairs in parallel.
+ * Safe to share between threads.
+ */
+public class SignatureVerifier {
+
+    //stateless; its buffers are per thread
+    private final MediaReader mReader = new MediaReader();
+
+    private final Map<Long, PGPPublicKey> mKeys = new ConcurrentHashMap<>();
+
+    private final BcPGPContentVerifierBuilderProvider mVerifierProvider = new BcPGPContentVerifierBuilderProvider();
+
+    /**
+     * Add every key from an armored or binary public keyring (collection)
+     *
+     * @return the number of keys added
+     */
+    public int addKeyRings (InputStream keyIn) throws IOException, PGPException
+    {
+        PGPPublicKeyRingCollection rings = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new BcKeyFingerprintCalculator());
+
+        int count = 0;
+        Iterator<PGPPublicKeyRing> itRings = rings.getKeyRings();
+        while (itRings.hasNext())
+            count += addKeyRing(itRings.next());
+
+        return count;
+    }
+
+    public int addKeyRing (PGPPublicKeyRing ring)
+    {
+        int count = 0;
+        Iterator<PGPPublicKey> itKeys = ring.getPublicKeys();
+        while (itKeys.hasNext()) {
+            PGPPublicKey key = itKeys.next();
+            mKeys.put(key.getKeyID(), key);
+            count++;
+        }
+
+        return count;
+    }
+
+    public PGPPublicKey getKey (long keyId)
+    {
+        return mKeys.get(keyId);
+    }
+
+    public int getKeyCount ()
+    {
+        return mKeys.size();
+    }
+
+    /**
+     * Verify a detached signature over data; both streams are closed
+     */
+    public Result verify (InputStream data, InputStream sigIn)
+    {
+        try {
+            PGPSignature sig;
+
+            try {
+                sig = readSignature(sigIn);
+            }
+            finally {
+                sigIn.close();
+            }
+
+            if (sig == null)
+                return new Result(Status.ERROR, 0, null, 0, "no signature found");
+
+            PGPPublicKey key = mKeys.get(sig.getKeyID());
+            if (key == null)
+                return new Result(Status.UNKNOWN_KEY, sig.getKeyID(), sig.getCreationTime(), 0, "no public key for signature");
+
+            sig.init(mVerifierProvider, key);
+
+            long length;
+
+            try {
+                length = mReader.read(data, sig::update);
+            }
+            finally {
+                data.close();
+            }
+
+            Status status = sig.verify() ? Status.VALID : Status.INVALID;
+            return new Result(status, sig.getKeyID(), sig.getCreationTime(), length, null);
+        }
+        catch (IOException | PGPException e)
+        {
+            closeQuietly(data);
+            return new Result(Status.ERROR, 0, null, 0, e.getMessage());
+        }
+    }
+
+    public Result verify (File media, File signature)
+    {
+        InputStream data;
+        InputStream sigIn;
+
+        try {
+            data = new FileInputStream(media);
+        } catch (IOException e) {
+            return new Result(Status.ERROR, 0, null, 0, e.getMessage());
+        }
+
+        try {
+            sigIn = new BufferedInputStream(new FileInputStream(signature));
+        } catch (IOException e) {
+            closeQuietly(data);
+            return new Result(Status.ERROR, 0, null, 0, e.getMessage());
+        }
+
+        return verify(data, sigIn);
+    }
+
+    /**
+     * Verify a batch of media/signature pairs on up to parallelism threads
+     *
+     * @return one result per request, in the same order
+     */
+    public List<Result> verifyAll (List<Request> requests, int parallelism) throws InterruptedException
+    {
+        List<Result> results = new ArrayList<>(requests.size());
+
+        if (parallelism <= 1 || requests.size() <= 1) {
+            for (Request request : requests)
+                results.add(verify(request.getMedia(), request.getSignature()));
+            return results;
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.min(parallelism, requests.size()));
+
+        try {
+            List<Future<Result>> futures = new ArrayList<>(requests.size());
+
+            for (final Request request : requests) {
+                futures.add(exec.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return verify(request.getMedia(), request.getSignature());
+                    }
+                }));
+            }
+
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                }
+                catch (ExecutionException ee)
+                {
+                    results.add(new Result(Status.ERROR, 0, null, 0, String.valueOf(ee.getCause())));
+                }
+            }
+        }
+        finally {
+            exec.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private static PGPSignature readSignature (InputStream sigIn) throws IOException, PGPException
+    {
+        PGPObjectFactory pgpFact = new PGPObjectFactory(PGPUtil.getDecoderStream(sigIn), new BcKeyFingerprintCalculator());
+
+        Object o = pgpFact.nextObject();
+        if (o instanceof PGPCompressedData) {
+            pgpFact = new PGPObjectFactory(((PGPCompressedData) o).getDataStream(), new BcKeyFingerprintCalculator());
+            o = pgpFact.nextObject();
+        }
+
+        if (!(o instanceof PGPSignatureList) || ((PGPSignatureList) o).isEmpty())
+            return null;
+
+        return ((PGPSignatureList) o).get(0);
+    }
+
+    private static void closeQuietly (InputStream in)
+    {
+        try {
+            in.close();
+        } catch (IOException e) {
+            //nothing left to do with it
+        }
+    }
+
+    public enum Status {
+        VALID,
+        INVALID,
+        UNKNOWN_KEY,
+        ERROR
+    }
+
+    public static class Request {
+
+        private final File mMedia;
+        private final File mSignature;
+
+        public Request (File media, File signature)
+        {
+            mMedia = media;
+            mSignature = signature;
+        }
+
+        public File getMedia ()
+        {
+            return mMedia;
+        }
+
+        public File getSignature ()
+        {
+            return mSignature;
+        }
+    }
+
+    public static class Result {
+
+        private final Status mStatus;
+        private final long mKeyId;
+        private final Date mSignedAt;
+        private final long mLength;
+        private final String mError;
+
+        Result (Status status, long keyId, Date signedAt, long length, String error)
+        {
+            mStatus = status;
+            mKeyId = keyId;
+            mSignedAt = signedAt;
+            mLength = length;
+            mError = error;
+        }
+
+        public boolean isValid ()
+        {
+            return mStatus == Status.VALID;
+        }
+
+        public Status getStatus ()
+        {
+            return mStatus;
+        }
+
+        /**
+         * @return the key ID the signature claims, or 0 if it couldn't be read
+         */
+        public long getKeyId ()
+        {
+            return mKeyId;
+        }
+
+        public Date getSignedAt ()
+        {
+            return mSignedAt;
+        }
+
+        /**
+         * @return the number of bytes of data checked
+         */
+        public long getLength ()
+        {
+            return mLength;
+        }
+
+        public String getError ()
+        {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            return mStatus + (mKeyId != 0 ? " key=" + Long.toHexString(mKeyId) : "") + (mError != null ? " " + mError : "");
+        }
+    }
+}
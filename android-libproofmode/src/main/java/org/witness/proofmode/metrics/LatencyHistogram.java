@@ -0,0 +1,133 @@
+package org.witness.proofmode.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds, with one bucket per power of two
+ * (1us up to about 2 hours), so recording from many threads costs a few atomic adds and
+ * percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    final static int BUCKET_COUNT = 34;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record (long durationUs)
+    {
+        if (durationUs < 0)
+            durationUs = 0;
+
+        mBuckets.incrementAndGet(bucketOf(durationUs));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(durationUs);
+
+        long max;
+        while (durationUs > (max = mMax.get()) && !mMax.compareAndSet(max, durationUs)) {
+            //another thread raised it first, try again
+        }
+    }
+
+    public void reset ()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mBuckets.set(i, 0);
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * A consistent enough copy for reporting; counts recorded while it is taken may or may
+     * not be included
+     */
+    public Snapshot snapshot ()
+    {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets[i] = mBuckets.get(i);
+
+        return new Snapshot(buckets, mCount.get(), mTotal.get(), mMax.get());
+    }
+
+    /**
+     * Bucket i holds durations below 2^i us (and at least 2^(i-1) us)
+     */
+    static int bucketOf (long durationUs)
+    {
+        int bucket = 64 - Long.numberOfLeadingZeros(durationUs);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    public static class Snapshot {
+
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot (long[] buckets, long count, long total, long max)
+        {
+            mBuckets = buckets;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount ()
+        {
+            return mCount;
+        }
+
+        public long getTotalUs ()
+        {
+            return mTotal;
+        }
+
+        public long getMeanUs ()
+        {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        public long getMaxUs ()
+        {
+            return mMax;
+        }
+
+        /**
+         * @param percentile between 0 and 100, e.g. 95 for the p95
+         * @return the upper bound of the bucket holding that percentile, capped at the max seen
+         */
+        public long getPercentileUs (double percentile)
+        {
+            if (mCount == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(mCount * percentile / 100d);
+            long seen = 0;
+
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && mBuckets[i] > 0)
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, mMax);
+            }
+
+            return mMax;
+        }
+
+        public long[] getBuckets ()
+        {
+            return mBuckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + getMeanUs() + "us p50=" + getPercentileUs(50)
+                    + "us p95=" + getPercentileUs(95) + "us p99=" + getPercentileUs(99) + "us max=" + mMax + "us";
+        }
+    }
+}
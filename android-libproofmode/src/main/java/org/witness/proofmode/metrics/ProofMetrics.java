@@ -0,0 +1,289 @@
+package org.witness.proofmode.metrics;
+
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings, counters and queue depths for every stage of proof generation, kept in memory as
+ * histograms and passed on to any registered {@link ProofMetricsListener}.
+ *
+ * Stages are timed with {@link #start()} and {@link #stage(Uri, String, long)}:
+ *
+ * <pre>
+ *     long start = ProofMetrics.start();
+ *     ...
+ *     ProofMetrics.getInstance().stage(uri, ProofMetrics.STAGE_HASH, start);
+ * </pre>
+ *
+ * A {@link Snapshot} carries the device model, so reports collected from many devices can be
+ * compared to see which stage runs over budget where.
+ */
+public class ProofMetrics {
+
+    //waiting in the proof engine for a reading / signing thread
+    public final static String STAGE_QUEUE_WAIT_IO = "queue_wait.io";
+    public final static String STAGE_QUEUE_WAIT_CPU = "queue_wait.cpu";
+
+    public final static String STAGE_HASH = "hash";
+    //waiting for the chunked hash to catch up with the classic one
+    public final static String STAGE_CHUNK_HASH_WAIT = "chunk_hash_wait";
+    public final static String STAGE_DEVICE_INFO = "device_info";
+    public final static String STAGE_LOCATION_WAIT = "location_wait";
+    public final static String STAGE_CSV_WRITE = "csv_write";
+    public final static String STAGE_MEDIA_SIGN = "media_sign";
+    public final static String STAGE_PROOF_SIGN = "proof_sign";
+
+    //from submitting the media to having its proof (or knowing it already had one)
+    public final static String STAGE_TOTAL = "total";
+
+    private final static String STAGE_NOTARIZE_PREFIX = "notarize.";
+
+    public final static String NOTARY_SAFETYNET = "safetynet";
+    public final static String NOTARY_OPENTIMESTAMPS = "opentimestamps";
+    public final static String NOTARY_OPENTIMESTAMPS_UPGRADE = "opentimestamps.upgrade";
+
+    public final static String COUNTER_PROOF_WRITTEN = "proof_written";
+    public final static String COUNTER_PROOF_EXISTS = "skip.proof_exists";
+    public final static String COUNTER_HASH_INDEX_HIT = "skip.hash_indexed";
+    public final static String COUNTER_HASHED_WHILE_WRITING = "skip.hashed_while_writing";
+    public final static String COUNTER_DUPLICATE = "skip.duplicate";
+    public final static String COUNTER_QUEUE_FULL = "skip.queue_full";
+    public final static String COUNTER_READ_FAILED = "fail.read";
+    public final static String COUNTER_WRITE_FAILED = "fail.write";
+    public final static String COUNTER_ENGINE_ERROR = "fail.engine";
+
+    private final static String COUNTER_NOTARIZE_FAILED_PREFIX = "fail.notarize.";
+
+    public final static String QUEUE_IO = "io";
+    public final static String QUEUE_CPU = "cpu";
+    public final static String QUEUE_PENDING = "pending";
+    public final static String QUEUE_NOTARIZE = "notarize";
+
+    private static ProofMetrics mInstance;
+
+    private final ConcurrentHashMap<String, LatencyHistogram> mStages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mQueues = new ConcurrentHashMap<>();
+
+    private final List<ProofMetricsListener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile long mSince = System.currentTimeMillis();
+
+    public static synchronized ProofMetrics getInstance ()
+    {
+        if (mInstance == null)
+            mInstance = new ProofMetrics();
+
+        return mInstance;
+    }
+
+    public static String notarizeStage (String notary)
+    {
+        return STAGE_NOTARIZE_PREFIX + notary;
+    }
+
+    public static String notarizeFailedCounter (String notary)
+    {
+        return COUNTER_NOTARIZE_FAILED_PREFIX + notary;
+    }
+
+    /**
+     * @return a start time to pass to {@link #stage(Uri, String, long)} later
+     */
+    public static long start ()
+    {
+        return System.nanoTime();
+    }
+
+    public void addListener (ProofMetricsListener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public void removeListener (ProofMetricsListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Record a stage that began at startNanos (from {@link #start()}) and ends now
+     */
+    public void stage (Uri uri, String stage, long startNanos)
+    {
+        record(uri, stage, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void record (Uri uri, String stage, long durationUs)
+    {
+        LatencyHistogram histogram = mStages.get(stage);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = mStages.putIfAbsent(stage, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+
+        histogram.record(durationUs);
+
+        for (ProofMetricsListener listener : mListeners)
+            listener.stageCompleted(uri, stage, durationUs);
+    }
+
+    public void increment (Uri uri, String counter)
+    {
+        AtomicLong count = mCounters.get(counter);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = mCounters.putIfAbsent(counter, count);
+            if (existing != null)
+                count = existing;
+        }
+
+        count.incrementAndGet();
+
+        for (ProofMetricsListener listener : mListeners)
+            listener.counterIncremented(uri, counter);
+    }
+
+    public void setQueueDepth (String queue, int depth)
+    {
+        AtomicInteger current = mQueues.get(queue);
+        if (current == null) {
+            current = new AtomicInteger();
+            AtomicInteger existing = mQueues.putIfAbsent(queue, current);
+            if (existing != null)
+                current = existing;
+        }
+
+        //only tell listeners about actual changes, this is called on every enqueue and dequeue
+        if (current.getAndSet(depth) == depth)
+            return;
+
+        for (ProofMetricsListener listener : mListeners)
+            listener.queueDepthChanged(queue, depth);
+    }
+
+    /**
+     * Clear the histograms and counters, e.g. after uploading a snapshot. Queue depths are
+     * current values, so they are kept.
+     */
+    public void reset ()
+    {
+        for (LatencyHistogram histogram : mStages.values())
+            histogram.reset();
+        for (AtomicLong count : mCounters.values())
+            count.set(0);
+
+        mSince = System.currentTimeMillis();
+    }
+
+    public Snapshot snapshot ()
+    {
+        Map<String, LatencyHistogram.Snapshot> stages = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mStages.entrySet())
+            stages.put(entry.getKey(), entry.getValue().snapshot());
+
+        Map<String, Long> counters = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet())
+            counters.put(entry.getKey(), entry.getValue().get());
+
+        Map<String, Integer> queues = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : mQueues.entrySet())
+            queues.put(entry.getKey(), entry.getValue().get());
+
+        return new Snapshot(Build.MANUFACTURER + " " + Build.MODEL, mSince, System.currentTimeMillis(),
+                stages, counters, queues);
+    }
+
+    public static class Snapshot {
+
+        private final String mDeviceModel;
+        private final long mSince;
+        private final long mTaken;
+        private final Map<String, LatencyHistogram.Snapshot> mStages;
+        private final Map<String, Long> mCounters;
+        private final Map<String, Integer> mQueues;
+
+        Snapshot (String deviceModel, long since, long taken, Map<String, LatencyHistogram.Snapshot> stages,
+                  Map<String, Long> counters, Map<String, Integer> queues)
+        {
+            mDeviceModel = deviceModel;
+            mSince = since;
+            mTaken = taken;
+            mStages = Collections.unmodifiableMap(stages);
+            mCounters = Collections.unmodifiableMap(counters);
+            mQueues = Collections.unmodifiableMap(queues);
+        }
+
+        public String getDeviceModel ()
+        {
+            return mDeviceModel;
+        }
+
+        /**
+         * @return when recording started (or was last reset), in ms since the epoch
+         */
+        public long getSince ()
+        {
+            return mSince;
+        }
+
+        public long getTaken ()
+        {
+            return mTaken;
+        }
+
+        public Map<String, LatencyHistogram.Snapshot> getStages ()
+        {
+            return mStages;
+        }
+
+        /**
+         * @return the histogram for the stage, or null if it hasn't run yet
+         */
+        public LatencyHistogram.Snapshot getStage (String stage)
+        {
+            return mStages.get(stage);
+        }
+
+        public Map<String, Long> getCounters ()
+        {
+            return mCounters;
+        }
+
+        public long getCounter (String counter)
+        {
+            Long count = mCounters.get(counter);
+            return count == null ? 0 : count;
+        }
+
+        public Map<String, Integer> getQueueDepths ()
+        {
+            return mQueues;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("ProofMetrics ").append(mDeviceModel).append('\n');
+
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : mStages.entrySet())
+                sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            for (Map.Entry<String, Long> entry : mCounters.entrySet())
+                sb.append("  ").append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+            for (Map.Entry<String, Integer> entry : mQueues.entrySet())
+                sb.append("  queue ").append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+
+            return sb.toString();
+        }
+    }
+}
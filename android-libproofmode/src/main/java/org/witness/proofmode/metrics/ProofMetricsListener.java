@@ -0,0 +1,23 @@
+package org.witness.proofmode.metrics;
+
+import android.net.Uri;
+
+/**
+ * Receives proof pipeline events as they happen, e.g. to forward them to a tracing or
+ * analytics backend. Called on the thread doing the work, so implementations must be quick
+ * and thread safe.
+ */
+public interface ProofMetricsListener {
+
+    /**
+     * @param uri the media the stage ran for, or null if it isn't tied to one capture
+     * @param stage one of the ProofMetrics.STAGE_ names, or a notarization stage
+     * @param durationUs how long the stage took, in microseconds
+     */
+    public void stageCompleted(Uri uri, String stage, long durationUs);
+
+    public void counterIncremented(Uri uri, String counter);
+
+    public void queueDepthChanged(String queue, int depth);
+
+}
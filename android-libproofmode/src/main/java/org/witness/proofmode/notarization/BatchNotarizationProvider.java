@@ -0,0 +1,26 @@
+package org.witness.proofmode.notarization;
+
+import java.util.List;
+
+/**
+ * A notary that can notarize many hashes with one request. {@link NotarizationQueue} gathers
+ * jobs for it over a short window and hands them over together.
+ */
+public interface BatchNotarizationProvider extends NotarizationProvider {
+
+    /**
+     * @return the most hashes to send in one batch; 1 turns batching off
+     */
+    public int getMaxBatchSize();
+
+    /**
+     * @return how long a due job may wait for others to batch with
+     */
+    public long getBatchWindowMs();
+
+    /**
+     * Notarize all hashes, telling listeners.get(i) the result for hashes.get(i)
+     */
+    public void notarize(List<String> hashes, List<NotarizationListener> listeners);
+
+}
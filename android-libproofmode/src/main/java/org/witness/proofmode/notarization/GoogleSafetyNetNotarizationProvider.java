@@ -29,7 +29,7 @@ public class GoogleSafetyNetNotarizationProvider implements NotarizationProvider
     @Override
     public void notarize(String mediaHash, InputStream is, NotarizationListener listener) {
 
-        new SafetyNetCheck().sendSafetyNetRequest(mContext, mediaHash, new OnSuccessListener<SafetyNetApi.AttestationResponse>() {
+        boolean sent = new SafetyNetCheck().sendSafetyNetRequest(mContext, mediaHash, new OnSuccessListener<SafetyNetApi.AttestationResponse>() {
             @Override
             public void onSuccess(SafetyNetApi.AttestationResponse response) {
                 // Indicates communication with the service was successful.
@@ -48,8 +48,12 @@ public class GoogleSafetyNetNotarizationProvider implements NotarizationProvider
             public void onFailure(@NonNull Exception e) {
                 // An error occurred while communicating with the service.
                 Timber.d(e,"SafetyNet check failed");
+                listener.notarizationFailed(-1, e.getMessage());
             }
         });
+
+        if (!sent)
+            listener.notarizationFailed(-1, "SafetyNet is not available");
     }
 
 
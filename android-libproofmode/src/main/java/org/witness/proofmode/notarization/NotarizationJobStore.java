@@ -0,0 +1,200 @@
+package org.witness.proofmode.notarization;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Notarization jobs waiting to run, kept in SQLite so they survive restarts. A job is removed
+ * once it succeeds or is given up on.
+ */
+class NotarizationJobStore extends SQLiteOpenHelper {
+
+    private final static String DATABASE_NAME = "notarizationqueue.db";
+    private final static int DATABASE_VERSION = 1;
+
+    private final static String TABLE_JOBS = "jobs";
+    private final static String COL_ID = "_id";
+    private final static String COL_HASH = "hash";
+    private final static String COL_URI = "uri";
+    private final static String COL_NOTARY = "notary";
+    private final static String COL_ATTEMPTS = "attempts";
+    private final static String COL_NEXT_ATTEMPT = "next_attempt";
+    private final static String COL_CREATED = "created";
+    private final static String COL_LAST_ERROR = "last_error";
+
+    private final static String[] JOB_COLUMNS = {COL_ID, COL_HASH, COL_URI, COL_NOTARY, COL_ATTEMPTS, COL_NEXT_ATTEMPT, COL_CREATED};
+
+    NotarizationJobStore (Context context)
+    {
+        this(context, DATABASE_NAME);
+    }
+
+    NotarizationJobStore (Context context, String databaseName)
+    {
+        super(context.getApplicationContext(), databaseName, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_JOBS + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_HASH + " TEXT NOT NULL, "
+                + COL_URI + " TEXT, "
+                + COL_NOTARY + " TEXT NOT NULL, "
+                + COL_ATTEMPTS + " INTEGER NOT NULL, "
+                + COL_NEXT_ATTEMPT + " INTEGER NOT NULL, "
+                + COL_CREATED + " INTEGER NOT NULL, "
+                + COL_LAST_ERROR + " TEXT, "
+                + "UNIQUE (" + COL_HASH + ", " + COL_NOTARY + "))");
+        db.execSQL("CREATE INDEX idx_" + TABLE_JOBS + "_" + COL_NEXT_ATTEMPT + " ON " + TABLE_JOBS + " (" + COL_NEXT_ATTEMPT + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Add a job, due after delayMs. A hash already waiting for the same notary is not added twice.
+     */
+    void add (String hash, String uri, String notary, long delayMs)
+    {
+        long now = System.currentTimeMillis();
+
+        ContentValues values = new ContentValues();
+        values.put(COL_HASH, hash);
+        values.put(COL_URI, uri);
+        values.put(COL_NOTARY, notary);
+        values.put(COL_ATTEMPTS, 0);
+        values.put(COL_NEXT_ATTEMPT, now + delayMs);
+        values.put(COL_CREATED, now);
+
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE_JOBS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to queue notarization of %s", hash);
+        }
+    }
+
+    /**
+     * @return up to limit jobs for the notary due by now, the longest waiting first
+     */
+    List<NotarizationQueue.Job> getDue (String notary, long now, int limit)
+    {
+        List<NotarizationQueue.Job> jobs = new ArrayList<>();
+
+        try {
+            Cursor cursor = getReadableDatabase().query(TABLE_JOBS, JOB_COLUMNS, COL_NOTARY + "=? AND " + COL_NEXT_ATTEMPT + "<=?",
+                    new String[]{notary, String.valueOf(now)}, null, null, COL_NEXT_ATTEMPT, String.valueOf(limit));
+
+            try {
+                while (cursor.moveToNext()) {
+                    jobs.add(new NotarizationQueue.Job(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3), cursor.getInt(4), cursor.getLong(5), cursor.getLong(6)));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to read notarization queue");
+        }
+
+        return jobs;
+    }
+
+    /**
+     * @return when the next job after now is due, or -1 if none is
+     */
+    long getNextAttemptAfter (long now)
+    {
+        try {
+            Cursor cursor = getReadableDatabase().query(TABLE_JOBS, new String[]{COL_NEXT_ATTEMPT},
+                    COL_NEXT_ATTEMPT + ">?", new String[]{String.valueOf(now)}, null, null, COL_NEXT_ATTEMPT, "1");
+
+            try {
+                if (cursor.moveToFirst())
+                    return cursor.getLong(0);
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to read notarization queue");
+        }
+
+        return -1;
+    }
+
+    void retryLater (long id, int attempts, long nextAttempt, String error)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COL_ATTEMPTS, attempts);
+        values.put(COL_NEXT_ATTEMPT, nextAttempt);
+        values.put(COL_LAST_ERROR, error);
+
+        try {
+            getWritableDatabase().update(TABLE_JOBS, values, COL_ID + "=?", new String[]{String.valueOf(id)});
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to update notarization queue");
+        }
+    }
+
+    /**
+     * Make every waiting job due now, keeping its attempt count
+     */
+    void retryAllNow ()
+    {
+        ContentValues values = new ContentValues();
+        values.put(COL_NEXT_ATTEMPT, System.currentTimeMillis());
+
+        try {
+            getWritableDatabase().update(TABLE_JOBS, values, null, null);
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to update notarization queue");
+        }
+    }
+
+    void remove (long id)
+    {
+        try {
+            getWritableDatabase().delete(TABLE_JOBS, COL_ID + "=?", new String[]{String.valueOf(id)});
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to update notarization queue");
+        }
+    }
+
+    int count ()
+    {
+        try {
+            return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_JOBS);
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to read notarization queue");
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package org.witness.proofmode.notarization;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.Uri;
+import android.os.Build;
+
+import org.witness.proofmode.metrics.ProofMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Persistent queue of notarization requests, so notarizing never blocks the proof workers and
+ * isn't lost when we are offline or the app is restarted.
+ *
+ * Each notary is registered with its provider and how many requests it may have running at
+ * once. Jobs are only tried while there is a network; failures are retried with exponential
+ * backoff, and jobs are retried as soon as connectivity returns. A job that keeps failing is
+ * given up after {@link #MAX_ATTEMPTS} tries. Notaries that implement
+ * {@link BatchNotarizationProvider} get due jobs in batches, each batch taking one of their
+ * concurrent requests.
+ */
+public class NotarizationQueue {
+
+    public final static int MAX_ATTEMPTS = 20;
+
+    private final static long BACKOFF_BASE_MS = 30 * 1000;
+    private final static long BACKOFF_MAX_MS = 6 * 60 * 60 * 1000;
+
+    //providers that never call back are treated as failed after this
+    private final static long ATTEMPT_TIMEOUT_MS = 2 * 60 * 1000;
+
+    public interface ResultHandler {
+
+        /**
+         * Called on a queue worker when a notary returned its proof for a job
+         */
+        public void onNotarized(Job job, String result);
+
+        /**
+         * Called when a job failed {@link #MAX_ATTEMPTS} times and was dropped
+         */
+        public void onGaveUp(Job job, String error);
+
+    }
+
+    private static NotarizationQueue mInstance;
+
+    private final Context mContext;
+    private final NotarizationJobStore mStore;
+
+    private final long mBackoffBaseMs;
+    private final long mBackoffMaxMs;
+
+    private final Map<String, Notary> mNotaries = new HashMap<>();
+    private final Set<Long> mRunning = new HashSet<>();
+
+    private final Random mRandom = new Random();
+
+    private ScheduledExecutorService mScheduler;
+    private ExecutorService mWorkers;
+    private ScheduledFuture<?> mWakeup;
+
+    private volatile ResultHandler mResultHandler;
+
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private BroadcastReceiver mConnectivityReceiver;
+
+    NotarizationQueue (Context context, NotarizationJobStore store, long backoffBaseMs, long backoffMaxMs)
+    {
+        mContext = context.getApplicationContext();
+        mStore = store;
+        mBackoffBaseMs = backoffBaseMs;
+        mBackoffMaxMs = backoffMaxMs;
+    }
+
+    public static synchronized NotarizationQueue getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new NotarizationQueue(context, new NotarizationJobStore(context), BACKOFF_BASE_MS, BACKOFF_MAX_MS);
+
+        return mInstance;
+    }
+
+    /**
+     * @param notary name of the notary jobs are queued for, e.g. {@link ProofMetrics#NOTARY_OPENTIMESTAMPS}
+     * @param maxConcurrent how many requests this notary may have running at once
+     */
+    public synchronized void register (String notary, NotarizationProvider provider, int maxConcurrent)
+    {
+        mNotaries.put(notary, new Notary(provider, Math.max(1, maxConcurrent)));
+    }
+
+    public void setResultHandler (ResultHandler handler)
+    {
+        mResultHandler = handler;
+    }
+
+    /**
+     * Queue the hash for a notary. Returns at once; the request runs when the network and the
+     * notary's concurrency limit allow.
+     */
+    public void enqueue (String hash, Uri uriMedia, String notary)
+    {
+        enqueue(hash, uriMedia, notary, 0);
+    }
+
+    /**
+     * Queue the hash for a notary, not to be tried before delayMs from now
+     */
+    public void enqueue (String hash, Uri uriMedia, String notary, long delayMs)
+    {
+        mStore.add(hash, uriMedia == null ? null : uriMedia.toString(), notary, delayMs);
+        ProofMetrics.getInstance().setQueueDepth(ProofMetrics.QUEUE_NOTARIZE, mStore.count());
+        dispatchSoon();
+    }
+
+    /**
+     * @return the number of jobs waiting or running
+     */
+    public int getPendingCount ()
+    {
+        return mStore.count();
+    }
+
+    /**
+     * Try every waiting job now, instead of when its backoff ends
+     */
+    public void retryNow ()
+    {
+        mStore.retryAllNow();
+        dispatchSoon();
+    }
+
+    /**
+     * Start running queued jobs, including those left from before a restart
+     */
+    public synchronized void start ()
+    {
+        if (mScheduler != null)
+            return;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NotarizationQueue");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        //the notaries' limits bound how many of these run at once
+        mWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Notarize-" + mCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        listenForConnectivity();
+        dispatchSoon();
+    }
+
+    public synchronized void stop ()
+    {
+        ConnectivityManager connMgr = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        try {
+            if (mNetworkCallback != null && connMgr != null)
+                connMgr.unregisterNetworkCallback(mNetworkCallback);
+            if (mConnectivityReceiver != null)
+                mContext.unregisterReceiver(mConnectivityReceiver);
+        }
+        catch (RuntimeException re)
+        {
+            Timber.d(re, "connectivity listener was not registered");
+        }
+
+        mNetworkCallback = null;
+        mConnectivityReceiver = null;
+
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+
+        //running attempts finish; anything they don't complete is retried next start
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+            mWorkers = null;
+        }
+
+        mRunning.clear();
+        for (Notary notary : mNotaries.values())
+            notary.mRunning = 0;
+    }
+
+    private synchronized void dispatchSoon ()
+    {
+        if (mScheduler == null)
+            return;
+
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Hand due jobs to the workers, as far as each notary's limit allows, and set a wakeup for
+     * the next job that isn't due yet. Jobs for batching notaries wait out the batch window
+     * unless a full batch is ready. Runs on the scheduler thread.
+     */
+    private synchronized void dispatch ()
+    {
+        if (mScheduler == null)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        //connectivity coming back dispatches again
+        if (!isOnline())
+            return;
+
+        long wakeAt = mStore.getNextAttemptAfter(now);
+
+        for (Map.Entry<String, Notary> entry : mNotaries.entrySet()) {
+            final Notary notary = entry.getValue();
+
+            int free = notary.mMaxConcurrent - notary.mRunning;
+            if (free <= 0)
+                continue;
+
+            int batchSize = notary.getBatchSize();
+
+            List<Job> ready = new ArrayList<>();
+            for (Job job : mStore.getDue(entry.getKey(), now, free * batchSize + mRunning.size())) {
+                if (!mRunning.contains(job.mId))
+                    ready.add(job);
+            }
+
+            while (free > 0 && !ready.isEmpty()) {
+                int count = Math.min(batchSize, ready.size());
+
+                if (count < batchSize) {
+                    //give the oldest job's window a chance to fill the batch
+                    long windowEnd = ready.get(0).mNextAttempt + notary.getBatchWindowMs();
+                    if (windowEnd > now) {
+                        wakeAt = wakeAt < 0 ? windowEnd : Math.min(wakeAt, windowEnd);
+                        break;
+                    }
+                }
+
+                final List<Job> batch = new ArrayList<>(ready.subList(0, count));
+                ready.subList(0, count).clear();
+
+                notary.mRunning++;
+                free--;
+                for (Job job : batch)
+                    mRunning.add(job.mId);
+
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(batch, notary);
+                    }
+                });
+            }
+        }
+
+        if (mWakeup != null)
+            mWakeup.cancel(false);
+        mWakeup = null;
+
+        if (wakeAt > 0) {
+            mWakeup = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, Math.max(0, wakeAt - now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run one request for the jobs, waiting for the provider's callbacks. Runs on a worker thread.
+     */
+    private void attempt (List<Job> jobs, Notary notary)
+    {
+        final int count = jobs.size();
+        long start = ProofMetrics.start();
+
+        final CountDownLatch done = new CountDownLatch(count);
+        final String[] results = new String[count];
+        final String[] errors = new String[count];
+
+        List<NotarizationListener> listeners = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            listeners.add(new NotarizationListener() {
+                @Override
+                public void notarizationSuccessful(String resultData) {
+                    results[index] = resultData;
+                    done.countDown();
+                }
+
+                @Override
+                public void notarizationFailed(int errCode, String message) {
+                    errors[index] = errCode + ": " + message;
+                    done.countDown();
+                }
+            });
+        }
+
+        String error = "timed out";
+
+        try {
+            if (count == 1) {
+                notary.mProvider.notarize(jobs.get(0).mHash, null, listeners.get(0));
+            }
+            else {
+                List<String> hashes = new ArrayList<>(count);
+                for (Job job : jobs)
+                    hashes.add(job.mHash);
+                ((BatchNotarizationProvider) notary.mProvider).notarize(hashes, listeners);
+            }
+
+            done.await(ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            error = "interrupted";
+        }
+        catch (RuntimeException re)
+        {
+            error = re.toString();
+        }
+
+        long durationUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+        for (int i = 0; i < count; i++)
+            finish(jobs.get(i), results[i], errors[i] != null ? errors[i] : error, durationUs);
+
+        synchronized (this) {
+            //stop() already forgot what was running
+            boolean running = false;
+            for (Job job : jobs)
+                running |= mRunning.remove(job.mId);
+            if (running)
+                notary.mRunning--;
+        }
+
+        ProofMetrics.getInstance().setQueueDepth(ProofMetrics.QUEUE_NOTARIZE, mStore.count());
+        dispatchSoon();
+    }
+
+    /**
+     * Hand a result to the handler, or schedule a retry
+     */
+    private void finish (Job job, String result, String error, long durationUs)
+    {
+        ProofMetrics metrics = ProofMetrics.getInstance();
+        Uri uriMedia = job.getUri();
+
+        metrics.record(uriMedia, ProofMetrics.notarizeStage(job.mNotary), durationUs);
+
+        ResultHandler handler = mResultHandler;
+
+        if (result != null) {
+            Timber.d("notarized %s with %s", job.mHash, job.mNotary);
+
+            try {
+                if (handler != null)
+                    handler.onNotarized(job, result);
+            }
+            catch (RuntimeException re)
+            {
+                Timber.w(re, "unable to save notarization of %s", job.mHash);
+            }
+
+            mStore.remove(job.mId);
+            return;
+        }
+
+        metrics.increment(uriMedia, ProofMetrics.notarizeFailedCounter(job.mNotary));
+
+        int attempts = job.mAttempts + 1;
+
+        if (attempts >= MAX_ATTEMPTS) {
+            Timber.w("giving up notarizing %s with %s after %d attempts: %s", job.mHash, job.mNotary, attempts, error);
+            mStore.remove(job.mId);
+
+            if (handler != null)
+                handler.onGaveUp(job, error);
+        }
+        else {
+            long backoff = getBackoff(attempts);
+            Timber.d("notarizing %s with %s failed (%s), retrying in %d s", job.mHash, job.mNotary, error, backoff / 1000);
+            mStore.retryLater(job.mId, attempts, System.currentTimeMillis() + backoff, error);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, so jobs that failed together don't all retry together
+     */
+    long getBackoff (int attempts)
+    {
+        long backoff = mBackoffBaseMs << Math.min(attempts - 1, 20);
+        backoff = Math.min(backoff, mBackoffMaxMs);
+
+        synchronized (mRandom) {
+            return backoff - backoff / 5 + (long) (mRandom.nextDouble() * backoff * 2 / 5);
+        }
+    }
+
+    private boolean isOnline ()
+    {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null)
+            return false;
+
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnected();
+    }
+
+    private void listenForConnectivity ()
+    {
+        ConnectivityManager connMgr = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connMgr == null)
+            return;
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    dispatchSoon();
+                }
+            };
+
+            try {
+                connMgr.registerNetworkCallback(new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), mNetworkCallback);
+            }
+            catch (RuntimeException re)
+            {
+                Timber.d(re, "unable to listen for network changes");
+                mNetworkCallback = null;
+            }
+        }
+        else
+        {
+            mConnectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false))
+                        dispatchSoon();
+                }
+            };
+            mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    private static class Notary {
+
+        final NotarizationProvider mProvider;
+        final int mMaxConcurrent;
+        int mRunning = 0;
+
+        Notary (NotarizationProvider provider, int maxConcurrent)
+        {
+            mProvider = provider;
+            mMaxConcurrent = maxConcurrent;
+        }
+
+        int getBatchSize ()
+        {
+            if (mProvider instanceof BatchNotarizationProvider)
+                return Math.max(1, ((BatchNotarizationProvider) mProvider).getMaxBatchSize());
+            return 1;
+        }
+
+        long getBatchWindowMs ()
+        {
+            if (mProvider instanceof BatchNotarizationProvider)
+                return ((BatchNotarizationProvider) mProvider).getBatchWindowMs();
+            return 0;
+        }
+    }
+
+    /**
+     * A queued request to notarize one hash with one notary
+     */
+    public static class Job {
+
+        private final long mId;
+        private final String mHash;
+        private final String mUri;
+        private final String mNotary;
+        private final int mAttempts;
+        private final long mNextAttempt;
+        private final long mCreated;
+
+        Job (long id, String hash, String uri, String notary, int attempts, long nextAttempt, long created)
+        {
+            mId = id;
+            mHash = hash;
+            mUri = uri;
+            mNotary = notary;
+            mAttempts = attempts;
+            mNextAttempt = nextAttempt;
+            mCreated = created;
+        }
+
+        public String getHash ()
+        {
+            return mHash;
+        }
+
+        /**
+         * @return the media the hash was made from, or null if it wasn't recorded
+         */
+        public Uri getUri ()
+        {
+            return mUri == null ? null : Uri.parse(mUri);
+        }
+
+        public String getNotary ()
+        {
+            return mNotary;
+        }
+
+        /**
+         * @return the number of failed attempts so far
+         */
+        public int getAttempts ()
+        {
+            return mAttempts;
+        }
+
+        /**
+         * @return when the job is due, in ms since the epoch
+         */
+        public long getNextAttempt ()
+        {
+            return mNextAttempt;
+        }
+
+        /**
+         * @return when the job was queued, in ms since the epoch
+         */
+        public long getCreated ()
+        {
+            return mCreated;
+        }
+    }
+}
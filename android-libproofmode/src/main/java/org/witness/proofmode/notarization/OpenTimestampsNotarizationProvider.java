@@ -13,15 +13,46 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by n8fr8 on 3/14/18.
+ *
+ * Batches of hashes are stamped with a single calendar request: the library adds a nonce to
+ * each hash, builds a Merkle tree over them and submits only the root. Each hash's .ots file
+ * holds its own path up to that root, so it still verifies on its own.
  */
 
-public class OpenTimestampsNotarizationProvider implements NotarizationProvider {
+public class OpenTimestampsNotarizationProvider implements BatchNotarizationProvider {
 
     private final static String ALGO = "SHA256";
 
+    public final static int DEFAULT_MAX_BATCH_SIZE = 256;
+    public final static long DEFAULT_BATCH_WINDOW_MS = 3 * 1000;
+
+    private final List<String> mCalendarUrls;
+
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long mBatchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+
+    /**
+     * Stamp with the library's default public calendars
+     */
+    public OpenTimestampsNotarizationProvider ()
+    {
+        this(null);
+    }
+
+    /**
+     * @param calendarUrls the calendar servers to stamp with, e.g. a local stand-in server for
+     *                     testing; null for the default public calendars
+     */
+    public OpenTimestampsNotarizationProvider (List<String> calendarUrls)
+    {
+        mCalendarUrls = calendarUrls;
+    }
+
     @Override
     public void notarize(String mediaHash, InputStream is, NotarizationListener listener) {
 
@@ -29,7 +60,7 @@ public class OpenTimestampsNotarizationProvider implements NotarizationProvider
             Hash hash = new Hash(Utils.hexToBytes(mediaHash), ALGO);
 
             DetachedTimestampFile detached = DetachedTimestampFile.from(hash);
-            Timestamp stampResult = OpenTimestamps.stamp(detached,null,0, null);
+            Timestamp stampResult = OpenTimestamps.stamp(detached, mCalendarUrls, 0, null);
             DetachedTimestampFile detachedToSerialize = new DetachedTimestampFile(hash.getOp(), stampResult);
 
             String result = new String(Base64.encode(detachedToSerialize.serialize(),Base64.DEFAULT));
@@ -43,6 +74,51 @@ public class OpenTimestampsNotarizationProvider implements NotarizationProvider
         }
     }
 
+    /**
+     * @param maxBatchSize the most hashes per calendar request; 1 stamps every hash on its own
+     * @param windowMs how long to wait for more hashes before stamping a partial batch
+     */
+    public void setBatching (int maxBatchSize, long windowMs)
+    {
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mBatchWindowMs = Math.max(0, windowMs);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    @Override
+    public long getBatchWindowMs() {
+        return mBatchWindowMs;
+    }
+
+    @Override
+    public void notarize(List<String> mediaHashes, List<NotarizationListener> listeners) {
+
+        List<DetachedTimestampFile> detached = new ArrayList<>(mediaHashes.size());
+
+        for (String mediaHash : mediaHashes)
+            detached.add(DetachedTimestampFile.from(new Hash(Utils.hexToBytes(mediaHash), ALGO)));
+
+        try {
+            //stamps the root of the tree, and leaves each file's timestamp with its path to it
+            OpenTimestamps.stamp(detached, mCalendarUrls, 0, null);
+        }
+        catch (IOException ioe)
+        {
+            for (NotarizationListener listener : listeners)
+                listener.notarizationFailed(-1,ioe.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < detached.size(); i++) {
+            String result = new String(Base64.encode(detached.get(i).serialize(),Base64.DEFAULT));
+            listeners.get(i).notarizationSuccessful(result);
+        }
+    }
+
     @Override
     public String getProof(String hash) throws IOException {
         return null;
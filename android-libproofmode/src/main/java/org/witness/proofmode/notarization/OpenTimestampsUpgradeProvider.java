@@ -0,0 +1,314 @@
+package org.witness.proofmode.notarization;
+
+import android.util.Base64;
+
+import com.eternitywall.ots.Calendar;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.Hash;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.VerifyResult;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+
+import org.witness.proofmode.storage.ProofStorage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Upgrades the pending calendar attestations in .ots files to complete Bitcoin attestations,
+ * once the calendars have anchored them in a block.
+ *
+ * Run through {@link NotarizationQueue}: a job succeeds with the upgraded .ots (Base64, as
+ * from {@link OpenTimestampsNotarizationProvider}) and fails with {@link #ERROR_PENDING} while
+ * the calendars have nothing new, so the queue retries it with backoff. Hashes stamped in the
+ * same batch share their calendar commitments, so each commitment is asked for once per
+ * batch, with at least {@link #MIN_REQUEST_INTERVAL_MS} between calendar requests.
+ *
+ * The .ots files are only read here; writing the upgraded file is up to the result handler.
+ */
+public class OpenTimestampsUpgradeProvider implements BatchNotarizationProvider {
+
+    public final static int ERROR_PENDING = -2;
+    public final static int ERROR_UNREADABLE = -3;
+
+    public final static int DEFAULT_MAX_BATCH_SIZE = 32;
+    public final static long DEFAULT_BATCH_WINDOW_MS = 10 * 1000;
+
+    public final static long MIN_REQUEST_INTERVAL_MS = 500;
+
+    private final static String ALGO = "SHA256";
+    private final static String OTS_FILE_TAG = ".ots";
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ProofStorage mStorage;
+    private final List<String> mCalendarUrls;
+
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long mBatchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+
+    private long mLastRequest = 0;
+
+    /**
+     * @param calendarUrls the calendars we may ask for upgrades, e.g. a local mock calendar for
+     *                     testing; null to ask whichever calendar each attestation names
+     */
+    public OpenTimestampsUpgradeProvider (ProofStorage storage, List<String> calendarUrls)
+    {
+        mStorage = storage;
+        mCalendarUrls = calendarUrls;
+    }
+
+    public void setBatching (int maxBatchSize, long windowMs)
+    {
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mBatchWindowMs = Math.max(0, windowMs);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    @Override
+    public long getBatchWindowMs() {
+        return mBatchWindowMs;
+    }
+
+    @Override
+    public void notarize(String hash, InputStream is, NotarizationListener listener) {
+        notarize(Collections.singletonList(hash), Collections.singletonList(listener));
+    }
+
+    @Override
+    public void notarize(List<String> hashes, List<NotarizationListener> listeners) {
+
+        DetachedTimestampFile[] files = new DetachedTimestampFile[hashes.size()];
+        boolean[] complete = new boolean[files.length];
+
+        //pending attestations by calendar and commitment, with every timestamp waiting on them
+        //and the files those belong to
+        Map<String, List<Timestamp>> pending = new LinkedHashMap<>();
+        Map<String, List<Integer>> owners = new HashMap<>();
+
+        for (int i = 0; i < files.length; i++) {
+            try {
+                files[i] = DetachedTimestampFile.deserialize(readFile(getOtsFile(hashes.get(i))));
+            }
+            catch (Exception e)
+            {
+                listeners.get(i).notarizationFailed(ERROR_UNREADABLE, "unable to read .ots: " + e);
+                continue;
+            }
+
+            complete[i] = getBitcoinHeight(files[i].getTimestamp()) >= 0;
+            if (complete[i])
+                continue;
+
+            for (Timestamp subStamp : files[i].getTimestamp().directlyVerified()) {
+                for (TimeAttestation attestation : subStamp.attestations) {
+                    if (!(attestation instanceof PendingAttestation))
+                        continue;
+
+                    String calendarUrl = new String(((PendingAttestation) attestation).getUri(), UTF_8);
+                    if (mCalendarUrls != null && !mCalendarUrls.contains(calendarUrl))
+                        continue;
+
+                    String key = calendarUrl + ' ' + Utils.bytesToHex(subStamp.msg);
+                    List<Timestamp> waiting = pending.get(key);
+                    if (waiting == null) {
+                        waiting = new ArrayList<>();
+                        pending.put(key, waiting);
+                        owners.put(key, new ArrayList<Integer>());
+                    }
+                    waiting.add(subStamp);
+                    owners.get(key).add(i);
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Timestamp>> entry : pending.entrySet()) {
+            String calendarUrl = entry.getKey().substring(0, entry.getKey().indexOf(' '));
+            List<Timestamp> waiting = entry.getValue();
+
+            //one Bitcoin attestation is enough; skip other calendars' commitments once there is one
+            boolean needed = false;
+            for (int owner : owners.get(entry.getKey()))
+                needed |= !complete[owner];
+            if (!needed)
+                continue;
+
+            Timestamp upgraded;
+
+            try {
+                throttle();
+                upgraded = new Calendar(calendarUrl).getTimestamp(waiting.get(0).msg);
+            }
+            catch (Exception e)
+            {
+                //not anchored yet, or the calendar is unreachable; either way, ask again later
+                Timber.d("no upgrade from %s: %s", calendarUrl, e);
+                continue;
+            }
+
+            if (upgraded == null)
+                continue;
+
+            for (Timestamp subStamp : waiting) {
+                try {
+                    subStamp.merge(upgraded);
+                }
+                catch (Exception e)
+                {
+                    Timber.w(e, "unable to merge upgrade from %s", calendarUrl);
+                }
+            }
+
+            for (int owner : owners.get(entry.getKey()))
+                complete[owner] = getBitcoinHeight(files[owner].getTimestamp()) >= 0;
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] == null)
+                continue;
+
+            if (!complete[i]) {
+                listeners.get(i).notarizationFailed(ERROR_PENDING, "waiting for a Bitcoin attestation");
+                continue;
+            }
+
+            try {
+                listeners.get(i).notarizationSuccessful(new String(Base64.encode(files[i].serialize(), Base64.DEFAULT)));
+            }
+            catch (Exception e)
+            {
+                listeners.get(i).notarizationFailed(ERROR_UNREADABLE, "unable to write .ots: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the .ots as stored, Base64 encoded
+     */
+    @Override
+    public String getProof(String hash) throws IOException {
+        File fileOts = getOtsFile(hash);
+        if (!fileOts.exists())
+            return null;
+
+        return new String(Base64.encode(readFile(fileOts), Base64.DEFAULT));
+    }
+
+    private File getOtsFile (String hash)
+    {
+        return new File(mStorage.getDir(hash), hash + OTS_FILE_TAG);
+    }
+
+    private synchronized void throttle () throws InterruptedException
+    {
+        long wait = mLastRequest + MIN_REQUEST_INTERVAL_MS - System.currentTimeMillis();
+        if (wait > 0)
+            Thread.sleep(wait);
+        mLastRequest = System.currentTimeMillis();
+    }
+
+    private static byte[] readFile (File file) throws IOException
+    {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0)
+                    throw new IOException("short read of " + file);
+                read += count;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    /**
+     * @return the lowest Bitcoin block height attesting the timestamp, or -1 if it has none yet
+     */
+    public static long getBitcoinHeight (Timestamp timestamp)
+    {
+        long height = -1;
+
+        for (Timestamp subStamp : timestamp.directlyVerified()) {
+            for (TimeAttestation attestation : subStamp.attestations) {
+                if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                    long attested = ((BitcoinBlockHeaderAttestation) attestation).getHeight();
+                    if (height < 0 || attested < height)
+                        height = attested;
+                }
+            }
+        }
+
+        return height;
+    }
+
+    /**
+     * @return the lowest Bitcoin block height attesting the serialized .ots, or -1 if it has none
+     * or can't be read
+     */
+    public static long getBitcoinHeight (byte[] ots)
+    {
+        try {
+            return getBitcoinHeight(DetachedTimestampFile.deserialize(ots).getTimestamp());
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Verify an upgraded .ots for the hash against the Bitcoin block headers
+     *
+     * @return the time the block was mined, in seconds since the epoch, or -1 if it can't be
+     * verified (now), e.g. it has no Bitcoin attestation or the block header can't be fetched
+     */
+    public static long getBitcoinTime (String hash, byte[] ots)
+    {
+        try {
+            DetachedTimestampFile detached = DetachedTimestampFile.from(new Hash(Utils.hexToBytes(hash), ALGO));
+
+            //one result for each chain the .ots has a verified attestation on
+            Map<VerifyResult.Chains, VerifyResult> results = OpenTimestamps.verify(DetachedTimestampFile.deserialize(ots), detached);
+            if (results == null)
+                return -1;
+
+            VerifyResult bitcoin = results.get(VerifyResult.Chains.BITCOIN);
+            if (bitcoin == null || bitcoin.timestamp == null || bitcoin.timestamp <= 0)
+                return -1;
+
+            return bitcoin.timestamp;
+        }
+        catch (Exception e)
+        {
+            Timber.d("unable to verify .ots for %s: %s", hash, e);
+            return -1;
+        }
+    }
+}
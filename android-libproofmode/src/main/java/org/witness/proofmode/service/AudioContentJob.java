@@ -17,8 +17,6 @@ import android.provider.MediaStore;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import timber.log.Timber;
 
@@ -67,8 +65,6 @@ public class AudioContentJob extends JobService {
         return true;
     }
 
-    private HashMap<Uri,String> mUriStack = new HashMap<>();
-
     private void doWork ()
     {
 
@@ -76,45 +72,32 @@ public class AudioContentJob extends JobService {
 
             if (mRunningParams.getTriggeredContentUris() != null) {
 
-                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
-
-                    mUriStack.put(uri,uri.toString());
+                MediaWatcher watcher = MediaWatcher.getInstance(AudioContentJob.this);
 
+                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
+                    watcher.onMediaChanged(uri);
                 }
 
-                processMedia();
-
             } else {
                 // We don't have any details about URIs (because too many changed at once),
                 // so just note that we need to do a full rescan.
 
-                Timber.w("rescan is needed since many photos changed at once");
-          //      Toast.makeText(this,"Rescan is needed!",Toast.LENGTH_SHORT).show();
+                Timber.w("rescan is needed since many audio files changed at once");
+                getRescanner(this).requestRescan();
 
 
             }
 
         }
 
-
+        //picks up where the last run stopped, if it hasn't caught up yet
+        getRescanner(this).resumeIfPending();
     }
 
-    private void processMedia ()
+    static MediaStoreRescanner getRescanner (Context context)
     {
-        Timer t = new Timer();
-        t.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ArrayList<Uri> uris = new ArrayList<>(mUriStack.keySet());
-
-                for (Uri uri : uris) {
-                    MediaWatcher.getInstance(AudioContentJob.this).processUri(uri);
-                    mUriStack.remove(uri);
-                }
-
-            }
-        }, MediaWatcher.PROOF_GENERATION_DELAY_TIME_MS);
-
+        return new MediaStoreRescanner(context, "audio",
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MediaStore.Audio.Media.INTERNAL_CONTENT_URI);
     }
 
     @Override
@@ -140,6 +123,8 @@ public class AudioContentJob extends JobService {
         // Get all media changes within a tenth of a second.
         builder.setTriggerContentUpdateDelay(1);
         builder.setTriggerContentMaxDelay(100);
+
+        getRescanner(context).initMarks();
         
         js.schedule(builder.build());
     }
@@ -0,0 +1,745 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.system.Os;
+import android.webkit.MimeTypeMap;
+
+import org.witness.proofmode.ProofMode;
+import org.witness.proofmode.crypto.ChunkedDigest;
+import org.witness.proofmode.crypto.HashUtils;
+import org.witness.proofmode.crypto.MediaDigestSession;
+import org.witness.proofmode.crypto.PgpUtils;
+import org.witness.proofmode.storage.MediaIdentity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Hashes audio and video while it is still being recorded, so proof for a long recording
+ * doesn't wait minutes for the whole file to be read after it is closed.
+ *
+ * A file is followed from its CREATE event: each MODIFY schedules a catch-up read from where
+ * the digest (and media signature) left off to the current end of the file, and CLOSE_WRITE
+ * finishes it. Recorders often patch container headers in place when they stop, which a
+ * sequential digest can't take back, so a SHA-256 of every block is kept as it is hashed.
+ * When an MP4 or WAV file is closed only the blocks recorders rewrite are read again and
+ * checked against them: the start of the file, what was hashed last, and every box or chunk
+ * except the media data itself, which is only ever appended. Other containers (Matroska,
+ * Ogg, MPEG-TS...) may be patched anywhere, so all of their blocks are checked. If any block
+ * changed, the file doesn't parse, or it shrank, it is hashed again from the start.
+ *
+ * When chunked hashing is turned on the chunks are hashed from the same reads, so the proof
+ * doesn't have to read the recording again for them.
+ *
+ * Proof generation collects the finished digest with {@link #take(MediaIdentity)}, which only
+ * returns it while the file is unchanged since.
+ */
+public class GrowingMediaHasher {
+
+    public interface Listener {
+
+        /**
+         * The file was closed and its digest is ready to {@link #take(MediaIdentity)}
+         */
+        void onHashed (File file);
+    }
+
+    //concurrent recordings followed at once; more are hashed after they are closed, as before
+    private final static int MAX_TRACKED = 4;
+
+    //finished digests waiting for proof generation
+    private final static int MAX_FINISHED = 16;
+
+    //writes come in many small pieces, so read what they add up to at most this often
+    private final static long CATCH_UP_INTERVAL_MS = 1000;
+
+    //files not written for this long were abandoned by their writer (or it was killed)
+    private final static long MAX_IDLE_MS = 10 * 60 * 1000;
+
+    private final static int READ_SIZE = 1024 * 64;
+
+    //one SHA-256 kept per block, about 128 bytes a megabyte
+    private final static int CHECK_BLOCK_SIZE = 1024 * 256;
+
+    //how much of the start and of the last hashed data is always checked at close
+    private final static long HEAD_CHECK_SIZE = 1024 * 1024;
+    private final static long TAIL_CHECK_SIZE = 1024 * 1024;
+
+    private final static int BOX_FTYP = 0x66747970;
+    private final static int BOX_MDAT = 0x6d646174;
+    private final static int CHUNK_RIFF = 0x52494646;
+    private final static int CHUNK_WAVE = 0x57415645;
+    private final static int CHUNK_DATA = 0x64617461;
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final long mCatchUpIntervalMs;
+
+    private ScheduledExecutorService mExec;
+
+    //only used on the hashing thread
+    private final byte[] mBuffer = new byte[READ_SIZE];
+
+    private final Map<String, Tracked> mTracked = new HashMap<>();
+
+    private final Map<String, Finished> mFinished = new LinkedHashMap<String, Finished>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Finished> eldest) {
+            return size() > MAX_FINISHED;
+        }
+    };
+
+    public GrowingMediaHasher (Context context, Listener listener)
+    {
+        this(context, listener, CATCH_UP_INTERVAL_MS);
+    }
+
+    GrowingMediaHasher (Context context, Listener listener, long catchUpIntervalMs)
+    {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mCatchUpIntervalMs = catchUpIntervalMs;
+    }
+
+    /**
+     * @return true for the audio and video files worth following while they are written
+     */
+    public static boolean isGrowingMedia (File file)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1)
+            return false;
+
+        String type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase());
+        return type != null && (type.startsWith("video/") || type.startsWith("audio/"));
+    }
+
+    /**
+     * Start following a newly created file; cheap enough to call from the file observer
+     */
+    public void onCreated (File file)
+    {
+        if (!isGrowingMedia(file))
+            return;
+
+        synchronized (mTracked) {
+            dropIdle();
+
+            if (mTracked.containsKey(file.getPath()) || mTracked.size() >= MAX_TRACKED)
+                return;
+
+            final Tracked tracked = new Tracked(file);
+            mTracked.put(file.getPath(), tracked);
+
+            getExec().execute(new Runnable() {
+                @Override
+                public void run() {
+                    open(tracked);
+                }
+            });
+        }
+    }
+
+    public void onModified (File file)
+    {
+        synchronized (mTracked) {
+            final Tracked tracked = mTracked.get(file.getPath());
+            if (tracked == null)
+                return;
+
+            tracked.mLastEvent = System.currentTimeMillis();
+
+            if (tracked.mScheduled)
+                return;
+
+            tracked.mScheduled = true;
+            getExec().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mTracked) {
+                        tracked.mScheduled = false;
+                    }
+                    catchUp(tracked);
+                }
+            }, mCatchUpIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Finish the digest of a file the writer closed, if it was followed
+     *
+     * @return true if the file was followed, and the listener will hear when it is hashed
+     */
+    public boolean onClosed (File file)
+    {
+        synchronized (mTracked) {
+            final Tracked tracked = mTracked.remove(file.getPath());
+            if (tracked == null)
+                return false;
+
+            getExec().execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(tracked);
+                }
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * Follow a file that was renamed; MediaStore writes new media under a pending name first
+     *
+     * @return true if the file was already hashed under its old name
+     */
+    public boolean onMovedTo (File file)
+    {
+        long inode = getInode(file);
+        if (inode == MediaIdentity.UNKNOWN)
+            return false;
+
+        synchronized (mTracked) {
+            for (Iterator<Map.Entry<String, Tracked>> it = mTracked.entrySet().iterator(); it.hasNext(); ) {
+                Tracked tracked = it.next().getValue();
+                if (tracked.mInode == inode) {
+                    it.remove();
+                    tracked.mFile = file;
+                    mTracked.put(file.getPath(), tracked);
+                    return false;
+                }
+            }
+        }
+
+        synchronized (mFinished) {
+            for (Finished finished : mFinished.values()) {
+                if (finished.mIdentity.getInode() == inode)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Collect the digest of a file hashed as it was written
+     *
+     * @return the digest, or null if the file wasn't followed or has changed since
+     */
+    public MediaDigestSession.Result take (MediaIdentity identity)
+    {
+        synchronized (mFinished) {
+            for (Iterator<Finished> it = mFinished.values().iterator(); it.hasNext(); ) {
+                Finished finished = it.next();
+                if (finished.matches(identity)) {
+                    it.remove();
+                    return finished.mResult;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public void stop ()
+    {
+        synchronized (mTracked) {
+            if (mExec != null) {
+                mExec.shutdownNow();
+                mExec = null;
+            }
+
+            for (Tracked tracked : mTracked.values())
+                tracked.close();
+            mTracked.clear();
+        }
+    }
+
+    /**
+     * Wait for the reads scheduled so far to run
+     */
+    void awaitIdle () throws Exception
+    {
+        getExec().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private ScheduledExecutorService getExec ()
+    {
+        synchronized (mTracked) {
+            if (mExec == null) {
+                mExec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "GrowingMediaHasher");
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+            }
+
+            return mExec;
+        }
+    }
+
+    private void dropIdle ()
+    {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Tracked> it = mTracked.values().iterator(); it.hasNext(); ) {
+            final Tracked tracked = it.next();
+            if (now - tracked.mLastEvent > MAX_IDLE_MS) {
+                it.remove();
+                getExec().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        tracked.release();
+                    }
+                });
+            }
+        }
+    }
+
+    private void untrack (Tracked tracked)
+    {
+        synchronized (mTracked) {
+            if (mTracked.get(tracked.mFile.getPath()) == tracked)
+                mTracked.remove(tracked.mFile.getPath());
+        }
+
+        tracked.release();
+    }
+
+    private void open (Tracked tracked)
+    {
+        try {
+            tracked.mIn = new FileInputStream(tracked.mFile);
+            tracked.mChannel = tracked.mIn.getChannel();
+            tracked.mInode = getInode(tracked.mFile);
+            tracked.mBlockDigest = HashUtils.takeSHA256();
+            tracked.mSession = createSession();
+        }
+        catch (Exception e)
+        {
+            Timber.d("unable to follow %s while it is written: %s", tracked.mFile, e);
+            untrack(tracked);
+        }
+    }
+
+    private MediaDigestSession createSession () throws Exception
+    {
+        MediaDigestSession session = new MediaDigestSession();
+        session.setSignatureGenerator(PgpUtils.getInstance(mContext).createSignatureGenerator(PgpUtils.DEFAULT_PASSWORD));
+
+        if (PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(ProofMode.PREF_OPTION_CHUNKED_HASH, ProofMode.PREF_OPTION_CHUNKED_HASH_DEFAULT))
+            session.setChunkedDigest(new ChunkedDigest());
+
+        return session;
+    }
+
+    private void catchUp (Tracked tracked)
+    {
+        if (tracked.mSession == null || tracked.mClosed)
+            return;
+
+        try {
+            readToEnd(tracked);
+        }
+        catch (Exception e)
+        {
+            Timber.d("stopped following %s: %s", tracked.mFile, e);
+            untrack(tracked);
+        }
+    }
+
+    private void finish (Tracked tracked)
+    {
+        if (tracked.mSession == null)
+            return;
+
+        try {
+            MediaIdentity before = MediaIdentity.fromFile(tracked.mFile);
+
+            long hashedBefore = readToEnd(tracked);
+            tracked.endBlock();
+
+            if (!isUnchanged(tracked, hashedBefore)) {
+                Timber.d("%s was rewritten in place, hashing it again", tracked.mFile);
+                tracked.reset(createSession());
+                readToEnd(tracked);
+            }
+
+            MediaDigestSession.Result result = tracked.mSession.finish();
+            tracked.mSession = null;
+            MediaIdentity after = MediaIdentity.fromFile(tracked.mFile);
+
+            //opened for writing again meanwhile; it will be hashed in full once it settles
+            if (!after.matches(before) || after.getSize() != result.getLength())
+                return;
+
+            synchronized (mFinished) {
+                mFinished.put(after.getKey(), new Finished(after, result));
+            }
+        }
+        catch (Exception e)
+        {
+            Timber.d("unable to finish hashing %s: %s", tracked.mFile, e);
+            return;
+        }
+        finally {
+            tracked.release();
+        }
+
+        mListener.onHashed(tracked.mFile);
+    }
+
+    /**
+     * @return the offset read from; everything before it was hashed earlier
+     */
+    private long readToEnd (Tracked tracked) throws IOException
+    {
+        if (tracked.mClosed)
+            throw new IOException("no longer followed");
+
+        long size = tracked.mChannel.size();
+
+        //truncated, so written again from the start
+        if (size < tracked.mOffset) {
+            try {
+                tracked.reset(createSession());
+            }
+            catch (Exception e)
+            {
+                throw new IOException("unable to restart digest", e);
+            }
+        }
+
+        long start = tracked.mOffset;
+        ByteBuffer buffer = ByteBuffer.wrap(mBuffer);
+
+        while (tracked.mOffset < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(mBuffer.length, size - tracked.mOffset));
+
+            int n = tracked.mChannel.read(buffer, tracked.mOffset);
+            if (n <= 0)
+                break;
+
+            tracked.update(mBuffer, n);
+        }
+
+        return start;
+    }
+
+    /**
+     * @return true if the blocks recorders rewrite, among those hashed before hashedBefore,
+     * still have the SHA-256 they had when hashed
+     */
+    private boolean isUnchanged (Tracked tracked, long hashedBefore) throws IOException
+    {
+        long size = tracked.mChannel.size();
+        if (size != tracked.mOffset)
+            return false;
+
+        List<long[]> regions = getRewrittenRegions(tracked.mChannel, size);
+        if (regions == null)
+            return false;
+
+        regions.add(new long[]{0, HEAD_CHECK_SIZE});
+        regions.add(new long[]{hashedBefore - TAIL_CHECK_SIZE, hashedBefore});
+
+        boolean[] checked = new boolean[tracked.mBlockHashes.size()];
+
+        for (long[] region : regions) {
+            long start = Math.max(0, region[0]);
+            long end = Math.min(region[1], hashedBefore);
+
+            for (long offset = start - start % CHECK_BLOCK_SIZE; offset < end; offset += CHECK_BLOCK_SIZE) {
+                int block = (int) (offset / CHECK_BLOCK_SIZE);
+                if (checked[block])
+                    continue;
+
+                checked[block] = true;
+                if (!isBlockUnchanged(tracked, block))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isBlockUnchanged (Tracked tracked, int block) throws IOException
+    {
+        long offset = (long) block * CHECK_BLOCK_SIZE;
+        long end = Math.min(offset + CHECK_BLOCK_SIZE, tracked.mOffset);
+
+        ByteBuffer buffer = ByteBuffer.wrap(mBuffer);
+        MessageDigest digest = tracked.mBlockDigest;
+        digest.reset();
+
+        while (offset < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(mBuffer.length, end - offset));
+
+            int n = tracked.mChannel.read(buffer, offset);
+            if (n <= 0)
+                return false;
+
+            digest.update(mBuffer, 0, n);
+            offset += n;
+        }
+
+        return MessageDigest.isEqual(digest.digest(), tracked.mBlockHashes.get(block));
+    }
+
+    /**
+     * @return the ranges of an MP4 or WAV file that aren't media data: every box or chunk, but
+     * only the header of mdat or data; the whole file for other formats, whose rewrites can't
+     * be told apart; or null if the file starts like MP4 or WAV but doesn't parse
+     */
+    private static List<long[]> getRewrittenRegions (FileChannel channel, long size) throws IOException
+    {
+        List<long[]> regions = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+
+        if (!readFully(channel, header, 0, 12)) {
+            regions.add(new long[]{0, size});
+            return regions;
+        }
+
+        if (header.getInt(4) == BOX_FTYP) {
+            long offset = 0;
+
+            while (offset < size) {
+                if (!readFully(channel, header, offset, 8))
+                    return null;
+
+                long boxSize = header.getInt(0) & 0xffffffffL;
+                int type = header.getInt(4);
+                int headerSize = 8;
+
+                //64 bit size after the type, or to the end of the file
+                if (boxSize == 1) {
+                    if (!readFully(channel, header, offset + 8, 8))
+                        return null;
+                    boxSize = header.getLong(0);
+                    headerSize = 16;
+                }
+                else if (boxSize == 0) {
+                    boxSize = size - offset;
+                }
+
+                if (boxSize < headerSize || boxSize > size - offset)
+                    return null;
+
+                regions.add(new long[]{offset, offset + (type == BOX_MDAT ? headerSize : boxSize)});
+                offset += boxSize;
+            }
+        }
+        else if (header.getInt(0) == CHUNK_RIFF && header.getInt(8) == CHUNK_WAVE) {
+            regions.add(new long[]{0, 12});
+            long offset = 12;
+
+            while (offset < size) {
+                if (!readFully(channel, header, offset, 8))
+                    return null;
+
+                int id = header.getInt(0);
+                long chunkSize = header.order(ByteOrder.LITTLE_ENDIAN).getInt(4) & 0xffffffffL;
+                header.order(ByteOrder.BIG_ENDIAN);
+
+                //chunks are padded to an even length
+                long end = offset + 8 + chunkSize + (chunkSize & 1);
+                if (end > size && offset + 8 + chunkSize != size)
+                    return null;
+
+                regions.add(new long[]{offset, id == CHUNK_DATA ? offset + 8 : end});
+                offset = end;
+            }
+        }
+        else {
+            regions.add(new long[]{0, size});
+        }
+
+        return regions;
+    }
+
+    private static boolean readFully (FileChannel channel, ByteBuffer buffer, long offset, int length) throws IOException
+    {
+        buffer.clear();
+        buffer.limit(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) <= 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    private static long getInode (File file)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                return Os.stat(file.getPath()).st_ino;
+            }
+            catch (Exception e)
+            {
+                //renames are not followed then
+            }
+        }
+
+        return MediaIdentity.UNKNOWN;
+    }
+
+    /**
+     * A file being followed. The stream, session and offsets are only used on the hashing thread.
+     */
+    private static class Tracked {
+
+        volatile File mFile;
+        volatile long mInode = MediaIdentity.UNKNOWN;
+        volatile long mLastEvent = System.currentTimeMillis();
+        boolean mScheduled = false;
+
+        FileInputStream mIn;
+        FileChannel mChannel;
+        MediaDigestSession mSession;
+        long mOffset = 0;
+        boolean mClosed = false;
+
+        //SHA-256 of each complete block hashed, and of the block in progress
+        final List<byte[]> mBlockHashes = new ArrayList<>();
+        MessageDigest mBlockDigest;
+        int mBlockFill = 0;
+
+        Tracked (File file)
+        {
+            mFile = file;
+        }
+
+        void update (byte[] buffer, int length)
+        {
+            mSession.update(buffer, 0, length);
+
+            int pos = 0;
+            while (pos < length) {
+                int n = Math.min(length - pos, CHECK_BLOCK_SIZE - mBlockFill);
+                mBlockDigest.update(buffer, pos, n);
+                mBlockFill += n;
+                pos += n;
+
+                if (mBlockFill == CHECK_BLOCK_SIZE)
+                    endBlock();
+            }
+
+            mOffset += length;
+        }
+
+        /**
+         * Keep the hash of the block in progress, once the file is complete
+         */
+        void endBlock ()
+        {
+            if (mBlockFill > 0) {
+                mBlockHashes.add(mBlockDigest.digest());
+                mBlockFill = 0;
+            }
+        }
+
+        void reset (MediaDigestSession session)
+        {
+            if (mSession != null)
+                mSession.cancel();
+
+            mSession = session;
+            mOffset = 0;
+            mBlockHashes.clear();
+            mBlockDigest.reset();
+            mBlockFill = 0;
+        }
+
+        /**
+         * Stop following the file and hand back its digests; only on the hashing thread
+         */
+        void release ()
+        {
+            close();
+
+            if (mSession != null) {
+                mSession.cancel();
+                mSession = null;
+            }
+
+            if (mBlockDigest != null) {
+                HashUtils.releaseSHA256(mBlockDigest);
+                mBlockDigest = null;
+            }
+        }
+
+        void close ()
+        {
+            mClosed = true;
+
+            try {
+                if (mIn != null)
+                    mIn.close();
+            }
+            catch (IOException ioe)
+            {
+                //already closed
+            }
+        }
+    }
+
+    private static class Finished {
+
+        final MediaIdentity mIdentity;
+        final MediaDigestSession.Result mResult;
+
+        Finished (MediaIdentity identity, MediaDigestSession.Result result)
+        {
+            mIdentity = identity;
+            mResult = result;
+        }
+
+        /**
+         * @return true for the same unchanged file, under its own name or one it was renamed to
+         */
+        boolean matches (MediaIdentity identity)
+        {
+            if (identity == null)
+                return false;
+
+            if (mIdentity.matches(identity))
+                return true;
+
+            return mIdentity.getInode() != MediaIdentity.UNKNOWN && mIdentity.getInode() == identity.getInode()
+                    && mIdentity.getSize() == identity.getSize() && mIdentity.getModified() == identity.getModified();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.witness.proofmode.storage.MediaIdentity;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Collects media change events from the file observer and the content jobs on a single
+ * scheduler thread, and hands each media item to proof generation once it has settled.
+ *
+ * Repeated events for the same uri push its deadline back, media whose size or modification
+ * time is still changing gets more time, and the same file reported both as a file:// path and
+ * a content:// uri (by its canonical identity) is only processed once.
+ */
+public class MediaEventCoalescer {
+
+    //how long to keep checking a file that is still being written before giving up waiting
+    private final static long MAX_SETTLE_TIME_MS = 5 * 60 * 1000;
+
+    //how long a file must stay unchanged to be considered complete
+    private final static long SETTLE_CHECK_MS = 2 * 1000;
+
+    //identities recently handed off, so the same file seen through another uri is skipped
+    private final static int MAX_RECENT = 256;
+
+    private final Context mContext;
+    private final MediaWatcher mWatcher;
+    private final long mDelayMs;
+
+    private final DelayQueue<PendingEvent> mQueue = new DelayQueue<>();
+    private final Map<String, PendingEvent> mPending = new HashMap<>();
+
+    private final Map<String, MediaIdentity> mRecent = new LinkedHashMap<String, MediaIdentity>(MAX_RECENT, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaIdentity> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    private Thread mScheduler;
+
+    public MediaEventCoalescer (Context context, MediaWatcher watcher, long delayMs)
+    {
+        mContext = context.getApplicationContext();
+        mWatcher = watcher;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * Note a change to the media at uri; cheap enough to call from the main thread
+     */
+    public void add (Uri uri)
+    {
+        add(uri, mDelayMs);
+    }
+
+    /**
+     * Note a change to the media at uri, to be handed off after delayMs rather than the usual
+     * delay, e.g. for media already known to be complete
+     */
+    public void add (Uri uri, long delayMs)
+    {
+        if (uri == null)
+            return;
+
+        String uriKey = uri.toString();
+        long deadline = System.currentTimeMillis() + delayMs;
+
+        synchronized (mPending) {
+            PendingEvent event = mPending.get(uriKey);
+
+            if (event != null) {
+                //still being written, so wait for it to go quiet again
+                mQueue.remove(event);
+                event.mDeadline = deadline;
+            }
+            else {
+                event = new PendingEvent(uri, deadline);
+                mPending.put(uriKey, event);
+            }
+
+            mQueue.put(event);
+            startScheduler();
+        }
+    }
+
+    public int getPendingCount ()
+    {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    private void startScheduler ()
+    {
+        if (mScheduler != null)
+            return;
+
+        mScheduler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted())
+                        onDeadline(mQueue.take());
+                }
+                catch (InterruptedException ie)
+                {
+                    Timber.d("media event scheduler stopped");
+                }
+            }
+        }, "MediaEventCoalescer");
+
+        mScheduler.setDaemon(true);
+        mScheduler.start();
+    }
+
+    public void stop ()
+    {
+        synchronized (mPending) {
+            if (mScheduler != null) {
+                mScheduler.interrupt();
+                mScheduler = null;
+            }
+        }
+    }
+
+    private void onDeadline (PendingEvent event)
+    {
+        MediaIdentity identity;
+
+        try {
+            identity = MediaIdentity.fromUri(mContext, event.mUri);
+        }
+        catch (RuntimeException re)
+        {
+            Timber.w(re, "unable to resolve media identity for %s", event.mUri);
+            identity = null;
+        }
+
+        long now = System.currentTimeMillis();
+        //without an identity there is nothing to compare, so go ahead once the delay is up
+        boolean changed = identity != null && !identity.matches(event.mLastSeen);
+
+        if (changed && now - event.mCreated < MAX_SETTLE_TIME_MS) {
+            //size or modification time moved (or we haven't looked yet), check again shortly
+            synchronized (mPending) {
+                if (mPending.get(event.mUri.toString()) != event || mQueue.contains(event))
+                    return; //a newer event already rescheduled it
+
+                event.mLastSeen = identity;
+                event.mDeadline = now + SETTLE_CHECK_MS;
+                mQueue.put(event);
+            }
+            return;
+        }
+
+        synchronized (mPending) {
+            if (mQueue.contains(event))
+                return; //a newer event pushed the deadline back while we were checking
+
+            mPending.remove(event.mUri.toString());
+
+            if (identity == null && "file".equals(event.mUri.getScheme()) && !new File(event.mUri.getPath()).exists())
+                return; //deleted or moved away before we got to it
+
+            if (identity != null) {
+                MediaIdentity recent = mRecent.get(identity.getKey());
+                if (identity.matches(recent)) {
+                    Timber.d("already queued %s as %s, skipping", identity.getKey(), event.mUri);
+                    return;
+                }
+                mRecent.put(identity.getKey(), identity);
+            }
+        }
+
+        //blocks while the proof engine is saturated, which holds back further events too
+        mWatcher.queueUri(event.mUri);
+    }
+
+    private static class PendingEvent implements Delayed {
+
+        final Uri mUri;
+        final long mCreated = System.currentTimeMillis();
+        volatile long mDeadline;
+        MediaIdentity mLastSeen;
+
+        PendingEvent (Uri uri, long deadline)
+        {
+            mUri = uri;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDeadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.witness.proofmode.service;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * One-off job that carries on a rescan which stopped at its per-run budget, so catching up
+ * doesn't wait for the next media change on a quiet device. Each interrupted run schedules
+ * the next, until every collection has caught up.
+ */
+@TargetApi(24)
+public class MediaRescanJob extends JobService {
+
+    public static int MEDIA_RESCAN_JOB = 10006;
+
+    //let the proof engine work through what the last run queued first
+    private final static long RESUME_DELAY_MS = 60 * 1000;
+    private final static long RESUME_DEADLINE_MS = 15 * 60 * 1000;
+
+    public static void scheduleJob (Context context)
+    {
+        JobScheduler js =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo.Builder builder = new JobInfo.Builder(
+                MEDIA_RESCAN_JOB,
+                new ComponentName(context, MediaRescanJob.class));
+        builder.setMinimumLatency(RESUME_DELAY_MS);
+        builder.setOverrideDeadline(RESUME_DEADLINE_MS);
+
+        //replaces any resume already scheduled, so there is only ever one
+        js.schedule(builder.build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Timber.d("Media rescan JOB STARTED!");
+
+        MediaStoreRescanner[] rescanners = {
+                PhotosContentJob.getRescanner(this),
+                VideosContentJob.getRescanner(this),
+                AudioContentJob.getRescanner(this)
+        };
+
+        final AtomicInteger running = new AtomicInteger(1);
+
+        Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                if (running.decrementAndGet() == 0)
+                    jobFinished(params, false);
+            }
+        };
+
+        for (MediaStoreRescanner rescanner : rescanners) {
+            running.incrementAndGet();
+            if (!rescanner.resumeIfPending(onDone))
+                onDone.run();
+        }
+
+        //keep the job, and so the process, alive until the pending rescans finish their run
+        return running.decrementAndGet() > 0;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
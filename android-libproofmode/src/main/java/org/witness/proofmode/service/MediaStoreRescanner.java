@@ -0,0 +1,310 @@
+package org.witness.proofmode.service;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+
+import org.witness.proofmode.storage.MediaHashIndex;
+import org.witness.proofmode.storage.MediaIdentity;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Catches up on media the content jobs were not told about, which happens when too many
+ * items change at once and JobScheduler drops the triggered uris (bulk imports, restores).
+ *
+ * Walks a MediaStore collection in pages ordered by DATE_ADDED and then DATE_MODIFIED,
+ * past a persisted high-water mark for each, and queues anything without a known hash for
+ * proof. Each run stops after {@link #MAX_ITEMS_PER_RUN} items or {@link #MAX_BYTES_PER_RUN}
+ * bytes and the next job run carries on from the saved marks.
+ */
+public class MediaStoreRescanner {
+
+    private final static String PREFS_NAME = "mediarescan";
+    private final static String PREF_PENDING = "pending.";
+    private final static String PREF_REQUESTS = "requests.";
+    private final static String PREF_MARK_TIME = "mark.time.";
+    private final static String PREF_MARK_ID = "mark.id.";
+
+    private final static int PAGE_SIZE = 100;
+    public final static int MAX_ITEMS_PER_RUN = 500;
+    public final static long MAX_BYTES_PER_RUN = 512L * 1024 * 1024;
+
+    private final static String[] PASS_COLUMNS = {MediaStore.MediaColumns.DATE_ADDED, MediaStore.MediaColumns.DATE_MODIFIED};
+
+    //one rescan at a time across all collections, so they don't compete for storage
+    private final static ExecutorService sExec = Executors.newSingleThreadExecutor();
+
+    //guards the request count and pending flag, which every rescanner of a tag shares
+    private final static Object sLock = new Object();
+
+    private final Context mContext;
+    private final String mTag;
+    private final Uri[] mCollections;
+    private final SharedPreferences mPrefs;
+
+    public MediaStoreRescanner (Context context, String tag, Uri... collections)
+    {
+        mContext = context.getApplicationContext();
+        mTag = tag;
+        mCollections = collections;
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Start the high-water marks at the current time if they don't exist yet, so a rescan only
+     * covers media added after proof generation was turned on
+     */
+    public void initMarks ()
+    {
+        long nowSeconds = System.currentTimeMillis() / 1000L;
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        for (Uri collection : mCollections) {
+            for (String column : PASS_COLUMNS) {
+                String key = getMarkKey(collection, column);
+                if (!mPrefs.contains(PREF_MARK_TIME + key)) {
+                    editor.putLong(PREF_MARK_TIME + key, nowSeconds);
+                    editor.putLong(PREF_MARK_ID + key, Long.MAX_VALUE);
+                }
+            }
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Note that changes were missed; the rescan runs now and on later job runs until it catches up
+     */
+    public void requestRescan ()
+    {
+        synchronized (sLock) {
+            long requests = mPrefs.getLong(PREF_REQUESTS + mTag, 0);
+            mPrefs.edit().putLong(PREF_REQUESTS + mTag, requests + 1).putBoolean(PREF_PENDING + mTag, true).apply();
+        }
+    }
+
+    public boolean isRescanPending ()
+    {
+        return mPrefs.getBoolean(PREF_PENDING + mTag, false);
+    }
+
+    /**
+     * Continue a pending rescan in the background
+     */
+    public void resumeIfPending ()
+    {
+        resumeIfPending(null);
+    }
+
+    /**
+     * Continue a pending rescan in the background. A run that stops before catching up
+     * schedules a {@link MediaRescanJob} to carry on, rather than waiting for the next change.
+     *
+     * @param onDone run once this run ends, if one was started
+     * @return true if a run was started
+     */
+    public boolean resumeIfPending (final Runnable onDone)
+    {
+        if (!isRescanPending())
+            return false;
+
+        sExec.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean complete = false;
+
+                try {
+                    long requests = getRequestCount();
+                    complete = rescan() && clearPending(requests);
+                }
+                catch (RuntimeException re)
+                {
+                    Timber.e(re, "error rescanning %s", mTag);
+                }
+                finally {
+                    if (!complete && Build.VERSION.SDK_INT >= 24)
+                        MediaRescanJob.scheduleJob(mContext);
+
+                    if (onDone != null)
+                        onDone.run();
+                }
+            }
+        });
+
+        return true;
+    }
+
+    private long getRequestCount ()
+    {
+        synchronized (sLock) {
+            return mPrefs.getLong(PREF_REQUESTS + mTag, 0);
+        }
+    }
+
+    /*
+     * the rescan is done only if nothing missed more changes while it ran; otherwise it stays
+     * pending for another run
+     */
+    private boolean clearPending (long requests)
+    {
+        synchronized (sLock) {
+            if (mPrefs.getLong(PREF_REQUESTS + mTag, 0) != requests) {
+                Timber.d("rescan of %s requested again while it ran", mTag);
+                return false;
+            }
+
+            mPrefs.edit().putBoolean(PREF_PENDING + mTag, false).apply();
+            return true;
+        }
+    }
+
+    /**
+     * Run one bounded pass over all collections
+     *
+     * @return true if everything up to now has been scanned, false if there is more left
+     */
+    boolean rescan ()
+    {
+        Budget budget = new Budget();
+
+        for (Uri collection : mCollections) {
+            for (String column : PASS_COLUMNS) {
+                if (!rescanCollection(collection, column, budget)) {
+                    Timber.d("rescan of %s paused after %d items, %d bytes", mTag, budget.mItems, budget.mBytes);
+                    return false;
+                }
+            }
+        }
+
+        Timber.d("rescan of %s complete, queued %d items", mTag, budget.mQueued);
+        return true;
+    }
+
+    private boolean rescanCollection (Uri collection, String column, Budget budget)
+    {
+        String key = getMarkKey(collection, column);
+        long markTime = mPrefs.getLong(PREF_MARK_TIME + key, 0);
+        long markId = mPrefs.getLong(PREF_MARK_ID + key, 0);
+
+        MediaHashIndex hashIndex = MediaHashIndex.getInstance(mContext);
+        MediaWatcher watcher = MediaWatcher.getInstance(mContext);
+
+        while (true) {
+            Cursor cursor = queryPage(collection, column, markTime, markId);
+            if (cursor == null)
+                return true;
+
+            int rows = 0;
+
+            try {
+                int colId = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+                int colTime = cursor.getColumnIndexOrThrow(column);
+                int colSize = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.SIZE);
+
+                while (cursor.moveToNext()) {
+
+                    if (budget.isSpent()) {
+                        saveMark(key, markTime, markId);
+                        return false;
+                    }
+
+                    rows++;
+                    markId = cursor.getLong(colId);
+                    markTime = cursor.getLong(colTime);
+                    budget.mItems++;
+
+                    Uri uri = ContentUris.withAppendedId(collection, markId);
+
+                    //anything we've hashed before is already proofed or being handled by the jobs
+                    MediaIdentity identity = MediaIdentity.fromUri(mContext, uri);
+                    if (identity != null && hashIndex.getHash(identity) != null)
+                        continue;
+
+                    budget.mBytes += cursor.getLong(colSize);
+                    budget.mQueued++;
+
+                    //blocks while the proof engine is saturated
+                    watcher.queueUri(uri);
+                }
+            }
+            catch (IllegalArgumentException iae)
+            {
+                Timber.w(iae, "unable to rescan %s", collection);
+                return true;
+            }
+            finally {
+                cursor.close();
+            }
+
+            saveMark(key, markTime, markId);
+
+            if (rows < PAGE_SIZE)
+                return true;
+        }
+    }
+
+    /**
+     * Keyset paging: everything after (markTime, markId), so rows added while we scan
+     * don't shift the pages under us
+     */
+    private Cursor queryPage (Uri collection, String column, long markTime, long markId)
+    {
+        String[] projection = {MediaStore.MediaColumns._ID, column, MediaStore.MediaColumns.SIZE};
+        String selection = "(" + column + " > ?) OR (" + column + " = ? AND " + MediaStore.MediaColumns._ID + " > ?)";
+        String[] selectionArgs = {String.valueOf(markTime), String.valueOf(markTime), String.valueOf(markId)};
+        String sortOrder = column + " ASC, " + MediaStore.MediaColumns._ID + " ASC";
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                //newer MediaStore versions reject LIMIT in the sort order
+                Bundle queryArgs = new Bundle();
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+                queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+                queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+                return mContext.getContentResolver().query(collection, projection, queryArgs, null);
+            }
+            else {
+                return mContext.getContentResolver().query(collection, projection, selection, selectionArgs,
+                        sortOrder + " LIMIT " + PAGE_SIZE);
+            }
+        }
+        catch (RuntimeException re)
+        {
+            Timber.w(re, "unable to query %s", collection);
+            return null;
+        }
+    }
+
+    private void saveMark (String key, long markTime, long markId)
+    {
+        mPrefs.edit().putLong(PREF_MARK_TIME + key, markTime).putLong(PREF_MARK_ID + key, markId).apply();
+    }
+
+    private String getMarkKey (Uri collection, String column)
+    {
+        return mTag + "." + column + "." + collection.toString();
+    }
+
+    private static class Budget {
+
+        int mItems;
+        int mQueued;
+        long mBytes;
+
+        boolean isSpent ()
+        {
+            return mItems >= MAX_ITEMS_PER_RUN || mBytes >= MAX_BYTES_PER_RUN;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.FileObserver;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.text.TextUtils;
@@ -28,14 +29,24 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 
 import org.witness.proofmode.ProofMode;
+import org.witness.proofmode.crypto.ChunkedDigest;
 import org.witness.proofmode.crypto.HashUtils;
+import org.witness.proofmode.crypto.MediaDigestSession;
 import org.witness.proofmode.crypto.PgpUtils;
+import org.witness.proofmode.library.R;
+import org.witness.proofmode.metrics.ProofMetrics;
 import org.witness.proofmode.notarization.GoogleSafetyNetNotarizationProvider;
-import org.witness.proofmode.notarization.NotarizationListener;
-import org.witness.proofmode.notarization.NotarizationProvider;
+import org.witness.proofmode.notarization.NotarizationQueue;
+import org.witness.proofmode.notarization.OpenTimestampsUpgradeProvider;
 import org.witness.proofmode.notarization.OpenTimestampsNotarizationProvider;
-import org.witness.proofmode.util.DeviceInfo;
-import org.witness.proofmode.util.GPSTracker;
+import org.witness.proofmode.storage.MediaHashIndex;
+import org.witness.proofmode.storage.MediaIdentity;
+import org.witness.proofmode.util.DeviceInfoCache;
+import org.witness.proofmode.storage.ProofLedger;
+import org.witness.proofmode.storage.ProofStorage;
+import org.witness.proofmode.util.ProofCsv;
+import org.witness.proofmode.util.ProofLocationProvider;
+import org.witness.proofmode.util.ProofRecord;
 import org.witness.proofmode.util.RecursiveFileObserver;
 import org.witness.proofmode.util.SafetyNetCheck;
 import org.witness.proofmode.util.SafetyNetResponse;
@@ -48,48 +59,129 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import timber.log.Timber;
 
+import static org.witness.proofmode.ProofMode.CHUNKS_FILE_TAG;
 import static org.witness.proofmode.ProofMode.GOOGLE_SAFETYNET_FILE_TAG;
 import static org.witness.proofmode.ProofMode.OPENPGP_FILE_TAG;
+import static org.witness.proofmode.ProofMode.OPENTIMESTAMPS_BITCOIN_TAG;
 import static org.witness.proofmode.ProofMode.OPENTIMESTAMPS_FILE_TAG;
 import static org.witness.proofmode.ProofMode.PREFS_DOPROOF;
 import static org.witness.proofmode.ProofMode.PROOF_FILE_TAG;
 
 public class MediaWatcher extends BroadcastReceiver {
 
-    private final static String PROOF_BASE_FOLDER = "proofmode/";
-
     private static boolean mStorageMounted = false;
     private SharedPreferences mPrefs;
 
     public final static int PROOF_GENERATION_DELAY_TIME_MS = 30 * 1000; // 30 seconds
+
+    //media hashed while it was written only has to settle, not wait out the full delay
+    private final static int HASHED_MEDIA_DELAY_TIME_MS = 1000;
     private static MediaWatcher mInstance;
 
-    private ExecutorService mExec = Executors.newFixedThreadPool(1);
+    private ProofEngine mEngine;
+    private MediaEventCoalescer mCoalescer;
+    private GrowingMediaHasher mGrowingHasher;
 
     private Context mContext = null;
 
+    private final static long OTS_UPGRADE_DELAY_MS = 2 * 60 * 60 * 1000;
+
+    //capture location futures by hash, for the notarized rows written later
+    private final static int MAX_CAPTURE_LOCATIONS = 256;
+    private final Map<String, Future<Location>> mCaptureLocations = Collections.synchronizedMap(
+            new LinkedHashMap<String, Future<Location>>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Future<Location>> eldest) {
+                    return size() > MAX_CAPTURE_LOCATIONS;
+                }
+            });
+
     private MediaWatcher (Context context) {
         if (mPrefs == null)
             mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         mContext = context;
 
+        mEngine = new ProofEngine(context, this);
+        mCoalescer = new MediaEventCoalescer(context, this, PROOF_GENERATION_DELAY_TIME_MS);
+        mGrowingHasher = new GrowingMediaHasher(context, new GrowingMediaHasher.Listener() {
+            @Override
+            public void onHashed(File file) {
+                mCoalescer.add(Uri.fromFile(file), HASHED_MEDIA_DELAY_TIME_MS);
+            }
+        });
+
+        updateDeviceInfoListeners();
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+
+        //the calendars can be set by the app, e.g. to its own servers; none means the public ones
+        List<String> calendarUrls = Arrays.asList(context.getResources().getStringArray(R.array.opentimestamps_calendars));
+        if (calendarUrls.isEmpty())
+            calendarUrls = null;
+
+        NotarizationQueue queue = NotarizationQueue.getInstance(context);
+        queue.register(ProofMetrics.NOTARY_SAFETYNET, new GoogleSafetyNetNotarizationProvider(context), 1);
+        queue.register(ProofMetrics.NOTARY_OPENTIMESTAMPS, new OpenTimestampsNotarizationProvider(calendarUrls), 2);
+        queue.register(ProofMetrics.NOTARY_OPENTIMESTAMPS_UPGRADE, new OpenTimestampsUpgradeProvider(ProofStorage.getInstance(context), calendarUrls), 1);
+        queue.setResultHandler(mNotarizationHandler);
+        queue.start();
+
+        //move proof folders still in the flat layout (lookups move the ones they need meanwhile),
+        //then pick up .ots files that still wait for a Bitcoin attestation
+        final ProofStorage storage = ProofStorage.getInstance(context);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!storage.isMigrated())
+                    storage.migrate();
+                queuePendingUpgrades();
+            }
+        }, "ProofStorageMaintenance").start();
+
+        //keep a location fix warm, so proof doesn't have to wait for one
+        if (mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT))
+            ProofLocationProvider.getInstance(context).start();
+
         startFileSystemMonitor();
     }
 
+    /**
+     * Queue an upgrade for every .ots in the ledger that has no Bitcoin attestation yet; ones
+     * already queued are not added twice
+     */
+    private void queuePendingUpgrades ()
+    {
+        if (!mPrefs.getBoolean(ProofMode.PREF_OPTION_NOTARY, ProofMode.PREF_OPTION_NOTARY_DEFAULT))
+            return;
+
+        List<String> pending = ProofLedger.getInstance(mContext).findByNotarization(
+                ProofLedger.NOTARIZED_OPENTIMESTAMPS, ProofLedger.NOTARIZED_BITCOIN);
+
+        NotarizationQueue queue = NotarizationQueue.getInstance(mContext);
+        for (String hash : pending)
+            queue.enqueue(hash, null, ProofMetrics.NOTARY_OPENTIMESTAMPS_UPGRADE);
+
+        if (!pending.isEmpty())
+            Timber.d("queued %d .ots files for upgrade", pending.size());
+    }
+
     public static synchronized MediaWatcher getInstance (Context context)
     {
         if (mInstance == null)
@@ -101,53 +193,237 @@ public class MediaWatcher extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, final Intent intent) {
 
-        mExec.submit(() -> {
+        if (intent.getAction() != null) {
+            if (intent.getAction().equals(Intent.ACTION_UMS_CONNECTED)) {
+                mStorageMounted = true;
+            } else if (intent.getAction().equals(Intent.ACTION_UMS_DISCONNECTED)) {
+                mStorageMounted = false;
+            }
+        }
 
-            boolean doProof = mPrefs.getBoolean(PREFS_DOPROOF, true);
+        boolean doProof = PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PREFS_DOPROOF, true);
 
-            if (doProof)
-                handleIntent(context, intent);
-        });
+        if (doProof && intent.getData() != null) {
+            //we are on the main thread, so don't wait for room in the queue
+            if (MediaWatcher.getInstance(context).getEngine().offer(intent.getData(), null, ProofEngine.PRIORITY_BACKGROUND) == null)
+                Timber.w("proof queue is full, dropping %s", intent.getData());
+        }
 
+    }
+
+    //keeps the device info listeners and the signing key in step with the proof settings; the
+    //prefs only hold a weak reference to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (ProofMode.PREF_OPTION_NETWORK.equals(key) || ProofMode.PREF_OPTION_LOCATION.equals(key))
+                updateDeviceInfoListeners();
+            else if (ProofMode.PREF_OPTION_ED25519_SIGNING.equals(key))
+                updateSigningKey(prefs.getBoolean(key, ProofMode.PREF_OPTION_ED25519_SIGNING_DEFAULT));
+        }
+    };
 
+    /*
+     * switch keys without a restart; adding the subkey writes and publishes the key rings
+     */
+    private void updateSigningKey (final boolean ed25519Signing)
+    {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PgpUtils.getInstance(mContext).setEd25519Signing(mContext, PgpUtils.DEFAULT_PASSWORD, ed25519Signing);
+            }
+        }, "ProofSigningKey").start();
     }
 
+    /*
+     * only listen for the network and cell changes that the proof settings write out; cells
+     * go into proof along with the location
+     */
+    private void updateDeviceInfoListeners ()
+    {
+        boolean showMobileNetwork = mPrefs.getBoolean(ProofMode.PREF_OPTION_NETWORK,ProofMode.PREF_OPTION_NETWORK_DEFAULT);
+        boolean showLocation = mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT);
+
+        DeviceInfoCache.getInstance(mContext).start(showMobileNetwork, showMobileNetwork && showLocation);
+    }
+
+    /**
+     * Writes the proof row for each notarization the queue completes
+     */
+    private final NotarizationQueue.ResultHandler mNotarizationHandler = new NotarizationQueue.ResultHandler() {
+
+        @Override
+        public void onNotarized(NotarizationQueue.Job job, String result) {
+
+            final boolean showDeviceIds = mPrefs.getBoolean(ProofMode.PREF_OPTION_PHONE,ProofMode.PREF_OPTION_PHONE_DEFAULT);
+            final boolean showLocation = mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT);
+            final boolean showMobileNetwork = mPrefs.getBoolean(ProofMode.PREF_OPTION_NETWORK,ProofMode.PREF_OPTION_NETWORK_DEFAULT);
+
+            String hash = job.getHash();
+            Uri uriMedia = job.getUri();
+            Future<Location> location = mCaptureLocations.get(hash);
+
+            if (ProofMetrics.NOTARY_SAFETYNET.equals(job.getNotary())) {
+
+                SafetyNetResponse resp = new GoogleSafetyNetNotarizationProvider(mContext).parseJsonWebSignature(result);
+                if (resp == null) {
+                    Timber.d("Got unreadable Google SafetyNet response for hash %s", hash);
+                    return;
+                }
+
+                String apkDigest = resp.getApkPackageName() + "=" + resp.getApkDigestSha256();
+                long timestamp = resp.getTimestampMs();
+                boolean isBasicIntegrity = resp.isBasicIntegrity();
+                boolean isCtsMatch = resp.isCtsProfileMatch();
+
+                writeProof(mContext, uriMedia, hash, null, location, showDeviceIds, showLocation, showMobileNetwork,
+                        apkDigest, isBasicIntegrity, isCtsMatch, timestamp, result, GOOGLE_SAFETYNET_FILE_TAG, GOOGLE_SAFETYNET_FILE_TAG, null);
+            }
+            else if (ProofMetrics.NOTARY_OPENTIMESTAMPS.equals(job.getNotary())) {
+
+                Timber.d("Got OpenTimestamps success response timestamp: %s", result);
+                writeProof(mContext, uriMedia, hash, null, location, showDeviceIds, showLocation, showMobileNetwork,
+                        null, false, false, new Date().getTime(), result, OPENTIMESTAMPS_FILE_TAG, OPENTIMESTAMPS_FILE_TAG, null);
+
+                //the calendars only anchor their commitments in Bitcoin every few hours
+                NotarizationQueue.getInstance(mContext).enqueue(hash, uriMedia, ProofMetrics.NOTARY_OPENTIMESTAMPS_UPGRADE, OTS_UPGRADE_DELAY_MS);
+            }
+            else if (ProofMetrics.NOTARY_OPENTIMESTAMPS_UPGRADE.equals(job.getNotary())) {
+
+                byte[] ots = Base64.decode(result, Base64.DEFAULT);
+
+                //the block time needs the block header, which we may not be able to get now
+                saveUpgradedTimestamp(hash, uriMedia, ots, OpenTimestampsUpgradeProvider.getBitcoinTime(hash, ots));
+            }
+        }
+
+        @Override
+        public void onGaveUp(NotarizationQueue.Job job, String error) {
+            Timber.d("Gave up notarizing hash %s with %s: %s", job.getHash(), job.getNotary(), error);
+        }
+    };
+
+    /**
+     * Save an .ots upgraded to a Bitcoin attestation over the stored one, then add a proof row
+     * with the block it is anchored in
+     *
+     * @param uriMedia the media the hash was made from, or null to take it from the earlier proof
+     * @param bitcoinTime when the block was mined, in seconds since the epoch, or -1 if unknown
+     * @return false if the upgraded .ots couldn't be saved
+     */
+    boolean saveUpgradedTimestamp (String hash, Uri uriMedia, byte[] ots, long bitcoinTime)
+    {
+        File fileFolder = getHashStorageDir(mContext, hash);
+        if (fileFolder == null)
+            return false;
 
-    public String processUri (Uri fileUri) {
         try {
-            Intent intent = new Intent();
-            intent.setData(fileUri);
-            return handleIntent(mContext, intent);
+            replaceFile(new File(fileFolder, hash + OPENTIMESTAMPS_FILE_TAG), ots);
         }
-        catch (RuntimeException re)
+        catch (IOException ioe)
         {
-            Timber.e(re,"RUNTIME EXCEPTION processing media file: " + re);
-            return null;
+            Timber.w(ioe, "unable to save upgraded .ots for hash %s", hash);
+            return false;
         }
-        catch (Error err)
-        {
-            Timber.e(err,"FATAL ERROR processing media file: " + err);
 
+        //upgrades queued at start don't know the media, but its first proof row does
+        if (uriMedia == null)
+            uriMedia = getMediaUri(hash);
+
+        if (uriMedia == null) {
+            Timber.w("no proof of hash %s to add the Bitcoin attestation to", hash);
+            return true;
+        }
+
+        boolean showDeviceIds = mPrefs.getBoolean(ProofMode.PREF_OPTION_PHONE,ProofMode.PREF_OPTION_PHONE_DEFAULT);
+        boolean showLocation = mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT);
+        boolean showMobileNetwork = mPrefs.getBoolean(ProofMode.PREF_OPTION_NETWORK,ProofMode.PREF_OPTION_NETWORK_DEFAULT);
+
+        Map<ProofRecord.Field, String> fields = new HashMap<>();
+        long height = OpenTimestampsUpgradeProvider.getBitcoinHeight(ots);
+        fields.put(ProofRecord.Field.OPENTIMESTAMPS_BITCOIN_HEIGHT, String.valueOf(height));
+
+        if (bitcoinTime > 0)
+            fields.put(ProofRecord.Field.OPENTIMESTAMPS_BITCOIN_TIME, DateFormat.getDateTimeInstance(DateFormat.FULL,DateFormat.FULL).format(new Date(bitcoinTime * 1000)));
+
+        Timber.d("Upgraded .ots for hash %s to Bitcoin block %d", hash, height);
+        writeProof(mContext, uriMedia, hash, null, mCaptureLocations.get(hash), showDeviceIds, showLocation, showMobileNetwork,
+                null, false, false, bitcoinTime > 0 ? bitcoinTime * 1000 : new Date().getTime(), null, OPENTIMESTAMPS_BITCOIN_TAG, OPENTIMESTAMPS_FILE_TAG, fields);
+
+        return true;
+    }
+
+    /*
+     * the media the ledger's first row for the hash was written for, or null if there is none
+     */
+    private Uri getMediaUri (String hash)
+    {
+        ProofLedger ledger = ProofLedger.getInstance(mContext);
+
+        for (ProofLedger.Entry entry : ledger.findByHash(hash)) {
+            try {
+                String path = ledger.readRecord(entry).get(ProofRecord.Field.FILE_PATH);
+                if (!TextUtils.isEmpty(path))
+                    return path.contains("://") ? Uri.parse(path) : Uri.fromFile(new File(path));
+            }
+            catch (IOException ioe)
+            {
+                Timber.d(ioe, "unable to read proof of hash %s", hash);
+            }
+        }
+
+        return null;
+    }
+
+    public ProofEngine getEngine ()
+    {
+        return mEngine;
+    }
+
+    /**
+     * Report a change to the media at uri; it is queued for proof once it has settled,
+     * merged with any other reports of the same media
+     */
+    public void onMediaChanged (Uri fileUri) {
+        mCoalescer.add(fileUri);
+    }
+
+    /**
+     * Queue the media for proof generation in the background, behind any user requests.
+     * Blocks the calling thread while the background queue is full.
+     */
+    public Future<String> queueUri (Uri fileUri) {
+        try {
+            return mEngine.submit(fileUri, null, ProofEngine.PRIORITY_BACKGROUND);
+        } catch (InterruptedException e) {
+            Timber.d("interrupted while queueing %s", fileUri);
             return null;
         }
     }
 
+
+    /**
+     * Generate proof for the media ahead of any background work and wait for the result
+     *
+     * @return the media hash, or null if no proof could be generated
+     */
+    public String processUri (Uri fileUri) {
+        return processUri(fileUri, null);
+    }
+
     public String processUri (Uri fileUri, String proofHash) {
         try {
-            Intent intent = new Intent();
-            intent.setData(fileUri);
-            intent.putExtra("hash",proofHash);
-            return handleIntent(mContext, intent);
+            return mEngine.submit(fileUri, proofHash, ProofEngine.PRIORITY_USER).get();
         }
-        catch (RuntimeException re)
+        catch (InterruptedException ie)
         {
-            Timber.e(re,"RUNTIME EXCEPTION processing media file: " + re);
+            Timber.d("interrupted waiting for proof of %s", fileUri);
             return null;
         }
-        catch (Error err)
+        catch (ExecutionException ee)
         {
-            Timber.e(err,"FATAL ERROR processing media file: " + err);
-
+            Timber.e(ee.getCause(),"error processing media file: " + fileUri);
             return null;
         }
     }
@@ -173,125 +449,292 @@ public class MediaWatcher extends BroadcastReceiver {
         if (tmpUriMedia == null) //still null?
             return null;
 
-        final Uri uriMedia = tmpUriMedia;
+        PreparedProof prepared = prepareProof(context, tmpUriMedia, intent.getStringExtra("hash"));
 
-        final boolean showDeviceIds = mPrefs.getBoolean(ProofMode.PREF_OPTION_PHONE,ProofMode.PREF_OPTION_PHONE_DEFAULT);
-        final boolean showLocation = mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT);
-        final boolean autoNotarize = mPrefs.getBoolean(ProofMode.PREF_OPTION_NOTARY, ProofMode.PREF_OPTION_NOTARY_DEFAULT);
-        final boolean showMobileNetwork = mPrefs.getBoolean(ProofMode.PREF_OPTION_NETWORK,ProofMode.PREF_OPTION_NETWORK_DEFAULT);
+        if (prepared == null)
+        {
+            Timber.d("Unable to access media files, no proof generated");
+            return null;
+        }
+
+        if (prepared.hasProof())
+            return prepared.getHash();
 
-        final String mediaHash;
+        return generateProof(context, prepared);
+    }
+
+    /**
+     * Outcome of the I/O stage of proof generation: the hash of the media, and if it doesn't
+     * have proof yet, its digest and pending signature
+     */
+    static class PreparedProof {
 
-        if (intent.hasExtra("hash"))
+        private final Uri mUri;
+        private final String mHash;
+        private final MediaDigestSession.Result mDigestResult;
+        private final ChunkedDigest.Result mChunks;
+        private final Future<Location> mLocation;
+
+        PreparedProof (Uri uri, String hash, MediaDigestSession.Result digestResult, ChunkedDigest.Result chunks, Future<Location> location)
         {
-            mediaHash = intent.getStringExtra("hash");
+            mUri = uri;
+            mHash = hash;
+            mDigestResult = digestResult;
+            mChunks = chunks;
+            mLocation = location;
         }
-        else {
-            try {
-                mediaHash = HashUtils.getSHA256FromFileContent(context.getContentResolver().openInputStream(uriMedia));
-            } catch (FileNotFoundException e) {
-                Timber.d( "FileNotFoundException: unable to open inputstream for hashing: %s", uriMedia);
-                return null;
-            } catch (IllegalStateException ise) {
-                Timber.d( "IllegalStateException: unable to open inputstream for hashing: %s", uriMedia);
-                return null;
-            } catch (SecurityException e) {
-                Timber.d( "SecurityException: security exception accessing URI: %s", uriMedia);
-                return null;
-            }
+
+        Uri getUri ()
+        {
+            return mUri;
         }
 
-        if (mediaHash != null) {
+        String getHash ()
+        {
+            return mHash;
+        }
+
+        boolean hasProof ()
+        {
+            return mDigestResult == null;
+        }
+    }
+
+    /**
+     * I/O stage: find the hash of the media, reading it only if it is not indexed or has no proof yet
+     *
+     * @return the prepared proof, or null if the media could not be read
+     */
+    PreparedProof prepareProof (final Context context, final Uri uriMedia, String knownHash) {
+
+        MediaHashIndex hashIndex = MediaHashIndex.getInstance(context);
+        MediaIdentity mediaIdentity = MediaIdentity.fromUri(context, uriMedia);
+
+        if (knownHash == null && mediaIdentity != null) {
+            knownHash = hashIndex.getHash(mediaIdentity);
+            if (knownHash != null)
+                ProofMetrics.getInstance().increment(uriMedia, ProofMetrics.COUNTER_HASH_INDEX_HIT);
+        }
 
+        if (knownHash != null)
+        {
             try {
-                if (proofExists(context,uriMedia,mediaHash))
-                    return mediaHash;
+                //we already know the hash, so we can skip reading the media if proof exists
+                if (proofExists(context,uriMedia,knownHash))
+                    return new PreparedProof(uriMedia, knownHash, null, null, null);
             } catch (FileNotFoundException e) {
                 //must not exist!
             }
+        }
 
-            Timber.d("Writing proof for hash %s for path %s",mediaHash, uriMedia);
+        //look for a location fix while we read the media, rather than after
+        Future<Location> location = requestLocation(context);
 
-            String notes = "";
+        //hashed while it was recorded, or else a single pass over the media for the hash, the
+        //media signature and, if turned on, the chunk hashes
+        MediaDigestSession.Result digestResult = mediaIdentity != null ? mGrowingHasher.take(mediaIdentity) : null;
+        if (digestResult != null)
+            ProofMetrics.getInstance().increment(uriMedia, ProofMetrics.COUNTER_HASHED_WHILE_WRITING);
+        else
+            digestResult = digestMedia(context, uriMedia);
 
-            try {
-                PackageInfo pInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-                String version = pInfo.versionName;
-                notes = "ProofMode v" + version;
-            } catch (PackageManager.NameNotFoundException e) {
-                e.printStackTrace();
-            }
+        if (digestResult == null)
+            return null;
+
+        final String mediaHash = digestResult.getHash();
+
+        if (mediaIdentity != null)
+            hashIndex.putHash(mediaIdentity, mediaHash);
+
+        try {
+            if (proofExists(context,uriMedia,mediaHash))
+                return new PreparedProof(uriMedia, mediaHash, null, null, null);
+        } catch (FileNotFoundException e) {
+            //must not exist!
+        }
+
+        ChunkedDigest.Result chunks = null;
+        try {
+            long start = ProofMetrics.start();
+            chunks = digestResult.getChunks();
+            if (chunks != null)
+                ProofMetrics.getInstance().stage(uriMedia, ProofMetrics.STAGE_CHUNK_HASH_WAIT, start);
+        }
+        catch (IOException ioe)
+        {
+            Timber.w(ioe, "unable to hash media chunks");
+        }
 
-            //write immediate proof, w/o safety check result
-            writeProof(context, uriMedia, mediaHash, showDeviceIds, showLocation, showMobileNetwork, null, false, false, -1, null, "none", notes);
+        //small files gain nothing from chunks
+        if (chunks != null && chunks.getChunkCount() <= 1)
+            chunks = null;
 
-            if (autoNotarize) {
+        return new PreparedProof(uriMedia, mediaHash, digestResult, chunks, location);
+    }
 
-                if (isOnline(context)) {
+    /**
+     * @return true if the media should also be hashed in chunks
+     */
+    private boolean isChunkedHashing (Context context)
+    {
+        if (mPrefs == null)
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-                    final GoogleSafetyNetNotarizationProvider gProvider = new GoogleSafetyNetNotarizationProvider(context);
+        return mPrefs.getBoolean(ProofMode.PREF_OPTION_CHUNKED_HASH, ProofMode.PREF_OPTION_CHUNKED_HASH_DEFAULT);
+    }
 
-                    try
-                    {
-                        gProvider.notarize(mediaHash, context.getContentResolver().openInputStream(uriMedia), new NotarizationListener() {
-                            @Override
-                            public void notarizationSuccessful(String result) {
+    /**
+     * @return the pending location fix for proof, or null if location isn't wanted or available
+     */
+    private Future<Location> requestLocation (Context context)
+    {
+        if (mPrefs == null)
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-                                SafetyNetResponse resp = gProvider.parseJsonWebSignature(result);
+        if (!mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT))
+            return null;
 
-                                String apkDigest = resp.getApkPackageName() + "=" + resp.getApkDigestSha256();
-                                long timestamp = resp.getTimestampMs();
-                                boolean isBasicIntegrity = resp.isBasicIntegrity();
-                                boolean isCtsMatch = resp.isCtsProfileMatch();
+        ProofLocationProvider locationProvider = ProofLocationProvider.getInstance(context);
+        if (!locationProvider.canGetLocation())
+            return null;
 
-                                writeProof(context, uriMedia, mediaHash, showDeviceIds, showLocation, showMobileNetwork,
-                                        apkDigest, isBasicIntegrity, isCtsMatch, timestamp, result, GOOGLE_SAFETYNET_FILE_TAG, GOOGLE_SAFETYNET_FILE_TAG);
+        return locationProvider.requestLocation();
+    }
 
-                            }
+    /**
+     * CPU stage: build, sign and write the proof for prepared media, then kick off notarization
+     *
+     * @return the media hash
+     */
+    String generateProof (final Context context, PreparedProof prepared) {
 
-                            @Override
-                            public void notarizationFailed(int errCode, String message) {
-                                Timber.d("Got Google SafetyNet error response: %s", message);
+        if (mPrefs == null)
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-                            }
-                        });
+        final Uri uriMedia = prepared.getUri();
+        final String mediaHash = prepared.getHash();
+        final MediaDigestSession.Result digestResult = prepared.mDigestResult;
+        final ChunkedDigest.Result chunks = prepared.mChunks;
+        final Future<Location> location = prepared.mLocation;
 
+        final boolean showDeviceIds = mPrefs.getBoolean(ProofMode.PREF_OPTION_PHONE,ProofMode.PREF_OPTION_PHONE_DEFAULT);
+        final boolean showLocation = mPrefs.getBoolean(ProofMode.PREF_OPTION_LOCATION,ProofMode.PREF_OPTION_LOCATION_DEFAULT);
+        final boolean autoNotarize = mPrefs.getBoolean(ProofMode.PREF_OPTION_NOTARY, ProofMode.PREF_OPTION_NOTARY_DEFAULT);
+        final boolean showMobileNetwork = mPrefs.getBoolean(ProofMode.PREF_OPTION_NETWORK,ProofMode.PREF_OPTION_NETWORK_DEFAULT);
 
-                        final NotarizationProvider nProvider = new OpenTimestampsNotarizationProvider();
-                        nProvider.notarize(mediaHash, context.getContentResolver().openInputStream(uriMedia), new NotarizationListener() {
-                            @Override
-                            public void notarizationSuccessful(String resultData) {
+        Timber.d("Writing proof for hash %s for path %s",mediaHash, uriMedia);
 
+        String notes = "";
 
-                                Timber.d("Got OpenTimestamps success response timestamp: %s", resultData);
-                                writeProof(context, uriMedia, mediaHash, showDeviceIds, showLocation, showMobileNetwork,
-                                        null, false, false, new Date().getTime(), resultData, OPENTIMESTAMPS_FILE_TAG,OPENTIMESTAMPS_FILE_TAG);
+        try {
+            PackageInfo pInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            String version = pInfo.versionName;
+            notes = "ProofMode v" + version;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
 
+        Map<ProofRecord.Field, String> chunkFields = null;
+        if (chunks != null)
+            chunkFields = writeChunks(context, mediaHash, chunks);
 
+        //write immediate proof, w/o safety check result
+        writeProof(context, uriMedia, mediaHash, digestResult, location, showDeviceIds, showLocation, showMobileNetwork, null, false, false, -1, null, "none", notes, chunkFields);
 
-                            }
+        if (autoNotarize) {
 
-                            @Override
-                            public void notarizationFailed(int errCode, String message) {
+            //notarized rows reuse the fix from capture while we still have it
+            mCaptureLocations.put(mediaHash, location);
 
-                                Timber.d("Got OpenTimestamps error response: %s", message);
-                         //       writeProof(context, uriMedia, mediaHash, showDeviceIds, showLocation, showMobileNetwork, null, false, false, -1, "Opentimestamps.org error: " + message);
+            //both notaries work from the hash alone, and the queue sends them when we are online
+            NotarizationQueue queue = NotarizationQueue.getInstance(context);
+            if (SafetyNetCheck.isAvailable(context))
+                queue.enqueue(mediaHash, uriMedia, ProofMetrics.NOTARY_SAFETYNET);
+            queue.enqueue(mediaHash, uriMedia, ProofMetrics.NOTARY_OPENTIMESTAMPS);
+        }
 
-                            }
-                        });
-                    } catch (FileNotFoundException e) {
-                        Timber.e(e);
-                    }
-                }
+        return mediaHash;
+    }
 
-            }
+    /**
+     * Write the chunk hashes next to the proof; the signed proof row carries their root
+     *
+     * @return the proof fields for the chunk hashes, or null if they could not be written
+     */
+    private Map<ProofRecord.Field, String> writeChunks (Context context, String hash, ChunkedDigest.Result chunks)
+    {
+        File fileFolder = getHashStorageDir(context, hash);
+        if (fileFolder == null)
+            return null;
 
-            return mediaHash;
+        try {
+            StringBuilder csv = new StringBuilder(chunks.getChunkCount() * 96);
+            chunks.writeCsv(csv);
+            replaceFile(new File(fileFolder, hash + CHUNKS_FILE_TAG), csv.toString().getBytes(Charset.forName("UTF-8")));
         }
-        else
+        catch (IOException ioe)
         {
-            Timber.d("Unable to access media files, no proof generated");
+            Timber.w(ioe, "unable to write chunk hashes for %s", hash);
+            return null;
+        }
 
+        Map<ProofRecord.Field, String> fields = new HashMap<>();
+        fields.put(ProofRecord.Field.FILE_HASH_MERKLE_ROOT, chunks.getRootHex());
+        fields.put(ProofRecord.Field.FILE_HASH_CHUNK_SIZE, String.valueOf(chunks.getChunkSize()));
+        return fields;
+    }
+
+    /**
+     * Read the media once, computing its hash and feeding the media signature at the same time
+     */
+    private MediaDigestSession.Result digestMedia (Context context, Uri uriMedia) {
+
+        ParcelFileDescriptor pfd = null;
+
+        try {
+            InputStream is;
+
+            try {
+                //a plain stream on the descriptor lets the media be read through its FileChannel
+                pfd = context.getContentResolver().openFileDescriptor(uriMedia, "r");
+                is = pfd == null ? null : new FileInputStream(pfd.getFileDescriptor());
+            }
+            catch (FileNotFoundException e)
+            {
+                //not a whole file; the provider may still stream it
+                is = context.getContentResolver().openInputStream(uriMedia);
+            }
+
+            if (is == null)
+                return null;
+
+            long start = ProofMetrics.start();
+            MediaDigestSession session = new MediaDigestSession(is);
+            session.setSignatureGenerator(PgpUtils.getInstance(context).createSignatureGenerator(PgpUtils.DEFAULT_PASSWORD));
+            if (isChunkedHashing(context))
+                session.setChunkedDigest(new ChunkedDigest());
+            MediaDigestSession.Result result = session.digest();
+            ProofMetrics.getInstance().stage(uriMedia, ProofMetrics.STAGE_HASH, start);
+            return result;
+
+        } catch (FileNotFoundException e) {
+            Timber.d( "FileNotFoundException: unable to open inputstream for hashing: %s", uriMedia);
+        } catch (IllegalStateException ise) {
+            Timber.d( "IllegalStateException: unable to open inputstream for hashing: %s", uriMedia);
+        } catch (SecurityException e) {
+            Timber.d( "SecurityException: security exception accessing URI: %s", uriMedia);
+        } catch (IOException e) {
+            Timber.w(e, "Error generating hash; IOError: %s", uriMedia);
+        } catch (Exception e) {
+            Timber.w(e, "Error preparing digest session for: %s", uriMedia);
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    //already closed
+                }
+            }
         }
 
         return null;
@@ -335,11 +778,32 @@ public class MediaWatcher extends BroadcastReceiver {
     }
 
 
-    private void writeProof (Context context, Uri uriMedia, String hash, boolean showDeviceIds, boolean showLocation, boolean showMobileNetwork, String safetyCheckResult, boolean isBasicIntegrity, boolean isCtsMatch, long notarizeTimestamp, String notarizeData, String notarizeType, String notes)
+    /*
+     * the time the ledger files a row under: that of the first row for the media, so later
+     * notarization rows land with the capture, or else when the media file was last modified
+     */
+    private static long getCaptureTime (ProofLedger ledger, String hash, ProofRecord record)
+    {
+        List<ProofLedger.Entry> entries = ledger.findByHash(hash);
+        if (!entries.isEmpty())
+            return entries.get(0).getTime();
+
+        long modified = new File(record.get(ProofRecord.Field.FILE_PATH)).lastModified();
+        return modified > 0 ? modified : System.currentTimeMillis();
+    }
+
+    /**
+     * @param digestResult the result of hashing the media, to sign it; null if it was signed already
+     * @param extraFields fields to set on the proof row beyond those collected here, like
+     *                    notarization results, or null
+     */
+    private void writeProof (Context context, Uri uriMedia, String hash, MediaDigestSession.Result digestResult, Future<Location> location, boolean showDeviceIds, boolean showLocation, boolean showMobileNetwork, String safetyCheckResult, boolean isBasicIntegrity, boolean isCtsMatch, long notarizeTimestamp, String notarizeData, String notarizeType, String notes, Map<ProofRecord.Field, String> extraFields)
     {
 
         boolean usePgpArmor = true;
 
+        ProofMetrics metrics = ProofMetrics.getInstance();
+
         File fileFolder = getHashStorageDir(context,hash);
 
         if (fileFolder != null) {
@@ -352,20 +816,44 @@ public class MediaWatcher extends BroadcastReceiver {
             try {
 
                 //add data to proof csv and sign again
-                boolean writeHeaders = !fileMediaProof.exists();
-                String buildProof = buildProof(context, uriMedia, writeHeaders, showDeviceIds, showLocation, showMobileNetwork, safetyCheckResult, isBasicIntegrity, isCtsMatch, notarizeTimestamp, notes);
-                writeTextToFile(context, fileMediaProof, buildProof);
+                ProofRecord record = buildProof(context, uriMedia, hash, location, showDeviceIds, showLocation, showMobileNetwork, safetyCheckResult, isBasicIntegrity, isCtsMatch, notarizeTimestamp, notes);
+                if (extraFields != null) {
+                    for (Map.Entry<ProofRecord.Field, String> field : extraFields.entrySet())
+                        record.set(field.getKey(), field.getValue());
+                }
+                long start = ProofMetrics.start();
+                ProofCsv.append(fileMediaProof, record);
+
+                try {
+                    //also log the row device-wide, so proofs can be queried without opening every folder
+                    ProofLedger ledger = ProofLedger.getInstance(context);
+                    ledger.append(hash, notarizeType, getCaptureTime(ledger, hash, record), record);
+                }
+                catch (IOException ioe)
+                {
+                    Timber.w(ioe, "unable to log proof for hash %s to the ledger", hash);
+                }
+                metrics.stage(uriMedia, ProofMetrics.STAGE_CSV_WRITE, start);
 
                 if (fileMediaProof.exists()) {
                     //sign the proof file again
+                    start = ProofMetrics.start();
                     PgpUtils.getInstance(context).createDetachedSignature(fileMediaProof, fileMediaProofSig, PgpUtils.DEFAULT_PASSWORD, usePgpArmor);
+                    metrics.stage(uriMedia, ProofMetrics.STAGE_PROOF_SIGN, start);
                 }
 
                 //sign the media file
-               if (!fileMediaSig.exists())
-                  PgpUtils.getInstance(context).createDetachedSignature(context.getContentResolver().openInputStream(uriMedia), new FileOutputStream(fileMediaSig), PgpUtils.DEFAULT_PASSWORD, usePgpArmor);
+               if (!fileMediaSig.exists() && digestResult != null) {
+                   //the media was already fed to the signature generator while hashing
+                   start = ProofMetrics.start();
+                   OutputStream osSig = new FileOutputStream(fileMediaSig);
+                   digestResult.writeSignature(osSig, usePgpArmor);
+                   osSig.close();
+                   metrics.stage(uriMedia, ProofMetrics.STAGE_MEDIA_SIGN, start);
+               }
 
                 Timber.d("Proof written/updated for uri %s and hash %s", uriMedia, hash);
+                metrics.increment(uriMedia, ProofMetrics.COUNTER_PROOF_WRITTEN);
 
                 try {
                     //try to save opentimestamps data to raw file
@@ -387,46 +875,14 @@ public class MediaWatcher extends BroadcastReceiver {
 
             } catch (Exception e) {
                 Timber.d( "Error signing media or proof: %s", e.getLocalizedMessage());
+                metrics.increment(uriMedia, ProofMetrics.COUNTER_WRITE_FAILED);
             }
         }
     }
 
     public static File getHashStorageDir(Context context, String hash) {
 
-        // Get the directory for the user's public pictures directory.
-        File fileParentDir = new File(context.getFilesDir(),PROOF_BASE_FOLDER);
-        if (!fileParentDir.exists()) {
-            fileParentDir.mkdir();
-        }
-
-        /**
-        if (android.os.Build.VERSION.SDK_INT >= 19) {
-            fileParentDir = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOCUMENTS), PROOF_BASE_FOLDER);
-
-        }
-        else
-        {
-            fileParentDir = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOWNLOADS), PROOF_BASE_FOLDER);
-        }
-
-        if (!fileParentDir.exists()) {
-            if (!fileParentDir.mkdir())
-            {
-                fileParentDir = new File(Environment.getExternalStorageDirectory(), PROOF_BASE_FOLDER);
-                if (!fileParentDir.exists())
-                    if (!fileParentDir.mkdir())
-                        return null;
-            }
-        }**/
-
-        File fileHashDir = new File(fileParentDir, hash + '/');
-        if (!fileHashDir.exists())
-            if (!fileHashDir.mkdir())
-                return null;
-
-        return fileHashDir;
+        return ProofStorage.getInstance(context).getOrCreateDir(hash);
     }
 
     /* Checks if external storage is available for read and write */
@@ -438,7 +894,7 @@ public class MediaWatcher extends BroadcastReceiver {
         return false;
     }
 
-    private String buildProof (Context context, Uri uriMedia, boolean writeHeaders, boolean showDeviceIds, boolean showLocation, boolean showMobileNetwork, String safetyCheckResult, boolean isBasicIntegrity, boolean isCtsMatch, long notarizeTimestamp, String notes)
+    private ProofRecord buildProof (Context context, Uri uriMedia, String hash, Future<Location> location, boolean showDeviceIds, boolean showLocation, boolean showMobileNetwork, String safetyCheckResult, boolean isBasicIntegrity, boolean isCtsMatch, long notarizeTimestamp, String notes)
     {
         String mediaPath = null;
 
@@ -464,151 +920,145 @@ public class MediaWatcher extends BroadcastReceiver {
             }
         }
 
-        String hash = null;
-        try {
-            hash = getSHA256FromFileContent(context.getContentResolver().openInputStream(uriMedia));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-
         DateFormat df = DateFormat.getDateTimeInstance(DateFormat.FULL,DateFormat.FULL);
 
-        HashMap<String, String> hmProof = new HashMap<>();
+        ProofRecord record = new ProofRecord();
 
         if (mediaPath != null)
-            hmProof.put("File Path",mediaPath);
+            record.set(ProofRecord.Field.FILE_PATH,mediaPath);
         else
-            hmProof.put("File Path",uriMedia.toString());
+            record.set(ProofRecord.Field.FILE_PATH,uriMedia.toString());
 
-        hmProof.put("File Hash SHA256",hash);
+        record.set(ProofRecord.Field.FILE_HASH_SHA256,hash);
 
         if (mediaPath != null)
-            hmProof.put("File Modified",df.format(new Date(new File(mediaPath).lastModified())));
+            record.set(ProofRecord.Field.FILE_MODIFIED,df.format(new Date(new File(mediaPath).lastModified())));
+
+        record.set(ProofRecord.Field.PROOF_GENERATED,df.format(new Date()));
 
-        hmProof.put("Proof Generated",df.format(new Date()));
+        ProofMetrics metrics = ProofMetrics.getInstance();
+        long start = ProofMetrics.start();
+
+        //kept up to date in the background, so this is just a read
+        DeviceInfoCache.Snapshot deviceInfo = DeviceInfoCache.getInstance(context).getSnapshot();
 
         if (showDeviceIds) {
-            hmProof.put("DeviceID", DeviceInfo.getDeviceId(context));
-            hmProof.put("Wifi MAC", DeviceInfo.getWifiMacAddr());
+            record.set(ProofRecord.Field.DEVICE_ID, deviceInfo.getDeviceId());
+            record.set(ProofRecord.Field.WIFI_MAC, deviceInfo.getWifiMac());
         }
 
-        hmProof.put("IPv4",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_IP_ADDRESS_IPV4));
-        hmProof.put("IPv6",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_IP_ADDRESS_IPV6));
+        record.set(ProofRecord.Field.IPV4,deviceInfo.getIPv4());
+        record.set(ProofRecord.Field.IPV6,deviceInfo.getIPv6());
+
+        record.set(ProofRecord.Field.DATA_TYPE,deviceInfo.getDataType());
+        record.set(ProofRecord.Field.NETWORK,deviceInfo.getNetwork());
 
-        hmProof.put("DataType",DeviceInfo.getDataType(context));
-        hmProof.put("Network",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_NETWORK));
+        record.set(ProofRecord.Field.NETWORK_TYPE,deviceInfo.getNetworkType());
+        record.set(ProofRecord.Field.HARDWARE,deviceInfo.getHardware());
+        record.set(ProofRecord.Field.MANUFACTURER,deviceInfo.getManufacturer());
+        record.set(ProofRecord.Field.SCREEN_SIZE,deviceInfo.getScreenSize());
 
-        hmProof.put("NetworkType",DeviceInfo.getNetworkType(context));
-        hmProof.put("Hardware",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_HARDWARE_MODEL));
-        hmProof.put("Manufacturer",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_MANUFACTURE));
-        hmProof.put("ScreenSize",DeviceInfo.getDeviceInch(context));
+        record.set(ProofRecord.Field.LANGUAGE,deviceInfo.getLanguage());
+        record.set(ProofRecord.Field.LOCALE,deviceInfo.getLocale());
 
-        hmProof.put("Language",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_LANGUAGE));
-        hmProof.put("Locale",DeviceInfo.getDeviceInfo(context, DeviceInfo.Device.DEVICE_LOCALE));
+        metrics.stage(uriMedia, ProofMetrics.STAGE_DEVICE_INFO, start);
 
 
 
         if (showLocation)
         {
-            GPSTracker gpsTracker = new GPSTracker(context);
+            if (location != null) {
 
-            if (gpsTracker.canGetLocation()) {
-
-                Location loc = gpsTracker.getLocation();
-
-                int waitIdx = 0;
-                while (loc == null && waitIdx < 3) {
-                    waitIdx++;
-                    try {
-                        Thread.sleep(500);
-                    } catch (Exception e) {
-                    }
-                    loc = gpsTracker.getLocation();
-                }
+                //usually long done, the fix was requested before the media was hashed
+                start = ProofMetrics.start();
+                Location loc = awaitLocation(context, location);
+                metrics.stage(uriMedia, ProofMetrics.STAGE_LOCATION_WAIT, start);
 
                 if (loc != null) {
-                    hmProof.put("Location.Latitude", loc.getLatitude() + "");
-                    hmProof.put("Location.Longitude", loc.getLongitude() + "");
-                    hmProof.put("Location.Provider", loc.getProvider());
-                    hmProof.put("Location.Accuracy", loc.getAccuracy() + "");
-                    hmProof.put("Location.Altitude", loc.getAltitude() + "");
-                    hmProof.put("Location.Bearing", loc.getBearing() + "");
-                    hmProof.put("Location.Speed", loc.getSpeed() + "");
-                    hmProof.put("Location.Time", loc.getTime() + "");
+                    record.set(ProofRecord.Field.LOCATION_LATITUDE, loc.getLatitude() + "");
+                    record.set(ProofRecord.Field.LOCATION_LONGITUDE, loc.getLongitude() + "");
+                    record.set(ProofRecord.Field.LOCATION_PROVIDER, loc.getProvider());
+                    record.set(ProofRecord.Field.LOCATION_ACCURACY, loc.getAccuracy() + "");
+                    record.set(ProofRecord.Field.LOCATION_ALTITUDE, loc.getAltitude() + "");
+                    record.set(ProofRecord.Field.LOCATION_BEARING, loc.getBearing() + "");
+                    record.set(ProofRecord.Field.LOCATION_SPEED, loc.getSpeed() + "");
+                    record.set(ProofRecord.Field.LOCATION_TIME, loc.getTime() + "");
                 }
                 else
                 {
-                    hmProof.put("Location.Latitude", "");
-                    hmProof.put("Location.Longitude", "");
-                    hmProof.put("Location.Provider", "none");
-                    hmProof.put("Location.Accuracy", "");
-                    hmProof.put("Location.Altitude", "");
-                    hmProof.put("Location.Bearing", "");
-                    hmProof.put("Location.Speed", "");
-                    hmProof.put("Location.Time", "");
+                    record.set(ProofRecord.Field.LOCATION_LATITUDE, "");
+                    record.set(ProofRecord.Field.LOCATION_LONGITUDE, "");
+                    record.set(ProofRecord.Field.LOCATION_PROVIDER, "none");
+                    record.set(ProofRecord.Field.LOCATION_ACCURACY, "");
+                    record.set(ProofRecord.Field.LOCATION_ALTITUDE, "");
+                    record.set(ProofRecord.Field.LOCATION_BEARING, "");
+                    record.set(ProofRecord.Field.LOCATION_SPEED, "");
+                    record.set(ProofRecord.Field.LOCATION_TIME, "");
                 }
 
             }
 
-            if (showMobileNetwork)
-                hmProof.put("CellInfo", DeviceInfo.getCellInfo(context));
+            if (showMobileNetwork && deviceInfo.getCellInfo() != null)
+                record.set(ProofRecord.Field.CELL_INFO, deviceInfo.getCellInfo());
             else
-                hmProof.put("CellInfo", "none");
+                record.set(ProofRecord.Field.CELL_INFO, "none");
 
         }
         else
         {
-            hmProof.put("Location.Latitude", "");
-            hmProof.put("Location.Longitude", "");
-            hmProof.put("Location.Provider", "none");
-            hmProof.put("Location.Accuracy", "");
-            hmProof.put("Location.Altitude", "");
-            hmProof.put("Location.Bearing", "");
-            hmProof.put("Location.Speed", "");
-            hmProof.put("Location.Time", "");
+            record.set(ProofRecord.Field.LOCATION_LATITUDE, "");
+            record.set(ProofRecord.Field.LOCATION_LONGITUDE, "");
+            record.set(ProofRecord.Field.LOCATION_PROVIDER, "none");
+            record.set(ProofRecord.Field.LOCATION_ACCURACY, "");
+            record.set(ProofRecord.Field.LOCATION_ALTITUDE, "");
+            record.set(ProofRecord.Field.LOCATION_BEARING, "");
+            record.set(ProofRecord.Field.LOCATION_SPEED, "");
+            record.set(ProofRecord.Field.LOCATION_TIME, "");
         }
 
 
 
         if (!TextUtils.isEmpty(safetyCheckResult)) {
-            hmProof.put("SafetyCheck", safetyCheckResult);
-            hmProof.put("SafetyCheckBasicIntegrity", isBasicIntegrity+"");
-            hmProof.put("SafetyCheckCtsMatch", isCtsMatch+"");
-            hmProof.put("SafetyCheckTimestamp", df.format(new Date(notarizeTimestamp)));
+            record.set(ProofRecord.Field.SAFETY_CHECK, safetyCheckResult);
+            record.set(ProofRecord.Field.SAFETY_CHECK_BASIC_INTEGRITY, isBasicIntegrity+"");
+            record.set(ProofRecord.Field.SAFETY_CHECK_CTS_MATCH, isCtsMatch+"");
+            record.set(ProofRecord.Field.SAFETY_CHECK_TIMESTAMP, df.format(new Date(notarizeTimestamp)));
         }
         else
         {
-            hmProof.put("SafetyCheck", "");
-            hmProof.put("SafetyCheckBasicIntegrity", "");
-            hmProof.put("SafetyCheckCtsMatch", "");
-            hmProof.put("SafetyCheckTimestamp", "");
+            record.set(ProofRecord.Field.SAFETY_CHECK, "");
+            record.set(ProofRecord.Field.SAFETY_CHECK_BASIC_INTEGRITY, "");
+            record.set(ProofRecord.Field.SAFETY_CHECK_CTS_MATCH, "");
+            record.set(ProofRecord.Field.SAFETY_CHECK_TIMESTAMP, "");
         }
 
         if (!TextUtils.isEmpty(notes))
-            hmProof.put("Notes",notes);
+            record.set(ProofRecord.Field.NOTES,notes);
         else
-            hmProof.put("Notes","");
+            record.set(ProofRecord.Field.NOTES,"");
 
 
-        StringBuffer sb = new StringBuffer();
+        return record;
 
-        if (writeHeaders) {
-            for (String key : hmProof.keySet()) {
-                sb.append(key).append(",");
-            }
+    }
 
-            sb.append("\n");
-        }
+    private static Location awaitLocation (Context context, Future<Location> location)
+    {
+        //notarized after a restart, the fix from capture is gone
+        if (location == null)
+            return null;
 
-        for (String key : hmProof.keySet())
+        //the provider completes requests by its deadline; the extra second is only a safety net
+        long timeout = ProofLocationProvider.getInstance(context).getDeadline() + 1000;
+
+        try {
+            return location.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException | ExecutionException | TimeoutException e)
         {
-            String value = hmProof.get(key);
-            value = value.replace(',',' '); //remove commas from CSV file
-            sb.append(value).append(",");
+            Timber.d("no location fix for proof: %s", e);
+            return ProofLocationProvider.getInstance(context).getLastFix();
         }
-
-        return sb.toString();
-
     }
 
     private static void writeBytesToFile (Context context, File fileOut, byte[] data)
@@ -626,80 +1076,27 @@ public class MediaWatcher extends BroadcastReceiver {
 
     }
 
-    private static void writeTextToFile (Context context, File fileOut, String text)
+    /**
+     * Replace the file with data all at once, so readers see either the old or the new contents
+     */
+    private static void replaceFile (File file, byte[] data) throws IOException
     {
-        try {
-            PrintStream ps = new PrintStream(new FileOutputStream(fileOut,true));
-            ps.println(text);
-            ps.flush();
-            ps.close();
-        }
-        catch (IOException ioe)
-        {
-            ioe.printStackTrace();
-        }
-
-    }
-
-    private static String getSHA256FromFileContent(String filename)
-    {
-
-        try
-        {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[65536]; //created at start.
-            InputStream fis = new FileInputStream(filename);
-            int n = 0;
-            while (n != -1)
-            {
-                n = fis.read(buffer);
-                if (n > 0)
-                {
-                    digest.update(buffer, 0, n);
-                }
-            }
-            byte[] digestResult = digest.digest();
-            return asHex(digestResult);
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
-    }
-
+        File fileTmp = new File(file.getParentFile(), file.getName() + ".tmp");
 
-    private static String getSHA256FromFileContent(InputStream fis)
-    {
-
-        try
-        {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[65536]; //created at start.
-            int n = 0;
-            while (n != -1)
-            {
-                n = fis.read(buffer);
-                if (n > 0)
-                {
-                    digest.update(buffer, 0, n);
-                }
-            }
-            byte[] digestResult = digest.digest();
-            return asHex(digestResult);
+        FileOutputStream fos = new FileOutputStream(fileTmp);
+        try {
+            fos.write(data);
+            fos.flush();
+            fos.getFD().sync();
         }
-        catch (Exception e)
-        {
-            return null;
+        finally {
+            fos.close();
         }
-    }
 
-    private static String asHex(byte[] arrayBytes) {
-        StringBuffer stringBuffer = new StringBuffer();
-        for (int i = 0; i < arrayBytes.length; i++) {
-            stringBuffer.append(Integer.toString((arrayBytes[i] & 0xff) + 0x100, 16)
-                    .substring(1));
+        if (!fileTmp.renameTo(file)) {
+            fileTmp.delete();
+            throw new IOException("unable to replace " + file);
         }
-        return stringBuffer.toString();
     }
 
     private static final int READ_STORAGE_PERMISSION_REQUEST_CODE = 41;
@@ -719,21 +1116,35 @@ public class MediaWatcher extends BroadcastReceiver {
 
             String pathToWatch = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsolutePath();
 
-            observerMedia = new RecursiveFileObserver(pathToWatch, FileObserver.CLOSE_WRITE|FileObserver.MOVED_TO) { // set up a file observer to watch this directory on sd card
+            int events = FileObserver.CLOSE_WRITE|FileObserver.MOVED_TO|FileObserver.CREATE|FileObserver.MODIFY;
+
+            observerMedia = new RecursiveFileObserver(pathToWatch, events) { // set up a file observer to watch this directory on sd card
                 @Override
                 public void onEvent(int event, final String mediaPath) {
                     if (mediaPath != null && (!mediaPath.equals(".probe"))) { // check that it's not equal to .probe because thats created every time camera is launched
 
-                        Timer t = new Timer();
-                        t.schedule(new TimerTask() {
-                            @Override
-                            public void run() {
-                                File fileMedia = new File(mediaPath);
-                                if (fileMedia.exists())
-                                    processUri(Uri.fromFile(fileMedia));
-
-                            }
-                        }, MediaWatcher.PROOF_GENERATION_DELAY_TIME_MS);
+                        File fileMedia = new File(mediaPath);
+
+                        switch (event & FileObserver.ALL_EVENTS) {
+                            case FileObserver.CREATE:
+                                //start hashing recordings while they are written
+                                mGrowingHasher.onCreated(fileMedia);
+                                break;
+                            case FileObserver.MODIFY:
+                                mGrowingHasher.onModified(fileMedia);
+                                break;
+                            case FileObserver.CLOSE_WRITE:
+                                //if it was followed, it is queued sooner once its digest is finished
+                                mGrowingHasher.onClosed(fileMedia);
+                                onMediaChanged(Uri.fromFile(fileMedia));
+                                break;
+                            case FileObserver.MOVED_TO:
+                                if (mGrowingHasher.onMovedTo(fileMedia))
+                                    mCoalescer.add(Uri.fromFile(fileMedia), HASHED_MEDIA_DELAY_TIME_MS);
+                                else
+                                    onMediaChanged(Uri.fromFile(fileMedia));
+                                break;
+                        }
 
                     }
                 }
@@ -751,5 +1162,14 @@ public class MediaWatcher extends BroadcastReceiver {
         {
             observerMedia.stopWatching();
         }
+
+        mCoalescer.stop();
+        mGrowingHasher.stop();
+
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+
+        ProofLocationProvider.getInstance(mContext).stop();
+        DeviceInfoCache.getInstance(mContext).stop();
+        NotarizationQueue.getInstance(mContext).stop();
     }
 }
@@ -26,8 +26,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import timber.log.Timber;
 
@@ -76,8 +74,6 @@ public class PhotosContentJob extends JobService {
         return true;
     }
 
-    private HashMap<Uri,String> mUriStack = new HashMap<>();
-
     private void doWork ()
     {
 
@@ -85,45 +81,32 @@ public class PhotosContentJob extends JobService {
 
             if (mRunningParams.getTriggeredContentUris() != null) {
 
-                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
-
-                    mUriStack.put(uri,uri.toString());
+                MediaWatcher watcher = MediaWatcher.getInstance(PhotosContentJob.this);
 
+                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
+                    watcher.onMediaChanged(uri);
                 }
 
-                processMedia();
-
             } else {
                 // We don't have any details about URIs (because too many changed at once),
                 // so just note that we need to do a full rescan.
 
                 Timber.w("rescan is needed since many photos changed at once");
-          //      Toast.makeText(this,"Rescan is needed!",Toast.LENGTH_SHORT).show();
+                getRescanner(this).requestRescan();
 
 
             }
 
         }
 
-
+        //picks up where the last run stopped, if it hasn't caught up yet
+        getRescanner(this).resumeIfPending();
     }
 
-    private void processMedia ()
+    static MediaStoreRescanner getRescanner (Context context)
     {
-        Timer t = new Timer();
-        t.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ArrayList<Uri> uris = new ArrayList<>(mUriStack.keySet());
-
-                for (Uri uri : uris) {
-                    MediaWatcher.getInstance(PhotosContentJob.this).processUri(uri);
-                    mUriStack.remove(uri);
-                }
-
-            }
-        }, MediaWatcher.PROOF_GENERATION_DELAY_TIME_MS);
-
+        return new MediaStoreRescanner(context, "photos",
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, MediaStore.Images.Media.INTERNAL_CONTENT_URI);
     }
 
     @Override
@@ -149,6 +132,8 @@ public class PhotosContentJob extends JobService {
         // Get all media changes within a tenth of a second.
         builder.setTriggerContentUpdateDelay(1);
         builder.setTriggerContentMaxDelay(100);
+
+        getRescanner(context).initMarks();
         
         js.schedule(builder.build());
     }
@@ -0,0 +1,520 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.witness.proofmode.metrics.ProofMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Generates proof on two bounded thread pools: one for reading and hashing media (I/O) and one
+ * for building, signing and writing the proof (CPU), so a slow read never holds up signing and
+ * a burst of captures can't starve requests the user is waiting on.
+ *
+ * Requests for the same media, or for media with the same hash, while one is already in flight
+ * share its result instead of doing the work twice. Background requests are bounded; once
+ * {@link #MAX_QUEUED_BACKGROUND} are pending, {@link #submit} blocks until one finishes and
+ * {@link #offer} gives up.
+ */
+public class ProofEngine {
+
+    public final static int PRIORITY_BACKGROUND = 0;
+    public final static int PRIORITY_USER = 10;
+
+    public final static int MAX_QUEUED_BACKGROUND = 32;
+
+    private final static long KEEP_ALIVE_SECONDS = 30;
+
+    private final Context mContext;
+    private final Stages mStages;
+
+    private final ThreadPoolExecutor mIoPool;
+    private final ThreadPoolExecutor mCpuPool;
+
+    private final Semaphore mBackgroundPermits = new Semaphore(MAX_QUEUED_BACKGROUND);
+
+    //requests in flight, by uri and, once hashed, by the hash being written
+    private final Map<String, ProofRequest> mPending = new HashMap<>();
+    private final Map<String, ProofRequest> mWriting = new HashMap<>();
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final ProofMetrics mMetrics = ProofMetrics.getInstance();
+
+    /**
+     * Told when a request is done, on the thread that finished it
+     */
+    public interface Listener {
+
+        /**
+         * @param hash the media hash, or null if the media couldn't be read or error is set
+         */
+        void onProofDone (Uri uri, String hash, Throwable error);
+    }
+
+    /**
+     * The two stages of proof generation; MediaWatcher does the real work, tests stand in for it
+     */
+    interface Stages {
+        MediaWatcher.PreparedProof prepareProof (Context context, Uri uri, String knownHash);
+        String generateProof (Context context, MediaWatcher.PreparedProof prepared);
+    }
+
+    public ProofEngine (Context context, final MediaWatcher watcher)
+    {
+        this(context, new Stages() {
+            @Override
+            public MediaWatcher.PreparedProof prepareProof(Context context, Uri uri, String knownHash) {
+                return watcher.prepareProof(context, uri, knownHash);
+            }
+
+            @Override
+            public String generateProof(Context context, MediaWatcher.PreparedProof prepared) {
+                return watcher.generateProof(context, prepared);
+            }
+        }, getIoThreads(), getCpuThreads());
+    }
+
+    ProofEngine (Context context, Stages stages, int ioThreads, int cpuThreads)
+    {
+        mContext = context.getApplicationContext();
+        mStages = stages;
+
+        mIoPool = createPool(ioThreads, "ProofIO");
+        mCpuPool = createPool(cpuThreads, "ProofCPU");
+    }
+
+    private static int getIoThreads ()
+    {
+        return Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    private static int getCpuThreads ()
+    {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - getIoThreads()));
+    }
+
+    private static ThreadPoolExecutor createPool (int threads, final String name)
+    {
+        final AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /**
+     * Queue proof generation for the media, blocking while the background queue is full.
+     * User priority requests never block.
+     *
+     * @param knownHash the hash of the media if the caller already has it, otherwise null
+     */
+    public Future<String> submit (Uri uri, String knownHash, int priority) throws InterruptedException
+    {
+        return submit(uri, knownHash, priority, null);
+    }
+
+    /**
+     * Like {@link #submit(Uri, String, int)}, telling the listener once the request is done,
+     * or right away if it is a duplicate of one already done
+     */
+    public Future<String> submit (Uri uri, String knownHash, int priority, Listener listener) throws InterruptedException
+    {
+        ProofRequest request = null;
+
+        if (priority < PRIORITY_USER) {
+            request = boost(uri, priority);
+            if (request == null)
+                mBackgroundPermits.acquire();
+        }
+
+        if (request == null)
+            request = enqueue(uri, knownHash, priority, priority < PRIORITY_USER);
+
+        if (listener != null)
+            request.addListener(listener);
+
+        return request;
+    }
+
+    /**
+     * Like {@link #submit} but never blocks
+     *
+     * @return the pending result, or null if the background queue is full
+     */
+    public Future<String> offer (Uri uri, String knownHash, int priority)
+    {
+        if (priority < PRIORITY_USER) {
+            ProofRequest existing = boost(uri, priority);
+            if (existing != null)
+                return existing;
+
+            if (!mBackgroundPermits.tryAcquire()) {
+                mMetrics.increment(uri, ProofMetrics.COUNTER_QUEUE_FULL);
+                return null;
+            }
+        }
+
+        return enqueue(uri, knownHash, priority, priority < PRIORITY_USER);
+    }
+
+    public int getPendingCount ()
+    {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    public void shutdown ()
+    {
+        mIoPool.shutdownNow();
+        mCpuPool.shutdownNow();
+    }
+
+    private ProofRequest boost (Uri uri, int priority)
+    {
+        synchronized (mPending) {
+            ProofRequest existing = mPending.get(uri.toString());
+            if (existing != null) {
+                existing.raisePriority(priority);
+                mMetrics.increment(uri, ProofMetrics.COUNTER_DUPLICATE);
+            }
+            return existing;
+        }
+    }
+
+    private ProofRequest enqueue (Uri uri, String knownHash, int priority, boolean holdsPermit)
+    {
+        ProofRequest request;
+
+        synchronized (mPending) {
+            ProofRequest existing = mPending.get(uri.toString());
+            if (existing != null) {
+                existing.raisePriority(priority);
+                if (holdsPermit)
+                    mBackgroundPermits.release();
+                mMetrics.increment(uri, ProofMetrics.COUNTER_DUPLICATE);
+                return existing;
+            }
+
+            request = new ProofRequest(uri, knownHash, priority, holdsPermit);
+            mPending.put(uri.toString(), request);
+        }
+
+        request.startPrepare();
+        return request;
+    }
+
+    /**
+     * Called on the I/O pool once the media is hashed; hands the write over to the CPU pool,
+     * unless the same hash is already being written, in which case we wait for that one
+     */
+    private void onPrepared (final ProofRequest request, final MediaWatcher.PreparedProof prepared)
+    {
+        if (prepared == null) {
+            mMetrics.increment(request.mUri, ProofMetrics.COUNTER_READ_FAILED);
+            request.complete(null, null);
+            return;
+        }
+
+        if (prepared.hasProof()) {
+            mMetrics.increment(request.mUri, ProofMetrics.COUNTER_PROOF_EXISTS);
+            request.complete(prepared.getHash(), null);
+            return;
+        }
+
+        synchronized (mPending) {
+            ProofRequest writer = mWriting.get(prepared.getHash());
+            if (writer != null) {
+                writer.raisePriority(request.mPriority);
+                writer.addCallback(request);
+                mMetrics.increment(request.mUri, ProofMetrics.COUNTER_DUPLICATE);
+                return;
+            }
+            mWriting.put(prepared.getHash(), request);
+            request.mWritingHash = prepared.getHash();
+        }
+
+        request.startGenerate(prepared);
+    }
+
+    private void updateQueueDepths ()
+    {
+        mMetrics.setQueueDepth(ProofMetrics.QUEUE_IO, mIoPool.getQueue().size());
+        mMetrics.setQueueDepth(ProofMetrics.QUEUE_CPU, mCpuPool.getQueue().size());
+        mMetrics.setQueueDepth(ProofMetrics.QUEUE_PENDING, getPendingCount());
+    }
+
+    private abstract class StageTask implements Runnable, Comparable<StageTask> {
+
+        final ProofRequest mRequest;
+        final String mQueueStage;
+        final long mSeq = mSequence.getAndIncrement();
+        final long mQueuedAt = ProofMetrics.start();
+
+        StageTask (ProofRequest request, String queueStage)
+        {
+            mRequest = request;
+            mQueueStage = queueStage;
+        }
+
+        @Override
+        public int compareTo(StageTask other) {
+            //higher priority first, then first come first served
+            int byPriority = other.mRequest.mPriority - mRequest.mPriority;
+            if (byPriority != 0)
+                return byPriority;
+            return mSeq < other.mSeq ? -1 : (mSeq == other.mSeq ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            mMetrics.stage(mRequest.mUri, mQueueStage, mQueuedAt);
+            updateQueueDepths();
+
+            try {
+                runStage();
+            }
+            catch (RuntimeException re)
+            {
+                Timber.e(re,"RUNTIME EXCEPTION processing media file: " + re);
+                mRequest.complete(null, re);
+            }
+            catch (Error err)
+            {
+                Timber.e(err,"FATAL ERROR processing media file: " + err);
+                mRequest.complete(null, err);
+            }
+        }
+
+        abstract void runStage ();
+    }
+
+    private class PrepareTask extends StageTask {
+
+        PrepareTask (ProofRequest request)
+        {
+            super(request, ProofMetrics.STAGE_QUEUE_WAIT_IO);
+        }
+
+        @Override
+        void runStage() {
+            onPrepared(mRequest, mStages.prepareProof(mContext, mRequest.mUri, mRequest.mKnownHash));
+        }
+    }
+
+    private class GenerateTask extends StageTask {
+
+        private final MediaWatcher.PreparedProof mPrepared;
+
+        GenerateTask (ProofRequest request, MediaWatcher.PreparedProof prepared)
+        {
+            super(request, ProofMetrics.STAGE_QUEUE_WAIT_CPU);
+            mPrepared = prepared;
+        }
+
+        @Override
+        void runStage() {
+            mRequest.complete(mStages.generateProof(mContext, mPrepared), null);
+        }
+    }
+
+    /**
+     * A proof request moving through both stages; it is its own result
+     */
+    private class ProofRequest implements Future<String> {
+
+        final Uri mUri;
+        final String mKnownHash;
+        final boolean mHoldsPermit;
+        volatile int mPriority;
+        String mWritingHash;
+
+        private final long mSubmittedAt = ProofMetrics.start();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final List<ProofRequest> mCallbacks = new ArrayList<>();
+        //null once complete has taken them
+        private List<Listener> mListeners = new ArrayList<>();
+
+        private StageTask mQueued;
+        private ThreadPoolExecutor mQueuedPool;
+
+        private String mResult;
+        private Throwable mError;
+
+        ProofRequest (Uri uri, String knownHash, int priority, boolean holdsPermit)
+        {
+            mUri = uri;
+            mKnownHash = knownHash;
+            mPriority = priority;
+            mHoldsPermit = holdsPermit;
+        }
+
+        void startPrepare ()
+        {
+            schedule(mIoPool, new PrepareTask(this));
+        }
+
+        void startGenerate (MediaWatcher.PreparedProof prepared)
+        {
+            schedule(mCpuPool, new GenerateTask(this, prepared));
+        }
+
+        private void schedule (ThreadPoolExecutor pool, StageTask task)
+        {
+            synchronized (this) {
+                mQueued = task;
+                mQueuedPool = pool;
+            }
+
+            pool.execute(task);
+            updateQueueDepths();
+        }
+
+        /**
+         * Move a queued request ahead of lower priority work
+         */
+        void raisePriority (int priority)
+        {
+            synchronized (this) {
+                if (priority <= mPriority)
+                    return;
+
+                //the queue orders on insert, so take the task out before changing its priority
+                boolean requeue = mQueued != null && mQueuedPool.remove(mQueued);
+                mPriority = priority;
+                if (requeue)
+                    mQueuedPool.execute(mQueued);
+            }
+        }
+
+        void addCallback (ProofRequest other)
+        {
+            synchronized (this) {
+                if (mDone.getCount() > 0) {
+                    mCallbacks.add(other);
+                    return;
+                }
+            }
+
+            other.complete(mResult, mError);
+        }
+
+        void addListener (Listener listener)
+        {
+            synchronized (this) {
+                if (mListeners != null) {
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+
+            listener.onProofDone(mUri, mResult, mError);
+        }
+
+        void complete (String result, Throwable error)
+        {
+            List<ProofRequest> callbacks;
+            List<Listener> listeners;
+
+            synchronized (this) {
+                //completed already, or being completed on another thread
+                if (mListeners == null)
+                    return;
+
+                mResult = result;
+                mError = error;
+                mQueued = null;
+                mQueuedPool = null;
+                callbacks = new ArrayList<>(mCallbacks);
+                mCallbacks.clear();
+                listeners = mListeners;
+                mListeners = null;
+            }
+
+            synchronized (mPending) {
+                if (mPending.get(mUri.toString()) == this)
+                    mPending.remove(mUri.toString());
+                if (mWritingHash != null && mWriting.get(mWritingHash) == this)
+                    mWriting.remove(mWritingHash);
+            }
+
+            if (mHoldsPermit)
+                mBackgroundPermits.release();
+
+            mMetrics.stage(mUri, ProofMetrics.STAGE_TOTAL, mSubmittedAt);
+            if (error != null)
+                mMetrics.increment(mUri, ProofMetrics.COUNTER_ENGINE_ERROR);
+            updateQueueDepths();
+
+            mDone.countDown();
+
+            for (ProofRequest callback : callbacks)
+                callback.complete(result, error);
+
+            for (Listener listener : listeners)
+                listener.onProofDone(mUri, result, error);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return getResult();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private String getResult () throws ExecutionException
+        {
+            if (mError != null)
+                throw new ExecutionException(mError);
+            return mResult;
+        }
+    }
+}
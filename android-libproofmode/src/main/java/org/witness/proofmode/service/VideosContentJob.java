@@ -29,8 +29,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import timber.log.Timber;
 
@@ -63,6 +61,8 @@ public class VideosContentJob extends JobService {
         builder.setTriggerContentUpdateDelay(1);
         builder.setTriggerContentMaxDelay(100);
 
+        getRescanner(context).initMarks();
+
         js.schedule(builder.build());
     }
 
@@ -93,12 +93,11 @@ public class VideosContentJob extends JobService {
         mRunningParams = params;
         doWork ();
         jobFinished(mRunningParams, false);
+        scheduleJob(VideosContentJob.this);
 
         return true;
     }
 
-    private HashMap<Uri,String> mUriStack = new HashMap<>();
-
     private void doWork ()
     {
 
@@ -106,48 +105,31 @@ public class VideosContentJob extends JobService {
 
             if (mRunningParams.getTriggeredContentUris() != null) {
 
-                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
-
-                    Timer t = new Timer();
-                    t.schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            mUriStack.put(uri,uri.toString());
-                        }
-                    }, MediaWatcher.PROOF_GENERATION_DELAY_TIME_MS);
+                MediaWatcher watcher = MediaWatcher.getInstance(VideosContentJob.this);
 
+                for (Uri uri : mRunningParams.getTriggeredContentUris()) {
+                    watcher.onMediaChanged(uri);
                 }
 
-                processMedia();
-
             } else {
                 // We don't have any details about URIs (because too many changed at once),
                 // so just note that we need to do a full rescan.
 
-               // Timber.w("rescan is needed since many videos changed at once");
+                Timber.w("rescan is needed since many videos changed at once");
+                getRescanner(this).requestRescan();
             
             }
 
         }
 
+        //picks up where the last run stopped, if it hasn't caught up yet
+        getRescanner(this).resumeIfPending();
     }
 
-    private void processMedia ()
+    static MediaStoreRescanner getRescanner (Context context)
     {
-        Timer t = new Timer();
-        t.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Set<Uri> uris = mUriStack.keySet();
-
-                for (Uri uri : uris) {
-                    MediaWatcher.getInstance(VideosContentJob.this).processUri(uri);
-                    mUriStack.remove(uri);
-                }
-
-            }
-        }, MediaWatcher.PROOF_GENERATION_DELAY_TIME_MS);
-
+        return new MediaStoreRescanner(context, "videos",
+                MediaStore.Video.Media.EXTERNAL_CONTENT_URI, MediaStore.Video.Media.INTERNAL_CONTENT_URI);
     }
 
     @Override
@@ -0,0 +1,207 @@
+package org.witness.proofmode.storage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.witness.proofmode.crypto.HashUtils;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import timber.log.Timber;
+
+/**
+ * Persistent index from media identity (path or uri, size, modification time, inode) to its
+ * SHA-256 hash, so finding the proof folder for media we've already seen doesn't require
+ * reading the whole file again.
+ *
+ * Entries are only returned while the media is unchanged; a changed file is dropped from the
+ * index and has to be hashed again. Backed by SQLite in WAL mode, so it survives crashes.
+ */
+public class MediaHashIndex extends SQLiteOpenHelper {
+
+    private final static String DATABASE_NAME = "mediahashindex.db";
+    private final static int DATABASE_VERSION = 1;
+
+    private final static String TABLE_MEDIA = "media";
+    private final static String COL_KEY = "media_key";
+    private final static String COL_SIZE = "size";
+    private final static String COL_MODIFIED = "modified";
+    private final static String COL_INODE = "inode";
+    private final static String COL_HASH = "hash";
+    private final static String COL_INDEXED = "indexed";
+
+    private static MediaHashIndex mInstance;
+
+    private MediaHashIndex (Context context)
+    {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    public static synchronized MediaHashIndex getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new MediaHashIndex(context);
+
+        return mInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MEDIA + " ("
+                + COL_KEY + " TEXT PRIMARY KEY, "
+                + COL_SIZE + " INTEGER NOT NULL, "
+                + COL_MODIFIED + " INTEGER NOT NULL, "
+                + COL_INODE + " INTEGER NOT NULL, "
+                + COL_HASH + " TEXT NOT NULL, "
+                + COL_INDEXED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_" + TABLE_MEDIA + "_" + COL_HASH + " ON " + TABLE_MEDIA + " (" + COL_HASH + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //it is only a cache, so just start over
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEDIA);
+        onCreate(db);
+    }
+
+    /**
+     * @return the known hash of the media at uri, or null if it is unknown or has changed since
+     */
+    public String getHash (Context context, Uri uri)
+    {
+        MediaIdentity identity = MediaIdentity.fromUri(context, uri);
+        if (identity == null)
+            return null;
+
+        return getHash(identity);
+    }
+
+    public String getHash (MediaIdentity identity)
+    {
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.query(TABLE_MEDIA, new String[]{COL_SIZE, COL_MODIFIED, COL_INODE, COL_HASH},
+                    COL_KEY + "=?", new String[]{identity.getKey()}, null, null, null);
+
+            try {
+                if (!cursor.moveToFirst())
+                    return null;
+
+                MediaIdentity indexed = new MediaIdentity(identity.getKey(), cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+
+                if (indexed.matches(identity))
+                    return cursor.getString(3);
+            }
+            finally {
+                cursor.close();
+            }
+
+            //the media changed since it was indexed
+            Timber.d("media changed, dropping indexed hash for %s", identity.getKey());
+            invalidate(identity.getKey());
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to read media hash index");
+        }
+
+        return null;
+    }
+
+    public void putHash (Context context, Uri uri, String hash)
+    {
+        MediaIdentity identity = MediaIdentity.fromUri(context, uri);
+        if (identity != null)
+            putHash(identity, hash);
+    }
+
+    public void putHash (MediaIdentity identity, String hash)
+    {
+        if (hash == null)
+            return;
+
+        ContentValues values = new ContentValues();
+        values.put(COL_KEY, identity.getKey());
+        values.put(COL_SIZE, identity.getSize());
+        values.put(COL_MODIFIED, identity.getModified());
+        values.put(COL_INODE, identity.getInode());
+        values.put(COL_HASH, hash);
+        values.put(COL_INDEXED, System.currentTimeMillis());
+
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to update media hash index");
+        }
+    }
+
+    public void invalidate (String key)
+    {
+        try {
+            getWritableDatabase().delete(TABLE_MEDIA, COL_KEY + "=?", new String[]{key});
+        }
+        catch (SQLiteException sqle)
+        {
+            Timber.w(sqle, "unable to update media hash index");
+        }
+    }
+
+    /**
+     * Look up the hash of the media at uri, reading and indexing the media only if we have to
+     */
+    public String getOrComputeHash (Context context, Uri uri) throws FileNotFoundException
+    {
+        MediaIdentity identity = MediaIdentity.fromUri(context, uri);
+
+        if (identity != null) {
+            String hash = getHash(identity);
+            if (hash != null)
+                return hash;
+        }
+
+        ParcelFileDescriptor pfd = null;
+        InputStream is;
+
+        try {
+            //a plain stream on the descriptor lets the media be read through its FileChannel
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            is = pfd == null ? null : new FileInputStream(pfd.getFileDescriptor());
+        }
+        catch (FileNotFoundException e)
+        {
+            //not a whole file; the provider may still stream it
+            is = context.getContentResolver().openInputStream(uri);
+        }
+
+        if (is == null)
+            return null;
+
+        String hash = HashUtils.getSHA256FromFileContent(is);
+
+        try {
+            if (pfd != null)
+                pfd.close();
+            else
+                is.close();
+        } catch (IOException e) {
+            //already read everything we need
+        }
+
+        if (identity != null)
+            putHash(identity, hash);
+
+        return hash;
+    }
+}
@@ -0,0 +1,190 @@
+package org.witness.proofmode.storage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Cheap fingerprint of a media item (where it lives, its size, modification time and inode)
+ * that tells us whether its content may have changed without reading it.
+ */
+public class MediaIdentity {
+
+    public final static long UNKNOWN = -1;
+
+    private final String mKey;
+    private final long mSize;
+    private final long mModified;
+    private final long mInode;
+
+    public MediaIdentity (String key, long size, long modified, long inode)
+    {
+        mKey = key;
+        mSize = size;
+        mModified = modified;
+        mInode = inode;
+    }
+
+    /**
+     * The canonical file path when we can find one, otherwise the uri itself, so the same
+     * media reached through a file:// and a content:// uri shares one identity
+     */
+    public String getKey ()
+    {
+        return mKey;
+    }
+
+    public long getSize ()
+    {
+        return mSize;
+    }
+
+    public long getModified ()
+    {
+        return mModified;
+    }
+
+    public long getInode ()
+    {
+        return mInode;
+    }
+
+    /**
+     * @return true if other describes the same, unchanged media
+     */
+    public boolean matches (MediaIdentity other)
+    {
+        if (other == null || !mKey.equals(other.mKey))
+            return false;
+
+        if (mSize != other.mSize || mModified != other.mModified)
+            return false;
+
+        //only compare inodes when both sides could read them
+        return mInode == UNKNOWN || other.mInode == UNKNOWN || mInode == other.mInode;
+    }
+
+    /**
+     * Resolve the identity of the media behind uri without reading its content
+     *
+     * @return the identity, or null if size and modification time can't be determined
+     */
+    public static MediaIdentity fromUri (Context context, Uri uri)
+    {
+        String path = null;
+        long size = UNKNOWN;
+        long modified = UNKNOWN;
+
+        if (uri.getScheme() == null || uri.getScheme().equalsIgnoreCase(ContentResolver.SCHEME_FILE))
+        {
+            path = uri.getPath();
+        }
+        else if (uri.getScheme().equalsIgnoreCase(ContentResolver.SCHEME_CONTENT))
+        {
+            String[] projection = {MediaStore.MediaColumns.DATA, OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+
+            try {
+                Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null);
+
+                if (cursor != null) {
+                    if (cursor.moveToFirst()) {
+                        int colIdx = cursor.getColumnIndex(projection[0]);
+                        if (colIdx > -1)
+                            path = cursor.getString(colIdx);
+
+                        colIdx = cursor.getColumnIndex(projection[1]);
+                        if (colIdx > -1 && !cursor.isNull(colIdx))
+                            size = cursor.getLong(colIdx);
+
+                        colIdx = cursor.getColumnIndex(projection[2]);
+                        if (colIdx > -1 && !cursor.isNull(colIdx))
+                            modified = cursor.getLong(colIdx) * 1000L; //stored in seconds
+                    }
+
+                    cursor.close();
+                }
+            }
+            catch (RuntimeException re)
+            {
+                //not every provider supports these columns
+                Timber.d("unable to query media identity columns for %s", uri);
+            }
+        }
+
+        if (path != null)
+        {
+            File fileMedia = new File(path);
+            if (fileMedia.canRead())
+                return fromFile(fileMedia);
+        }
+
+        //try the descriptor itself, which works for most providers backed by a real file
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+                if (pfd != null) {
+                    try {
+                        StructStat st = Os.fstat(pfd.getFileDescriptor());
+                        if (st.st_size > 0)
+                            return new MediaIdentity(uri.toString(), st.st_size, getModifiedMs(st), st.st_ino);
+                    } finally {
+                        pfd.close();
+                    }
+                }
+            } catch (Exception e) {
+                Timber.d("unable to stat descriptor for %s", uri);
+            }
+        }
+
+        if (size == UNKNOWN || modified == UNKNOWN)
+            return null;
+
+        return new MediaIdentity(uri.toString(), size, modified, UNKNOWN);
+    }
+
+    public static MediaIdentity fromFile (File fileMedia)
+    {
+        String key;
+
+        try {
+            key = fileMedia.getCanonicalPath();
+        } catch (IOException e) {
+            key = fileMedia.getAbsolutePath();
+        }
+
+        long inode = UNKNOWN;
+        long modified = fileMedia.lastModified();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                StructStat st = Os.stat(key);
+                inode = st.st_ino;
+                modified = getModifiedMs(st);
+            } catch (Exception e) {
+                //fall back to java.io.File values
+            }
+        }
+
+        return new MediaIdentity(key, fileMedia.length(), modified, inode);
+    }
+
+    private static long getModifiedMs (StructStat st)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            return st.st_mtim.tv_sec * 1000L + st.st_mtim.tv_nsec / 1000000L;
+        else
+            return st.st_mtime * 1000L;
+    }
+}
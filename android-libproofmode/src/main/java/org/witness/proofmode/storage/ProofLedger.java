@@ -0,0 +1,846 @@
+package org.witness.proofmode.storage;
+
+import android.content.Context;
+
+import org.witness.proofmode.util.ProofRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Device-wide, append-only log of every proof row written, so all proofs can be queried
+ * without opening one proof folder per media file.
+ *
+ * The ledger is a series of segment files, each holding up to {@link #MAX_SEGMENT_SIZE} bytes
+ * of CRC-checked entries. Once a segment is full it is sealed, and an index of its entries
+ * (by time and by hash) is written next to it. Only the indexes are kept in memory, so
+ * queries by hash, by time range or by notarization state never touch the segments; the proof
+ * records themselves are read only when asked for.
+ *
+ * Entries are indexed by the capture time of their media, not by when they were logged, so the
+ * notarization rows added later for a capture are found in the same time range as it. A write
+ * that fails is cut off again right away, and a torn write at the end of the open segment
+ * (after a crash) is cut off when the ledger is next opened.
+ */
+public class ProofLedger {
+
+    private final static String LEDGER_DIR = "proofledger";
+    private final static String SEGMENT_EXT = ".seg";
+    private final static String INDEX_EXT = ".idx";
+
+    public final static long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final static int ENTRY_VERSION = 1;
+    private final static int INDEX_MAGIC = 0x50524c49; //PRLI
+    private final static int INDEX_VERSION = 1;
+
+    //frame header: payload length and crc
+    private final static int FRAME_HEADER_SIZE = 8;
+    private final static int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    /**
+     * Notarization flags of an entry, from the notarization type it was written for
+     */
+    public final static int NOTARIZED_NONE = 0;
+    public final static int NOTARIZED_OPENTIMESTAMPS = 1;
+    public final static int NOTARIZED_SAFETYNET = 2;
+    public final static int NOTARIZED_OTHER = 4;
+    public final static int NOTARIZED_BITCOIN = 8;
+
+    private static ProofLedger mInstance;
+
+    private final File mDir;
+    private final long mMaxSegmentSize;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    private Segment mActive;
+    private FileOutputStream mActiveOut;
+    private boolean mRollNext = false;
+
+    public static synchronized ProofLedger getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new ProofLedger(new File(context.getFilesDir(), LEDGER_DIR));
+
+        return mInstance;
+    }
+
+    public ProofLedger (File dir)
+    {
+        this(dir, MAX_SEGMENT_SIZE);
+    }
+
+    ProofLedger (File dir, long maxSegmentSize)
+    {
+        mDir = dir;
+        mMaxSegmentSize = maxSegmentSize;
+        mDir.mkdirs();
+        open();
+    }
+
+    private synchronized void open ()
+    {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_EXT);
+            }
+        });
+
+        if (files == null)
+            files = new File[0];
+
+        Arrays.sort(files);
+
+        for (int i = 0; i < files.length; i++) {
+            long number = parseSegmentNumber(files[i]);
+            if (number < 0)
+                continue;
+
+            Segment segment = new Segment(number, files[i]);
+            boolean last = i == files.length - 1;
+
+            //sealed segments have an index; the last one is still open and is rebuilt from its entries
+            if (last || !segment.loadIndex())
+                segment.rebuildIndex(last);
+
+            mSegments.add(segment);
+        }
+
+        if (!mSegments.isEmpty())
+            mActive = mSegments.get(mSegments.size() - 1);
+    }
+
+    /**
+     * Log a proof row for the media with the given hash
+     *
+     * @param notarizeType the notarization the row was written for (a file tag like ".ots"), or "none"
+     * @param time when the media was captured, in ms since the epoch; what {@link #findBetween}
+     *             matches against
+     */
+    public synchronized void append (String hash, String notarizeType, long time, ProofRecord record) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        DataOutputStream payload = new DataOutputStream(baos);
+        payload.writeByte(ENTRY_VERSION);
+        payload.writeLong(time);
+        payload.writeUTF(hash);
+        payload.writeUTF(notarizeType == null ? "none" : notarizeType);
+        record.writeTo(payload);
+        payload.flush();
+
+        byte[] data = baos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        byte[] frame = new byte[FRAME_HEADER_SIZE + data.length];
+        putInt(frame, 0, data.length);
+        putInt(frame, 4, (int) crc.getValue());
+        System.arraycopy(data, 0, frame, FRAME_HEADER_SIZE, data.length);
+
+        if (mActive == null || mRollNext || mActive.mSize + frame.length > mMaxSegmentSize)
+            roll();
+
+        if (mActiveOut == null)
+            mActiveOut = openSegment(mActive.mFile);
+
+        //one write per entry, so a crash leaves at most one torn entry at the end
+        try {
+            mActiveOut.write(frame);
+            mActiveOut.flush();
+        }
+        catch (IOException ioe)
+        {
+            //cut off what made it out, or every later entry would sit after a torn one
+            truncateActive();
+            throw ioe;
+        }
+
+        mActive.mIndex.add(time, mActive.mSize, getNotarizedFlag(notarizeType), hash);
+        mActive.mSize += frame.length;
+    }
+
+    FileOutputStream openSegment (File file) throws IOException
+    {
+        return new FileOutputStream(file, true);
+    }
+
+    /**
+     * Seal the open segment and start a new one
+     */
+    private void roll () throws IOException
+    {
+        long number = 1;
+
+        if (mActive != null) {
+            closeActive();
+            mActive.writeIndex();
+            number = mActive.mNumber + 1;
+        }
+
+        mRollNext = false;
+
+        mActive = new Segment(number, new File(mDir, String.format(Locale.US, "%08d", number) + SEGMENT_EXT));
+        mSegments.add(mActive);
+    }
+
+    private void truncateActive ()
+    {
+        try {
+            mActiveOut.close();
+        }
+        catch (IOException ioe)
+        {
+            //it is reopened for the next entry anyway
+        }
+
+        mActiveOut = null;
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mActive.mFile, "rw");
+
+            try {
+                raf.setLength(mActive.mSize);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            Timber.w(ioe, "unable to cut off a failed write to proof ledger segment %s", mActive.mFile);
+
+            //leave the torn entry last in its segment, where opening the ledger expects it
+            mRollNext = true;
+        }
+    }
+
+    private void closeActive ()
+    {
+        if (mActiveOut == null)
+            return;
+
+        try {
+            mActiveOut.getFD().sync();
+            mActiveOut.close();
+        }
+        catch (IOException ioe)
+        {
+            Timber.w(ioe, "error closing proof ledger segment");
+        }
+
+        mActiveOut = null;
+    }
+
+    public synchronized void close ()
+    {
+        closeActive();
+    }
+
+    public static int getNotarizedFlag (String notarizeType)
+    {
+        if (notarizeType == null || notarizeType.equals("none"))
+            return NOTARIZED_NONE;
+        else if (notarizeType.equals(".ots"))
+            return NOTARIZED_OPENTIMESTAMPS;
+        else if (notarizeType.equals(".ots.btc"))
+            return NOTARIZED_OPENTIMESTAMPS | NOTARIZED_BITCOIN;
+        else if (notarizeType.equals(".gst"))
+            return NOTARIZED_SAFETYNET;
+        else
+            return NOTARIZED_OTHER;
+    }
+
+    /**
+     * @return every entry for the hash, oldest first
+     */
+    public synchronized List<Entry> findByHash (String hash)
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        for (Segment segment : mSegments)
+            segment.mIndex.findByHash(segment, hash, entries);
+
+        return entries;
+    }
+
+    /**
+     * @return the entries for media captured from (inclusive) to (exclusive), in time order
+     */
+    public synchronized List<Entry> findBetween (long from, long to)
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        for (Segment segment : mSegments) {
+            SegmentIndex index = segment.mIndex;
+            if (index.mCount == 0 || index.getMaxTime() < from || index.getMinTime() >= to)
+                continue;
+
+            index.findBetween(segment, from, to, entries);
+        }
+
+        //rows for older captures (notarizations, upgrades) land in later segments
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.mTime < b.mTime ? -1 : (a.mTime == b.mTime ? 0 : 1);
+            }
+        });
+
+        return entries;
+    }
+
+    /**
+     * @param notarized the NOTARIZED_ flags to look for, e.g. NOTARIZED_OPENTIMESTAMPS, or all
+     *                  of them for "not notarized at all"
+     * @return the hashes of all media in the ledger with none of those notarizations, in the
+     * order they were first logged
+     */
+    public List<String> findLackingNotarization (int notarized)
+    {
+        return findByNotarization(0, notarized);
+    }
+
+    public List<String> findLackingNotarization ()
+    {
+        return findLackingNotarization(NOTARIZED_OPENTIMESTAMPS | NOTARIZED_SAFETYNET | NOTARIZED_OTHER);
+    }
+
+    /**
+     * @param having NOTARIZED_ flags of which the media must have at least one, or 0 for any media
+     * @param lacking NOTARIZED_ flags of which the media must have none, e.g. NOTARIZED_BITCOIN
+     *                with having NOTARIZED_OPENTIMESTAMPS for .ots files still to be upgraded
+     * @return the hashes of the matching media, in the order they were first logged
+     */
+    public synchronized List<String> findByNotarization (int having, int lacking)
+    {
+        Map<String, Integer> flags = new HashMap<>();
+        List<String> order = new ArrayList<>();
+
+        for (Segment segment : mSegments) {
+            SegmentIndex index = segment.mIndex;
+            for (int i = 0; i < index.mCount; i++) {
+                Integer existing = flags.get(index.mHashes[i]);
+                if (existing == null)
+                    order.add(index.mHashes[i]);
+                flags.put(index.mHashes[i], (existing == null ? 0 : existing) | index.mFlags[i]);
+            }
+        }
+
+        List<String> found = new ArrayList<>();
+        for (String hash : order) {
+            int notarized = flags.get(hash);
+            if ((having == 0 || (notarized & having) != 0) && (notarized & lacking) == 0)
+                found.add(hash);
+        }
+
+        return found;
+    }
+
+    public synchronized int getEntryCount ()
+    {
+        int count = 0;
+        for (Segment segment : mSegments)
+            count += segment.mIndex.mCount;
+        return count;
+    }
+
+    /**
+     * Read the proof record logged for an entry
+     */
+    public ProofRecord readRecord (Entry entry) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(entry.mSegment.mFile, "r");
+
+        try {
+            return readEntry(raf, entry.mOffset).mRecord;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the records of many entries, opening each segment once
+     */
+    public void readRecords (List<Entry> entries, Visitor visitor) throws IOException
+    {
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.mSegment != b.mSegment)
+                    return a.mSegment.mNumber < b.mSegment.mNumber ? -1 : 1;
+                return a.mOffset < b.mOffset ? -1 : (a.mOffset == b.mOffset ? 0 : 1);
+            }
+        });
+
+        RandomAccessFile raf = null;
+        Segment current = null;
+
+        try {
+            for (Entry entry : sorted) {
+                if (entry.mSegment != current) {
+                    if (raf != null)
+                        raf.close();
+                    current = entry.mSegment;
+                    raf = new RandomAccessFile(current.mFile, "r");
+                }
+
+                if (!visitor.visit(entry, readEntry(raf, entry.mOffset).mRecord))
+                    return;
+            }
+        }
+        finally {
+            if (raf != null)
+                raf.close();
+        }
+    }
+
+    private static RawEntry readEntry (RandomAccessFile raf, long offset) throws IOException
+    {
+        raf.seek(offset);
+
+        int length = raf.readInt();
+        int crc = raf.readInt();
+        if (length < 0 || length > MAX_ENTRY_SIZE)
+            throw new IOException("corrupt proof ledger entry at " + offset);
+
+        byte[] data = new byte[length];
+        raf.readFully(data);
+
+        return parseEntry(data, length, crc, offset, true);
+    }
+
+    /**
+     * @param withRecord also decode the proof record, not just the fields the index needs
+     */
+    private static RawEntry parseEntry (byte[] data, int length, int crc, long offset, boolean withRecord) throws IOException
+    {
+        CRC32 check = new CRC32();
+        check.update(data, 0, length);
+        if ((int) check.getValue() != crc)
+            throw new IOException("proof ledger entry at " + offset + " fails its checksum");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+
+        int version = in.readUnsignedByte();
+        if (version != ENTRY_VERSION)
+            throw new IOException("unknown proof ledger entry version " + version);
+
+        RawEntry entry = new RawEntry();
+        entry.mTime = in.readLong();
+        entry.mHash = in.readUTF();
+        entry.mNotarizeType = in.readUTF();
+        if (withRecord)
+            entry.mRecord = ProofRecord.readFrom(in);
+        return entry;
+    }
+
+    private static long parseSegmentNumber (File file)
+    {
+        String name = file.getName();
+
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length()));
+        }
+        catch (NumberFormatException nfe)
+        {
+            return -1;
+        }
+    }
+
+    private static void putInt (byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    public interface Visitor {
+
+        /**
+         * @return false to stop reading
+         */
+        public boolean visit(Entry entry, ProofRecord record);
+
+    }
+
+    /**
+     * Where one proof row is in the ledger, and what it is for
+     */
+    public static class Entry {
+
+        private final Segment mSegment;
+        private final long mOffset;
+        private final long mTime;
+        private final String mHash;
+        private final int mNotarized;
+
+        private Entry (Segment segment, long offset, long time, String hash, int notarized)
+        {
+            mSegment = segment;
+            mOffset = offset;
+            mTime = time;
+            mHash = hash;
+            mNotarized = notarized;
+        }
+
+        /**
+         * @return when the media of the row was captured, in ms since the epoch
+         */
+        public long getTime ()
+        {
+            return mTime;
+        }
+
+        public String getHash ()
+        {
+            return mHash;
+        }
+
+        /**
+         * @return one of the NOTARIZED_ flags
+         */
+        public int getNotarized ()
+        {
+            return mNotarized;
+        }
+    }
+
+    private static class RawEntry {
+        long mTime;
+        String mHash;
+        String mNotarizeType;
+        ProofRecord mRecord;
+    }
+
+    private static class Segment {
+
+        final long mNumber;
+        final File mFile;
+        final SegmentIndex mIndex = new SegmentIndex();
+        long mSize;
+
+        Segment (long number, File file)
+        {
+            mNumber = number;
+            mFile = file;
+            mSize = file.length();
+        }
+
+        File getIndexFile ()
+        {
+            String name = mFile.getName();
+            return new File(mFile.getParentFile(), name.substring(0, name.length() - SEGMENT_EXT.length()) + INDEX_EXT);
+        }
+
+        boolean loadIndex ()
+        {
+            File fileIndex = getIndexFile();
+            if (!fileIndex.exists())
+                return false;
+
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileIndex)));
+
+                try {
+                    if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+                        return false;
+
+                    long segmentSize = in.readLong();
+                    if (segmentSize != mSize)
+                        return false;
+
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++)
+                        mIndex.add(in.readLong(), in.readLong(), in.readByte(), in.readUTF());
+                }
+                finally {
+                    in.close();
+                }
+
+                return true;
+            }
+            catch (IOException ioe)
+            {
+                Timber.w(ioe, "unable to read proof ledger index %s", fileIndex);
+                mIndex.clear();
+                return false;
+            }
+        }
+
+        /**
+         * Scan the segment itself; for the last segment a torn entry at the end is cut off
+         */
+        void rebuildIndex (boolean truncateTail)
+        {
+            mIndex.clear();
+            long offset = 0;
+
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 1024 * 64));
+
+                try {
+                    byte[] data = new byte[4096];
+
+                    while (offset < mSize) {
+                        int length;
+                        int crc;
+
+                        try {
+                            length = in.readInt();
+                            crc = in.readInt();
+                            if (length < 0 || length > MAX_ENTRY_SIZE)
+                                break;
+                            if (data.length < length)
+                                data = new byte[length];
+                            in.readFully(data, 0, length);
+                        }
+                        catch (EOFException eof)
+                        {
+                            break;
+                        }
+
+                        RawEntry entry;
+                        try {
+                            entry = parseEntry(data, length, crc, offset, false);
+                        }
+                        catch (IOException ioe)
+                        {
+                            break;
+                        }
+
+                        mIndex.add(entry.mTime, offset, getNotarizedFlag(entry.mNotarizeType), entry.mHash);
+                        offset += FRAME_HEADER_SIZE + length;
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException ioe)
+            {
+                Timber.w(ioe, "error reading proof ledger segment %s", mFile);
+            }
+
+            if (offset < mSize) {
+                Timber.w("proof ledger segment %s is damaged after %d bytes", mFile, offset);
+
+                if (truncateTail) {
+                    try {
+                        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                        raf.setLength(offset);
+                        raf.close();
+                        mSize = offset;
+                    }
+                    catch (IOException ioe)
+                    {
+                        Timber.w(ioe, "unable to repair proof ledger segment %s", mFile);
+                    }
+                }
+            }
+            else if (!truncateTail) {
+                //a sealed segment that lost its index
+                writeIndex();
+            }
+        }
+
+        void writeIndex ()
+        {
+            File fileIndex = getIndexFile();
+            File fileTmp = new File(fileIndex.getPath() + ".tmp");
+
+            try {
+                FileOutputStream fos = new FileOutputStream(fileTmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+                try {
+                    out.writeInt(INDEX_MAGIC);
+                    out.writeInt(INDEX_VERSION);
+                    out.writeLong(mSize);
+                    out.writeInt(mIndex.mCount);
+
+                    for (int i = 0; i < mIndex.mCount; i++) {
+                        out.writeLong(mIndex.mTimes[i]);
+                        out.writeLong(mIndex.mOffsets[i]);
+                        out.writeByte(mIndex.mFlags[i]);
+                        out.writeUTF(mIndex.mHashes[i]);
+                    }
+
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                finally {
+                    out.close();
+                }
+
+                if (!fileTmp.renameTo(fileIndex))
+                    Timber.w("unable to save proof ledger index %s", fileIndex);
+            }
+            catch (IOException ioe)
+            {
+                Timber.w(ioe, "unable to write proof ledger index %s", fileIndex);
+                fileTmp.delete();
+            }
+        }
+    }
+
+    /**
+     * In-memory index of one segment: its entries in log order, plus the same entries sorted
+     * by time and by hash (built when first needed)
+     */
+    private static class SegmentIndex {
+
+        int mCount = 0;
+        long[] mTimes = new long[64];
+        long[] mOffsets = new long[64];
+        byte[] mFlags = new byte[64];
+        String[] mHashes = new String[64];
+
+        private Integer[] mByTime;
+        private Integer[] mByHash;
+
+        void add (long time, long offset, int flags, String hash)
+        {
+            if (mCount == mTimes.length) {
+                int capacity = mCount * 2;
+                mTimes = Arrays.copyOf(mTimes, capacity);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+                mHashes = Arrays.copyOf(mHashes, capacity);
+            }
+
+            mTimes[mCount] = time;
+            mOffsets[mCount] = offset;
+            mFlags[mCount] = (byte) flags;
+            mHashes[mCount] = hash;
+            mCount++;
+
+            mByTime = null;
+            mByHash = null;
+        }
+
+        void clear ()
+        {
+            mCount = 0;
+            mByTime = null;
+            mByHash = null;
+        }
+
+        long getMinTime ()
+        {
+            return mTimes[getByTime()[0]];
+        }
+
+        long getMaxTime ()
+        {
+            Integer[] byTime = getByTime();
+            return mTimes[byTime[byTime.length - 1]];
+        }
+
+        private Integer[] getByTime ()
+        {
+            if (mByTime == null) {
+                mByTime = positions();
+                Arrays.sort(mByTime, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        long ta = mTimes[a], tb = mTimes[b];
+                        return ta < tb ? -1 : (ta == tb ? a - b : 1);
+                    }
+                });
+            }
+
+            return mByTime;
+        }
+
+        private Integer[] getByHash ()
+        {
+            if (mByHash == null) {
+                mByHash = positions();
+                Arrays.sort(mByHash, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        int byHash = mHashes[a].compareTo(mHashes[b]);
+                        return byHash != 0 ? byHash : a - b;
+                    }
+                });
+            }
+
+            return mByHash;
+        }
+
+        private Integer[] positions ()
+        {
+            Integer[] positions = new Integer[mCount];
+            for (int i = 0; i < mCount; i++)
+                positions[i] = i;
+            return positions;
+        }
+
+        void findBetween (Segment segment, long from, long to, List<Entry> entries)
+        {
+            Integer[] byTime = getByTime();
+
+            //first entry at or after from
+            int lo = 0, hi = byTime.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mTimes[byTime[mid]] < from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            for (int i = lo; i < byTime.length && mTimes[byTime[i]] < to; i++)
+                entries.add(entry(segment, byTime[i]));
+        }
+
+        void findByHash (Segment segment, String hash, List<Entry> entries)
+        {
+            Integer[] byHash = getByHash();
+
+            int lo = 0, hi = byHash.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mHashes[byHash[mid]].compareTo(hash) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            for (int i = lo; i < byHash.length && mHashes[byHash[i]].equals(hash); i++)
+                entries.add(entry(segment, byHash[i]));
+        }
+
+        private Entry entry (Segment segment, int position)
+        {
+            return new Entry(segment, mOffsets[position], mTimes[position], mHashes[position], mFlags[position]);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.witness.proofmode.storage;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Where the proof folder for each media hash lives.
+ *
+ * Folders used to sit directly under one proofmode/ parent, which gets slow to search and
+ * back up with tens of thousands of captures. They are now fanned out two levels deep by hash
+ * prefix, so proofmode/3f/a2/3fa2.../ holds the proof for hash 3fa2..., and no folder holds
+ * more than 256 entries until well past a million captures. Names that are not hashes (like
+ * "batch") stay at the top level.
+ *
+ * Folders in the old flat layout are moved the first time they are looked up, and all of them
+ * are moved in the background by {@link #migrate()}. Folders known to exist are remembered, so
+ * repeat lookups do no file system work at all, and creating a new folder only touches the
+ * folders on its own path.
+ */
+public class ProofStorage {
+
+    private final static String PROOF_BASE_FOLDER = "proofmode";
+
+    //written once every flat folder has been moved, so lookups stop checking for them
+    private final static String MIGRATED_MARKER = ".sharded";
+
+    private final static int SHARD_LEVELS = 2;
+    private final static int SHARD_WIDTH = 2;
+
+    private static ProofStorage mInstance;
+
+    private final File mBaseDir;
+
+    private final ConcurrentHashMap<String, File> mKnownDirs = new ConcurrentHashMap<>();
+
+    private volatile boolean mMigrated;
+    private boolean mMigrating = false;
+
+    public static synchronized ProofStorage getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new ProofStorage(new File(context.getFilesDir(), PROOF_BASE_FOLDER));
+
+        return mInstance;
+    }
+
+    public ProofStorage (File baseDir)
+    {
+        mBaseDir = baseDir;
+        mMigrated = new File(mBaseDir, MIGRATED_MARKER).exists();
+    }
+
+    public File getBaseDir ()
+    {
+        return mBaseDir;
+    }
+
+    /**
+     * @return true once no folders are left in the old flat layout
+     */
+    public boolean isMigrated ()
+    {
+        return mMigrated;
+    }
+
+    /**
+     * @return the folder for the hash (or other name), without creating it
+     */
+    public File getDir (String hash)
+    {
+        File dir = mKnownDirs.get(hash);
+        if (dir != null)
+            return dir;
+
+        return new File(getShardDir(hash), hash);
+    }
+
+    /**
+     * @return the folder for the hash (or other name), created if needed, or null if it can't be
+     */
+    public File getOrCreateDir (String hash)
+    {
+        File dir = mKnownDirs.get(hash);
+        if (dir != null)
+            return dir;
+
+        dir = new File(getShardDir(hash), hash);
+
+        if (!mMigrated)
+            moveFlatDir(hash, dir);
+
+        //the folder usually exists, or only it is missing; only create the shards when they are missing too
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            if (!dir.mkdirs() && !dir.isDirectory())
+                return null;
+        }
+
+        mKnownDirs.put(hash, dir);
+        return dir;
+    }
+
+    private File getShardDir (String hash)
+    {
+        if (!isShardable(hash))
+            return mBaseDir;
+
+        StringBuilder path = new StringBuilder(SHARD_LEVELS * (SHARD_WIDTH + 1));
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            if (i > 0)
+                path.append(File.separatorChar);
+            path.append(hash, i * SHARD_WIDTH, (i + 1) * SHARD_WIDTH);
+        }
+
+        return new File(mBaseDir, path.toString().toLowerCase());
+    }
+
+    private static boolean isShardable (String hash)
+    {
+        if (hash.length() <= SHARD_LEVELS * SHARD_WIDTH)
+            return false;
+
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Move a folder in the old flat layout to its shard, if there is one
+     *
+     * @return true if the flat folder is gone, false if there was none or some of it is left
+     */
+    private synchronized boolean moveFlatDir (String hash, File dir)
+    {
+        if (!isShardable(hash))
+            return false;
+
+        File flatDir = new File(mBaseDir, hash);
+        if (!flatDir.isDirectory())
+            return false;
+
+        File shardDir = dir.getParentFile();
+        if (!shardDir.isDirectory() && !shardDir.mkdirs()) {
+            Timber.w("unable to create proof folder %s", shardDir);
+            return false;
+        }
+
+        if (flatDir.renameTo(dir))
+            return true;
+
+        //the sharded folder was already started; move what it doesn't have yet
+        File[] files = flatDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                File target = new File(dir, file.getName());
+                if (!target.exists() && !file.renameTo(target))
+                    Timber.w("unable to move proof file %s", file);
+            }
+        }
+
+        if (!flatDir.delete()) {
+            Timber.w("proof folder %s was not fully moved", flatDir);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Move every folder still in the old flat layout to its shard. Slow with many captures, so
+     * call it off the main thread; lookups keep working while it runs. If any folder can't be
+     * moved the storage isn't marked as migrated, so lookups keep finding what is left and the
+     * next run tries again.
+     *
+     * @return the number of folders moved
+     */
+    public int migrate ()
+    {
+        synchronized (this) {
+            if (mMigrated || mMigrating)
+                return 0;
+            mMigrating = true;
+        }
+
+        int moved = 0;
+        List<String> failed = new ArrayList<>();
+
+        try {
+            String[] names = mBaseDir.list();
+
+            if (names != null) {
+                for (String name : names) {
+                    if (!isShardable(name))
+                        continue;
+
+                    File flatDir = new File(mBaseDir, name);
+                    if (!flatDir.isDirectory())
+                        continue;
+
+                    if (moveFlatDir(name, new File(getShardDir(name), name)))
+                        moved++;
+                    else if (flatDir.exists()) //not just moved by a lookup meanwhile
+                        failed.add(name);
+                }
+            }
+
+            if (!failed.isEmpty())
+                Timber.w("unable to move %d proof folders to the sharded layout: %s", failed.size(), failed);
+            else if (mBaseDir.isDirectory() || mBaseDir.mkdirs()) {
+                if (new File(mBaseDir, MIGRATED_MARKER).createNewFile() || new File(mBaseDir, MIGRATED_MARKER).exists())
+                    mMigrated = true;
+            }
+
+            if (moved > 0)
+                Timber.d("moved %d proof folders to the sharded layout", moved);
+        }
+        catch (IOException ioe)
+        {
+            Timber.w(ioe, "unable to finish moving proof folders");
+        }
+        finally {
+            synchronized (this) {
+                mMigrating = false;
+            }
+        }
+
+        return moved;
+    }
+}
@@ -311,6 +311,55 @@ public class DeviceInfo {
         return sb.toString();
     }
 
+    /**
+     * Everything we report from the network interfaces, from a single enumeration of them
+     *
+     * @return the IPv4 addresses, IPv6 addresses and wlan0 MAC address, formatted as by
+     * {@link #getIPAddress(boolean)} and {@link #getWifiMacAddr()}
+     */
+    static String[] getInterfaceInfo() {
+        StringBuilder sbIPv4 = new StringBuilder();
+        StringBuilder sbIPv6 = new StringBuilder();
+        String wifiMac = null;
+
+        try {
+
+            List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+            for (NetworkInterface intf : interfaces) {
+                if (wifiMac == null && intf.getName().equalsIgnoreCase("wlan0")) {
+                    byte[] macBytes = intf.getHardwareAddress();
+                    StringBuilder res1 = new StringBuilder();
+                    if (macBytes != null) {
+                        for (byte b : macBytes)
+                            res1.append(Integer.toHexString(b & 0xFF)).append(':');
+                        if (res1.length() > 0)
+                            res1.deleteCharAt(res1.length() - 1);
+                    }
+                    wifiMac = res1.toString();
+                }
+
+                List<InetAddress> addrs = Collections.list(intf.getInetAddresses());
+                for (InetAddress addr : addrs) {
+                    if (!addr.isLoopbackAddress()) {
+                        String sAddr = addr.getHostAddress().toUpperCase();
+                        if (addr instanceof Inet4Address) {
+                            sbIPv4.append(sAddr).append(' ');
+                        } else {
+                            int delim = sAddr.indexOf('%'); // drop ip6 port suffix
+                            sbIPv6.append(delim < 0 ? sAddr : sAddr.substring(0, delim)).append(' ');
+                        }
+                    }
+                }
+            }
+        } catch (Exception ex) {
+        } // for now eat exceptions
+
+        if (wifiMac == null)
+            wifiMac = "02:00:00:00:00:00";
+
+        return new String[] {sbIPv4.toString(), sbIPv6.toString(), wifiMac};
+    }
+
     /*
      *
      * @return integer Array with 4 elements: user, system, idle and other cpu
@@ -0,0 +1,544 @@
+package org.witness.proofmode.util;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.telephony.CellInfo;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
+
+import androidx.core.app.ActivityCompat;
+
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the device details that go into proof, so generating proof doesn't query the system
+ * (and enumerate the network interfaces several times) for every capture.
+ *
+ * Fields that never change are collected once. Network fields are refreshed when connectivity
+ * changes, cell info when the telephony service reports new cells (or once it is
+ * {@link #CELL_MAX_AGE_MS} old), and language and screen size on configuration changes. All
+ * refreshes run on a background thread; {@link #getSnapshot()} just hands out the current
+ * immutable {@link Snapshot}.
+ *
+ * The connectivity and telephony listeners only run while the proof settings that use them are
+ * on (see {@link #start(boolean, boolean)}). Without the connectivity listener network fields
+ * are collected again once they are {@link #NETWORK_MAX_AGE_MS} old, and without the telephony
+ * listener cells are not collected at all.
+ */
+public class DeviceInfoCache {
+
+    //neighbouring cell signal strengths drift without callbacks on some devices
+    public final static long CELL_MAX_AGE_MS = 60 * 1000;
+
+    //how long network fields are trusted when nothing tells us they changed
+    public final static long NETWORK_MAX_AGE_MS = 60 * 1000;
+
+    //connectivity callbacks come in bursts when switching networks
+    private final static long REFRESH_DELAY_MS = 500;
+
+    private static DeviceInfoCache mInstance;
+
+    private final Context mContext;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private volatile Snapshot mSnapshot;
+
+    private BroadcastReceiver mConnectivityReceiver;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private PhoneStateListener mPhoneStateListener;
+    private ComponentCallbacks mConfigCallbacks;
+
+    private volatile boolean mWatchNetwork;
+    private volatile boolean mWatchCells;
+
+    private DeviceInfoCache (Context context)
+    {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized DeviceInfoCache getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new DeviceInfoCache(context);
+
+        return mInstance;
+    }
+
+    /**
+     * @return the current device details, collecting them first if this is the first call
+     */
+    public Snapshot getSnapshot ()
+    {
+        Snapshot snapshot = mSnapshot;
+
+        if (snapshot == null)
+            return current();
+
+        if (!mWatchNetwork && SystemClock.elapsedRealtime() - snapshot.mNetworkCollected > NETWORK_MAX_AGE_MS) {
+            //nothing tells us when the network changes, so look again now
+            snapshot = snapshot.copy();
+            collectNetwork(snapshot);
+            mSnapshot = snapshot;
+        }
+
+        if (mWatchCells && SystemClock.elapsedRealtime() - snapshot.mCellCollected > CELL_MAX_AGE_MS) {
+            //still hand out the old cells this time rather than wait for the telephony service
+            scheduleRefresh(mRefreshCells);
+        }
+
+        return snapshot;
+    }
+
+    private Snapshot current ()
+    {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null)
+            return snapshot;
+
+        synchronized (this) {
+            if (mSnapshot == null)
+                mSnapshot = collectAll();
+            return mSnapshot;
+        }
+    }
+
+    /**
+     * Collect everything and start listening for changes. Call it again when the proof settings
+     * change, to start or stop the listeners that depend on them.
+     *
+     * @param watchNetwork listen for connectivity changes, for the network fields
+     * @param watchCells listen to the telephony service, for the cell info
+     */
+    public synchronized void start (boolean watchNetwork, boolean watchCells)
+    {
+        if (mThread == null) {
+            mThread = new HandlerThread("DeviceInfo");
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    current();
+                }
+            });
+
+            listenForConfiguration();
+        }
+
+        if (watchNetwork && !mWatchNetwork) {
+            listenForConnectivity();
+            //it may have changed while nobody was listening
+            scheduleRefresh(mRefreshNetwork);
+        }
+        else if (!watchNetwork && mWatchNetwork)
+            stopConnectivity();
+
+        if (watchCells && !mWatchCells) {
+            listenForCells();
+            scheduleRefresh(mRefreshCells);
+        }
+        else if (!watchCells && mWatchCells)
+            stopCells();
+
+        mWatchNetwork = watchNetwork;
+        mWatchCells = watchCells;
+    }
+
+    public synchronized void stop ()
+    {
+        if (mThread == null)
+            return;
+
+        stopConnectivity();
+        stopCells();
+
+        mWatchNetwork = false;
+        mWatchCells = false;
+
+        if (mConfigCallbacks != null) {
+            mContext.unregisterComponentCallbacks(mConfigCallbacks);
+            mConfigCallbacks = null;
+        }
+
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    private void stopConnectivity ()
+    {
+        ConnectivityManager connMgr = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        try {
+            if (mNetworkCallback != null)
+                connMgr.unregisterNetworkCallback(mNetworkCallback);
+            if (mConnectivityReceiver != null)
+                mContext.unregisterReceiver(mConnectivityReceiver);
+        }
+        catch (RuntimeException re)
+        {
+            Timber.d(re, "connectivity listener was already gone");
+        }
+
+        mNetworkCallback = null;
+        mConnectivityReceiver = null;
+    }
+
+    private void stopCells ()
+    {
+        if (mPhoneStateListener != null) {
+            TelephonyManager tel = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            if (tel != null)
+                tel.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mPhoneStateListener = null;
+        }
+    }
+
+    private synchronized void scheduleRefresh (Runnable refresh)
+    {
+        if (mHandler == null)
+            return;
+
+        mHandler.removeCallbacks(refresh);
+        mHandler.postDelayed(refresh, REFRESH_DELAY_MS);
+    }
+
+    private final Runnable mRefreshNetwork = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot snapshot = current().copy();
+            collectNetwork(snapshot);
+            //the data type and cells usually change along with the network
+            if (mWatchCells)
+                collectCells(snapshot);
+            mSnapshot = snapshot;
+        }
+    };
+
+    private final Runnable mRefreshCells = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot snapshot = current().copy();
+            collectCells(snapshot);
+            mSnapshot = snapshot;
+        }
+    };
+
+    private final Runnable mRefreshConfiguration = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot snapshot = current().copy();
+            collectConfiguration(snapshot);
+            mSnapshot = snapshot;
+        }
+    };
+
+    private void listenForConnectivity ()
+    {
+        ConnectivityManager connMgr = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    scheduleRefresh(mRefreshNetwork);
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    scheduleRefresh(mRefreshNetwork);
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    //addresses changed
+                    scheduleRefresh(mRefreshNetwork);
+                }
+            };
+
+            try {
+                connMgr.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkCallback);
+            }
+            catch (RuntimeException re)
+            {
+                Timber.d(re, "unable to listen for network changes");
+                mNetworkCallback = null;
+            }
+        }
+        else
+        {
+            mConnectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    scheduleRefresh(mRefreshNetwork);
+                }
+            };
+
+            mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, mHandler);
+        }
+    }
+
+    private void listenForCells ()
+    {
+        final TelephonyManager tel = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        if (tel == null)
+            return;
+
+        //the listener takes the looper of the thread it is created on
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PhoneStateListener listener = new PhoneStateListener() {
+                    @Override
+                    public void onCellInfoChanged(List<CellInfo> cellInfo) {
+                        scheduleRefresh(mRefreshCells);
+                    }
+
+                    @Override
+                    public void onDataConnectionStateChanged(int state, int networkType) {
+                        scheduleRefresh(mRefreshNetwork);
+                    }
+                };
+
+                int events = PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
+                if (hasLocationPermission())
+                    events |= PhoneStateListener.LISTEN_CELL_INFO;
+
+                try {
+                    tel.listen(listener, events);
+                }
+                catch (SecurityException se)
+                {
+                    tel.listen(listener, PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
+                }
+
+                synchronized (DeviceInfoCache.this) {
+                    if (mThread != null && mWatchCells && mPhoneStateListener == null)
+                        mPhoneStateListener = listener;
+                    else
+                        tel.listen(listener, PhoneStateListener.LISTEN_NONE);
+                }
+            }
+        });
+    }
+
+    private void listenForConfiguration ()
+    {
+        mConfigCallbacks = new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                scheduleRefresh(mRefreshConfiguration);
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        };
+
+        mContext.registerComponentCallbacks(mConfigCallbacks);
+    }
+
+    private boolean hasLocationPermission ()
+    {
+        return ActivityCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private Snapshot collectAll ()
+    {
+        Snapshot snapshot = new Snapshot();
+
+        snapshot.mDeviceId = DeviceInfo.getDeviceId(mContext);
+        snapshot.mHardware = DeviceInfo.getDeviceInfo(mContext, DeviceInfo.Device.DEVICE_HARDWARE_MODEL);
+        snapshot.mManufacturer = DeviceInfo.getDeviceInfo(mContext, DeviceInfo.Device.DEVICE_MANUFACTURE);
+
+        collectConfiguration(snapshot);
+        collectNetwork(snapshot);
+        if (mWatchCells)
+            collectCells(snapshot);
+
+        return snapshot;
+    }
+
+    private void collectConfiguration (Snapshot snapshot)
+    {
+        snapshot.mScreenSize = DeviceInfo.getDeviceInch(mContext);
+        snapshot.mLanguage = DeviceInfo.getDeviceInfo(mContext, DeviceInfo.Device.DEVICE_LANGUAGE);
+        snapshot.mLocale = DeviceInfo.getDeviceInfo(mContext, DeviceInfo.Device.DEVICE_LOCALE);
+    }
+
+    private void collectNetwork (Snapshot snapshot)
+    {
+        snapshot.mNetworkCollected = SystemClock.elapsedRealtime();
+
+        String[] interfaceInfo = DeviceInfo.getInterfaceInfo();
+        snapshot.mIPv4 = interfaceInfo[0];
+        snapshot.mIPv6 = interfaceInfo[1];
+        snapshot.mWifiMac = interfaceInfo[2];
+
+        snapshot.mNetwork = DeviceInfo.getDeviceInfo(mContext, DeviceInfo.Device.DEVICE_NETWORK);
+
+        try {
+            snapshot.mDataType = DeviceInfo.getDataType(mContext);
+        }
+        catch (RuntimeException re)
+        {
+            snapshot.mDataType = "";
+        }
+
+        try {
+            snapshot.mNetworkType = DeviceInfo.getNetworkType(mContext);
+        }
+        catch (RuntimeException re)
+        {
+            snapshot.mNetworkType = "";
+        }
+    }
+
+    private void collectCells (Snapshot snapshot)
+    {
+        snapshot.mCellCollected = SystemClock.elapsedRealtime();
+
+        try {
+            snapshot.mCellInfo = DeviceInfo.getCellInfo(mContext);
+        }
+        catch (RuntimeException re)
+        {
+            //no permission, or no telephony at all
+            snapshot.mCellInfo = null;
+        }
+    }
+
+    /**
+     * Device details at one point in time, as written into proof. Never changes once handed out.
+     */
+    public static class Snapshot {
+
+        private String mDeviceId;
+        private String mWifiMac;
+        private String mIPv4;
+        private String mIPv6;
+        private String mDataType;
+        private String mNetwork;
+        private String mNetworkType;
+        private String mHardware;
+        private String mManufacturer;
+        private String mScreenSize;
+        private String mLanguage;
+        private String mLocale;
+        private String mCellInfo;
+        private long mCellCollected;
+        private long mNetworkCollected;
+
+        private Snapshot ()
+        {
+        }
+
+        private Snapshot copy ()
+        {
+            Snapshot copy = new Snapshot();
+            copy.mDeviceId = mDeviceId;
+            copy.mWifiMac = mWifiMac;
+            copy.mIPv4 = mIPv4;
+            copy.mIPv6 = mIPv6;
+            copy.mDataType = mDataType;
+            copy.mNetwork = mNetwork;
+            copy.mNetworkType = mNetworkType;
+            copy.mHardware = mHardware;
+            copy.mManufacturer = mManufacturer;
+            copy.mScreenSize = mScreenSize;
+            copy.mLanguage = mLanguage;
+            copy.mLocale = mLocale;
+            copy.mCellInfo = mCellInfo;
+            copy.mCellCollected = mCellCollected;
+            copy.mNetworkCollected = mNetworkCollected;
+            return copy;
+        }
+
+        public String getDeviceId ()
+        {
+            return mDeviceId;
+        }
+
+        public String getWifiMac ()
+        {
+            return mWifiMac;
+        }
+
+        public String getIPv4 ()
+        {
+            return mIPv4;
+        }
+
+        public String getIPv6 ()
+        {
+            return mIPv6;
+        }
+
+        public String getDataType ()
+        {
+            return mDataType;
+        }
+
+        public String getNetwork ()
+        {
+            return mNetwork;
+        }
+
+        public String getNetworkType ()
+        {
+            return mNetworkType;
+        }
+
+        public String getHardware ()
+        {
+            return mHardware;
+        }
+
+        public String getManufacturer ()
+        {
+            return mManufacturer;
+        }
+
+        public String getScreenSize ()
+        {
+            return mScreenSize;
+        }
+
+        public String getLanguage ()
+        {
+            return mLanguage;
+        }
+
+        public String getLocale ()
+        {
+            return mLocale;
+        }
+
+        /**
+         * @return the visible cells as JSON, or null if they can't be read
+         */
+        public String getCellInfo ()
+        {
+            return mCellInfo;
+        }
+    }
+}
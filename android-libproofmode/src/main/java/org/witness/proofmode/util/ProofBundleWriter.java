@@ -0,0 +1,274 @@
+package org.witness.proofmode.util;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Describes a proof bundle (media, proof files, public key and notes) and writes it out as a
+ * zip in one streaming pass, so it can be produced on demand straight into a pipe instead of
+ * being staged in a temporary file first.
+ *
+ * Compression is chosen per entry by {@link ProofZipOutputStream}. The description is small
+ * and can be saved as JSON, so the bundle can be regenerated later from the same sources.
+ * Uris that are only readable through a temporary grant should be copied with
+ * {@link #copyUris} while the grant lasts. Every source is opened before anything is written,
+ * so a missing one fails the whole bundle instead of silently leaving it out.
+ */
+public class ProofBundleWriter {
+
+    private final static String TYPE_URI = "uri";
+    private final static String TYPE_TEXT = "text";
+    private final static String TYPE_ASSET = "asset";
+    private final static String TYPE_FILE = "file";
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public ProofBundleWriter addUri (String name, Uri uri)
+    {
+        mEntries.add(new Entry(name, TYPE_URI, uri.toString()));
+        return this;
+    }
+
+    public ProofBundleWriter addText (String name, String text)
+    {
+        mEntries.add(new Entry(name, TYPE_TEXT, text));
+        return this;
+    }
+
+    public ProofBundleWriter addAsset (String name, String assetPath)
+    {
+        mEntries.add(new Entry(name, TYPE_ASSET, assetPath));
+        return this;
+    }
+
+    public ProofBundleWriter addFile (String name, File file)
+    {
+        mEntries.add(new Entry(name, TYPE_FILE, file.getAbsolutePath()));
+        return this;
+    }
+
+    /**
+     * Copy every uri entry outside the given authorities into dir and read the copy instead.
+     * Call it while a temporary read grant on the uris is still live, since it may be revoked
+     * before the bundle is written.
+     *
+     * @param keepAuthorities authorities we can read without a grant, like MediaStore and our own
+     * @throws IOException if a uri can't be read or copied; nothing is left copied
+     */
+    public void copyUris (Context context, File dir, Collection<String> keepAuthorities) throws IOException
+    {
+        List<File> copies = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.get(i);
+                if (!TYPE_URI.equals(entry.mType) || keepAuthorities.contains(Uri.parse(entry.mSource).getAuthority()))
+                    continue;
+
+                dir.mkdirs();
+                File copy = new File(dir, i + "-" + new File(entry.mName).getName());
+                copies.add(copy);
+                copy(entry.open(context), copy);
+
+                mEntries.set(i, new Entry(entry.mName, TYPE_FILE, copy.getAbsolutePath()));
+            }
+        }
+        catch (IOException | SecurityException e)
+        {
+            for (File copy : copies)
+                copy.delete();
+
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException("unable to read media for bundle", e);
+        }
+    }
+
+    private static void copy (InputStream is, File file) throws IOException
+    {
+        if (is == null)
+            throw new FileNotFoundException("no content for " + file.getName());
+
+        OutputStream os = new FileOutputStream(file);
+
+        try {
+            byte[] buffer = new byte[ProofZipOutputStream.BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1)
+                os.write(buffer, 0, n);
+        }
+        finally {
+            is.close();
+            os.close();
+        }
+    }
+
+    public int size ()
+    {
+        return mEntries.size();
+    }
+
+    /**
+     * Write the whole bundle to out and close it
+     *
+     * @throws IOException if any entry can't be read; nothing is written in that case
+     */
+    public void write (Context context, OutputStream out) throws IOException
+    {
+        Sources sources = open(context);
+
+        try {
+            sources.write(out);
+        }
+        finally {
+            sources.close();
+        }
+    }
+
+    /**
+     * Open every entry now, so a missing source fails before any of the zip is written
+     *
+     * @throws IOException naming the first entry that can't be read; nothing is left open
+     */
+    public Sources open (Context context) throws IOException
+    {
+        Sources sources = new Sources();
+
+        try {
+            for (Entry entry : mEntries) {
+                InputStream is = entry.open(context);
+                if (is == null)
+                    throw new FileNotFoundException("no content for " + entry.mName);
+
+                sources.mNames.add(entry.mName);
+                sources.mStreams.add(is);
+            }
+        }
+        catch (IOException | SecurityException e)
+        {
+            sources.close();
+            Timber.d(e, "Failed opening for zip");
+
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new FileNotFoundException("unable to read bundle entry: " + e.getMessage());
+        }
+
+        return sources;
+    }
+
+    /**
+     * The opened entries of a bundle, ready to be zipped
+     */
+    public static class Sources {
+
+        private final List<String> mNames = new ArrayList<>();
+        private final List<InputStream> mStreams = new ArrayList<>();
+
+        /**
+         * Write every entry to out as a zip and close it
+         */
+        public void write (OutputStream out) throws IOException
+        {
+            ProofZipOutputStream zos = new ProofZipOutputStream(new BufferedOutputStream(out, ProofZipOutputStream.BUFFER_SIZE));
+
+            try {
+                for (int i = 0; i < mNames.size(); i++) {
+                    Timber.d("adding to zip: %s", mNames.get(i));
+                    zos.putEntry(mNames.get(i), mStreams.get(i));
+                }
+            }
+            finally {
+                zos.close();
+            }
+
+            Timber.d("Zip complete");
+        }
+
+        public void close ()
+        {
+            for (InputStream is : mStreams) {
+                try {
+                    is.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing left to do with it
+                }
+            }
+        }
+    }
+
+    public JSONArray toJson () throws JSONException
+    {
+        JSONArray json = new JSONArray();
+
+        for (Entry entry : mEntries) {
+            JSONObject jEntry = new JSONObject();
+            jEntry.put("name", entry.mName);
+            jEntry.put("type", entry.mType);
+            jEntry.put("source", entry.mSource);
+            json.put(jEntry);
+        }
+
+        return json;
+    }
+
+    public static ProofBundleWriter fromJson (JSONArray json) throws JSONException
+    {
+        ProofBundleWriter writer = new ProofBundleWriter();
+
+        for (int i = 0; i < json.length(); i++) {
+            JSONObject jEntry = json.getJSONObject(i);
+            writer.mEntries.add(new Entry(jEntry.getString("name"), jEntry.getString("type"), jEntry.getString("source")));
+        }
+
+        return writer;
+    }
+
+    private static class Entry {
+
+        final String mName;
+        final String mType;
+        final String mSource;
+
+        Entry (String name, String type, String source)
+        {
+            mName = name;
+            mType = type;
+            mSource = source;
+        }
+
+        InputStream open (Context context) throws IOException
+        {
+            if (TYPE_URI.equals(mType))
+                return context.getContentResolver().openInputStream(Uri.parse(mSource));
+            else if (TYPE_ASSET.equals(mType))
+                return context.getAssets().open(mSource);
+            else if (TYPE_FILE.equals(mType))
+                return new FileInputStream(mSource);
+            else
+                return new ByteArrayInputStream(mSource.getBytes(Charset.forName("UTF-8")));
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package org.witness.proofmode.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes {@link ProofRecord}s as proof.csv rows (RFC 4180: fields holding commas,
+ * quotes or line breaks are quoted, quotes doubled).
+ *
+ * Writing goes straight to the target with no intermediate strings. Reading maps columns by
+ * header name, so old proof files (schema 1, in HashMap order with a trailing comma) parse
+ * into the same records as new ones.
+ */
+public class ProofCsv {
+
+    private final static List<String> COLUMNS;
+
+    static {
+        List<String> columns = new ArrayList<>();
+        for (ProofRecord.Field field : ProofRecord.Field.values())
+            columns.add(field.getColumn());
+        COLUMNS = Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * @return the header of the current schema
+     */
+    public static List<String> getColumns ()
+    {
+        return COLUMNS;
+    }
+
+    public static void writeHeader (Appendable out) throws IOException
+    {
+        writeRow(COLUMNS, out);
+    }
+
+    /**
+     * Write the record in the current schema order, ending the line
+     */
+    public static void writeRow (ProofRecord record, Appendable out) throws IOException
+    {
+        ProofRecord.Field[] fields = ProofRecord.Field.values();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                out.append(',');
+            appendField(out, record.get(fields[i]));
+        }
+
+        out.append('\n');
+    }
+
+    /**
+     * Write the record in the column order of an existing header, so it lines up with the
+     * rows already there; columns we don't know are left empty
+     */
+    public static void writeRow (ProofRecord record, List<String> columns, Appendable out) throws IOException
+    {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0)
+                out.append(',');
+            appendField(out, record.get(columns.get(i)));
+        }
+
+        out.append('\n');
+    }
+
+    private static void writeRow (List<String> values, Appendable out) throws IOException
+    {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0)
+                out.append(',');
+            appendField(out, values.get(i));
+        }
+
+        out.append('\n');
+    }
+
+    /**
+     * @param writeHeaders also write the header row, for a new file
+     * @return the (optional) header row and the value row, each ending in a line break
+     */
+    public static String format (ProofRecord record, boolean writeHeaders)
+    {
+        StringBuilder sb = new StringBuilder(1024);
+
+        try {
+            if (writeHeaders)
+                writeHeader(sb);
+            writeRow(record, sb);
+        }
+        catch (IOException e)
+        {
+            //StringBuilder doesn't throw
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Append a row to a proof file, starting it with a header if it is new. Rows added to
+     * files started with another schema follow that file's header.
+     */
+    public static void append (File fileProof, ProofRecord record) throws IOException
+    {
+        List<String> columns = fileProof.exists() ? readHeader(fileProof) : null;
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(fileProof, true), Charset.forName("UTF-8"));
+
+        try {
+            if (columns == null) {
+                writeHeader(out);
+                writeRow(record, out);
+            }
+            else if (columns.equals(COLUMNS)) {
+                writeRow(record, out);
+            }
+            else {
+                writeRow(record, columns, out);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the header row of the file, or null if it is empty
+     */
+    public static List<String> readHeader (File fileProof) throws IOException
+    {
+        CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(fileProof), Charset.forName("UTF-8")));
+
+        try {
+            return reader.readRow();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static void appendField (Appendable out, String value) throws IOException
+    {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+
+        out.append('"');
+
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                out.append(value, start, i + 1).append('"');
+                start = i + 1;
+            }
+        }
+
+        out.append(value, start, value.length());
+        out.append('"');
+    }
+
+    /**
+     * Reads proof records from a proof.csv (or a batch file of many), mapping columns by the
+     * header in the first row
+     */
+    public static class CsvReader implements Closeable {
+
+        private final static int BUFFER_SIZE = 1024 * 64;
+
+        private final Reader mIn;
+        private final char[] mBuffer = new char[BUFFER_SIZE];
+        private int mPos = 0;
+        private int mLimit = 0;
+
+        private final StringBuilder mField = new StringBuilder(256);
+
+        private ProofRecord.Field[] mFields;
+
+        public CsvReader (Reader in)
+        {
+            mIn = in instanceof BufferedReader ? in : new BufferedReader(in, BUFFER_SIZE);
+        }
+
+        /**
+         * @return the header of the input, or null if it is empty
+         */
+        public List<String> getHeader () throws IOException
+        {
+            List<String> header = readRow();
+
+            if (header != null) {
+                mFields = new ProofRecord.Field[header.size()];
+                for (int i = 0; i < mFields.length; i++)
+                    mFields[i] = ProofRecord.getField(header.get(i));
+            }
+
+            return header;
+        }
+
+        /**
+         * @return the next record, or null at the end of the input
+         */
+        public ProofRecord next () throws IOException
+        {
+            if (mFields == null && getHeader() == null)
+                return null;
+
+            List<String> values;
+            do {
+                values = readRow();
+                if (values == null)
+                    return null;
+            }
+            //skip blank lines
+            while (values.size() == 1 && values.get(0).isEmpty());
+
+            ProofRecord record = new ProofRecord();
+
+            //schema 1 rows have no version column; don't let them pass as the current schema
+            record.set(ProofRecord.Field.SCHEMA_VERSION, "");
+
+            for (int i = 0; i < values.size() && i < mFields.length; i++) {
+                if (mFields[i] != null)
+                    record.set(mFields[i], values.get(i));
+            }
+
+            return record;
+        }
+
+        /**
+         * @return the fields of the next row, or null at the end of the input
+         */
+        public List<String> readRow () throws IOException
+        {
+            if (!fill())
+                return null;
+
+            List<String> values = new ArrayList<>(ProofRecord.getFieldCount());
+            mField.setLength(0);
+
+            boolean quoted = false;
+
+            while (fill()) {
+                char c = mBuffer[mPos++];
+
+                if (quoted) {
+                    if (c == '"') {
+                        //a doubled quote is a literal one, otherwise the quoted part ends
+                        if (fill() && mBuffer[mPos] == '"') {
+                            mField.append('"');
+                            mPos++;
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        mField.append(c);
+                    }
+                }
+                else if (c == '"') {
+                    quoted = true;
+                }
+                else if (c == ',') {
+                    values.add(mField.toString());
+                    mField.setLength(0);
+                }
+                else if (c == '\n') {
+                    break;
+                }
+                else if (c == '\r') {
+                    if (fill() && mBuffer[mPos] == '\n')
+                        mPos++;
+                    break;
+                }
+                else {
+                    mField.append(c);
+                }
+            }
+
+            values.add(mField.toString());
+            return values;
+        }
+
+        private boolean fill () throws IOException
+        {
+            if (mPos < mLimit)
+                return true;
+
+            mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+            mPos = 0;
+
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
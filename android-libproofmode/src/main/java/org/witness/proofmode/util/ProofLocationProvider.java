@@ -0,0 +1,382 @@
+package org.witness.proofmode.util;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.core.app.ActivityCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import timber.log.Timber;
+
+/**
+ * Shared source of location fixes for proof, replacing a new {@link GPSTracker} and sleep
+ * polling for every capture.
+ *
+ * A passive listener keeps the latest fix from any app warm in memory. A request is answered
+ * at once from that fix when it is fresh enough; otherwise a single update is requested and the
+ * returned future completes with the first new fix, or with the best known fix once the
+ * deadline passes. All listener work runs on one background looper, so no proof thread ever
+ * sleeps waiting for a fix.
+ */
+public class ProofLocationProvider {
+
+    public final static long DEFAULT_MAX_AGE_MS = 2 * 60 * 1000;
+    public final static long DEFAULT_DEADLINE_MS = 1500;
+
+    //passive updates cost nothing, but there is no need to hear about every one
+    private final static long PASSIVE_MIN_TIME_MS = 5 * 1000;
+    private final static float PASSIVE_MIN_DISTANCE_M = 5;
+
+    private static ProofLocationProvider mInstance;
+
+    private final Context mContext;
+    private final LocationManager mLocationManager;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private volatile long mMaxAgeMs = DEFAULT_MAX_AGE_MS;
+    private volatile long mDeadlineMs = DEFAULT_DEADLINE_MS;
+
+    private Location mBestFix;
+    private boolean mListening = false;
+    private boolean mRequestingUpdate = false;
+
+    private final List<PendingFix> mPending = new ArrayList<>();
+
+    private ProofLocationProvider (Context context)
+    {
+        mContext = context.getApplicationContext();
+        mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    public static synchronized ProofLocationProvider getInstance (Context context)
+    {
+        if (mInstance == null)
+            mInstance = new ProofLocationProvider(context);
+
+        return mInstance;
+    }
+
+    /**
+     * How old a cached fix may be and still be used without asking for a new one
+     */
+    public void setMaxAge (long maxAgeMs)
+    {
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * How long a request waits for a new fix before settling for the best known one
+     */
+    public void setDeadline (long deadlineMs)
+    {
+        mDeadlineMs = deadlineMs;
+    }
+
+    public long getDeadline ()
+    {
+        return mDeadlineMs;
+    }
+
+    public boolean hasPermission ()
+    {
+        return ActivityCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                && ActivityCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Same meaning as {@link GPSTracker#canGetLocation()}: we have permission, and GPS or
+     * network location is switched on
+     */
+    public boolean canGetLocation ()
+    {
+        if (mLocationManager == null || !hasPermission())
+            return false;
+
+        return mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)
+                || mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+    }
+
+    /**
+     * Start keeping a fix warm from passive updates. Safe to call more than once.
+     */
+    public synchronized void start ()
+    {
+        if (mListening || mLocationManager == null || !hasPermission())
+            return;
+
+        startThread();
+
+        try {
+            for (String provider : new String[] {LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER, LocationManager.PASSIVE_PROVIDER})
+                updateBestFix(mLocationManager.getLastKnownLocation(provider));
+
+            mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_MIN_TIME_MS,
+                    PASSIVE_MIN_DISTANCE_M, mPassiveListener, mThread.getLooper());
+            mListening = true;
+        }
+        catch (SecurityException | IllegalArgumentException e)
+        {
+            Timber.d(e, "unable to listen for passive location updates");
+        }
+    }
+
+    public synchronized void stop ()
+    {
+        if (mLocationManager != null) {
+            try {
+                mLocationManager.removeUpdates(mPassiveListener);
+                mLocationManager.removeUpdates(mSingleListener);
+            }
+            catch (SecurityException e)
+            {
+                //permission was revoked, nothing is registered anymore
+            }
+        }
+
+        mListening = false;
+        mRequestingUpdate = false;
+
+        for (PendingFix pending : new ArrayList<>(mPending))
+            pending.complete(mBestFix);
+        mPending.clear();
+
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * @return the latest fix seen, of any age, or null if there is none
+     */
+    public synchronized Location getLastFix ()
+    {
+        return mBestFix;
+    }
+
+    /**
+     * Get a fix for proof with the configured max age and deadline
+     */
+    public Future<Location> requestLocation ()
+    {
+        return requestLocation(mMaxAgeMs, mDeadlineMs);
+    }
+
+    /**
+     * Get a fix no older than maxAgeMs. Never blocks: the future is already done when the cached
+     * fix is fresh enough, and otherwise completes by deadlineMs, with the best known (possibly
+     * stale) fix if no new one arrived. Completes with null if there is no fix at all.
+     */
+    public synchronized Future<Location> requestLocation (long maxAgeMs, long deadlineMs)
+    {
+        start();
+
+        final PendingFix pending = new PendingFix();
+
+        if (mBestFix != null && getAgeMs(mBestFix) <= maxAgeMs) {
+            pending.complete(mBestFix);
+            return pending;
+        }
+
+        if (!mListening || deadlineMs <= 0) {
+            pending.complete(mBestFix);
+            return pending;
+        }
+
+        mPending.add(pending);
+        requestSingleUpdate();
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ProofLocationProvider.this) {
+                    if (mPending.remove(pending)) {
+                        pending.complete(mBestFix);
+                        if (mPending.isEmpty())
+                            cancelSingleUpdate();
+                    }
+                }
+            }
+        }, deadlineMs);
+
+        return pending;
+    }
+
+    private void startThread ()
+    {
+        if (mThread != null)
+            return;
+
+        mThread = new HandlerThread("ProofLocation");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    private void requestSingleUpdate ()
+    {
+        if (mRequestingUpdate)
+            return;
+
+        try {
+            //ask whichever providers are on; the first fix from either answers everyone waiting
+            if (mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+                mLocationManager.requestSingleUpdate(LocationManager.NETWORK_PROVIDER, mSingleListener, mThread.getLooper());
+                mRequestingUpdate = true;
+            }
+
+            if (mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
+                mLocationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, mSingleListener, mThread.getLooper());
+                mRequestingUpdate = true;
+            }
+        }
+        catch (SecurityException | IllegalArgumentException e)
+        {
+            Timber.d(e, "unable to request a location update");
+        }
+    }
+
+    private void cancelSingleUpdate ()
+    {
+        if (!mRequestingUpdate)
+            return;
+
+        try {
+            mLocationManager.removeUpdates(mSingleListener);
+        }
+        catch (SecurityException e)
+        {
+            //nothing registered anymore
+        }
+
+        mRequestingUpdate = false;
+    }
+
+    private synchronized void onNewFix (Location location, boolean fromSingleUpdate)
+    {
+        updateBestFix(location);
+
+        if (fromSingleUpdate)
+            cancelSingleUpdate();
+
+        if (mPending.isEmpty())
+            return;
+
+        for (PendingFix pending : mPending)
+            pending.complete(mBestFix);
+        mPending.clear();
+
+        cancelSingleUpdate();
+    }
+
+    private void updateBestFix (Location location)
+    {
+        if (location == null)
+            return;
+
+        //a newer fix always wins; the accuracy of a fix from a minute ago says little about where we are now
+        if (mBestFix == null || getAgeMs(location) < getAgeMs(mBestFix))
+            mBestFix = location;
+    }
+
+    private static long getAgeMs (Location location)
+    {
+        if (Build.VERSION.SDK_INT >= 17)
+            return TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos());
+        else
+            return System.currentTimeMillis() - location.getTime();
+    }
+
+    private final LocationListener mPassiveListener = new FixListener(false);
+    private final LocationListener mSingleListener = new FixListener(true);
+
+    private class FixListener implements LocationListener {
+
+        private final boolean mSingleUpdate;
+
+        FixListener (boolean singleUpdate)
+        {
+            mSingleUpdate = singleUpdate;
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            onNewFix(location, mSingleUpdate);
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+    }
+
+    /**
+     * A location request that completes once, from the listener thread or the deadline
+     */
+    private static class PendingFix implements Future<Location> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Location mLocation;
+
+        synchronized void complete (Location location)
+        {
+            if (mDone.getCount() == 0)
+                return;
+
+            mLocation = location;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Location get() throws InterruptedException {
+            mDone.await();
+            return mLocation;
+        }
+
+        @Override
+        public Location get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!mDone.await(timeout, unit))
+                throw new TimeoutException();
+            return mLocation;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.witness.proofmode.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One row of proof for a media file, with a fixed set of fields in a fixed order.
+ *
+ * Every record has every field (empty when not collected), so rows appended to the same
+ * proof.csv always line up with its header. {@link #SCHEMA_VERSION} is written with each row
+ * and must be raised whenever fields are added or reordered; fields are only ever added at
+ * the end, before {@link Field#SCHEMA_VERSION}.
+ *
+ * Records can be written and read as CSV with {@link ProofCsv}, or in a compact binary form
+ * with {@link #writeTo(DataOutput)} and {@link #readFrom(DataInput)}.
+ */
+public class ProofRecord {
+
+    /**
+     * 1 was the original proof.csv, with columns in HashMap order and commas replaced by spaces;
+     * 2 had no OpenTimestamps Bitcoin attestation fields; 3 had no chunked hash fields
+     */
+    public final static int SCHEMA_VERSION = 4;
+
+    public enum Field {
+        FILE_PATH("File Path"),
+        FILE_HASH_SHA256("File Hash SHA256"),
+        FILE_MODIFIED("File Modified"),
+        PROOF_GENERATED("Proof Generated"),
+        DEVICE_ID("DeviceID"),
+        WIFI_MAC("Wifi MAC"),
+        IPV4("IPv4"),
+        IPV6("IPv6"),
+        DATA_TYPE("DataType"),
+        NETWORK("Network"),
+        NETWORK_TYPE("NetworkType"),
+        HARDWARE("Hardware"),
+        MANUFACTURER("Manufacturer"),
+        SCREEN_SIZE("ScreenSize"),
+        LANGUAGE("Language"),
+        LOCALE("Locale"),
+        LOCATION_LATITUDE("Location.Latitude"),
+        LOCATION_LONGITUDE("Location.Longitude"),
+        LOCATION_PROVIDER("Location.Provider"),
+        LOCATION_ACCURACY("Location.Accuracy"),
+        LOCATION_ALTITUDE("Location.Altitude"),
+        LOCATION_BEARING("Location.Bearing"),
+        LOCATION_SPEED("Location.Speed"),
+        LOCATION_TIME("Location.Time"),
+        CELL_INFO("CellInfo"),
+        SAFETY_CHECK("SafetyCheck"),
+        SAFETY_CHECK_BASIC_INTEGRITY("SafetyCheckBasicIntegrity"),
+        SAFETY_CHECK_CTS_MATCH("SafetyCheckCtsMatch"),
+        SAFETY_CHECK_TIMESTAMP("SafetyCheckTimestamp"),
+        NOTES("Notes"),
+        OPENTIMESTAMPS_BITCOIN_HEIGHT("OpenTimestamps.BitcoinHeight"),
+        OPENTIMESTAMPS_BITCOIN_TIME("OpenTimestamps.BitcoinTime"),
+        FILE_HASH_MERKLE_ROOT("File Hash Merkle Root"),
+        FILE_HASH_CHUNK_SIZE("File Hash Chunk Size"),
+        SCHEMA_VERSION("Proof Schema");
+
+        private final String mColumn;
+
+        Field (String column)
+        {
+            mColumn = column;
+        }
+
+        /**
+         * @return the proof.csv header of this field
+         */
+        public String getColumn ()
+        {
+            return mColumn;
+        }
+    }
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static Field[] FIELDS = Field.values();
+
+    private final static Map<String, Field> BY_COLUMN = new HashMap<>();
+
+    static {
+        for (Field field : FIELDS)
+            BY_COLUMN.put(field.getColumn(), field);
+    }
+
+    private final String[] mValues = new String[FIELDS.length];
+
+    public ProofRecord ()
+    {
+        mValues[Field.SCHEMA_VERSION.ordinal()] = String.valueOf(SCHEMA_VERSION);
+    }
+
+    /**
+     * @return the field with the given proof.csv header, or null if there is none
+     */
+    public static Field getField (String column)
+    {
+        return BY_COLUMN.get(column);
+    }
+
+    public static int getFieldCount ()
+    {
+        return FIELDS.length;
+    }
+
+    public ProofRecord set (Field field, String value)
+    {
+        mValues[field.ordinal()] = value;
+        return this;
+    }
+
+    public ProofRecord set (Field field, boolean value)
+    {
+        return set(field, String.valueOf(value));
+    }
+
+    public ProofRecord set (Field field, long value)
+    {
+        return set(field, String.valueOf(value));
+    }
+
+    public ProofRecord set (Field field, double value)
+    {
+        return set(field, String.valueOf(value));
+    }
+
+    /**
+     * @return the value, or an empty string if it wasn't set
+     */
+    public String get (Field field)
+    {
+        String value = mValues[field.ordinal()];
+        return value == null ? "" : value;
+    }
+
+    /**
+     * @return the value for a proof.csv header, or an empty string for unknown headers
+     */
+    public String get (String column)
+    {
+        Field field = getField(column);
+        return field == null ? "" : get(field);
+    }
+
+    /**
+     * @return the schema the record was written with; 1 for rows read from old proof files
+     */
+    public int getSchemaVersion ()
+    {
+        String version = mValues[Field.SCHEMA_VERSION.ordinal()];
+
+        try {
+            return version == null || version.isEmpty() ? 1 : Integer.parseInt(version);
+        }
+        catch (NumberFormatException nfe)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Write the record as: schema version, field count, then each value as a varint length
+     * and UTF-8 bytes
+     */
+    public void writeTo (DataOutput out) throws IOException
+    {
+        writeVarInt(out, SCHEMA_VERSION);
+        writeVarInt(out, FIELDS.length - 1);
+
+        for (int i = 0; i < FIELDS.length - 1; i++) {
+            String value = mValues[i];
+            if (value == null || value.isEmpty()) {
+                out.writeByte(0);
+            } else {
+                byte[] bytes = value.getBytes(UTF_8);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Read a record written by {@link #writeTo(DataOutput)} with this or an older schema.
+     * Values of fields newer than this schema are skipped.
+     */
+    public static ProofRecord readFrom (DataInput in) throws IOException
+    {
+        ProofRecord record = new ProofRecord();
+
+        int version = readVarInt(in);
+        int count = readVarInt(in);
+        byte[] buffer = new byte[256];
+
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(in);
+            if (length > buffer.length)
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            in.readFully(buffer, 0, length);
+
+            if (i < FIELDS.length - 1 && length > 0)
+                record.mValues[i] = new String(buffer, 0, length, UTF_8);
+        }
+
+        record.mValues[Field.SCHEMA_VERSION.ordinal()] = String.valueOf(version);
+        return record;
+    }
+
+    /**
+     * Write the record as a single JSON object keyed by proof.csv header
+     */
+    public void writeJson (Appendable out) throws IOException
+    {
+        out.append('{');
+
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (i > 0)
+                out.append(',');
+
+            appendJsonString(out, FIELDS[i].getColumn());
+            out.append(':');
+
+            if (FIELDS[i] == Field.SCHEMA_VERSION)
+                out.append(String.valueOf(getSchemaVersion()));
+            else
+                appendJsonString(out, get(FIELDS[i]));
+        }
+
+        out.append('}');
+    }
+
+    public String toJson ()
+    {
+        StringBuilder sb = new StringBuilder(1024);
+
+        try {
+            writeJson(sb);
+        }
+        catch (IOException e)
+        {
+            //StringBuilder doesn't throw
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendJsonString (Appendable out, String value) throws IOException
+    {
+        out.append('"');
+
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\')
+                continue;
+
+            out.append(value, start, i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default: out.append(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+
+        out.append(value, start, value.length());
+        out.append('"');
+    }
+
+    private static void writeVarInt (DataOutput out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt (DataInput in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("malformed varint in proof record");
+    }
+}
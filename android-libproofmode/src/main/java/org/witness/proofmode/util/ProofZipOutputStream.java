@@ -0,0 +1,73 @@
+package org.witness.proofmode.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip stream for proof bundles that picks the compression per entry: media that is already
+ * compressed (JPEG, MP4 and friends) is copied as is, CSV, ASC and other text is deflated.
+ */
+public class ProofZipOutputStream extends ZipOutputStream {
+
+    //large sequential chunks suit flash storage and match the default pipe capacity
+    public final static int BUFFER_SIZE = 1024 * 64;
+
+    private final static Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "dng",
+            "mp4", "m4v", "mov", "3gp", "3g2", "mkv", "webm",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "amr", "flac",
+            "zip", "gz", "gpg", "ots"));
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    public ProofZipOutputStream (OutputStream out)
+    {
+        super(out);
+    }
+
+    /**
+     * Add an entry with everything from in, then close in
+     *
+     * @return the number of bytes added
+     */
+    public long putEntry (String name, InputStream in) throws IOException
+    {
+        long length = 0;
+
+        try {
+            //deflate with no compression still stores the data as is, without needing the CRC up front
+            setLevel(isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            putNextEntry(new ZipEntry(name));
+
+            int n;
+            while ((n = in.read(mBuffer)) != -1) {
+                write(mBuffer, 0, n);
+                length += n;
+            }
+
+            closeEntry();
+        }
+        finally {
+            in.close();
+        }
+
+        return length;
+    }
+
+    public static boolean isCompressed (String name)
+    {
+        int idx = name.lastIndexOf('.');
+        if (idx == -1)
+            return false;
+
+        return COMPRESSED_EXTENSIONS.contains(name.substring(idx + 1).toLowerCase(Locale.US));
+    }
+}
@@ -40,9 +40,20 @@ public class SafetyNetCheck
         sApiKey = apiKey;
     }
 
-    public void sendSafetyNetRequest(Context context, String nonceData, OnSuccessListener<SafetyNetApi.AttestationResponse> successListener, OnFailureListener failureListener) {
-        if (GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
-                == ConnectionResult.SUCCESS && sApiKey != null) {
+    /**
+     * @return true if Play Services are there and an API key was set
+     */
+    public static boolean isAvailable (Context context)
+    {
+        return sApiKey != null && GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                == ConnectionResult.SUCCESS;
+    }
+
+    /**
+     * @return false if the request could not be sent, in which case neither listener is called
+     */
+    public boolean sendSafetyNetRequest(Context context, String nonceData, OnSuccessListener<SafetyNetApi.AttestationResponse> successListener, OnFailureListener failureListener) {
+        if (isAvailable(context)) {
             // The SafetyNet Attestation API is available.
 
             Timber.d("Sending SafetyNet API request.");
@@ -51,7 +62,10 @@ public class SafetyNetCheck
 
             // Call the SafetyNet API asynchronously. The result is returned through the result callback.
             SafetyNet.getClient(context).attest(nonce, sApiKey).addOnSuccessListener(successListener).addOnFailureListener(failureListener);
+            return true;
         }
+
+        return false;
     }
 
     /**
@@ -0,0 +1,222 @@
+package org.witness.proofmode.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ChunkedDigestTest {
+
+    //small chunks, so a few bytes make a tree of any shape
+    private final static int CHUNK_SIZE = 4;
+
+    private ExecutorService mExec;
+    private File mFile;
+
+    @Before
+    public void setUp () throws IOException
+    {
+        mExec = Executors.newFixedThreadPool(3);
+        mFile = File.createTempFile("chunked", ".mp4");
+    }
+
+    @After
+    public void tearDown ()
+    {
+        mExec.shutdownNow();
+        mFile.delete();
+    }
+
+    /*
+     * byte i of the test file is (31 i + 7) mod 256; the expected roots were worked out apart
+     * from this code
+     */
+    private ChunkedDigest.Result digest (int length) throws IOException
+    {
+        byte[] data = data(length);
+
+        OutputStream os = new FileOutputStream(mFile);
+        try {
+            os.write(data);
+        }
+        finally {
+            os.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            return new ChunkedDigest(CHUNK_SIZE, mExec).digest(raf.getChannel());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] data (int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 31 + 7);
+        return data;
+    }
+
+    /*
+     * the same bytes fed as a sequential pass would, in reads that don't line up with the chunks
+     */
+    private ChunkedDigest.Result feed (int length, int readSize) throws IOException
+    {
+        byte[] data = data(length);
+        ChunkedDigest.Feed feed = new ChunkedDigest(CHUNK_SIZE, mExec).feed();
+
+        for (int offset = 0; offset < length; offset += readSize)
+            feed.update(data, offset, Math.min(readSize, length - offset));
+
+        return feed.finish().get();
+    }
+
+    private static void assertRoot (String expected, ChunkedDigest.Result result)
+    {
+        assertEquals(expected, result.getRootHex());
+        assertArrayEquals(result.getRoot(), ChunkedDigest.getRoot(chunkHashes(result)));
+    }
+
+    private static List<byte[]> chunkHashes (ChunkedDigest.Result result)
+    {
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < result.getChunkCount(); i++)
+            hashes.add(result.getChunkHash(i));
+        return hashes;
+    }
+
+    private static byte[] sha256 (byte[] data) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    @Test
+    public void emptyFileHasTheRootOfOneEmptyChunk () throws Exception
+    {
+        ChunkedDigest.Result result = digest(0);
+
+        assertEquals(1, result.getChunkCount());
+        assertArrayEquals(sha256(new byte[0]), result.getChunkHash(0));
+        assertRoot("4e59bf27372b1304bc0b137d1be9d566ad58b154b6a6b5778af7f414b1d4b84c", result);
+        assertEquals(0, result.getInclusionPath(0).size());
+    }
+
+    @Test
+    public void singleChunkRootIsItsLeaf () throws Exception
+    {
+        assertRoot("63afffa2405c80da2f71d0144c1dbe6a28325ad1333e8d01dd2e9ac01866079a", digest(3));
+
+        ChunkedDigest.Result full = digest(4);
+        assertEquals(1, full.getChunkCount());
+        assertRoot("fc9350955d39a2616397423076ab3dfd3006cb178da3229b6b3c34825f49c25e", full);
+    }
+
+    @Test
+    public void rootsOfEvenAndOddLeafCounts () throws Exception
+    {
+        assertRoot("a3706352db90354eeaadbb3fc61b82e3817b0da82e797752760402e4aea75c42", digest(8));
+        assertRoot("095d02135410fffd8d3b9d3f8b101b200f186192660fcfcaf6bc99c334ebb622", digest(12));
+        assertRoot("cd001270210f5d460115c2c787729339f938338e7dbdae01ad36a67cc7846d7a", digest(20));
+        assertRoot("be3978feeb752262e6e005b9cb70a44c529e63c14a3fd2f1269bce461eb937cf", digest(28));
+    }
+
+    @Test
+    public void shortLastChunk () throws Exception
+    {
+        ChunkedDigest.Result result = digest(21);
+
+        assertEquals(6, result.getChunkCount());
+        assertEquals(21, result.getLength());
+        assertRoot("eb97568309a0c064eb7f98649cdb83b05a5907bdbc1c51943c6d9e9b1a4265f8", result);
+
+        StringBuilder csv = new StringBuilder();
+        result.writeCsv(csv);
+        String[] rows = csv.toString().split("\n");
+        assertEquals(7, rows.length);
+        assertEquals(ChunkedDigest.Result.CSV_HEADER, rows[0]);
+        assertEquals("5,20,1," + HashUtils.asHex(result.getChunkHash(5)), rows[6]);
+    }
+
+    @Test
+    public void fedReadsHashLikePositionalReads () throws Exception
+    {
+        assertRoot("4e59bf27372b1304bc0b137d1be9d566ad58b154b6a6b5778af7f414b1d4b84c", feed(0, 3));
+        assertRoot("63afffa2405c80da2f71d0144c1dbe6a28325ad1333e8d01dd2e9ac01866079a", feed(3, 5));
+        assertRoot("eb97568309a0c064eb7f98649cdb83b05a5907bdbc1c51943c6d9e9b1a4265f8", feed(21, 3));
+
+        //more chunks than the feed holds at once, so its buffers are reused
+        ChunkedDigest.Result fed = feed(28, 7);
+        assertRoot("be3978feeb752262e6e005b9cb70a44c529e63c14a3fd2f1269bce461eb937cf", fed);
+        assertEquals(28, fed.getLength());
+        assertEquals(7, fed.getChunkCount());
+    }
+
+    @Test
+    public void inclusionPathKnownAnswer () throws Exception
+    {
+        ChunkedDigest.Result result = digest(20);
+
+        //chunk 2 of 5: its neighbour 3, then the pair 0-1, then chunk 4 beside the first four
+        List<byte[]> path = result.getInclusionPath(2);
+        assertEquals(3, path.size());
+        assertEquals("bfc560427623557cf12ec2548a40f3a41406b76414371bfc652d2921873b870e", HashUtils.asHex(path.get(0)));
+        assertEquals("a3706352db90354eeaadbb3fc61b82e3817b0da82e797752760402e4aea75c42", HashUtils.asHex(path.get(1)));
+        assertEquals("4a269461f9c8ab4bd4739f2a53479e57abc92785b70036ab18dee8e694940c94", HashUtils.asHex(path.get(2)));
+
+        assertEquals("84d7afd6274a3a47e038364cb16deb1637c14a71d8355705ddc9bb4a7874710e", HashUtils.asHex(result.getChunkHash(2)));
+        assertArrayEquals(result.getRoot(), ChunkedDigest.getRootFromPath(result.getChunkHash(2), 2, 5, path));
+    }
+
+    @Test
+    public void everyChunkPathLeadsToTheRoot () throws Exception
+    {
+        for (int count = 1; count <= 9; count++) {
+            ChunkedDigest.Result result = digest(count * CHUNK_SIZE - 1);
+            assertEquals(count, result.getChunkCount());
+
+            for (int chunk = 0; chunk < count; chunk++) {
+                List<byte[]> path = result.getInclusionPath(chunk);
+                assertArrayEquals(count + " chunks, chunk " + chunk, result.getRoot(),
+                        ChunkedDigest.getRootFromPath(result.getChunkHash(chunk), chunk, count, path));
+            }
+        }
+    }
+
+    @Test
+    public void alteredChunkOrWrongPathIsCaught () throws Exception
+    {
+        ChunkedDigest.Result result = digest(28);
+        List<byte[]> path = result.getInclusionPath(4);
+
+        byte[] altered = result.getChunkHash(4).clone();
+        altered[0] ^= 1;
+        assertFalse(MessageDigest.isEqual(result.getRoot(), ChunkedDigest.getRootFromPath(altered, 4, 7, path)));
+
+        //the right hash claimed for another chunk
+        assertFalse(MessageDigest.isEqual(result.getRoot(), ChunkedDigest.getRootFromPath(result.getChunkHash(4), 5, 7, path)));
+
+        //paths that don't fit the tree
+        assertNull(ChunkedDigest.getRootFromPath(result.getChunkHash(4), 4, 7, path.subList(0, 2)));
+        assertNull(ChunkedDigest.getRootFromPath(result.getChunkHash(4), 4, 4, path));
+        assertNull(ChunkedDigest.getRootFromPath(result.getChunkHash(4), 7, 7, path));
+    }
+}
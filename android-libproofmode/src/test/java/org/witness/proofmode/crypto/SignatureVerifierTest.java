@@ -0,0 +1,248 @@
+package org.witness.proofmode.crypto;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureVerifierTest {
+
+    private final static char[] PASSWORD = "password".toCharArray();
+
+    private final static byte[] PROOF = "File Path,File Hash SHA256\n/sdcard/DCIM/a.jpg,0f1e\n".getBytes(Charset.forName("UTF-8"));
+
+    //RSA keys take a while to generate, so every test shares these
+    private static PGPSecretKeyRing sRing;
+    private static PGPSecretKeyRing sOtherRing;
+    private static PGPSecretKeyRing sEd25519Ring;
+
+    private static synchronized void initKeys () throws PGPException
+    {
+        if (sRing != null)
+            return;
+
+        sRing = generateRing("signer@proofmode.test");
+        sOtherRing = generateRing("other@proofmode.test");
+        sEd25519Ring = PgpUtils.addEd25519SigningKey(sRing, PASSWORD).generateSecretKeyRing();
+    }
+
+    /**
+     * A small RSA ring laid out like the app's, so tests don't wait on RSA-4096 generation
+     */
+    private static PGPSecretKeyRing generateRing (String keyId) throws PGPException
+    {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 2048, 12));
+        PGPKeyPair signKp = new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        PGPSignatureSubpacketGenerator signGen = new PGPSignatureSubpacketGenerator();
+        signGen.setKeyFlags(false, KeyFlags.SIGN_DATA | KeyFlags.CERTIFY_OTHER);
+
+        PGPDigestCalculator sha1Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1);
+        PGPDigestCalculator sha256Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA256);
+
+        return new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, signKp, keyId, sha1Calc,
+                signGen.generate(), null,
+                new BcPGPContentSignerBuilder(signKp.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new BcPBESecretKeyEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256, sha256Calc, 0xc0).build(PASSWORD))
+                .generateSecretKeyRing();
+    }
+
+    private static PGPPublicKeyRing getPublicRing (PGPSecretKeyRing ring)
+    {
+        List<PGPPublicKey> keys = new ArrayList<>();
+        for (PGPSecretKey key : ring)
+            keys.add(key.getPublicKey());
+        return new PGPPublicKeyRing(keys);
+    }
+
+    private static byte[] sign (PGPSecretKey key, byte[] data) throws PGPException, IOException
+    {
+        PGPPrivateKey privKey = key.extractPrivateKey(new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider()).build(PASSWORD));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DetachedSignatureProcessor.createSignature(
+                new BcPGPContentSignerBuilder(key.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                privKey, new ByteArrayInputStream(data), out, true);
+        return out.toByteArray();
+    }
+
+    private static SignatureVerifier.Result verify (PGPSecretKeyRing keys, byte[] data, byte[] signature)
+    {
+        SignatureVerifier verifier = new SignatureVerifier();
+        verifier.addKeyRing(getPublicRing(keys));
+        return verifier.verify(new ByteArrayInputStream(data), new ByteArrayInputStream(signature));
+    }
+
+    @Test
+    public void validSignatureVerifies () throws Exception
+    {
+        initKeys();
+
+        byte[] signature = sign(sRing.getSecretKey(), PROOF);
+        SignatureVerifier.Result result = verify(sRing, PROOF, signature);
+
+        assertTrue(result.toString(), result.isValid());
+        assertEquals(sRing.getSecretKey().getKeyID(), result.getKeyId());
+        assertEquals(PROOF.length, result.getLength());
+    }
+
+    @Test
+    public void tamperedDataIsInvalid () throws Exception
+    {
+        initKeys();
+
+        byte[] signature = sign(sRing.getSecretKey(), PROOF);
+
+        byte[] tampered = PROOF.clone();
+        tampered[tampered.length - 2] ^= 1;
+
+        assertEquals(SignatureVerifier.Status.INVALID, verify(sRing, tampered, signature).getStatus());
+    }
+
+    @Test
+    public void truncatedDataIsInvalid () throws Exception
+    {
+        initKeys();
+
+        byte[] signature = sign(sRing.getSecretKey(), PROOF);
+        byte[] truncated = new byte[PROOF.length - 1];
+        System.arraycopy(PROOF, 0, truncated, 0, truncated.length);
+
+        assertEquals(SignatureVerifier.Status.INVALID, verify(sRing, truncated, signature).getStatus());
+    }
+
+    @Test
+    public void signatureFromAnotherKeyIsUnknown () throws Exception
+    {
+        initKeys();
+
+        byte[] signature = sign(sOtherRing.getSecretKey(), PROOF);
+        SignatureVerifier.Result result = verify(sRing, PROOF, signature);
+
+        assertEquals(SignatureVerifier.Status.UNKNOWN_KEY, result.getStatus());
+        assertEquals(sOtherRing.getSecretKey().getKeyID(), result.getKeyId());
+        assertFalse(result.isValid());
+    }
+
+    @Test
+    public void garbageSignatureIsAnError () throws Exception
+    {
+        initKeys();
+
+        byte[] garbage = "not a signature".getBytes(Charset.forName("UTF-8"));
+
+        assertEquals(SignatureVerifier.Status.ERROR, verify(sRing, PROOF, garbage).getStatus());
+    }
+
+    @Test
+    public void ed25519SubkeySignatureVerifies () throws Exception
+    {
+        initKeys();
+
+        PGPSecretKey signingKey = DetachedSignatureProcessor.findSigningKey(sEd25519Ring, true);
+        assertFalse(signingKey.isMasterKey());
+
+        //with Ed25519 signing turned off again, the ring signs with its RSA primary key
+        assertTrue(DetachedSignatureProcessor.findSigningKey(sEd25519Ring, false).isMasterKey());
+
+        byte[] signature = sign(signingKey, PROOF);
+        SignatureVerifier.Result result = verify(sEd25519Ring, PROOF, signature);
+
+        assertTrue(result.toString(), result.isValid());
+        assertEquals(signingKey.getKeyID(), result.getKeyId());
+
+        //the RSA primary key of the same ring still verifies too
+        assertTrue(verify(sEd25519Ring, PROOF, sign(sEd25519Ring.getSecretKey(), PROOF)).isValid());
+
+        //and a ring published before the subkey was added doesn't know it
+        assertEquals(SignatureVerifier.Status.UNKNOWN_KEY, verify(sRing, PROOF, signature).getStatus());
+    }
+
+    @Test
+    public void verifyAllKeepsRequestOrder () throws Exception
+    {
+        initKeys();
+
+        List<SignatureVerifier.Request> requests = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 6; i++) {
+                byte[] data = ("proof " + i).getBytes(Charset.forName("UTF-8"));
+                byte[] signature = sign(sRing.getSecretKey(), data);
+
+                //every other media file is altered after signing
+                if (i % 2 == 1)
+                    data[0] ^= 1;
+
+                File media = writeTemp(data, ".csv");
+                File sig = writeTemp(signature, ".asc");
+                files.add(media);
+                files.add(sig);
+                requests.add(new SignatureVerifier.Request(media, sig));
+            }
+
+            SignatureVerifier verifier = new SignatureVerifier();
+            verifier.addKeyRing(getPublicRing(sRing));
+
+            List<SignatureVerifier.Result> results = verifier.verifyAll(requests, 3);
+
+            assertEquals(requests.size(), results.size());
+            for (int i = 0; i < results.size(); i++)
+                assertEquals("result " + i, i % 2 == 0, results.get(i).isValid());
+        }
+        finally {
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    private static File writeTemp (byte[] data, String suffix) throws IOException
+    {
+        File file = File.createTempFile("proofmode-test-", suffix);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        }
+        finally {
+            os.close();
+        }
+        return file;
+    }
+}
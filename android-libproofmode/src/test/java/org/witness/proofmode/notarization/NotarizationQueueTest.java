@@ -0,0 +1,374 @@
+package org.witness.proofmode.notarization;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotarizationQueueTest {
+
+    private final static String NOTARY = "test";
+
+    private final static String HASH = "3fa2b0c1d2e3f405162738495a6b7c8d9eafb0c1d2e3f405162738495a6b7c8d";
+
+    //short enough to run through a few retries in a test
+    private final static long BACKOFF_BASE_MS = 50;
+    private final static long BACKOFF_MAX_MS = 400;
+
+    //how long the tests wait for the queue
+    private final static int WAIT_STEPS = 3000;
+    private final static long STEP_MS = 10;
+
+    private Context mContext;
+    private String mDatabaseName;
+    private final List<NotarizationQueue> mQueues = new ArrayList<>();
+
+    private HttpServer mCalendar;
+
+    @Before
+    public void setUp ()
+    {
+        mContext = RuntimeEnvironment.getApplication();
+        mDatabaseName = "notarizationqueue-" + System.nanoTime() + ".db";
+    }
+
+    @After
+    public void tearDown ()
+    {
+        for (NotarizationQueue queue : mQueues)
+            queue.stop();
+
+        if (mCalendar != null)
+            mCalendar.stop(0);
+
+        mContext.deleteDatabase(mDatabaseName);
+    }
+
+    private NotarizationQueue newQueue (long backoffBaseMs, long backoffMaxMs)
+    {
+        NotarizationQueue queue = new NotarizationQueue(mContext, new NotarizationJobStore(mContext, mDatabaseName), backoffBaseMs, backoffMaxMs);
+        mQueues.add(queue);
+
+        return queue;
+    }
+
+    private NotarizationQueue newQueue ()
+    {
+        return newQueue(BACKOFF_BASE_MS, BACKOFF_MAX_MS);
+    }
+
+    @Test
+    public void jobsSurviveARestart () throws InterruptedException
+    {
+        //queued, but the app goes away before it runs
+        NotarizationQueue before = newQueue();
+        before.enqueue(HASH, null, NOTARY);
+        before.enqueue(HASH, null, NOTARY);
+        assertEquals(1, before.getPendingCount());
+
+        NotarizationQueue after = newQueue();
+        assertEquals(1, after.getPendingCount());
+
+        ScriptedNotary notary = new ScriptedNotary(0);
+        Results results = new Results(1);
+        after.register(NOTARY, notary, 1);
+        after.setResultHandler(results);
+        after.start();
+
+        assertTrue(results.await());
+        assertEquals(HASH, results.mNotarized.get(0).getHash());
+        assertEquals("proof of " + HASH, results.mResults.get(0));
+        assertEquals(0, awaitPending(after, 0));
+    }
+
+    @Test
+    public void failedJobsAreRetriedWithBackoff () throws InterruptedException
+    {
+        NotarizationQueue queue = newQueue();
+
+        ScriptedNotary notary = new ScriptedNotary(2);
+        Results results = new Results(1);
+        queue.register(NOTARY, notary, 1);
+        queue.setResultHandler(results);
+        queue.start();
+        queue.enqueue(HASH, null, NOTARY);
+
+        assertTrue(results.await());
+
+        assertEquals(3, notary.mAttempts.size());
+        assertEquals(2, results.mNotarized.get(0).getAttempts());
+
+        //each wait is at least the backoff for that attempt, less its jitter
+        long firstWait = notary.mAttempts.get(1) - notary.mAttempts.get(0);
+        long secondWait = notary.mAttempts.get(2) - notary.mAttempts.get(1);
+        assertTrue("first retry after " + firstWait + " ms", firstWait >= BACKOFF_BASE_MS * 4 / 5);
+        assertTrue("second retry after " + secondWait + " ms", secondWait >= BACKOFF_BASE_MS * 2 * 4 / 5);
+
+        assertEquals(0, awaitPending(queue, 0));
+    }
+
+    @Test
+    public void failuresArePersisted () throws InterruptedException
+    {
+        NotarizationQueue queue = newQueue(60 * 1000, 60 * 1000);
+
+        ScriptedNotary notary = new ScriptedNotary(Integer.MAX_VALUE);
+        queue.register(NOTARY, notary, 1);
+        queue.start();
+        queue.enqueue(HASH, null, NOTARY);
+
+        assertTrue(notary.awaitAttempts(1));
+
+        //the retry is recorded before the next dispatch
+        NotarizationJobStore store = new NotarizationJobStore(mContext, mDatabaseName);
+        List<NotarizationQueue.Job> jobs;
+        int steps = 0;
+        do {
+            Thread.sleep(STEP_MS);
+            jobs = store.getDue(NOTARY, Long.MAX_VALUE, 10);
+        }
+        while ((jobs.isEmpty() || jobs.get(0).getAttempts() == 0) && ++steps < WAIT_STEPS);
+
+        assertEquals(1, jobs.size());
+        assertEquals(1, jobs.get(0).getAttempts());
+        assertTrue(jobs.get(0).getNextAttempt() >= jobs.get(0).getCreated() + 60 * 1000 * 4 / 5);
+
+        //not due yet, so nothing to run now
+        assertTrue(store.getDue(NOTARY, System.currentTimeMillis(), 10).isEmpty());
+        assertEquals(1, notary.mAttempts.size());
+        store.close();
+    }
+
+    @Test
+    public void backoffGrowsAndIsCapped ()
+    {
+        NotarizationQueue queue = newQueue();
+
+        for (int i = 0; i < 50; i++) {
+            assertBetween(queue.getBackoff(1), 40, 60);
+            assertBetween(queue.getBackoff(2), 80, 120);
+            assertBetween(queue.getBackoff(3), 160, 240);
+            assertBetween(queue.getBackoff(4), 320, 480);
+            assertBetween(queue.getBackoff(10), 320, 480);
+            assertBetween(queue.getBackoff(NotarizationQueue.MAX_ATTEMPTS), 320, 480);
+        }
+    }
+
+    /*
+     * results are handed out before the job leaves the store
+     */
+    private static int awaitPending (NotarizationQueue queue, int count) throws InterruptedException
+    {
+        for (int i = 0; i < WAIT_STEPS && queue.getPendingCount() != count; i++)
+            Thread.sleep(STEP_MS);
+        return queue.getPendingCount();
+    }
+
+    private static void assertBetween (long value, long min, long max)
+    {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts () throws InterruptedException
+    {
+        NotarizationQueue queue = newQueue(1, 5);
+
+        ScriptedNotary notary = new ScriptedNotary(Integer.MAX_VALUE);
+        Results results = new Results(1);
+        queue.register(NOTARY, notary, 1);
+        queue.setResultHandler(results);
+        queue.start();
+        queue.enqueue(HASH, null, NOTARY);
+
+        assertTrue(results.await());
+
+        assertEquals(0, results.mNotarized.size());
+        assertEquals(1, results.mGaveUp.size());
+        assertEquals(NotarizationQueue.MAX_ATTEMPTS, notary.mAttempts.size());
+        assertEquals(0, awaitPending(queue, 0));
+    }
+
+    @Test
+    public void stampsWithTheGivenCalendarAndRetriesItsFailures () throws Exception
+    {
+        //a stand-in calendar that fails its first request, then commits to a pending attestation
+        final AtomicInteger requests = new AtomicInteger();
+        mCalendar = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final String calendarUrl = "http://127.0.0.1:" + mCalendar.getAddress().getPort();
+
+        mCalendar.createContext("/digest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readAll(exchange.getRequestBody());
+
+                if (requests.incrementAndGet() == 1) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+
+                byte[] body = pendingAttestation(calendarUrl);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        mCalendar.start();
+
+        OpenTimestampsNotarizationProvider provider = new OpenTimestampsNotarizationProvider(Collections.singletonList(calendarUrl));
+        provider.setBatching(1, 0);
+
+        NotarizationQueue queue = newQueue();
+        Results results = new Results(1);
+        queue.register(NOTARY, provider, 1);
+        queue.setResultHandler(results);
+        queue.start();
+        queue.enqueue(HASH, null, NOTARY);
+
+        assertTrue(results.await());
+        assertEquals(1, results.mNotarized.size());
+        assertTrue(requests.get() >= 2);
+        assertTrue(results.mNotarized.get(0).getAttempts() >= 1);
+
+        DetachedTimestampFile ots = DetachedTimestampFile.deserialize(Base64.decode(results.mResults.get(0), Base64.DEFAULT));
+        String attested = null;
+        for (Timestamp subStamp : ots.getTimestamp().directlyVerified()) {
+            for (TimeAttestation attestation : subStamp.attestations) {
+                if (attestation instanceof PendingAttestation)
+                    attested = new String(((PendingAttestation) attestation).getUri(), Charset.forName("UTF-8"));
+            }
+        }
+
+        assertNotNull(attested);
+        assertEquals(calendarUrl, attested);
+    }
+
+    /*
+     * a serialized timestamp holding only a pending attestation for the calendar, as calendars
+     * answer a submitted digest
+     */
+    private static byte[] pendingAttestation (String calendarUrl)
+    {
+        byte[] uri = calendarUrl.getBytes(Charset.forName("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00); //attestation follows
+        byte[] tag = {(byte) 0x83, (byte) 0xdf, (byte) 0xe3, 0x0d, 0x2e, (byte) 0xf9, 0x0c, (byte) 0x8e};
+        out.write(tag, 0, tag.length);
+        out.write(uri.length + 1); //payload: the uri as varbytes
+        out.write(uri.length);
+        out.write(uri, 0, uri.length);
+        return out.toByteArray();
+    }
+
+    private static void readAll (InputStream in) throws IOException
+    {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) ;
+        in.close();
+    }
+
+    /*
+     * fails its first failures requests, then returns a proof of the hash
+     */
+    private static class ScriptedNotary implements NotarizationProvider {
+
+        final List<Long> mAttempts = Collections.synchronizedList(new ArrayList<Long>());
+        private final int mFailures;
+
+        ScriptedNotary (int failures)
+        {
+            mFailures = failures;
+        }
+
+        @Override
+        public void notarize(String hash, InputStream is, NotarizationListener listener) {
+            mAttempts.add(System.currentTimeMillis());
+
+            synchronized (this) {
+                notifyAll();
+            }
+
+            if (mAttempts.size() <= mFailures)
+                listener.notarizationFailed(-1, "calendar unavailable");
+            else
+                listener.notarizationSuccessful("proof of " + hash);
+        }
+
+        @Override
+        public String getProof(String hash) {
+            return null;
+        }
+
+        synchronized boolean awaitAttempts (int count) throws InterruptedException
+        {
+            for (int i = 0; i < WAIT_STEPS && mAttempts.size() < count; i++)
+                wait(STEP_MS);
+            return mAttempts.size() >= count;
+        }
+    }
+
+    private static class Results implements NotarizationQueue.ResultHandler {
+
+        final List<NotarizationQueue.Job> mNotarized = Collections.synchronizedList(new ArrayList<NotarizationQueue.Job>());
+        final List<String> mResults = Collections.synchronizedList(new ArrayList<String>());
+        final List<NotarizationQueue.Job> mGaveUp = Collections.synchronizedList(new ArrayList<NotarizationQueue.Job>());
+        private final CountDownLatch mDone;
+
+        Results (int count)
+        {
+            mDone = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onNotarized(NotarizationQueue.Job job, String result) {
+            mNotarized.add(job);
+            mResults.add(result);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onGaveUp(NotarizationQueue.Job job, String error) {
+            mGaveUp.add(job);
+            mDone.countDown();
+        }
+
+        boolean await () throws InterruptedException
+        {
+            return mDone.await(WAIT_STEPS * STEP_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
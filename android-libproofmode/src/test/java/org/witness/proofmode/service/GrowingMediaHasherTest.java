@@ -0,0 +1,288 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.webkit.MimeTypeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.witness.proofmode.ProofMode;
+import org.witness.proofmode.crypto.ChunkedDigest;
+import org.witness.proofmode.crypto.HashUtils;
+import org.witness.proofmode.crypto.MediaDigestSession;
+import org.witness.proofmode.storage.MediaIdentity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class GrowingMediaHasherTest {
+
+    private final static int PIECE_SIZE = 1024 * 300;
+
+    private Context mContext;
+    private GrowingMediaHasher mHasher;
+    private CountDownLatch mHashed;
+    private File mFile;
+    private RandomAccessFile mOut;
+
+    @Before
+    public void setUp ()
+    {
+        mContext = RuntimeEnvironment.getApplication();
+        shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("mp4", "video/mp4");
+        shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("wav", "audio/x-wav");
+        shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("webm", "video/webm");
+
+        mHashed = new CountDownLatch(1);
+
+        //no wait before catching up, so each piece is hashed before the next is written
+        mHasher = new GrowingMediaHasher(mContext, new GrowingMediaHasher.Listener() {
+            @Override
+            public void onHashed(File file) {
+                mHashed.countDown();
+            }
+        }, 0);
+    }
+
+    @After
+    public void tearDown () throws IOException
+    {
+        mHasher.stop();
+
+        if (mOut != null)
+            mOut.close();
+        if (mFile != null)
+            mFile.delete();
+    }
+
+    @Test
+    public void fileWrittenInPiecesHashesLikeTheFinishedFile () throws Exception
+    {
+        create("plain.mp4");
+        append(box("ftyp", 16));
+        append(boxHeader("mdat", 8 + 10 * PIECE_SIZE));
+        for (int i = 0; i < 10; i++)
+            append(data(PIECE_SIZE, i));
+
+        assertHashOfFinishedFile(close());
+    }
+
+    @Test
+    public void rewrittenHeaderIsHashedAgain () throws Exception
+    {
+        create("header.mp4");
+        append(box("ftyp", 16));
+
+        //the media data size isn't known until the recorder stops
+        long mdat = mOut.length();
+        append(boxHeader("mdat", 0));
+        for (int i = 0; i < 12; i++)
+            append(data(PIECE_SIZE, i));
+
+        long mdatSize = mOut.length() - mdat;
+        append(box("moov", 4000));
+        write(mdat, boxHeader("mdat", mdatSize));
+
+        assertHashOfFinishedFile(close());
+    }
+
+    @Test
+    public void moovWrittenIntoReservedSpaceIsHashedAgain () throws Exception
+    {
+        create("reserved.mp4");
+        append(box("ftyp", 16));
+
+        //space kept for the moov box, reaching past the start that is always checked
+        long free = mOut.length();
+        append(box("free", 1024 * 1800));
+        append(boxHeader("mdat", 8 + 12 * PIECE_SIZE));
+        for (int i = 0; i < 12; i++)
+            append(data(PIECE_SIZE, i));
+
+        write(free + 1024 * 1500, data(4000, 99));
+
+        assertHashOfFinishedFile(close());
+    }
+
+    @Test
+    public void rewrittenWavSizesAreHashedAgain () throws Exception
+    {
+        create("audio.wav");
+
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(tag("RIFF")).putInt(0).put(tag("WAVE"));
+        header.put(tag("fmt ")).putInt(16).putShort((short) 1).putShort((short) 1).putInt(44100).putInt(88200).putShort((short) 2).putShort((short) 16);
+        header.put(tag("data")).putInt(0);
+        append(header.array());
+
+        for (int i = 0; i < 8; i++)
+            append(data(PIECE_SIZE, i));
+
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        write(4, size.putInt(0, (int) mOut.length() - 8).array());
+        write(40, size.putInt(0, (int) mOut.length() - 44).array());
+
+        assertHashOfFinishedFile(close());
+    }
+
+    @Test
+    public void otherContainersRewrittenAnywhereAreHashedAgain () throws Exception
+    {
+        create("cues.webm");
+        append(data(4000, 1));
+        for (int i = 0; i < 12; i++)
+            append(data(PIECE_SIZE, i));
+
+        //past the start and well before the end, like a seek head or cues placeholder
+        write(1024 * 1700, data(100, 42));
+
+        assertHashOfFinishedFile(close());
+    }
+
+    @Test
+    public void chunksAreHashedFromTheSameReads () throws Exception
+    {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putBoolean(ProofMode.PREF_OPTION_CHUNKED_HASH, true).commit();
+
+        create("chunks.mp4");
+        append(box("ftyp", 16));
+
+        long mdat = mOut.length();
+        append(boxHeader("mdat", 0));
+        for (int i = 0; i < 30; i++)
+            append(data(PIECE_SIZE, i));
+
+        write(mdat, boxHeader("mdat", mOut.length() - mdat));
+
+        MediaDigestSession.Result result = close();
+        assertHashOfFinishedFile(result);
+
+        ChunkedDigest.Result chunks = result.getChunks();
+        assertNotNull(chunks);
+        assertTrue(chunks.getChunkCount() > 1);
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            assertEquals(new ChunkedDigest().digest(raf.getChannel()).getRootHex(), chunks.getRootHex());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void truncatedFileIsHashedFromTheStart () throws Exception
+    {
+        create("again.mp4");
+        append(box("ftyp", 16));
+        append(boxHeader("mdat", 8 + 4 * PIECE_SIZE));
+        for (int i = 0; i < 4; i++)
+            append(data(PIECE_SIZE, i));
+
+        mOut.setLength(0);
+        append(box("ftyp", 16));
+        append(boxHeader("mdat", 8 + 2 * PIECE_SIZE));
+        for (int i = 10; i < 12; i++)
+            append(data(PIECE_SIZE, i));
+
+        assertHashOfFinishedFile(close());
+    }
+
+    private void create (String name) throws Exception
+    {
+        mFile = new File(mContext.getFilesDir(), name);
+        mFile.delete();
+        mOut = new RandomAccessFile(mFile, "rw");
+
+        mHasher.onCreated(mFile);
+        mHasher.awaitIdle();
+    }
+
+    /*
+     * append like a recorder, and let the hasher catch up
+     */
+    private void append (byte[] data) throws Exception
+    {
+        write(mOut.length(), data);
+    }
+
+    private void write (long offset, byte[] data) throws Exception
+    {
+        mOut.seek(offset);
+        mOut.write(data);
+
+        mHasher.onModified(mFile);
+        mHasher.awaitIdle();
+    }
+
+    private MediaDigestSession.Result close () throws Exception
+    {
+        mOut.close();
+        mOut = null;
+
+        assertTrue(mHasher.onClosed(mFile));
+        assertTrue(mHashed.await(30, TimeUnit.SECONDS));
+
+        MediaDigestSession.Result result = mHasher.take(MediaIdentity.fromFile(mFile));
+        assertNotNull(result);
+        return result;
+    }
+
+    private void assertHashOfFinishedFile (MediaDigestSession.Result result) throws IOException
+    {
+        InputStream is = new FileInputStream(mFile);
+        try {
+            assertEquals(HashUtils.getSHA256FromFileContent(is), result.getHash());
+        }
+        finally {
+            is.close();
+        }
+
+        assertEquals(mFile.length(), result.getLength());
+    }
+
+    private static byte[] box (String type, int size)
+    {
+        byte[] box = data(size, size);
+        System.arraycopy(boxHeader(type, size), 0, box, 0, 8);
+        return box;
+    }
+
+    private static byte[] boxHeader (String type, long size)
+    {
+        return ByteBuffer.allocate(8).putInt((int) size).put(tag(type)).array();
+    }
+
+    private static byte[] tag (String tag)
+    {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++)
+            bytes[i] = (byte) tag.charAt(i);
+        return bytes;
+    }
+
+    private static byte[] data (int length, int seed)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 31 + seed * 7);
+        return data;
+    }
+}
@@ -0,0 +1,296 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.witness.proofmode.notarization.NotarizationListener;
+import org.witness.proofmode.notarization.OpenTimestampsUpgradeProvider;
+import org.witness.proofmode.storage.ProofLedger;
+import org.witness.proofmode.storage.ProofStorage;
+import org.witness.proofmode.util.ProofCsv;
+import org.witness.proofmode.util.ProofRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class OpenTimestampsUpgradeTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private final static int BLOCK_HEIGHT = 358391;
+    private final static long BLOCK_TIME = 1432827678;
+
+    private final static byte[] HEADER_MAGIC = {0x00, 'O', 'p', 'e', 'n', 'T', 'i', 'm', 'e', 's', 't', 'a', 'm', 'p', 's',
+            0x00, 0x00, 'P', 'r', 'o', 'o', 'f', 0x00, (byte) 0xbf, (byte) 0x89, (byte) 0xe2, (byte) 0xe8, (byte) 0x84, (byte) 0xe8, (byte) 0x92, (byte) 0x94};
+    private final static byte OP_SHA256 = 0x08;
+    private final static byte[] PENDING_TAG = {(byte) 0x83, (byte) 0xdf, (byte) 0xe3, 0x0d, 0x2e, (byte) 0xf9, 0x0c, (byte) 0x8e};
+    private final static byte[] BITCOIN_TAG = {0x05, (byte) 0x88, (byte) 0x96, 0x0d, 0x73, (byte) 0xd7, 0x19, 0x01};
+
+    private Context mContext;
+    private HttpServer mCalendar;
+    private String mCalendarUrl;
+    private volatile boolean mAnchored = true;
+    private volatile String mRequested;
+
+    @Before
+    public void setUp () throws IOException
+    {
+        mContext = RuntimeEnvironment.getApplication();
+
+        //a stand-in calendar that has anchored every commitment in BLOCK_HEIGHT, or none yet
+        mCalendar = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mCalendarUrl = "http://127.0.0.1:" + mCalendar.getAddress().getPort();
+
+        mCalendar.createContext("/timestamp/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequested = exchange.getRequestURI().getPath().substring("/timestamp/".length());
+
+                if (!mAnchored) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+
+                byte[] body = attestation(BITCOIN_TAG, varuint(BLOCK_HEIGHT));
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        mCalendar.start();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        mCalendar.stop(0);
+    }
+
+    @Test
+    public void upgradesAStoredPendingTimestamp () throws Exception
+    {
+        File fileMedia = writeMedia();
+
+        //the first proof of the media, from before the .ots was stamped; upgrades queued at
+        //start don't know the media, so the row is what tells it
+        ProofLedger.getInstance(mContext).append(HASH, ".ots", fileMedia.lastModified(),
+                new ProofRecord().set(ProofRecord.Field.FILE_PATH, fileMedia.getAbsolutePath()).set(ProofRecord.Field.FILE_HASH_SHA256, HASH));
+
+        byte[] pending = pendingOts();
+        File fileOts = new File(ProofStorage.getInstance(mContext).getOrCreateDir(HASH), HASH + ".ots");
+        writeFile(fileOts, pending);
+        assertEquals(-1, OpenTimestampsUpgradeProvider.getBitcoinHeight(pending));
+
+        Result result = upgrade();
+        assertNotNull(result.mError, result.mProof);
+        assertEquals(HASH, mRequested);
+
+        byte[] upgraded = Base64.decode(result.mProof, Base64.DEFAULT);
+        assertEquals(BLOCK_HEIGHT, OpenTimestampsUpgradeProvider.getBitcoinHeight(upgraded));
+
+        assertTrue(MediaWatcher.getInstance(mContext).saveUpgradedTimestamp(HASH, null, upgraded, BLOCK_TIME));
+
+        //the upgraded file took the pending one's place
+        assertArrayEquals(upgraded, readFile(fileOts));
+        assertFalse(new File(fileOts.getParentFile(), fileOts.getName() + ".tmp").exists());
+
+        ProofRecord row = lastRow(new File(fileOts.getParentFile(), HASH + ".proof.csv"));
+        assertEquals(fileMedia.getAbsolutePath(), row.get(ProofRecord.Field.FILE_PATH));
+        assertEquals(String.valueOf(BLOCK_HEIGHT), row.get(ProofRecord.Field.OPENTIMESTAMPS_BITCOIN_HEIGHT));
+        assertEquals(DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL).format(new Date(BLOCK_TIME * 1000)),
+                row.get(ProofRecord.Field.OPENTIMESTAMPS_BITCOIN_TIME));
+
+        //and the ledger now knows the hash is anchored
+        List<ProofLedger.Entry> entries = ProofLedger.getInstance(mContext).findByHash(HASH);
+        ProofLedger.Entry last = entries.get(entries.size() - 1);
+        assertTrue((last.getNotarized() & ProofLedger.NOTARIZED_BITCOIN) != 0);
+        assertFalse(ProofLedger.getInstance(mContext).findByNotarization(ProofLedger.NOTARIZED_OPENTIMESTAMPS, ProofLedger.NOTARIZED_BITCOIN).contains(HASH));
+    }
+
+    @Test
+    public void staysPendingUntilTheCalendarAnchorsIt () throws Exception
+    {
+        mAnchored = false;
+
+        byte[] pending = pendingOts();
+        File fileOts = new File(ProofStorage.getInstance(mContext).getOrCreateDir(HASH), HASH + ".ots");
+        writeFile(fileOts, pending);
+
+        Result result = upgrade();
+        assertNull(result.mProof);
+        assertEquals(OpenTimestampsUpgradeProvider.ERROR_PENDING, result.mErrorCode);
+        assertArrayEquals(pending, readFile(fileOts));
+    }
+
+    @Test
+    public void bitcoinTimeIsUnknownWithoutABitcoinAttestation () throws Exception
+    {
+        assertEquals(-1, OpenTimestampsUpgradeProvider.getBitcoinTime(HASH, pendingOts()));
+        assertEquals(-1, OpenTimestampsUpgradeProvider.getBitcoinTime(HASH, new byte[]{1, 2, 3}));
+    }
+
+    private Result upgrade ()
+    {
+        OpenTimestampsUpgradeProvider provider = new OpenTimestampsUpgradeProvider(ProofStorage.getInstance(mContext),
+                Collections.singletonList(mCalendarUrl));
+
+        final Result result = new Result();
+        provider.notarize(HASH, null, new NotarizationListener() {
+            @Override
+            public void notarizationSuccessful(String resultData) {
+                result.mProof = resultData;
+            }
+
+            @Override
+            public void notarizationFailed(int errCode, String message) {
+                result.mErrorCode = errCode;
+                result.mError = message;
+            }
+        });
+        return result;
+    }
+
+    private static class Result {
+        String mProof;
+        int mErrorCode;
+        String mError;
+    }
+
+    /*
+     * a detached .ots for HASH, as a calendar first answers: only a pending attestation
+     */
+    private byte[] pendingOts ()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADER_MAGIC, 0, HEADER_MAGIC.length);
+        out.write(1); //major version
+        out.write(OP_SHA256);
+
+        byte[] digest = hexToBytes(HASH);
+        out.write(digest, 0, digest.length);
+
+        byte[] uri = mCalendarUrl.getBytes(UTF_8);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(uri.length);
+        payload.write(uri, 0, uri.length);
+
+        byte[] attestation = attestation(PENDING_TAG, payload.toByteArray());
+        out.write(attestation, 0, attestation.length);
+        return out.toByteArray();
+    }
+
+    /*
+     * a serialized timestamp holding just the attestation
+     */
+    private static byte[] attestation (byte[] tag, byte[] payload)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00);
+        out.write(tag, 0, tag.length);
+        byte[] length = varuint(payload.length);
+        out.write(length, 0, length.length);
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] varuint (long value)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+        return out.toByteArray();
+    }
+
+    private static byte[] hexToBytes (String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
+    private File writeMedia () throws IOException
+    {
+        File fileMedia = new File(mContext.getFilesDir(), "capture.jpg");
+        writeFile(fileMedia, "not really a photo".getBytes(UTF_8));
+        return fileMedia;
+    }
+
+    private static void writeFile (File file, byte[] data) throws IOException
+    {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readFile (File file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        }
+        finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static ProofRecord lastRow (File fileProof) throws IOException
+    {
+        ProofCsv.CsvReader reader = new ProofCsv.CsvReader(new InputStreamReader(new FileInputStream(fileProof), UTF_8));
+        try {
+            ProofRecord last = null;
+            for (ProofRecord record = reader.next(); record != null; record = reader.next())
+                last = record;
+            return last;
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.witness.proofmode.service;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.witness.proofmode.crypto.MediaDigestSession;
+import org.witness.proofmode.metrics.ProofMetrics;
+import org.witness.proofmode.metrics.ProofMetricsListener;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProofEngineTest {
+
+    private Stages mStages;
+    private ProofEngine mEngine;
+
+    @Before
+    public void setUp ()
+    {
+        mStages = new Stages();
+        mEngine = new ProofEngine(RuntimeEnvironment.getApplication(), mStages, 1, 1);
+    }
+
+    @After
+    public void tearDown ()
+    {
+        mStages.mGate.countDown();
+        mStages.mWriteGate.countDown();
+        mEngine.shutdown();
+    }
+
+    @Test
+    public void duplicateSubmitsShareOneFuture () throws Exception
+    {
+        Uri uri = Uri.parse("content://media/external/images/media/1");
+
+        Future<String> first = mEngine.submit(uri, null, ProofEngine.PRIORITY_BACKGROUND);
+        Future<String> second = mEngine.submit(uri, null, ProofEngine.PRIORITY_BACKGROUND);
+        Future<String> user = mEngine.submit(uri, null, ProofEngine.PRIORITY_USER);
+
+        assertSame(first, second);
+        assertSame(first, user);
+
+        mStages.mGate.countDown();
+
+        assertEquals(Stages.hashOf(uri), first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, mStages.mPrepared.size());
+        assertEquals(1, mStages.mGenerated.get());
+    }
+
+    @Test
+    public void mediaWithTheSameHashIsWrittenOnce () throws Exception
+    {
+        Uri original = Uri.parse("content://media/external/images/media/1");
+        Uri copy = Uri.parse("content://media/external/images/media/2");
+        mStages.mHashes.put(copy.toString(), Stages.hashOf(original));
+
+        //the original is still being written when the copy turns out to have its hash
+        final CountDownLatch duplicate = new CountDownLatch(1);
+        ProofMetricsListener listener = new ProofMetricsListener() {
+            @Override
+            public void stageCompleted(Uri uri, String stage, long durationUs) {
+            }
+
+            @Override
+            public void counterIncremented(Uri uri, String counter) {
+                if (ProofMetrics.COUNTER_DUPLICATE.equals(counter))
+                    duplicate.countDown();
+            }
+
+            @Override
+            public void queueDepthChanged(String queue, int depth) {
+            }
+        };
+        mStages.mWriteGate = new CountDownLatch(1);
+        ProofMetrics.getInstance().addListener(listener);
+
+        try {
+            Future<String> first = mEngine.submit(original, null, ProofEngine.PRIORITY_BACKGROUND);
+            Future<String> second = mEngine.submit(copy, null, ProofEngine.PRIORITY_BACKGROUND);
+
+            mStages.mGate.countDown();
+            assertTrue(duplicate.await(5, TimeUnit.SECONDS));
+            mStages.mWriteGate.countDown();
+
+            assertEquals(Stages.hashOf(original), first.get(5, TimeUnit.SECONDS));
+            assertEquals(Stages.hashOf(original), second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, mStages.mPrepared.size());
+            assertEquals(1, mStages.mGenerated.get());
+        }
+        finally {
+            ProofMetrics.getInstance().removeListener(listener);
+        }
+    }
+
+    @Test
+    public void userRequestsRunBeforeQueuedBackgroundWork () throws Exception
+    {
+        Uri blocker = Uri.parse("content://media/external/images/media/1");
+        Uri background1 = Uri.parse("content://media/external/images/media/2");
+        Uri background2 = Uri.parse("content://media/external/images/media/3");
+        Uri user = Uri.parse("content://media/external/images/media/4");
+
+        //occupies the only I/O thread until the gate opens, so everything else queues
+        Future<String> blocked = mEngine.submit(blocker, null, ProofEngine.PRIORITY_BACKGROUND);
+        assertTrue(mStages.mStarted.await(5, TimeUnit.SECONDS));
+
+        Future<String> result1 = mEngine.submit(background1, null, ProofEngine.PRIORITY_BACKGROUND);
+        Future<String> result2 = mEngine.submit(background2, null, ProofEngine.PRIORITY_BACKGROUND);
+        Future<String> userResult = mEngine.submit(user, null, ProofEngine.PRIORITY_USER);
+
+        mStages.mGate.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        result1.get(5, TimeUnit.SECONDS);
+        result2.get(5, TimeUnit.SECONDS);
+        userResult.get(5, TimeUnit.SECONDS);
+
+        List<String> order = new ArrayList<>(mStages.mPrepared);
+        assertEquals(4, order.size());
+        assertEquals(blocker.toString(), order.get(0));
+        assertEquals(user.toString(), order.get(1));
+        assertEquals(background1.toString(), order.get(2));
+        assertEquals(background2.toString(), order.get(3));
+    }
+
+    @Test
+    public void backgroundQueueIsBounded () throws Exception
+    {
+        List<Future<String>> queued = new ArrayList<>();
+
+        for (int i = 0; i < ProofEngine.MAX_QUEUED_BACKGROUND; i++)
+            queued.add(mEngine.offer(Uri.parse("content://media/external/video/media/" + i), null, ProofEngine.PRIORITY_BACKGROUND));
+
+        for (Future<String> result : queued)
+            assertNotNull(result);
+
+        assertNull(mEngine.offer(Uri.parse("content://media/external/video/media/full"), null, ProofEngine.PRIORITY_BACKGROUND));
+
+        //the user never waits on background back-pressure
+        Future<String> user = mEngine.offer(Uri.parse("content://media/external/video/media/user"), null, ProofEngine.PRIORITY_USER);
+        assertNotNull(user);
+
+        mStages.mGate.countDown();
+        for (Future<String> result : queued)
+            result.get(5, TimeUnit.SECONDS);
+        user.get(5, TimeUnit.SECONDS);
+
+        assertNotNull(mEngine.offer(Uri.parse("content://media/external/video/media/full"), null, ProofEngine.PRIORITY_BACKGROUND));
+    }
+
+    @Test
+    public void listenersHearEachRequestOnceItIsDone () throws Exception
+    {
+        Uri first = Uri.parse("content://media/external/images/media/1");
+        Uri second = Uri.parse("content://media/external/images/media/2");
+
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch allDone = new CountDownLatch(3);
+
+        ProofEngine.Listener listener = new ProofEngine.Listener() {
+            @Override
+            public void onProofDone(Uri uri, String hash, Throwable error) {
+                done.add(uri + "=" + hash);
+                allDone.countDown();
+            }
+        };
+
+        mEngine.submit(first, null, ProofEngine.PRIORITY_USER, listener);
+        assertTrue(mStages.mStarted.await(5, TimeUnit.SECONDS));
+        mEngine.submit(second, null, ProofEngine.PRIORITY_USER, listener);
+
+        //a duplicate of a pending request hears when that one is done
+        mEngine.submit(first, null, ProofEngine.PRIORITY_USER, listener);
+        assertTrue(done.isEmpty());
+
+        mStages.mGate.countDown();
+        assertTrue(allDone.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, done.size());
+        assertEquals(2, Collections.frequency(done, first + "=" + Stages.hashOf(first)));
+        assertTrue(done.contains(second + "=" + Stages.hashOf(second)));
+    }
+
+    /**
+     * Stands in for MediaWatcher: every prepare waits for the gate and reports a hash per uri,
+     * and every generate is counted
+     */
+    private static class Stages implements ProofEngine.Stages {
+
+        final CountDownLatch mGate = new CountDownLatch(1);
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final List<String> mPrepared = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, String> mHashes = Collections.synchronizedMap(new HashMap<String, String>());
+        final AtomicInteger mGenerated = new AtomicInteger();
+        //holds proof writing back where a test needs it still in progress
+        volatile CountDownLatch mWriteGate = new CountDownLatch(0);
+
+        static String hashOf (Uri uri)
+        {
+            return Integer.toHexString(uri.toString().hashCode());
+        }
+
+        @Override
+        public MediaWatcher.PreparedProof prepareProof(Context context, Uri uri, String knownHash) {
+            mPrepared.add(uri.toString());
+            mStarted.countDown();
+
+            try {
+                mGate.await();
+
+                String hash = mHashes.containsKey(uri.toString()) ? mHashes.get(uri.toString()) : hashOf(uri);
+                MediaDigestSession.Result digest = new MediaDigestSession(new ByteArrayInputStream(hash.getBytes())).digest();
+                return new MediaWatcher.PreparedProof(uri, hash, digest, null, null);
+            }
+            catch (Exception e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public String generateProof(Context context, MediaWatcher.PreparedProof prepared) {
+            mGenerated.incrementAndGet();
+
+            try {
+                mWriteGate.await();
+            }
+            catch (InterruptedException ie)
+            {
+                return null;
+            }
+
+            return prepared.getHash();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.witness.proofmode.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.witness.proofmode.util.ProofRecord;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProofLedgerTest {
+
+    //a few entries per segment, so a handful of captures spans several of them
+    private final static long SEGMENT_SIZE = 1024;
+
+    private File mDir;
+    private ProofLedger mLedger;
+
+    @Before
+    public void setUp () throws IOException
+    {
+        mDir = File.createTempFile("proofledger", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        if (mLedger != null)
+            mLedger.close();
+
+        delete(mDir);
+    }
+
+    private static void delete (File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                delete(child);
+        file.delete();
+    }
+
+    private static String hash (int n)
+    {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 64)
+            sb.append(String.format("%08x", n));
+        return sb.toString();
+    }
+
+    private static ProofRecord record (int n)
+    {
+        return new ProofRecord()
+                .set(ProofRecord.Field.FILE_PATH, "/sdcard/DCIM/IMG_" + n + ".jpg")
+                .set(ProofRecord.Field.FILE_HASH_SHA256, hash(n))
+                .set(ProofRecord.Field.NOTES, "capture " + n);
+    }
+
+    private ProofLedger reopen ()
+    {
+        if (mLedger != null)
+            mLedger.close();
+
+        mLedger = new ProofLedger(mDir, SEGMENT_SIZE);
+        return mLedger;
+    }
+
+    private File[] files (final String ext)
+    {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(ext);
+            }
+        });
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    /*
+     * capture n at time n * 1000, logged without notarization
+     */
+    private void appendCaptures (int from, int to) throws IOException
+    {
+        for (int i = from; i < to; i++)
+            mLedger.append(hash(i), "none", i * 1000L, record(i));
+    }
+
+    private void assertCaptures (int count) throws IOException
+    {
+        assertEquals(count, mLedger.getEntryCount());
+
+        List<ProofLedger.Entry> entries = mLedger.findBetween(0, Long.MAX_VALUE);
+        assertEquals(count, entries.size());
+
+        for (int i = 0; i < count; i++) {
+            ProofLedger.Entry entry = entries.get(i);
+            assertEquals(i * 1000L, entry.getTime());
+            assertEquals(hash(i), entry.getHash());
+            assertEquals("capture " + i, mLedger.readRecord(entry).get(ProofRecord.Field.NOTES));
+        }
+    }
+
+    @Test
+    public void entriesAreFoundAgainAfterReopening () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 3);
+
+        reopen();
+        assertCaptures(3);
+
+        //the open segment is appended to where it left off
+        appendCaptures(3, 5);
+        reopen();
+        assertCaptures(5);
+    }
+
+    @Test
+    public void tornEntryAtTheEndIsCutOffOnReopening () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 2);
+        mLedger.close();
+
+        File segment = files(".seg")[0];
+        long good = segment.length();
+
+        //a crash partway through the next entry
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(good);
+            raf.writeInt(200);
+            raf.writeInt(12345);
+            raf.write(new byte[50]);
+        }
+        finally {
+            raf.close();
+        }
+
+        reopen();
+        assertEquals(good, segment.length());
+        assertCaptures(2);
+
+        appendCaptures(2, 3);
+        reopen();
+        assertCaptures(3);
+    }
+
+    @Test
+    public void entryFailingItsChecksumAtTheEndIsCutOff () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 3);
+        mLedger.close();
+
+        File segment = files(".seg")[0];
+        long length = segment.length();
+
+        //flip a byte in the last entry's payload
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(length - 2);
+            int b = raf.read();
+            raf.seek(length - 2);
+            raf.write(b ^ 0xff);
+        }
+        finally {
+            raf.close();
+        }
+
+        reopen();
+        assertTrue(segment.length() < length);
+        assertCaptures(2);
+
+        appendCaptures(2, 3);
+        reopen();
+        assertCaptures(3);
+    }
+
+    @Test
+    public void failedWriteIsCutOffRightAway () throws IOException
+    {
+        final boolean[] failing = new boolean[1];
+
+        mLedger = new ProofLedger(mDir, SEGMENT_SIZE) {
+            @Override
+            FileOutputStream openSegment(File file) throws IOException {
+                return new FileOutputStream(file, true) {
+                    @Override
+                    public void write(byte[] b) throws IOException {
+                        if (!failing[0]) {
+                            super.write(b);
+                            return;
+                        }
+
+                        //out of space halfway through the entry
+                        super.write(b, 0, b.length / 2);
+                        throw new IOException("no space left on device");
+                    }
+                };
+            }
+        };
+
+        appendCaptures(0, 2);
+        long good = files(".seg")[0].length();
+
+        failing[0] = true;
+        try {
+            mLedger.append(hash(99), "none", 99000L, record(99));
+            fail("the write should have failed");
+        }
+        catch (IOException expected)
+        {
+        }
+        failing[0] = false;
+
+        assertEquals(good, files(".seg")[0].length());
+        assertCaptures(2);
+
+        //written after the failed one, not after a torn entry
+        appendCaptures(2, 3);
+        reopen();
+        assertCaptures(3);
+    }
+
+    @Test
+    public void sealedSegmentWithoutItsIndexIsRebuilt () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 12);
+        mLedger.close();
+
+        File[] indexes = files(".idx");
+        assertTrue(indexes.length > 0);
+        assertTrue(indexes[0].delete());
+
+        reopen();
+        assertCaptures(12);
+
+        //and saved again, for the next time
+        assertTrue(indexes[0].exists());
+        reopen();
+        assertCaptures(12);
+    }
+
+    @Test
+    public void sealedSegmentWithAStaleIndexIsRebuilt () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 12);
+        mLedger.close();
+
+        File[] indexes = files(".idx");
+        assertTrue(indexes.length > 1);
+
+        //the index of another first segment, e.g. one left from an earlier install
+        File otherDir = new File(mDir, "other");
+        ProofLedger other = new ProofLedger(otherDir, SEGMENT_SIZE);
+        for (int i = 100; i < 112; i++)
+            other.append(hash(i), "none", i * 1000L, record(i));
+        other.close();
+
+        //for a segment of another size, so it can be told apart
+        File segment = files(".seg")[0];
+        assertTrue(new File(otherDir, segment.getName()).length() != segment.length());
+
+        File otherIndex = new File(otherDir, indexes[0].getName());
+        assertTrue(indexes[0].delete());
+        assertTrue(otherIndex.renameTo(indexes[0]));
+
+        //and one cut short while it was written
+        RandomAccessFile raf = new RandomAccessFile(indexes[1], "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        }
+        finally {
+            raf.close();
+        }
+
+        reopen();
+        assertCaptures(12);
+    }
+
+    @Test
+    public void queriesSpanSegments () throws IOException
+    {
+        reopen();
+        appendCaptures(0, 12);
+
+        //notarizations of earlier captures, logged in later segments
+        mLedger.append(hash(1), ".ots", 1000L, record(1));
+        mLedger.append(hash(2), ".gst", 2000L, record(2));
+        appendCaptures(12, 20);
+        mLedger.append(hash(1), ".ots.btc", 1000L, record(1));
+        mLedger.append(hash(4), ".ots", 4000L, record(4));
+
+        assertTrue(files(".seg").length > 3);
+
+        for (ProofLedger ledger : new ProofLedger[] { mLedger, reopen() }) {
+            List<ProofLedger.Entry> between = ledger.findBetween(1000L, 5000L);
+            assertEquals(8, between.size());
+            for (int i = 1; i < between.size(); i++)
+                assertTrue(between.get(i - 1).getTime() <= between.get(i).getTime());
+
+            List<ProofLedger.Entry> byHash = ledger.findByHash(hash(1));
+            assertEquals(3, byHash.size());
+            assertEquals(ProofLedger.NOTARIZED_NONE, byHash.get(0).getNotarized());
+            assertEquals(ProofLedger.NOTARIZED_OPENTIMESTAMPS, byHash.get(1).getNotarized());
+            assertEquals(ProofLedger.NOTARIZED_OPENTIMESTAMPS | ProofLedger.NOTARIZED_BITCOIN, byHash.get(2).getNotarized());
+            assertEquals("capture 1", ledger.readRecord(byHash.get(2)).get(ProofRecord.Field.NOTES));
+
+            assertEquals(Arrays.asList(hash(4)),
+                    ledger.findByNotarization(ProofLedger.NOTARIZED_OPENTIMESTAMPS, ProofLedger.NOTARIZED_BITCOIN));
+
+            List<String> lacking = ledger.findLackingNotarization();
+            assertEquals(17, lacking.size());
+            assertEquals(hash(0), lacking.get(0));
+            assertEquals(hash(3), lacking.get(1));
+            assertEquals(hash(19), lacking.get(16));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.witness.proofmode.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProofCsvTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp () throws IOException
+    {
+        mDir = File.createTempFile("proofcsv", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        File[] files = mDir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        mDir.delete();
+    }
+
+    private static ProofRecord awkwardRecord ()
+    {
+        return new ProofRecord()
+                .set(ProofRecord.Field.FILE_PATH, "/sdcard/DCIM/a, b.jpg")
+                .set(ProofRecord.Field.FILE_HASH_SHA256, "0f1e2d3c")
+                .set(ProofRecord.Field.NOTES, "she said \"hi\"\nthen left")
+                .set(ProofRecord.Field.CELL_INFO, "[{\"cid\":1,\"lac\":2}]")
+                .set(ProofRecord.Field.NETWORK, "line one\r\nline two")
+                .set(ProofRecord.Field.LOCATION_PROVIDER, "\"")
+                .set(ProofRecord.Field.LOCATION_LATITUDE, "");
+    }
+
+    private static void assertSameFields (ProofRecord expected, ProofRecord actual)
+    {
+        for (ProofRecord.Field field : ProofRecord.Field.values())
+            assertEquals(field.getColumn(), expected.get(field), actual.get(field));
+    }
+
+    private static ProofCsv.CsvReader reader (String csv)
+    {
+        return new ProofCsv.CsvReader(new StringReader(csv));
+    }
+
+    @Test
+    public void quotesOnlyFieldsThatNeedIt () throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        ProofRecord record = new ProofRecord()
+                .set(ProofRecord.Field.FILE_PATH, "plain")
+                .set(ProofRecord.Field.FILE_HASH_SHA256, "a,b")
+                .set(ProofRecord.Field.FILE_MODIFIED, "say \"hi\"")
+                .set(ProofRecord.Field.PROOF_GENERATED, "two\nlines");
+
+        ProofCsv.writeRow(record, Arrays.asList("File Path", "File Hash SHA256", "File Modified", "Proof Generated", "DeviceID"), sb);
+
+        assertEquals("plain,\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",\n", sb.toString());
+    }
+
+    @Test
+    public void roundTripsQuotesCommasAndLineBreaks () throws IOException
+    {
+        ProofRecord record = awkwardRecord();
+
+        ProofCsv.CsvReader reader = reader(ProofCsv.format(record, true));
+        ProofRecord read = reader.next();
+
+        assertSameFields(record, read);
+        assertEquals(ProofRecord.SCHEMA_VERSION, read.getSchemaVersion());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void readsEmptyFields () throws IOException
+    {
+        ProofCsv.CsvReader reader = reader("File Path,DeviceID,Notes,File Hash SHA256\n,,,abc\n\"\",x,,\n");
+
+        ProofRecord first = reader.next();
+        assertEquals("", first.get(ProofRecord.Field.FILE_PATH));
+        assertEquals("", first.get(ProofRecord.Field.DEVICE_ID));
+        assertEquals("", first.get(ProofRecord.Field.NOTES));
+        assertEquals("abc", first.get(ProofRecord.Field.FILE_HASH_SHA256));
+
+        ProofRecord second = reader.next();
+        assertEquals("", second.get(ProofRecord.Field.FILE_PATH));
+        assertEquals("x", second.get(ProofRecord.Field.DEVICE_ID));
+        assertEquals("", second.get(ProofRecord.Field.FILE_HASH_SHA256));
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void readsCrLfAndSkipsBlankLines () throws IOException
+    {
+        ProofCsv.CsvReader reader = reader("File Path,Notes\r\n\r\n/a.jpg,\"x\r\ny\"\r\n\r\n/b.jpg,z\r\n");
+
+        ProofRecord first = reader.next();
+        assertEquals("/a.jpg", first.get(ProofRecord.Field.FILE_PATH));
+        assertEquals("x\r\ny", first.get(ProofRecord.Field.NOTES));
+
+        assertEquals("/b.jpg", reader.next().get(ProofRecord.Field.FILE_PATH));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void readsSchemaOneRows () throws IOException
+    {
+        //the original proof.csv: HashMap column order, a trailing comma and no schema column
+        String csv = "DeviceID,File Hash SHA256,Location.Provider,File Path,Unknown Column,Notes,\n"
+                + "abcd1234,0f1e,none,/sdcard/DCIM/a b.jpg,whatever,some notes,\n";
+
+        ProofCsv.CsvReader reader = reader(csv);
+        List<String> header = reader.getHeader();
+        assertEquals(7, header.size());
+
+        ProofRecord record = reader.next();
+        assertEquals(1, record.getSchemaVersion());
+        assertEquals("abcd1234", record.get(ProofRecord.Field.DEVICE_ID));
+        assertEquals("0f1e", record.get(ProofRecord.Field.FILE_HASH_SHA256));
+        assertEquals("none", record.get(ProofRecord.Field.LOCATION_PROVIDER));
+        assertEquals("/sdcard/DCIM/a b.jpg", record.get(ProofRecord.Field.FILE_PATH));
+        assertEquals("some notes", record.get(ProofRecord.Field.NOTES));
+        assertEquals("", record.get(ProofRecord.Field.CELL_INFO));
+        assertEquals("", record.get("Unknown Column"));
+    }
+
+    @Test
+    public void appendStartsNewFilesWithTheCurrentHeader () throws IOException
+    {
+        File fileProof = new File(mDir, "new.proof.csv");
+        ProofRecord record = awkwardRecord();
+
+        ProofCsv.append(fileProof, record);
+        ProofCsv.append(fileProof, new ProofRecord().set(ProofRecord.Field.FILE_PATH, "/b.jpg"));
+
+        assertEquals(ProofCsv.getColumns(), ProofCsv.readHeader(fileProof));
+
+        ProofCsv.CsvReader reader = new ProofCsv.CsvReader(new InputStreamReader(new FileInputStream(fileProof), Charset.forName("UTF-8")));
+        try {
+            assertSameFields(record, reader.next());
+            assertEquals("/b.jpg", reader.next().get(ProofRecord.Field.FILE_PATH));
+            assertNull(reader.next());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void appendFollowsAnOlderHeader () throws IOException
+    {
+        File fileProof = new File(mDir, "old.proof.csv");
+        String old = "File Hash SHA256,File Path,Notes,\n0f1e,/a.jpg,old,\n";
+
+        OutputStream os = new FileOutputStream(fileProof);
+        os.write(old.getBytes(Charset.forName("UTF-8")));
+        os.close();
+
+        ProofCsv.append(fileProof, new ProofRecord()
+                .set(ProofRecord.Field.FILE_PATH, "/b, c.jpg")
+                .set(ProofRecord.Field.FILE_HASH_SHA256, "abcd")
+                .set(ProofRecord.Field.DEVICE_ID, "not in the old header"));
+
+        ProofCsv.CsvReader reader = new ProofCsv.CsvReader(new InputStreamReader(new FileInputStream(fileProof), Charset.forName("UTF-8")));
+        try {
+            assertEquals("old", reader.next().get(ProofRecord.Field.NOTES));
+
+            ProofRecord appended = reader.next();
+            assertEquals("/b, c.jpg", appended.get(ProofRecord.Field.FILE_PATH));
+            assertEquals("abcd", appended.get(ProofRecord.Field.FILE_HASH_SHA256));
+            assertEquals("", appended.get(ProofRecord.Field.DEVICE_ID));
+            assertNull(reader.next());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void binaryFormRoundTrips () throws IOException
+    {
+        ProofRecord record = awkwardRecord().set(ProofRecord.Field.LANGUAGE, "\u65e5\u672c\u8a9e");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        record.writeTo(new DataOutputStream(baos));
+
+        ProofRecord read = ProofRecord.readFrom(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+        assertSameFields(record, read);
+    }
+}
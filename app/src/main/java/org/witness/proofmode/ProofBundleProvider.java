@@ -0,0 +1,313 @@
+package org.witness.proofmode;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.witness.proofmode.crypto.PgpUtils;
+import org.witness.proofmode.util.ProofBundleWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Serves proof bundles as zip streams that are generated while the receiving app reads them,
+ * so sharing doesn't wait for (or need space for) a complete zip in the cache.
+ *
+ * Only the small bundle description is saved when sharing; every open of the uri writes the
+ * zip again from the original files into a pipe. Media we could only read through a temporary
+ * grant is copied next to the description when sharing, since the grant may be gone by then.
+ * If any entry can't be read the open fails, rather than handing out a partial zip.
+ */
+public class ProofBundleProvider extends ContentProvider {
+
+    private final static String BUNDLE_DIR = "bundles";
+    private final static String BUNDLE_EXT = ".json";
+
+    //receivers may read the uri some time after sharing, but not forever
+    private final static long MAX_BUNDLE_AGE_MS = 24 * 60 * 60 * 1000;
+
+    public static String getAuthority (Context context)
+    {
+        return context.getPackageName() + ".bundle";
+    }
+
+    /**
+     * Save the bundle description and get a uri that streams it as a zip
+     *
+     * @param encrypt encrypt the zip to our own key as it is written (use a .gpg name)
+     */
+    public static Uri publish (Context context, String fileName, ProofBundleWriter bundle, boolean encrypt) throws IOException
+    {
+        File dirBundles = getBundleDir(context);
+        cleanBundles(dirBundles);
+
+        String token = UUID.randomUUID().toString();
+
+        bundle.copyUris(context, new File(dirBundles, token), getReadableAuthorities(context));
+
+        try {
+            JSONObject jBundle = new JSONObject();
+            jBundle.put("entries", bundle.toJson());
+            jBundle.put("encrypt", encrypt);
+
+            OutputStream os = new FileOutputStream(new File(dirBundles, token + BUNDLE_EXT));
+            try {
+                os.write(jBundle.toString().getBytes(Charset.forName("UTF-8")));
+            } finally {
+                os.close();
+            }
+        }
+        catch (JSONException je)
+        {
+            throw new IOException(je);
+        }
+
+        return new Uri.Builder().scheme("content").authority(getAuthority(context))
+                .appendPath(token).appendPath(fileName).build();
+    }
+
+    private static File getBundleDir (Context context)
+    {
+        File dirBundles = new File(context.getCacheDir(), BUNDLE_DIR);
+        dirBundles.mkdirs();
+        return dirBundles;
+    }
+
+    /*
+     * the authorities we can read from without a grant: MediaStore and our own providers
+     */
+    private static Set<String> getReadableAuthorities (Context context)
+    {
+        Set<String> authorities = new HashSet<>();
+        authorities.add(MediaStore.AUTHORITY);
+
+        try {
+            ProviderInfo[] providers = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_PROVIDERS).providers;
+            if (providers != null) {
+                for (ProviderInfo provider : providers)
+                    if (provider.authority != null)
+                        for (String authority : provider.authority.split(";"))
+                            authorities.add(authority);
+            }
+        }
+        catch (PackageManager.NameNotFoundException e)
+        {
+            Timber.d(e, "unable to list our own providers");
+        }
+
+        return authorities;
+    }
+
+    private static void cleanBundles (File dirBundles)
+    {
+        File[] files = dirBundles.listFiles();
+        if (files == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        for (File file : files)
+            if (now - file.lastModified() > MAX_BUNDLE_AGE_MS)
+                delete(file);
+    }
+
+    private static void delete (File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+
+        file.delete();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+
+        if (projection == null)
+            projection = new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i]))
+                row[i] = uri.getLastPathSegment();
+            else if (OpenableColumns.SIZE.equals(projection[i]))
+                row[i] = null; //unknown until the zip has been written
+        }
+
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name != null && name.endsWith(".gpg"))
+            return "application/pgp-encrypted";
+        else
+            return "application/zip";
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+
+        if (!"r".equals(mode))
+            throw new FileNotFoundException("proof bundles are read only");
+
+        if (uri.getPathSegments().size() != 2)
+            throw new FileNotFoundException("unknown bundle: " + uri);
+
+        final Context context = getContext();
+        final ProofBundleWriter bundle;
+        final boolean encrypt;
+
+        try {
+            JSONObject jBundle = readBundle(new File(getBundleDir(context), uri.getPathSegments().get(0) + BUNDLE_EXT));
+            bundle = ProofBundleWriter.fromJson(jBundle.getJSONArray("entries"));
+            encrypt = jBundle.optBoolean("encrypt", false);
+        }
+        catch (IOException | JSONException e)
+        {
+            throw new FileNotFoundException("unknown bundle: " + uri);
+        }
+
+        //open every source now, so a missing one fails the open instead of the zip coming up short
+        final ProofBundleWriter.Sources sources;
+
+        try {
+            sources = bundle.open(context);
+        }
+        catch (IOException e)
+        {
+            throw new FileNotFoundException("unable to read bundle: " + e.getMessage());
+        }
+
+        final ParcelFileDescriptor[] pipe;
+
+        try {
+            //a reliable pipe lets the reader tell an error from the end of the zip
+            if (Build.VERSION.SDK_INT >= 19)
+                pipe = ParcelFileDescriptor.createReliablePipe();
+            else
+                pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            sources.close();
+            throw new FileNotFoundException("unable to open pipe: " + e.getMessage());
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                //the descriptor is closed below, with an error if need be, not by the zip
+                OutputStream os = new FilterOutputStream(new FileOutputStream(pipe[1].getFileDescriptor())) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+
+                try {
+                    if (encrypt)
+                        sources.write(PgpUtils.getInstance(context).createEncryptor().setCompress(false).open(os));
+                    else
+                        sources.write(os);
+
+                    pipe[1].close();
+                }
+                catch (Exception e)
+                {
+                    //the reader went away, or a source failed partway through
+                    Timber.d(e, "proof bundle stream ended early");
+                    closeWithError(pipe[1], e);
+                }
+                finally {
+                    sources.close();
+                }
+            }
+        }, "ProofBundleWriter").start();
+
+        return pipe[0];
+    }
+
+    private static void closeWithError (ParcelFileDescriptor pfd, Exception e)
+    {
+        try {
+            if (Build.VERSION.SDK_INT >= 19)
+                pfd.closeWithError(String.valueOf(e.getMessage()));
+            else
+                pfd.close();
+        }
+        catch (IOException ioe)
+        {
+            //nothing left to do with it
+        }
+    }
+
+    private static JSONObject readBundle (File fileBundle) throws IOException, JSONException
+    {
+        InputStream is = new FileInputStream(fileBundle);
+        byte[] data = new byte[(int) fileBundle.length()];
+
+        try {
+            int offset = 0;
+            int n;
+            while (offset < data.length && (n = is.read(data, offset, data.length - offset)) != -1)
+                offset += n;
+        } finally {
+            is.close();
+        }
+
+        return new JSONObject(new String(data, Charset.forName("UTF-8")));
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
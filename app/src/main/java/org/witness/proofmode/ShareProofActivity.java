@@ -33,6 +33,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AlertDialog;
@@ -46,10 +47,14 @@ import androidx.documentfile.provider.DocumentFile;
 import org.witness.proofmode.crypto.HashUtils;
 import org.witness.proofmode.crypto.PgpUtils;
 import org.witness.proofmode.service.MediaWatcher;
+import org.witness.proofmode.storage.MediaHashIndex;
+import org.witness.proofmode.storage.ProofLedger;
+import org.witness.proofmode.util.ProofBundleWriter;
+import org.witness.proofmode.util.ProofCsv;
+import org.witness.proofmode.util.ProofRecord;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -59,6 +64,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
@@ -70,6 +76,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -81,8 +88,6 @@ public class ShareProofActivity extends AppCompatActivity {
 
     private final static String ZIP_FILE_DATETIME_FORMAT = "yyyy-MM-dd-HH-mm-ssz";
 
-    private HashMap<String, String> hashCache = new HashMap<>();
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -199,44 +204,46 @@ public class ShareProofActivity extends AppCompatActivity {
         if (Intent.ACTION_SEND_MULTIPLE.equals(action)) {
             final ArrayList<Uri> mediaUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
 
-            new AsyncTask<Void, Void, String> () {
+            displayBatchProgress(0, mediaUris.size());
+
+            new AsyncTask<Void, Integer, Map<Uri, ProofResult>> () {
 
                 @Override
-                protected String doInBackground(Void... voids) {
-
-                    String proofHash = null;
-
-                    for (Uri mediaUri : mediaUris)
-                    {
-                        try {
-                            proofHash = HashUtils.getSHA256FromFileContent(getContentResolver().openInputStream(mediaUri));
-                            hashCache.put(mediaUri.toString(),proofHash);
-                            String genProofHash = ProofMode.generateProof(ShareProofActivity.this, mediaUri, proofHash);
-
-                            if (genProofHash != null && genProofHash.equals(proofHash))
-                            {
-                                //all good
-                            }
-                            else {
-                                //error occured
-                            }
+                protected Map<Uri, ProofResult> doInBackground(Void... voids) {
+
+                    //items run concurrently; hashing and signing each still share a single read of the media
+                    return ProofMode.generateProofs(ShareProofActivity.this, mediaUris, new ProofListener() {
+                        @Override
+                        public void proofGenerated(Uri uri, String hash, int completed, int total) {
+                            publishProgress(completed, total);
                         }
-                        catch (FileNotFoundException fe)
-                        {
-                            Timber.d("FileNotFound: %s", mediaUri);
+
+                        @Override
+                        public void proofFailed(Uri uri, Throwable error, int completed, int total) {
+                            Timber.d(error, "Unable to generate proof for: %s", uri);
+                            publishProgress(completed, total);
                         }
+                    });
+                }
 
-                    }
+                @Override
+                protected void onProgressUpdate(Integer... values) {
+                    super.onProgressUpdate(values);
 
-                    return proofHash;
+                    displayBatchProgress(values[0], values[1]);
                 }
 
                 @Override
-                protected void onPostExecute(String proofHash) {
-                    super.onPostExecute(proofHash);
+                protected void onPostExecute(Map<Uri, ProofResult> results) {
+                    super.onPostExecute(results);
 
+                    findViewById(R.id.progressBatch).setVisibility(View.GONE);
 
-                    if (proofHash != null)
+                    boolean hasProof = false;
+                    for (ProofResult result : results.values())
+                        hasProof |= result.isSuccessful();
+
+                    if (hasProof)
                         displaySharePrompt ();
                     else
                         showProofError();
@@ -257,18 +264,8 @@ public class ShareProofActivity extends AppCompatActivity {
             {
 //                mediaUri = cleanUri(mediaUri);
 
-                try {
-                    proofHash = hashCache.get(mediaUri.toString());
-
-                    if (proofHash != null)
-                        proofHash = HashUtils.getSHA256FromFileContent(getContentResolver().openInputStream(mediaUri));
-
-                    generateProof(mediaUri, proofHash);
-                }
-                catch (FileNotFoundException fe)
-                {
-                    proofHash = null;
-                }
+                //the hash is looked up in the media hash index, or computed while the proof is generated
+                generateProof(mediaUri, null);
 
             }
         }
@@ -304,6 +301,16 @@ public class ShareProofActivity extends AppCompatActivity {
 
     }
 
+    private void displayBatchProgress (int completed, int total)
+    {
+        displayProgress(getString(R.string.progress_generating_proofs, completed, total));
+
+        ProgressBar progressBatch = findViewById(R.id.progressBatch);
+        progressBatch.setVisibility(View.VISIBLE);
+        progressBatch.setMax(total);
+        progressBatch.setProgress(completed);
+    }
+
     private void displayGeneratePrompt ()
     {
 
@@ -354,6 +361,7 @@ public class ShareProofActivity extends AppCompatActivity {
 
                 fileBatchProof = new File(fileFolder,new Date().getTime() + "batchproof.csv");
                 fBatchProofOut = new PrintWriter(new FileWriter(fileBatchProof,  true));
+                ProofCsv.writeHeader(fBatchProofOut);
             }
             catch (IOException ioe) {
                 return false; //unable to open batch proof
@@ -381,7 +389,7 @@ public class ShareProofActivity extends AppCompatActivity {
             if (mediaUri != null) {
                // mediaUri = cleanUri(mediaUri);
 
-                String mediaHash = hashCache.get(mediaUri);
+                String mediaHash = MediaHashIndex.getInstance(this).getHash(this, mediaUri);
                 if (!processUri(mediaHash, mediaUri, shareUris, shareText, null, shareMedia))
                     return false;
             }
@@ -394,9 +402,6 @@ public class ShareProofActivity extends AppCompatActivity {
                 shareNotarization(shareText.toString());
             else {
 
-                File fileCacheFolder = new File(getCacheDir(),"zips");
-                fileCacheFolder.mkdir();
-
                 SimpleDateFormat sdf = new SimpleDateFormat(ZIP_FILE_DATETIME_FORMAT);
                 String dateString = sdf.format(new Date());
 
@@ -404,43 +409,23 @@ public class ShareProofActivity extends AppCompatActivity {
                 PgpUtils pu = PgpUtils.getInstance(this,prefs.getString("password",PgpUtils.DEFAULT_PASSWORD));
                 String userId = pu.getPublicKeyFingerprint();
 
-                File fileZip = new File(fileCacheFolder,"proofmode-" + userId + "-" + dateString + ".zip");
+                boolean encryptZip = false;
 
-                Timber.d("Preparing proof bundle zip: " + fileZip.getAbsolutePath());
+                String zipName = "proofmode-" + userId + "-" + dateString + (encryptZip ? ".zip.gpg" : ".zip");
+
+                Timber.d("Preparing proof bundle zip: " + zipName);
+
+                //the zip is written while the receiving app reads it, so there is nothing to wait for here
+                Uri uriZip;
 
                 try {
-                    zipProof(shareUris,fileZip);
+                    uriZip = ProofBundleProvider.publish(this, zipName, buildProofBundle(shareUris), encryptZip);
                 } catch (IOException e) {
-                    Timber.e(e,"Error generating proof Zip");
+                    Timber.e(e,"Error preparing proof Zip");
                     return false;
                 }
 
-                if (fileZip.length() > 0) {
-                    Timber.d("Proof zip completed. Size:" + fileZip.length());
-
-                    boolean encryptZip = false;
-
-                    if (encryptZip) {
-                        File fileZipEnc = new File(fileCacheFolder, "proofmode-" + userId + "-" + dateString + ".zip.gpg");
-                        try {
-                            PgpUtils.getInstance(this).encrypt(new FileInputStream(fileZip), fileZip.length(), new FileOutputStream(fileZipEnc));
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    Uri uriZip = FileProvider.getUriForFile(this, BuildConfig.APPLICATION_ID + ".provider", fileZip);
-
-                    shareFiltered(getString(R.string.select_app), shareText.toString(), shareUris, uriZip);
-                }
-                else
-                {
-                    Timber.d("Proof zip failed due to empty size:" + fileZip.length());
-
-                    return false;
-                }
+                shareFiltered(getString(R.string.select_app), shareText.toString(), shareUris, uriZip);
 
             }
         }
@@ -456,12 +441,10 @@ public class ShareProofActivity extends AppCompatActivity {
     private String proofExists (Uri mediaUri) throws FileNotFoundException {
 
 
-        String hash = HashUtils.getSHA256FromFileContent(getContentResolver().openInputStream(mediaUri));
+        String hash = MediaHashIndex.getInstance(this).getOrComputeHash(this, mediaUri);
 
         if (hash != null) {
 
-            hashCache.put (mediaUri.toString(), mediaUri.getLastPathSegment());
-
             Timber.d("Proof check if exists for URI %s and hash %s", mediaUri, hash);
 
             File fileFolder = MediaWatcher.getHashStorageDir(this, hash);
@@ -496,7 +479,15 @@ public class ShareProofActivity extends AppCompatActivity {
         }
 
         protected String doInBackground(Uri... params) {
-            return ProofMode.generateProof(activity, params[0], proofHash);
+
+            String proofMediaHash;
+
+            if (proofHash != null)
+                proofMediaHash = ProofMode.generateProof(activity, params[0], proofHash);
+            else
+                proofMediaHash = ProofMode.generateProof(activity, params[0]);
+
+            return proofMediaHash;
         }
 
         protected void onPostExecute(String proofMediaHash) {
@@ -674,7 +665,7 @@ public class ShareProofActivity extends AppCompatActivity {
             result = shareProof(mediaHash, mediaUri, fileMedia, shareUris, sb, fBatchProofOut, shareMedia);
 
             if (!result)
-                result = shareProofClassic(mediaUri, mediaPath, shareUris, sb, fBatchProofOut, shareMedia);
+                result = shareProofClassic(mediaHash, mediaUri, mediaPath, shareUris, sb, fBatchProofOut, shareMedia);
 
         }
         else
@@ -691,7 +682,7 @@ public class ShareProofActivity extends AppCompatActivity {
     private boolean shareProof (String hash, Uri uriMedia, File fileMedia, ArrayList<Uri> shareUris, StringBuffer sb, PrintWriter fBatchProofOut, boolean shareMedia) throws FileNotFoundException {
 
         if (hash == null)
-            hash = HashUtils.getSHA256FromFileContent(getContentResolver().openInputStream(uriMedia));
+            hash = MediaHashIndex.getInstance(this).getOrComputeHash(this, uriMedia);
 
         if (hash != null) {
             File fileFolder = MediaWatcher.getHashStorageDir(this,hash);
@@ -720,11 +711,12 @@ public class ShareProofActivity extends AppCompatActivity {
 
     }
 
-    private boolean shareProofClassic (Uri mediaUri, String mediaPath, ArrayList<Uri> shareUris, StringBuffer sb, PrintWriter fBatchProofOut, boolean shareMedia) throws FileNotFoundException {
+    private boolean shareProofClassic (String hash, Uri mediaUri, String mediaPath, ArrayList<Uri> shareUris, StringBuffer sb, PrintWriter fBatchProofOut, boolean shareMedia) throws FileNotFoundException {
 
         String baseFolder = "proofmode";
 
-        String hash = HashUtils.getSHA256FromFileContent(getContentResolver().openInputStream(mediaUri));
+        if (hash == null)
+            hash = MediaHashIndex.getInstance(this).getOrComputeHash(this, mediaUri);
 
         File fileMedia = new File(mediaPath);
         File fileMediaSig = new File(mediaPath + OPENPGP_FILE_TAG);
@@ -802,12 +794,22 @@ public class ShareProofActivity extends AppCompatActivity {
         if (fBatchProofOut != null)
         {
             try {
-                BufferedReader br = new BufferedReader(new FileReader(fileMediaProof));
-                br.readLine();//skip header
-                String csvLine = br.readLine();
-                // Log.i("ShareProof","batching csv line: " + csvLine);
-                fBatchProofOut.println(csvLine);
-                br.close();
+                //the first row, in the current column order whatever the schema of the proof file
+                ProofRecord record = null;
+
+                List<ProofLedger.Entry> entries = ProofLedger.getInstance(this).findByHash(hash);
+                if (!entries.isEmpty()) {
+                    record = ProofLedger.getInstance(this).readRecord(entries.get(0));
+                }
+                else {
+                    //proofs written before the ledger existed
+                    ProofCsv.CsvReader reader = new ProofCsv.CsvReader(new FileReader(fileMediaProof));
+                    record = reader.next();
+                    reader.close();
+                }
+
+                if (record != null)
+                    ProofCsv.writeRow(record, fBatchProofOut);
             }
             catch (IOException ioe)
             {
@@ -1013,29 +1015,13 @@ public class ShareProofActivity extends AppCompatActivity {
         }
     }
 
-    private final static int BUFFER = 1024*8;
+    private ProofBundleWriter buildProofBundle(ArrayList<Uri> uris) {
 
-    public void zipProof(ArrayList<Uri> uris, File fileZip) throws IOException {
-
-        BufferedInputStream origin;
-        FileOutputStream dest = new FileOutputStream(fileZip);
-        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
-                dest));
-        byte[] data = new byte[BUFFER];
+        ProofBundleWriter bundle = new ProofBundleWriter();
 
         for (Uri uri : uris) {
             try {
-                String fileName = getFileNameFromUri(uri);
-                Timber.d("adding to zip: " + fileName);
-                origin = new BufferedInputStream(getContentResolver().openInputStream(uri), BUFFER);
-                ZipEntry entry = new ZipEntry(fileName);
-                out.putNextEntry(entry);
-                int count;
-
-                while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                    out.write(data, 0, count);
-                }
-                origin.close();
+                bundle.addUri(getFileNameFromUri(uri), uri);
             }
             catch (Exception e)
             {
@@ -1043,29 +1029,15 @@ public class ShareProofActivity extends AppCompatActivity {
             }
         }
 
-        Timber.d("Adding public key");
         //add public key
         String pubKey = getPublicKey();
-        ZipEntry entry = new ZipEntry("pubkey.asc");
-        out.putNextEntry(entry);
-        out.write(pubKey.getBytes());
-
+        if (pubKey != null)
+            bundle.addText("pubkey.asc", pubKey);
 
-        Timber.d("Adding HowToVerifyProofData.txt");
         String howToFile = "HowToVerifyProofData.txt";
-        entry = new ZipEntry(howToFile);
-        out.putNextEntry(entry);
-        InputStream is = getResources().getAssets().open(howToFile);
-        byte[] buffer = new byte[1024];
-        for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
-            out.write(buffer, 0, length);
-        }
-        is.close();
-
-        Timber.d("Zip complete");
-
-        out.close();
+        bundle.addAsset(howToFile, howToFile);
 
+        return bundle;
     }
 
     private String getFileNameFromUri (Uri uri)
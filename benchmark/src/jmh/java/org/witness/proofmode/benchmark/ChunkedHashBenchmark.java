@@ -0,0 +1,39 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.crypto.ChunkedDigest;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merkle root of a media file hashed in chunks on every core, to compare with HashBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkedHashBenchmark {
+
+    @Param({"1048576", "4194304", "16777216"})
+    public int chunkSize;
+
+    @Benchmark
+    public byte[] chunkedSha256 (MediaFile media) throws IOException
+    {
+        FileInputStream in = new FileInputStream(media.file);
+
+        try {
+            return new ChunkedDigest(chunkSize, ChunkedDigest.getPool()).digest(in.getChannel()).getRoot();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.witness.proofmode.benchmark;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.crypto.PgpStreamEncryptor;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting a proof bundle to the public key; PgpUtils.encrypt hands off to the same
+ * PgpStreamEncryptor measured here
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncryptBenchmark {
+
+    @Param({"true", "false"})
+    public boolean compress;
+
+    private Keys mKeys;
+
+    @Setup(Level.Trial)
+    public void setup () throws IOException, PGPException
+    {
+        mKeys = new Keys();
+    }
+
+    @Benchmark
+    public long encrypt (MediaFile media) throws IOException, PGPException
+    {
+        NullOutputStream out = new NullOutputStream();
+        new PgpStreamEncryptor(mKeys.mEncryptionKey).setCompress(compress).encrypt(media.open(), out);
+        return out.mCount;
+    }
+}
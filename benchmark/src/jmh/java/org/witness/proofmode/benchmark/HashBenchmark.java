@@ -0,0 +1,58 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.crypto.HashUtils;
+import org.witness.proofmode.crypto.MediaDigestSession;
+import org.witness.proofmode.crypto.MediaReader;
+import org.witness.proofmode.crypto.Sha256Hash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 of a media file, the first step of every proof, at different read chunk sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashBenchmark {
+
+    @Param({"4096", "16384", "65536", "262144"})
+    public int bufferSize;
+
+    @Benchmark
+    public String sha256 (MediaFile media) throws IOException
+    {
+        return HashUtils.getSHA256FromFileContent(media.open(), bufferSize);
+    }
+
+    /**
+     * The same hash as raw bytes, with this thread's pooled digest and read buffer
+     */
+    @Benchmark
+    public Sha256Hash sha256Pooled (MediaFile media) throws IOException
+    {
+        InputStream in = media.open();
+
+        try {
+            return HashUtils.sha256(in, new MediaReader(MediaReader.Strategy.STREAM, bufferSize));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public MediaDigestSession.Result digestSession (MediaFile media) throws IOException, NoSuchAlgorithmException
+    {
+        return new MediaDigestSession(media.open()).digest();
+    }
+}
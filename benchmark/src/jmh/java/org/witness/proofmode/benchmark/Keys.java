@@ -0,0 +1,95 @@
+package org.witness.proofmode.benchmark;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.Ed25519KeyPairGenerator;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.Ed25519KeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * The same key layout the app generates (RSA 4096 signing key with an RSA encryption subkey,
+ * plus the optional Ed25519 signing subkey), created once per benchmark run
+ */
+class Keys {
+
+    final static char[] PASSWORD = "password".toCharArray();
+
+    final PGPPublicKeyRing mPublicRing;
+    final PGPSecretKey mSecretKey;
+    final PGPSecretKey mEdSecretKey;
+    final PGPPublicKey mEncryptionKey;
+    final byte[] mPublicRingEncoded;
+
+    Keys () throws PGPException, IOException
+    {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 4096, 12));
+        PGPKeyPair signKp = new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        PGPKeyPair encKp = new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        Ed25519KeyPairGenerator edKpg = new Ed25519KeyPairGenerator();
+        edKpg.init(new Ed25519KeyGenerationParameters(new SecureRandom()));
+        PGPKeyPair edKp = new BcPGPKeyPair(PublicKeyAlgorithmTags.EDDSA, edKpg.generateKeyPair(), new Date());
+
+        PGPSignatureSubpacketGenerator signGen = new PGPSignatureSubpacketGenerator();
+        signGen.setKeyFlags(false, KeyFlags.SIGN_DATA | KeyFlags.CERTIFY_OTHER);
+        PGPSignatureSubpacketGenerator encGen = new PGPSignatureSubpacketGenerator();
+        encGen.setKeyFlags(false, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+        PGPSignatureSubpacketGenerator edGen = new PGPSignatureSubpacketGenerator();
+        edGen.setKeyFlags(false, KeyFlags.SIGN_DATA);
+
+        PGPDigestCalculator sha1Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1);
+        PGPDigestCalculator sha256Calc = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA256);
+
+        PGPKeyRingGenerator ringGen = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, signKp,
+                "benchmark", sha1Calc, signGen.generate(), null,
+                new BcPGPContentSignerBuilder(signKp.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new BcPBESecretKeyEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256, sha256Calc, 0xc0).build(PASSWORD));
+        ringGen.addSubKey(encKp, encGen.generate(), null);
+        ringGen.addSubKey(edKp, edGen.generate(), null,
+                new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.EDDSA, HashAlgorithmTags.SHA256));
+
+        PGPSecretKeyRing secretRing = ringGen.generateSecretKeyRing();
+        mPublicRing = ringGen.generatePublicKeyRing();
+        mSecretKey = secretRing.getSecretKey();
+        mEdSecretKey = secretRing.getSecretKey(edKp.getKeyID());
+
+        PGPPublicKey encKey = null;
+        Iterator<PGPPublicKey> itKeys = mPublicRing.getPublicKeys();
+        while (itKeys.hasNext()) {
+            PGPPublicKey key = itKeys.next();
+            if (!key.isMasterKey() && key.isEncryptionKey())
+                encKey = key;
+        }
+        mEncryptionKey = encKey;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        mPublicRing.encode(baos);
+        mPublicRingEncoded = baos.toByteArray();
+    }
+}
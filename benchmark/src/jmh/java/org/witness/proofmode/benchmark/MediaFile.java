@@ -0,0 +1,67 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * A media file of the given size filled with seeded random (incompressible) bytes, so every
+ * run hashes, signs and zips exactly the same content
+ */
+@State(Scope.Benchmark)
+public class MediaFile {
+
+    //100KB photo thumbnail up to a 2GB video
+    @Param({"102400", "10485760", "104857600", "2147483648"})
+    public long size;
+
+    public File file;
+
+    private final static int BLOCK_SIZE = 1024 * 1024;
+
+    @Setup(Level.Trial)
+    public void create () throws IOException
+    {
+        file = File.createTempFile("proofmode-bench-", ".mp4");
+
+        //one random block repeated; far beyond the deflate window, so it still doesn't compress
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(42).nextBytes(block);
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = (int) Math.min(block.length, remaining);
+                os.write(block, 0, n);
+                remaining -= n;
+            }
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete ()
+    {
+        file.delete();
+    }
+
+    public InputStream open () throws IOException
+    {
+        return new BufferedInputStream(new FileInputStream(file), 1024 * 64);
+    }
+}
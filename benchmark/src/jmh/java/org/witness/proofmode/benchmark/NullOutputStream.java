@@ -0,0 +1,21 @@
+package org.witness.proofmode.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Counts and discards everything written, so benchmarks measure the work and not the disk
+ */
+class NullOutputStream extends OutputStream {
+
+    long mCount;
+
+    @Override
+    public void write(int b) {
+        mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        mCount += len;
+    }
+}
@@ -0,0 +1,122 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.util.ProofCsv;
+import org.witness.proofmode.util.ProofRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the proof row that MediaWatcher.buildProof writes for each media file, and reading
+ * batches of them back
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProofCsvBenchmark {
+
+    private final static int BATCH_ROWS = 1000;
+
+    private ProofRecord mRecord;
+    private String mBatchCsv;
+    private byte[] mBatchBinary;
+
+    @Setup
+    public void setup () throws IOException
+    {
+        //typical values from buildProof
+        mRecord = new ProofRecord()
+                .set(ProofRecord.Field.FILE_PATH, "/storage/emulated/0/DCIM/Camera/IMG_20220301_101530.jpg")
+                .set(ProofRecord.Field.FILE_HASH_SHA256, "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+                .set(ProofRecord.Field.FILE_MODIFIED, "Tuesday, March 1, 2022 at 10:15:30 AM Greenwich Mean Time")
+                .set(ProofRecord.Field.PROOF_GENERATED, "Tuesday, March 1, 2022 at 10:15:31 AM Greenwich Mean Time")
+                .set(ProofRecord.Field.DEVICE_ID, "3b1f5c2e9a7d4e60")
+                .set(ProofRecord.Field.WIFI_MAC, "02:00:00:00:00:00")
+                .set(ProofRecord.Field.IPV4, "192.168.1.23 ")
+                .set(ProofRecord.Field.IPV6, "FE80::1C2B:3AFF:FE4D:5E6F ")
+                .set(ProofRecord.Field.DATA_TYPE, "Mobile Data LTE")
+                .set(ProofRecord.Field.NETWORK, "Connected")
+                .set(ProofRecord.Field.NETWORK_TYPE, "Wifi")
+                .set(ProofRecord.Field.HARDWARE, "Google Pixel 5")
+                .set(ProofRecord.Field.MANUFACTURER, "Google")
+                .set(ProofRecord.Field.SCREEN_SIZE, "6.0")
+                .set(ProofRecord.Field.LANGUAGE, "English")
+                .set(ProofRecord.Field.LOCALE, "USA")
+                .set(ProofRecord.Field.LOCATION_LATITUDE, "40.712776")
+                .set(ProofRecord.Field.LOCATION_LONGITUDE, "-74.005974")
+                .set(ProofRecord.Field.LOCATION_PROVIDER, "fused")
+                .set(ProofRecord.Field.LOCATION_ACCURACY, "12.5")
+                .set(ProofRecord.Field.LOCATION_ALTITUDE, "10.0")
+                .set(ProofRecord.Field.LOCATION_BEARING, "0.0")
+                .set(ProofRecord.Field.LOCATION_SPEED, "0.0")
+                .set(ProofRecord.Field.LOCATION_TIME, "1646129730000")
+                .set(ProofRecord.Field.CELL_INFO, "[{\"cellId\":27447298,\"tac\":4101,\"dbm\":-97}]")
+                .set(ProofRecord.Field.NOTES, "ProofMode v0.0.10");
+
+        StringBuilder sb = new StringBuilder();
+        ProofCsv.writeHeader(sb);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        for (int i = 0; i < BATCH_ROWS; i++) {
+            ProofCsv.writeRow(mRecord, sb);
+            mRecord.writeTo(dos);
+        }
+
+        mBatchCsv = sb.toString();
+        mBatchBinary = baos.toByteArray();
+    }
+
+    @Benchmark
+    public String formatWithHeaders ()
+    {
+        return ProofCsv.format(mRecord, true);
+    }
+
+    @Benchmark
+    public String formatRow ()
+    {
+        return ProofCsv.format(mRecord, false);
+    }
+
+    @Benchmark
+    public String formatJson ()
+    {
+        return mRecord.toJson();
+    }
+
+    @Benchmark
+    public int parseCsvBatch () throws IOException
+    {
+        ProofCsv.CsvReader reader = new ProofCsv.CsvReader(new StringReader(mBatchCsv));
+        int count = 0;
+        while (reader.next() != null)
+            count++;
+        return count;
+    }
+
+    @Benchmark
+    public int readBinaryBatch () throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mBatchBinary));
+        int count = 0;
+        while (in.available() > 0) {
+            ProofRecord.readFrom(in);
+            count++;
+        }
+        return count;
+    }
+}
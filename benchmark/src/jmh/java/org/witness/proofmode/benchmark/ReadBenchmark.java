@@ -0,0 +1,43 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.crypto.HashUtils;
+import org.witness.proofmode.crypto.MediaReader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 of a media file read through each MediaReader strategy and buffer size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadBenchmark {
+
+    @Param({"STREAM", "CHANNEL", "MAPPED"})
+    public MediaReader.Strategy strategy;
+
+    @Param({"16384", "262144", "1048576"})
+    public int bufferSize;
+
+    @Benchmark
+    public String sha256 (MediaFile media) throws IOException
+    {
+        FileInputStream in = new FileInputStream(media.file);
+
+        try {
+            return HashUtils.getSHA256FromFileContent(in, new MediaReader(strategy, bufferSize));
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.witness.proofmode.benchmark;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.witness.proofmode.crypto.DetachedSignatureProcessor;
+import org.witness.proofmode.crypto.MediaDigestSession;
+import org.witness.proofmode.crypto.SignatureVerifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing media with a detached signature, and checking it again, as done for every proof,
+ * with the RSA-4096 primary key or the Ed25519 signing subkey
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignatureBenchmark {
+
+    @Param({"rsa", "ed25519"})
+    public String keyType;
+
+    private Keys mKeys;
+    private PGPSecretKey mSecretKey;
+    private PGPPrivateKey mPrivateKey;
+    private PGPContentSignerBuilder mSignerBuilder;
+    private File mFileSignature;
+    private File mFilePublicKey;
+    private SignatureVerifier mVerifier;
+
+    @Setup(Level.Trial)
+    public void setup (MediaFile media) throws IOException, PGPException
+    {
+        mKeys = new Keys();
+
+        boolean ed25519 = keyType.equals("ed25519");
+        mSecretKey = ed25519 ? mKeys.mEdSecretKey : mKeys.mSecretKey;
+
+        //unlocked and signed with the JCA operators the app uses, once per trial as PgpUtils keeps them
+        mPrivateKey = DetachedSignatureProcessor.extractPrivateKey(mSecretKey, Keys.PASSWORD);
+        mSignerBuilder = DetachedSignatureProcessor.createSignerBuilder(mSecretKey.getPublicKey());
+
+        mFileSignature = File.createTempFile("proofmode-bench-", ".asc");
+        DetachedSignatureProcessor.createSignature(mSignerBuilder, mPrivateKey,
+                media.open(), new FileOutputStream(mFileSignature), true);
+
+        mFilePublicKey = File.createTempFile("proofmode-bench-", ".pub");
+        OutputStream os = new FileOutputStream(mFilePublicKey);
+        os.write(mKeys.mPublicRingEncoded);
+        os.close();
+
+        mVerifier = new SignatureVerifier();
+        mVerifier.addKeyRing(mKeys.mPublicRing);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown ()
+    {
+        mFileSignature.delete();
+        mFilePublicKey.delete();
+    }
+
+    @Benchmark
+    public long sign (MediaFile media) throws IOException, PGPException
+    {
+        NullOutputStream out = new NullOutputStream();
+        DetachedSignatureProcessor.createSignature(mSignerBuilder, mPrivateKey, media.open(), out, true);
+        return out.mCount;
+    }
+
+    @Benchmark
+    public long hashAndSign (MediaFile media) throws IOException, PGPException, NoSuchAlgorithmException
+    {
+        MediaDigestSession.Result result = new MediaDigestSession(media.open())
+                .setSignatureGenerator(DetachedSignatureProcessor.initSignatureGenerator(mSignerBuilder, mPrivateKey))
+                .digest();
+
+        NullOutputStream out = new NullOutputStream();
+        result.writeSignature(out, true);
+        return out.mCount;
+    }
+
+    @Benchmark
+    public SignatureVerifier.Result verifyCachedKeys (MediaFile media)
+    {
+        return mVerifier.verify(media.file, mFileSignature);
+    }
+
+    /**
+     * The original entry point, which parses the keyring again for every check
+     */
+    @Benchmark
+    public boolean verifyWithKeyFile (MediaFile media) throws IOException, PGPException, GeneralSecurityException
+    {
+        return DetachedSignatureProcessor.verifySignature(media.file.getPath(),
+                mFileSignature.getPath(), mFilePublicKey.getPath());
+    }
+}
@@ -0,0 +1,68 @@
+package org.witness.proofmode.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.witness.proofmode.util.ProofZipOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a proof bundle zip (media, proof csv and signatures), as shared from the app
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZipBenchmark {
+
+    //.mp4 is stored as is, .bin is deflated like any unknown media
+    @Param({"mp4", "bin"})
+    public String mediaExtension;
+
+    private byte[] mCsv;
+    private byte[] mSignature;
+
+    @Setup
+    public void setup ()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            sb.append("/storage/emulated/0/DCIM/Camera/VID_").append(i).append(".mp4,9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08,01 Mar 2022 10:15:30 GMT,LTE,Pixel 5\n");
+        mCsv = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        sb = new StringBuilder("-----BEGIN PGP SIGNATURE-----\n\n");
+        for (int i = 0; i < 12; i++)
+            sb.append("iQIzBAABCAAdFiEEn4bQgYhMfWWaL+qgxVrQFaO/TxsFAmIj9KIACgkQxVrQFaO/Txs\n");
+        sb.append("-----END PGP SIGNATURE-----\n");
+        mSignature = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long bundle (MediaFile media) throws IOException
+    {
+        NullOutputStream out = new NullOutputStream();
+        ProofZipOutputStream zos = new ProofZipOutputStream(new BufferedOutputStream(out, ProofZipOutputStream.BUFFER_SIZE));
+
+        try {
+            String name = "media." + mediaExtension;
+            zos.putEntry(name, media.open());
+            zos.putEntry(name + ".asc", new ByteArrayInputStream(mSignature));
+            zos.putEntry(name + ".proof.csv", new ByteArrayInputStream(mCsv));
+            zos.putEntry(name + ".proof.csv.asc", new ByteArrayInputStream(mSignature));
+        }
+        finally {
+            zos.close();
+        }
+
+        return out.mCount;
+    }
+}
@@ -0,0 +1,21 @@
+package org.witness.proofmode;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.Security;
+
+/**
+ * Stand-in for the library's ProofMode, which needs Android; only holds the provider
+ */
+public class ProofMode {
+
+    public final static BouncyCastleProvider sProvider = new BouncyCastleProvider();
+    static {
+        Security.addProvider(sProvider);
+    }
+
+    public static BouncyCastleProvider getProvider ()
+    {
+        return sProvider;
+    }
+}
@@ -0,0 +1,14 @@
+package timber.log;
+
+/**
+ * Stand-in for Timber so library sources can run on the JVM; logging is dropped
+ */
+public final class Timber {
+
+    public static void d(String message, Object... args) {}
+    public static void d(Throwable t, String message, Object... args) {}
+    public static void w(String message, Object... args) {}
+    public static void w(Throwable t, String message, Object... args) {}
+    public static void e(String message, Object... args) {}
+    public static void e(Throwable t, String message, Object... args) {}
+}